@@ -8,5 +8,7 @@ LOCAL_SRC_FILES += tunertvinput_jni.cpp DvbManager.cpp
 LOCAL_SDK_VERSION := 21
 LOCAL_NDK_STL_VARIANT := stlport_static
 LOCAL_LDLIBS := -llog
+# Enables the CRC32 instructions for the PSIP section validation.
+LOCAL_CFLAGS_arm64 := -march=armv8-a+crc
 
 include $(BUILD_SHARED_LIBRARY)
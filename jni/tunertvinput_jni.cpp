@@ -16,6 +16,14 @@
 
 #include "tunertvinput_jni.h"
 #include <map>
+#include <string.h>
+
+#if defined(__aarch64__) && defined(__ARM_FEATURE_CRC32)
+#include <arm_acle.h>
+#include <asm/hwcap.h>
+#include <sys/auxv.h>
+#define HAS_ARM_CRC32 1
+#endif
 
 #include "DvbManager.h"
 #define LOG_TAG "tunertvinput_jni"
@@ -142,6 +150,41 @@ Java_com_android_tv_tuner_TunerHal_nativeWriteInBuffer
     return dataSize;
 }
 
+/*
+ * Class:     com_android_tv_tuner_TunerHal
+ * Method:    nativeWriteInDirectBuffer
+ * Signature: (JLjava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_android_tv_tuner_TunerHal_nativeWriteInDirectBuffer
+(JNIEnv *env, jobject thiz, jlong deviceId, jobject javaBuffer, jint offset, jint size) {
+    std::map<jlong, DvbManager *>::iterator it = sDvbManagers.find(deviceId);
+    if (it == sDvbManagers.end()) {
+        return -1;
+    }
+    DvbManager *dvbManager = it->second;
+
+    uint8_t *address = (uint8_t *) env->GetDirectBufferAddress(javaBuffer);
+    jlong capacity = env->GetDirectBufferCapacity(javaBuffer);
+    if (address == NULL || offset < 0 || size < 0 || offset + (jlong) size > capacity) {
+        ALOGE("Invalid direct buffer");
+        return -1;
+    }
+
+    // Always read multiple of TS_PACKET_SIZE. DVR data is read into the Java buffer in place.
+    size = (size / TS_PACKET_SIZE) * TS_PACKET_SIZE;
+    int dataSize = dvbManager->readTsStream(env, thiz, address + offset, size, READ_TIMEOUT_MS);
+    if (dataSize == 0) {
+        ALOGD("No data to read DVR");
+        return 0;
+    } else if (dataSize < 0) {
+        return -1;
+    }
+
+    sTotalBytesFetched += dataSize;
+    return dataSize;
+}
+
 /*
  * Class:     com_android_tv_tuner_TunerHal
  * Method:    nativeSetHasPendingTune
@@ -155,3 +198,68 @@ Java_com_android_tv_tuner_TunerHal_nativeSetHasPendingTune
         it->second->setHasPendingTune(hasPendingTune);
     }
 }
+
+//-------------------------------------------------------------------------------
+// CRC-32/MPEG-2 for PSIP section validation
+//-------------------------------------------------------------------------------
+
+#ifdef HAS_ARM_CRC32
+// The CRC32 instructions implement the bit-reflected form of the polynomial 0x04c11db7, while
+// CRC-32/MPEG-2 is not reflected. Feeding bit-reversed bytes into the reflected CRC and
+// reversing the register gives the non-reflected result.
+static uint32_t computeCrc32Mpeg(const uint8_t *data, size_t length) {
+    uint32_t crc = 0xffffffff;
+    while (length >= sizeof(uint64_t)) {
+        uint64_t word;
+        memcpy(&word, data, sizeof(word));
+        // Reverses the bits in each byte, keeping the byte order.
+        crc = __crc32d(crc, __revll(__rbitll(word)));
+        data += sizeof(word);
+        length -= sizeof(word);
+    }
+    while (length > 0) {
+        crc = __crc32b(crc, (uint8_t) (__rbit(*data) >> 24));
+        ++data;
+        --length;
+    }
+    return __rbit(crc);
+}
+#endif
+
+/*
+ * Class:     com_android_tv_tuner_ts_NativeCrcEngine
+ * Method:    nativeIsHardwareCrcSupported
+ * Signature: ()Z
+ */
+JNIEXPORT jboolean JNICALL
+Java_com_android_tv_tuner_ts_NativeCrcEngine_nativeIsHardwareCrcSupported
+(JNIEnv *, jclass) {
+#ifdef HAS_ARM_CRC32
+    return (getauxval(AT_HWCAP) & HWCAP_CRC32) != 0;
+#else
+    return false;
+#endif
+}
+
+/*
+ * Class:     com_android_tv_tuner_ts_NativeCrcEngine
+ * Method:    nativeCompute
+ * Signature: ([BII)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_android_tv_tuner_ts_NativeCrcEngine_nativeCompute
+(JNIEnv *env, jclass, jbyteArray javaBuffer, jint offset, jint length) {
+#ifdef HAS_ARM_CRC32
+    // Sections are short, so the critical region is held only briefly and nothing is copied.
+    uint8_t *buffer = (uint8_t *) env->GetPrimitiveArrayCritical(javaBuffer, NULL);
+    if (buffer == NULL) {
+        return -1;
+    }
+    uint32_t crc = computeCrc32Mpeg(buffer + offset, length);
+    env->ReleasePrimitiveArrayCritical(javaBuffer, buffer, JNI_ABORT);
+    return crc;
+#else
+    ALOGE("Hardware CRC is not supported");
+    return -1;
+#endif
+}
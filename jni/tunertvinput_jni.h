@@ -73,6 +73,14 @@ JNIEXPORT void JNICALL Java_com_android_tv_tuner_TunerHal_nativeStopTune
 JNIEXPORT jint JNICALL Java_com_android_tv_tuner_TunerHal_nativeWriteInBuffer
   (JNIEnv *, jobject, jlong, jbyteArray, jint);
 
+/*
+ * Class:     com_android_tv_tuner_TunerHal
+ * Method:    nativeWriteInDirectBuffer
+ * Signature: (JLjava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_com_android_tv_tuner_TunerHal_nativeWriteInDirectBuffer
+  (JNIEnv *, jobject, jlong, jobject, jint, jint);
+
 /*
  * Class:     com_android_tv_tuner_TunerHal
  * Method:    nativeSetHasPendingTune
@@ -96,3 +104,30 @@ extern "C" {
 }
 #endif
 #endif
+/* Header for class com_android_tv_tuner_ts_NativeCrcEngine */
+
+#ifndef _Included_com_android_tv_tuner_ts_NativeCrcEngine
+#define _Included_com_android_tv_tuner_ts_NativeCrcEngine
+#ifdef __cplusplus
+extern "C" {
+#endif
+/*
+ * Class:     com_android_tv_tuner_ts_NativeCrcEngine
+ * Method:    nativeIsHardwareCrcSupported
+ * Signature: ()Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_android_tv_tuner_ts_NativeCrcEngine_nativeIsHardwareCrcSupported
+  (JNIEnv *, jclass);
+
+/*
+ * Class:     com_android_tv_tuner_ts_NativeCrcEngine
+ * Method:    nativeCompute
+ * Signature: ([BII)I
+ */
+JNIEXPORT jint JNICALL Java_com_android_tv_tuner_ts_NativeCrcEngine_nativeCompute
+  (JNIEnv *, jclass, jbyteArray, jint, jint);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
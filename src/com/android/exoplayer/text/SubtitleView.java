@@ -26,9 +26,12 @@ import android.graphics.Paint.Join;
 import android.graphics.Paint.Style;
 import android.graphics.RectF;
 import android.graphics.Typeface;
+import android.support.annotation.VisibleForTesting;
 import android.text.Layout.Alignment;
+import android.text.Spanned;
 import android.text.StaticLayout;
 import android.text.TextPaint;
+import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.view.View;
@@ -74,8 +77,10 @@ public class SubtitleView extends View {
     private int mEdgeType;
 
     private boolean mHasMeasurements;
-    private int mLastMeasuredWidth;
+    // Read by the thread which prepares the layouts in advance.
+    private volatile int mLastMeasuredWidth;
     private StaticLayout mLayout;
+    private StaticLayout mPreparedLayout;
 
     private Alignment mAlignment;
     private final float mSpacingMult;
@@ -113,9 +118,7 @@ public class SubtitleView extends View {
         mShadowRadius = twoDpInPx;
         mShadowOffset = twoDpInPx;
 
-        mTextPaint = new TextPaint();
-        mTextPaint.setAntiAlias(true);
-        mTextPaint.setSubpixelText(true);
+        mTextPaint = createTextPaint();
 
         mAlignment = Alignment.ALIGN_CENTER;
 
@@ -144,6 +147,50 @@ public class SubtitleView extends View {
         forceUpdate(true);
     }
 
+    /**
+     * Sets the text to be displayed by the view along with its layout, which was prepared in
+     * advance by {@link #createLayout} for {@link #getLastMeasuredWidth}. The layout is used
+     * instead of creating a new one if it still fits the view when the view is measured.
+     *
+     * @param text The text to display.
+     * @param layout The layout of the text, or {@code null} to create one when measured.
+     */
+    public void setText(CharSequence text, StaticLayout layout) {
+        this.mText = text;
+        mPreparedLayout = layout;
+        forceUpdate(true);
+    }
+
+    /**
+     * Returns the width for the text which the view was measured last, or {@code 0} if it was not
+     * measured yet. This can be called on any thread.
+     */
+    public int getLastMeasuredWidth() {
+        return mLastMeasuredWidth;
+    }
+
+    /**
+     * Creates the paint which draws the text of a view.
+     */
+    public static TextPaint createTextPaint() {
+        TextPaint textPaint = new TextPaint();
+        textPaint.setAntiAlias(true);
+        textPaint.setSubpixelText(true);
+        return textPaint;
+    }
+
+    /**
+     * Creates the layout of the given text, as a view with the default line spacing does. This
+     * can be called on any thread.
+     *
+     * @param textPaint The paint which is created by {@link #createTextPaint}, whose text size and
+     *                  typeface are set. It is owned by the layout afterwards.
+     */
+    public static StaticLayout createLayout(CharSequence text, TextPaint textPaint, int width,
+            Alignment alignment) {
+        return new StaticLayout(text, textPaint, width, alignment, 1, 0, true);
+    }
+
     /**
      * Sets the text size in pixels.
      *
@@ -252,11 +299,40 @@ public class SubtitleView extends View {
 
         mHasMeasurements = true;
         mLastMeasuredWidth = maxWidth;
-        mLayout = new StaticLayout(mText, mTextPaint, maxWidth, mAlignment,
-                mSpacingMult, mSpacingAdd, true);
+        StaticLayout preparedLayout = mPreparedLayout;
+        mPreparedLayout = null;
+        if (isPreparedLayoutValid(preparedLayout, maxWidth)) {
+            mLayout = preparedLayout;
+        } else {
+            mLayout = new StaticLayout(mText, mTextPaint, maxWidth, mAlignment,
+                    mSpacingMult, mSpacingAdd, true);
+        }
         return true;
     }
 
+    private boolean isPreparedLayoutValid(StaticLayout layout, int maxWidth) {
+        if (layout == null) {
+            return false;
+        }
+        // A cached layout of a plain text was created from an equal but another String.
+        CharSequence layoutText = layout.getText();
+        if (layoutText != mText && (mText instanceof Spanned || layoutText instanceof Spanned
+                || !TextUtils.equals(layoutText, mText))) {
+            return false;
+        }
+        TextPaint paint = layout.getPaint();
+        return layout.getWidth() == maxWidth && layout.getAlignment() == mAlignment
+                && layout.getSpacingMultiplier() == mSpacingMult
+                && layout.getSpacingAdd() == mSpacingAdd
+                && paint.getTextSize() == mTextPaint.getTextSize()
+                && paint.getTypeface() == mTextPaint.getTypeface();
+    }
+
+    @VisibleForTesting
+    StaticLayout getLayout() {
+        return mLayout;
+    }
+
     @Override
     protected void onDraw(Canvas c) {
         final StaticLayout layout = this.mLayout;
@@ -269,7 +345,8 @@ public class SubtitleView extends View {
         c.translate(getPaddingLeft() + innerPaddingX, getPaddingTop());
 
         final int lineCount = layout.getLineCount();
-        final Paint textPaint = this.mTextPaint;
+        // A prepared layout draws with its own paint, which has the same text size and typeface.
+        final Paint textPaint = layout.getPaint();
         final Paint paint = this.mPaint;
         final RectF bounds = mLineBounds;
 
@@ -50,6 +50,9 @@ public class StubTracker implements Tracker {
     @Override
     public void sendChannelViewStop(Channel channel, long durationMs) { }
 
+    @Override
+    public void sendTunerZapStageTime(String stageName, long durationMs) { }
+
     @Override
     public void sendChannelUp() { }
 
@@ -86,6 +86,15 @@ public interface Tracker {
      */
     void sendChannelViewStop(Channel channel, long durationMs);
 
+    /**
+     * Sends the time a stage of tuning to a channel took on the built-in tuner.
+     *
+     * @param stageName The name of the stage, e.g. {@code tuner_locked}, or {@code total} for the
+     *            time until the first frame.
+     * @param durationMs The time the stage took in milliseconds.
+     */
+    void sendTunerZapStageTime(String stageName, long durationMs);
+
     /**
      * Sends tracking information for pressing channel up.
      */
@@ -21,8 +21,11 @@ import android.support.annotation.IntDef;
 import android.support.annotation.StringDef;
 import android.util.Log;
 
+import com.android.tv.tuner.util.ZapTracer;
+
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
 /**
@@ -133,7 +136,20 @@ public abstract class TunerHal implements AutoCloseable {
      * @param modulation a modulation method of the channel to tune to
      * @return {@code true} if the operation was successful, {@code false} otherwise
      */
-    public synchronized boolean tune(int frequency, @ModulationType String modulation) {
+    public boolean tune(int frequency, @ModulationType String modulation) {
+        return tune(frequency, modulation, null);
+    }
+
+    /**
+     * Sets the tuner channel for a zap, and marks when the tuner is locked.
+     *
+     * @param frequency a frequency of the channel to tune to
+     * @param modulation a modulation method of the channel to tune to
+     * @param zap the zap which is traced, or {@code null} if the tune isn't for a zap
+     * @return {@code true} if the operation was successful, {@code false} otherwise
+     */
+    public synchronized boolean tune(int frequency, @ModulationType String modulation,
+            ZapTracer.Zap zap) {
         if (!isDeviceOpen()) {
             Log.e(TAG, "There's no available device");
             return false;
@@ -149,6 +165,9 @@ public abstract class TunerHal implements AutoCloseable {
             addPidFilter(PID_PAT, FILTER_TYPE_OTHER);
             addPidFilter(PID_ATSC_SI_BASE, FILTER_TYPE_OTHER);
             mIsStreaming = true;
+            if (zap != null) {
+                zap.markStage(ZapTracer.STAGE_TUNER_LOCKED);
+            }
             return true;
         }
         int timeout_ms = modulation.equals(MODULATION_8VSB) ? DEFAULT_VSB_TUNE_TIMEOUT_MS
@@ -159,6 +178,9 @@ public abstract class TunerHal implements AutoCloseable {
             mFrequency = frequency;
             mModulation = modulation;
             mIsStreaming = true;
+            if (zap != null) {
+                zap.markStage(ZapTracer.STAGE_TUNER_LOCKED);
+            }
             return true;
         }
         return false;
@@ -233,6 +255,36 @@ public abstract class TunerHal implements AutoCloseable {
 
     protected native int nativeWriteInBuffer(long deviceId, byte[] javaBuffer, int javaBufferSize);
 
+    /**
+     * This method must be called after {@link TunerHal#tune} and before
+     * {@link TunerHal#stopTune}. Writes TS frames in a direct buffer. Unlike
+     * {@link #readTsStream(byte[], int)}, the frames are read into the buffer in place, without
+     * being copied through a native buffer and a Java array.
+     *
+     * @param buffer a direct buffer to write the video data in. The frames are written from its
+     *            position up to its limit, and the position is advanced by the amount of bytes
+     *            written.
+     * @return the amount of bytes written in the buffer. Note that this value could be 0 if no new
+     *         frames have been obtained since the last call.
+     */
+    public synchronized int readTsStream(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("The buffer should be a direct buffer");
+        }
+        if (!isDeviceOpen()) {
+            return 0;
+        }
+        int bytesWritten = nativeWriteInDirectBuffer(getDeviceId(), buffer, buffer.position(),
+                buffer.remaining());
+        if (bytesWritten > 0) {
+            buffer.position(buffer.position() + bytesWritten);
+        }
+        return bytesWritten;
+    }
+
+    protected native int nativeWriteInDirectBuffer(long deviceId, ByteBuffer buffer, int offset,
+            int size);
+
     /**
      * Opens Linux DVB frontend device. This method is called from native JNI and used only for
      * UsbTunerHal.
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.cc;
+
+import com.android.tv.tuner.data.Cea708Data.CaptionEvent;
+
+/**
+ * A small cache of {@link CaptionEvent}s which are keyed by the raw bytes of their commands.
+ * <p>
+ * Caption services repeat the same few commands, e.g. the same pen color or window, on every
+ * caption. Since the events and their values are immutable, an event can be emitted again instead
+ * of allocating an identical one, even if the previous one is still held by the renderer.
+ */
+class CaptionEventCache {
+    // Direct-mapped slots per event type.
+    private static final int SLOT_COUNT_PER_TYPE = 8;
+    // The command and up to 7 bytes of its parameters fit in a key.
+    static final int MAX_PARAMETER_LENGTH = 7;
+
+    private final long[] mKeys;
+    private final CaptionEvent[] mEvents;
+
+    /**
+     * @param maxType the largest event type which is cached
+     */
+    CaptionEventCache(int maxType) {
+        mKeys = new long[(maxType + 1) * SLOT_COUNT_PER_TYPE];
+        mEvents = new CaptionEvent[mKeys.length];
+    }
+
+    /**
+     * Returns the key of a command, which consists of the command and its parameters.
+     */
+    static long getKey(int command, byte[] data, int pos, int length) {
+        long key = command;
+        for (int i = 0; i < length; ++i) {
+            key = (key << 8) | (data[pos + i] & 0xff);
+        }
+        return key;
+    }
+
+    /**
+     * Returns the cached event of the given type and key, or {@code null} if there is none.
+     */
+    CaptionEvent get(int type, long key) {
+        int slot = getSlot(type, key);
+        CaptionEvent event = mEvents[slot];
+        return event != null && mKeys[slot] == key ? event : null;
+    }
+
+    /**
+     * Caches the event, which replaces the event in the same slot.
+     *
+     * @return the given event
+     */
+    CaptionEvent put(int type, long key, CaptionEvent event) {
+        int slot = getSlot(type, key);
+        mKeys[slot] = key;
+        mEvents[slot] = event;
+        return event;
+    }
+
+    private static int getSlot(int type, long key) {
+        // Mixes the bytes of the key, since the lower bytes are often the same.
+        long hash = key ^ (key >>> 29) ^ (key >>> 13);
+        return type * SLOT_COUNT_PER_TYPE + (int) (hash & (SLOT_COUNT_PER_TYPE - 1));
+    }
+}
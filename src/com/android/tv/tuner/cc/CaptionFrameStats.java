@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.cc;
+
+import android.support.annotation.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Keeps the time which the stages of the caption pipeline take, so that caption-induced jank can
+ * be detected from the dump of the tuner service.
+ *
+ * <p>The caption commands are applied and the text layouts are prepared on a background thread,
+ * and then the changes are committed to the views on the UI thread. The time of each stage is
+ * kept in a fixed histogram, so recording doesn't allocate.
+ */
+public class CaptionFrameStats {
+    static final int STAGE_PREPARE = 0;
+    static final int STAGE_COMMIT = 1;
+    static final int STAGE_COMMIT_DELAY = 2;
+    private static final int STAGE_COUNT = 3;
+
+    private static final String[] STAGE_NAMES = {
+            "caption_prepare", "caption_commit", "caption_commit_delay" };
+
+    // The commit takes a part of a frame of 60 fps on the UI thread. The preparation doesn't block
+    // the UI, but should keep up with the captions of every frame. The delay of a commit tells how
+    // busy the UI thread is.
+    private static final long[] STAGE_BUDGETS_MS = { 16, 4, 33 };
+
+    // The upper bounds of the histogram buckets, in milliseconds.
+    private static final long[] BUCKET_BOUNDS_MS = {
+            1, 2, 4, 8, 16, 33, 50, 100, 200, Long.MAX_VALUE };
+
+    // @GuardedBy("this")
+    private final int[][] mHistograms = new int[STAGE_COUNT][BUCKET_BOUNDS_MS.length];
+    private final long[] mMaxTimesMs = new long[STAGE_COUNT];
+    private int mCoalescedEventCount;
+    private int mLayoutCacheHitCount;
+    private int mLayoutCacheMissCount;
+
+    private static class LazyHolder {
+        private static final CaptionFrameStats INSTANCE = new CaptionFrameStats();
+    }
+
+    public static CaptionFrameStats getInstance() {
+        return LazyHolder.INSTANCE;
+    }
+
+    @VisibleForTesting
+    CaptionFrameStats() { }
+
+    /**
+     * Records the time of a stage of a commit.
+     */
+    synchronized void record(int stage, long timeNs) {
+        long timeMs = timeNs / 1000000;
+        mMaxTimesMs[stage] = Math.max(mMaxTimesMs[stage], timeMs);
+        for (int i = 0; i < BUCKET_BOUNDS_MS.length; ++i) {
+            if (timeMs <= BUCKET_BOUNDS_MS[i]) {
+                ++mHistograms[stage][i];
+                break;
+            }
+        }
+    }
+
+    /**
+     * Records a commit which was prepared from the given number of caption events.
+     */
+    synchronized void recordPrepared(int eventCount, int layoutCacheHitCount,
+            int layoutCacheMissCount) {
+        mCoalescedEventCount += eventCount;
+        mLayoutCacheHitCount += layoutCacheHitCount;
+        mLayoutCacheMissCount += layoutCacheMissCount;
+    }
+
+    /**
+     * Returns the number of the times which were recorded for the given stage.
+     */
+    @VisibleForTesting
+    synchronized int getCount(int stage) {
+        int count = 0;
+        for (int bucketCount : mHistograms[stage]) {
+            count += bucketCount;
+        }
+        return count;
+    }
+
+    /**
+     * Dumps the histograms.
+     */
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Caption frame times: events=" + mCoalescedEventCount + " layoutCacheHits="
+                + mLayoutCacheHitCount + " layoutCacheMisses=" + mLayoutCacheMissCount);
+        for (int stage = 0; stage < STAGE_COUNT; ++stage) {
+            int[] histogram = mHistograms[stage];
+            int count = getCount(stage);
+            StringBuilder sb = new StringBuilder("  stage=").append(STAGE_NAMES[stage])
+                    .append(" count=").append(count)
+                    .append(" budgetMs=").append(STAGE_BUDGETS_MS[stage])
+                    .append(" p50Ms=").append(getPercentileBoundMs(histogram, count, 50))
+                    .append(" p90Ms=").append(getPercentileBoundMs(histogram, count, 90))
+                    .append(" maxMs=").append(mMaxTimesMs[stage])
+                    .append(" buckets=");
+            for (int i = 0; i < histogram.length; ++i) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(histogram[i]);
+            }
+            writer.println(sb);
+        }
+    }
+
+    private static long getPercentileBoundMs(int[] histogram, int count, int percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        // The upper bound of the bucket which holds the percentile.
+        int target = (count * percentile + 99) / 100;
+        int sum = 0;
+        for (int i = 0; i < histogram.length; ++i) {
+            sum += histogram[i];
+            if (sum >= target) {
+                return BUCKET_BOUNDS_MS[i];
+            }
+        }
+        return BUCKET_BOUNDS_MS[BUCKET_BOUNDS_MS.length - 1];
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.cc;
+
+import android.graphics.Typeface;
+import android.text.Layout.Alignment;
+import android.text.Spanned;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.util.LruCache;
+
+import com.google.android.exoplayer.text.SubtitleView;
+
+import java.util.Objects;
+
+/**
+ * A cache of the {@link StaticLayout}s of caption texts, which are prepared off the UI thread.
+ * <p>
+ * Roll-up and paint-on captions show the same lines again and again while a line is being
+ * completed, so the layouts of plain texts are kept by their text and their text metrics. The
+ * layouts of texts with pen styles are created every time, since their spans aren't comparable.
+ * It should be used on a single thread.
+ */
+class CaptionLayoutCache {
+    private static final int MAX_SIZE = 32;
+
+    private final LruCache<Key, StaticLayout> mLayouts = new LruCache<>(MAX_SIZE);
+    private int mHitCount;
+    private int mMissCount;
+
+    private static class Key {
+        final String text;
+        final int width;
+        final float textSize;
+        final Typeface typeface;
+        final Alignment alignment;
+
+        Key(String text, int width, float textSize, Typeface typeface, Alignment alignment) {
+            this.text = text;
+            this.width = width;
+            this.textSize = textSize;
+            this.typeface = typeface;
+            this.alignment = alignment;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return width == other.width && textSize == other.textSize
+                    && typeface == other.typeface && alignment == other.alignment
+                    && text.equals(other.text);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(text, width, textSize, typeface, alignment);
+        }
+    }
+
+    /**
+     * Returns the layout of the given text, which is drawn by {@link SubtitleView}.
+     */
+    StaticLayout getLayout(CharSequence text, int width, float textSize, Typeface typeface,
+            Alignment alignment) {
+        if (text instanceof Spanned) {
+            ++mMissCount;
+            return createLayout(text, width, textSize, typeface, alignment);
+        }
+        Key key = new Key(text.toString(), width, textSize, typeface, alignment);
+        StaticLayout layout = mLayouts.get(key);
+        if (layout != null) {
+            ++mHitCount;
+            return layout;
+        }
+        ++mMissCount;
+        layout = createLayout(key.text, width, textSize, typeface, alignment);
+        mLayouts.put(key, layout);
+        return layout;
+    }
+
+    int getHitCount() {
+        return mHitCount;
+    }
+
+    int getMissCount() {
+        return mMissCount;
+    }
+
+    private static StaticLayout createLayout(CharSequence text, int width, float textSize,
+            Typeface typeface, Alignment alignment) {
+        TextPaint textPaint = SubtitleView.createTextPaint();
+        textPaint.setTextSize(textSize);
+        textPaint.setTypeface(typeface);
+        return SubtitleView.createLayout(text, textPaint, width, alignment);
+    }
+}
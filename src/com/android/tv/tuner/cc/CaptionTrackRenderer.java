@@ -17,7 +17,10 @@
 package com.android.tv.tuner.cc;
 
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
 
@@ -31,9 +34,16 @@ import com.android.tv.tuner.data.nano.Track.AtscCaptionTrack;
 
 import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Decodes and renders CEA-708.
+ * <p>
+ * The caption events are applied to the {@link CaptionWindowModel}s of the windows on a
+ * background thread, which also prepares the layouts of the changed texts. The changes made by a
+ * burst of events are coalesced into a single commit, which is posted to the UI thread to update
+ * the {@link CaptionWindowLayout}s. The methods can be called on any thread, and the events are
+ * applied in the order of the calls.
  */
 public class CaptionTrackRenderer implements Handler.Callback {
     // TODO: Remaining works
@@ -58,61 +68,146 @@ public class CaptionTrackRenderer implements Handler.Callback {
 
     private static final int MSG_DELAY_CANCEL = 1;
     private static final int MSG_CAPTION_CLEAR = 2;
+    private static final int MSG_PROCESS_CAPTION_EVENT = 3;
+    private static final int MSG_START = 4;
+    private static final int MSG_STOP = 5;
+    private static final int MSG_RESET = 6;
+    private static final int MSG_PREPARE_COMMIT = 7;
 
     private static final long CAPTION_CLEAR_INTERVAL_MS = 60000;
 
+    private static final int VISIBILITY_UNCHANGED = -1;
+
+    // The views, which are updated on the UI thread. The caption thread reads them only to prepare
+    // the text layouts for their text metrics.
     private final CaptionLayout mCaptionLayout;
+    private final AtomicReferenceArray<CaptionWindowLayout> mCaptionWindowLayouts =
+            new AtomicReferenceArray<>(CAPTION_WINDOWS_MAX);
+    private final Handler mUiHandler;
+    private volatile boolean mReleased;
+
+    // The state of the captions, which is used on the caption thread.
+    private final HandlerThread mHandlerThread;
+    private final Handler mHandler;
     private boolean mIsDelayed = false;
-    private CaptionWindowLayout mCurrentWindowLayout;
-    private final CaptionWindowLayout[] mCaptionWindowLayouts =
-            new CaptionWindowLayout[CAPTION_WINDOWS_MAX];
+    private CaptionWindowModel mCurrentWindow;
+    private final CaptionWindowModel[] mCaptionWindows =
+            new CaptionWindowModel[CAPTION_WINDOWS_MAX];
     private final ArrayList<CaptionEvent> mPendingCaptionEvents = new ArrayList<>();
-    private final Handler mHandler;
+    private final CaptionLayoutCache mLayoutCache = new CaptionLayoutCache();
+    private Commit mCommit;
+
+    /**
+     * The changes of the views which are made by the caption events since the last commit.
+     */
+    private static class Commit {
+        boolean reset;
+        AtscCaptionTrack captionTrack;
+        int captionLayoutVisibility = VISIBILITY_UNCHANGED;
+        int deletedWindowBitmap;
+        final ArrayList<CaptionWindowModel.Snapshot> snapshots = new ArrayList<>();
+        int eventCount;
+        long prepareTimeNs;
+        long postedTimeNs;
+    }
 
     public CaptionTrackRenderer(CaptionLayout captionLayout) {
         mCaptionLayout = captionLayout;
-        mHandler = new Handler(this);
+        mUiHandler = new Handler(Looper.getMainLooper());
+        mHandlerThread = new HandlerThread(TAG);
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper(), this);
     }
 
     @Override
     public boolean handleMessage(Message msg) {
+        long startTimeNs = SystemClock.elapsedRealtimeNanos();
         switch (msg.what) {
             case MSG_DELAY_CANCEL:
                 delayCancel();
-                return true;
+                break;
             case MSG_CAPTION_CLEAR:
                 clearWindows(CAPTION_ALL_WINDOWS_BITMAP);
+                // The windows are cleared without any caption event.
+                getCommit();
+                break;
+            case MSG_PROCESS_CAPTION_EVENT:
+                processCaptionEventInternal((CaptionEvent) msg.obj);
+                break;
+            case MSG_START:
+                startInternal((AtscCaptionTrack) msg.obj);
+                break;
+            case MSG_STOP:
+                stopInternal();
+                break;
+            case MSG_RESET:
+                resetInternal();
+                break;
+            case MSG_PREPARE_COMMIT:
+                prepareCommit(startTimeNs);
                 return true;
+            default:
+                return false;
         }
-        return false;
+        if (mCommit != null) {
+            mCommit.prepareTimeNs += SystemClock.elapsedRealtimeNanos() - startTimeNs;
+        }
+        return true;
     }
 
     public void start(AtscCaptionTrack captionTrack) {
+        mHandler.obtainMessage(MSG_START, captionTrack).sendToTarget();
+    }
+
+    public void stop() {
+        mHandler.sendEmptyMessage(MSG_STOP);
+    }
+
+    public void processCaptionEvent(CaptionEvent event) {
+        mHandler.obtainMessage(MSG_PROCESS_CAPTION_EVENT, event).sendToTarget();
+    }
+
+    public void reset() {
+        mHandler.sendEmptyMessage(MSG_RESET);
+    }
+
+    /**
+     * Stops the caption thread. This should be called on the UI thread.
+     */
+    public void release() {
+        mReleased = true;
+        mHandlerThread.quit();
+        mUiHandler.removeCallbacksAndMessages(null);
+    }
+
+    private void startInternal(AtscCaptionTrack captionTrack) {
         if (captionTrack == null) {
-            stop();
+            stopInternal();
             return;
         }
         if (DEBUG) {
             Log.d(TAG, "Start captionTrack " + captionTrack.language);
         }
-        reset();
-        mCaptionLayout.setCaptionTrack(captionTrack);
-        mCaptionLayout.setVisibility(View.VISIBLE);
+        resetInternal();
+        Commit commit = getCommit();
+        commit.captionTrack = captionTrack;
+        commit.captionLayoutVisibility = View.VISIBLE;
     }
 
-    public void stop() {
+    private void stopInternal() {
         if (DEBUG) {
             Log.d(TAG, "Stop captionTrack");
         }
-        mCaptionLayout.setVisibility(View.INVISIBLE);
+        getCommit().captionLayoutVisibility = View.INVISIBLE;
         mHandler.removeMessages(MSG_CAPTION_CLEAR);
     }
 
-    public void processCaptionEvent(CaptionEvent event) {
+    private void processCaptionEventInternal(CaptionEvent event) {
         if (mIsDelayed) {
             mPendingCaptionEvents.add(event);
             return;
         }
+        ++getCommit().eventCount;
         switch (event.type) {
             case Cea708Parser.CAPTION_EMIT_TYPE_BUFFER:
                 sendBufferToCurrentWindow((String) event.obj);
@@ -121,7 +216,7 @@ public class CaptionTrackRenderer implements Handler.Callback {
                 sendControlToCurrentWindow((char) event.obj);
                 break;
             case Cea708Parser.CAPTION_EMIT_TYPE_COMMAND_CWX:
-                setCurrentWindowLayout((int) event.obj);
+                setCurrentWindow((int) event.obj);
                 break;
             case Cea708Parser.CAPTION_EMIT_TYPE_COMMAND_CLW:
                 clearWindows((int) event.obj);
@@ -145,7 +240,7 @@ public class CaptionTrackRenderer implements Handler.Callback {
                 delayCancel();
                 break;
             case Cea708Parser.CAPTION_EMIT_TYPE_COMMAND_RST:
-                reset();
+                resetInternal();
                 break;
             case Cea708Parser.CAPTION_EMIT_TYPE_COMMAND_SPA:
                 setPenAttr((CaptionPenAttr) event.obj);
@@ -165,30 +260,116 @@ public class CaptionTrackRenderer implements Handler.Callback {
         }
     }
 
+    /**
+     * Returns the commit of the current changes. The commit is prepared after the messages which
+     * are already queued, so a burst of events is committed at once.
+     */
+    private Commit getCommit() {
+        if (mCommit == null) {
+            mCommit = new Commit();
+            mHandler.sendEmptyMessage(MSG_PREPARE_COMMIT);
+        }
+        return mCommit;
+    }
+
+    private void prepareCommit(long startTimeNs) {
+        final Commit commit = mCommit;
+        mCommit = null;
+        if (commit == null) {
+            return;
+        }
+        int hitCount = mLayoutCache.getHitCount();
+        int missCount = mLayoutCache.getMissCount();
+        for (CaptionWindowModel window : mCaptionWindows) {
+            if (window == null || !window.hasChanges()) {
+                continue;
+            }
+            CaptionWindowModel.Snapshot snapshot = window.takeSnapshot();
+            CaptionWindowLayout windowLayout = mCaptionWindowLayouts.get(snapshot.windowId);
+            if (snapshot.text != null && windowLayout != null) {
+                snapshot.layout = windowLayout.prepareTextLayout(snapshot.text, mLayoutCache);
+            }
+            commit.snapshots.add(snapshot);
+        }
+        CaptionFrameStats stats = CaptionFrameStats.getInstance();
+        stats.recordPrepared(commit.eventCount, mLayoutCache.getHitCount() - hitCount,
+                mLayoutCache.getMissCount() - missCount);
+        commit.postedTimeNs = SystemClock.elapsedRealtimeNanos();
+        stats.record(CaptionFrameStats.STAGE_PREPARE,
+                commit.prepareTimeNs + commit.postedTimeNs - startTimeNs);
+        mUiHandler.post(() -> applyCommit(commit));
+    }
+
+    private void applyCommit(Commit commit) {
+        if (mReleased) {
+            return;
+        }
+        long startTimeNs = SystemClock.elapsedRealtimeNanos();
+        if (commit.reset) {
+            for (int i = 0; i < CAPTION_WINDOWS_MAX; ++i) {
+                removeWindowLayout(i);
+            }
+        }
+        if (commit.captionTrack != null) {
+            mCaptionLayout.setCaptionTrack(commit.captionTrack);
+        }
+        for (int i = 0; i < CAPTION_WINDOWS_MAX; ++i) {
+            if ((commit.deletedWindowBitmap & (1 << i)) != 0) {
+                removeWindowLayout(i);
+            }
+        }
+        for (CaptionWindowModel.Snapshot snapshot : commit.snapshots) {
+            CaptionWindowLayout windowLayout = mCaptionWindowLayouts.get(snapshot.windowId);
+            if (windowLayout == null) {
+                if (snapshot.window == null) {
+                    continue;
+                }
+                windowLayout = new CaptionWindowLayout(mCaptionLayout.getContext());
+                mCaptionWindowLayouts.set(snapshot.windowId, windowLayout);
+            }
+            windowLayout.apply(mCaptionLayout, snapshot);
+        }
+        if (commit.captionLayoutVisibility != VISIBILITY_UNCHANGED) {
+            mCaptionLayout.setVisibility(commit.captionLayoutVisibility);
+        }
+        CaptionFrameStats stats = CaptionFrameStats.getInstance();
+        stats.record(CaptionFrameStats.STAGE_COMMIT_DELAY, startTimeNs - commit.postedTimeNs);
+        stats.record(CaptionFrameStats.STAGE_COMMIT,
+                SystemClock.elapsedRealtimeNanos() - startTimeNs);
+    }
+
+    private void removeWindowLayout(int windowId) {
+        CaptionWindowLayout windowLayout = mCaptionWindowLayouts.get(windowId);
+        if (windowLayout != null) {
+            windowLayout.removeFromCaptionView();
+            mCaptionWindowLayouts.set(windowId, null);
+        }
+    }
+
     // The window related caption commands
-    private void setCurrentWindowLayout(int windowId) {
-        if (windowId < 0 || windowId >= mCaptionWindowLayouts.length) {
+    private void setCurrentWindow(int windowId) {
+        if (windowId < 0 || windowId >= mCaptionWindows.length) {
             return;
         }
-        CaptionWindowLayout windowLayout = mCaptionWindowLayouts[windowId];
-        if (windowLayout == null) {
+        CaptionWindowModel window = mCaptionWindows[windowId];
+        if (window == null) {
             return;
         }
         if (DEBUG) {
-            Log.d(TAG, "setCurrentWindowLayout to " + windowId);
+            Log.d(TAG, "setCurrentWindow to " + windowId);
         }
-        mCurrentWindowLayout = windowLayout;
+        mCurrentWindow = window;
     }
 
     // Each bit of windowBitmap indicates a window.
     // If a bit is set, the window id is the same as the number of the trailing zeros of the bit.
-    private ArrayList<CaptionWindowLayout> getWindowsFromBitmap(int windowBitmap) {
-        ArrayList<CaptionWindowLayout> windows = new ArrayList<>();
+    private ArrayList<CaptionWindowModel> getWindowsFromBitmap(int windowBitmap) {
+        ArrayList<CaptionWindowModel> windows = new ArrayList<>();
         for (int i = 0; i < CAPTION_WINDOWS_MAX; ++i) {
             if ((windowBitmap & (1 << i)) != 0) {
-                CaptionWindowLayout windowLayout = mCaptionWindowLayouts[i];
-                if (windowLayout != null) {
-                    windows.add(windowLayout);
+                CaptionWindowModel window = mCaptionWindows[i];
+                if (window != null) {
+                    windows.add(window);
                 }
             }
         }
@@ -199,8 +380,8 @@ public class CaptionTrackRenderer implements Handler.Callback {
         if (windowBitmap == 0) {
             return;
         }
-        for (CaptionWindowLayout windowLayout : getWindowsFromBitmap(windowBitmap)) {
-            windowLayout.clear();
+        for (CaptionWindowModel window : getWindowsFromBitmap(windowBitmap)) {
+            window.clear();
         }
     }
 
@@ -208,8 +389,8 @@ public class CaptionTrackRenderer implements Handler.Callback {
         if (windowBitmap == 0) {
             return;
         }
-        for (CaptionWindowLayout windowLayout : getWindowsFromBitmap(windowBitmap)) {
-            windowLayout.show();
+        for (CaptionWindowModel window : getWindowsFromBitmap(windowBitmap)) {
+            window.setVisible(true);
         }
     }
 
@@ -217,8 +398,8 @@ public class CaptionTrackRenderer implements Handler.Callback {
         if (windowBitmap == 0) {
             return;
         }
-        for (CaptionWindowLayout windowLayout : getWindowsFromBitmap(windowBitmap)) {
-            windowLayout.hide();
+        for (CaptionWindowModel window : getWindowsFromBitmap(windowBitmap)) {
+            window.setVisible(false);
         }
     }
 
@@ -226,12 +407,8 @@ public class CaptionTrackRenderer implements Handler.Callback {
         if (windowBitmap == 0) {
             return;
         }
-        for (CaptionWindowLayout windowLayout : getWindowsFromBitmap(windowBitmap)) {
-            if (windowLayout.isShown()) {
-                windowLayout.hide();
-            } else {
-                windowLayout.show();
-            }
+        for (CaptionWindowModel window : getWindowsFromBitmap(windowBitmap)) {
+            window.setVisible(!window.isVisible());
         }
     }
 
@@ -239,29 +416,29 @@ public class CaptionTrackRenderer implements Handler.Callback {
         if (windowBitmap == 0) {
             return;
         }
-        for (CaptionWindowLayout windowLayout : getWindowsFromBitmap(windowBitmap)) {
-            windowLayout.removeFromCaptionView();
-            mCaptionWindowLayouts[windowLayout.getCaptionWindowId()] = null;
+        for (CaptionWindowModel window : getWindowsFromBitmap(windowBitmap)) {
+            mCaptionWindows[window.getId()] = null;
+            getCommit().deletedWindowBitmap |= 1 << window.getId();
         }
     }
 
-    public void reset() {
-        mCurrentWindowLayout = null;
+    private void resetInternal() {
+        mCurrentWindow = null;
         mIsDelayed = false;
         mPendingCaptionEvents.clear();
         for (int i = 0; i < CAPTION_WINDOWS_MAX; ++i) {
-            if (mCaptionWindowLayouts[i] != null) {
-                mCaptionWindowLayouts[i].removeFromCaptionView();
-            }
-            mCaptionWindowLayouts[i] = null;
+            mCaptionWindows[i] = null;
         }
-        mCaptionLayout.setVisibility(View.INVISIBLE);
+        Commit commit = getCommit();
+        commit.reset = true;
+        commit.deletedWindowBitmap = 0;
+        commit.captionLayoutVisibility = View.INVISIBLE;
         mHandler.removeMessages(MSG_CAPTION_CLEAR);
     }
 
     private void setWindowAttr(CaptionWindowAttr windowAttr) {
-        if (mCurrentWindowLayout != null) {
-            mCurrentWindowLayout.setWindowAttr(windowAttr);
+        if (mCurrentWindow != null) {
+            mCurrentWindow.setWindowAttr(windowAttr);
         }
     }
 
@@ -270,15 +447,15 @@ public class CaptionTrackRenderer implements Handler.Callback {
             return;
         }
         int windowId = window.id;
-        if (windowId < 0 || windowId >= mCaptionWindowLayouts.length) {
+        if (windowId < 0 || windowId >= mCaptionWindows.length) {
             return;
         }
-        CaptionWindowLayout windowLayout = mCaptionWindowLayouts[windowId];
-        if (windowLayout == null) {
-            windowLayout = new CaptionWindowLayout(mCaptionLayout.getContext());
+        CaptionWindowModel windowModel = mCaptionWindows[windowId];
+        if (windowModel == null) {
+            windowModel = new CaptionWindowModel(windowId);
         }
-        windowLayout.initWindow(mCaptionLayout, window);
-        mCurrentWindowLayout = mCaptionWindowLayouts[windowId] = windowLayout;
+        windowModel.define(window);
+        mCurrentWindow = mCaptionWindows[windowId] = windowModel;
     }
 
     // The job related caption commands
@@ -298,21 +475,19 @@ public class CaptionTrackRenderer implements Handler.Callback {
 
     private void processPendingBuffer() {
         for (CaptionEvent event : mPendingCaptionEvents) {
-            processCaptionEvent(event);
+            processCaptionEventInternal(event);
         }
         mPendingCaptionEvents.clear();
     }
 
     // The implicit write caption commands
     private void sendControlToCurrentWindow(char control) {
-        if (mCurrentWindowLayout != null) {
-            mCurrentWindowLayout.sendControl(control);
-        }
+        // TODO: there are a bunch of ASCII-style control codes.
     }
 
     private void sendBufferToCurrentWindow(String buffer) {
-        if (mCurrentWindowLayout != null) {
-            mCurrentWindowLayout.sendBuffer(buffer);
+        if (mCurrentWindow != null) {
+            mCurrentWindow.appendText(buffer);
             mHandler.removeMessages(MSG_CAPTION_CLEAR);
             mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_CAPTION_CLEAR),
                     CAPTION_CLEAR_INTERVAL_MS);
@@ -321,20 +496,18 @@ public class CaptionTrackRenderer implements Handler.Callback {
 
     // The pen related caption commands
     private void setPenAttr(CaptionPenAttr attr) {
-        if (mCurrentWindowLayout != null) {
-            mCurrentWindowLayout.setPenAttr(attr);
+        if (mCurrentWindow != null) {
+            mCurrentWindow.setPenAttr(attr);
         }
     }
 
     private void setPenColor(CaptionPenColor color) {
-        if (mCurrentWindowLayout != null) {
-            mCurrentWindowLayout.setPenColor(color);
-        }
+        // TODO: apply pen colors or skip this and use the style of system wide cc style as is.
     }
 
     private void setPenLocation(CaptionPenLocation location) {
-        if (mCurrentWindowLayout != null) {
-            mCurrentWindowLayout.setPenLocation(location.row, location.column);
+        if (mCurrentWindow != null) {
+            mCurrentWindow.setPenLocation(location.row, location.column);
         }
     }
 }
@@ -21,15 +21,7 @@ import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.text.Layout.Alignment;
-import android.text.SpannableStringBuilder;
-import android.text.Spanned;
-import android.text.TextUtils;
-import android.text.style.CharacterStyle;
-import android.text.style.RelativeSizeSpan;
-import android.text.style.StyleSpan;
-import android.text.style.SubscriptSpan;
-import android.text.style.SuperscriptSpan;
-import android.text.style.UnderlineSpan;
+import android.text.StaticLayout;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Gravity;
@@ -42,29 +34,25 @@ import android.widget.RelativeLayout;
 
 import com.google.android.exoplayer.text.CaptionStyleCompat;
 import com.google.android.exoplayer.text.SubtitleView;
-import com.android.tv.tuner.data.Cea708Data.CaptionPenAttr;
-import com.android.tv.tuner.data.Cea708Data.CaptionPenColor;
 import com.android.tv.tuner.data.Cea708Data.CaptionWindow;
 import com.android.tv.tuner.data.Cea708Data.CaptionWindowAttr;
 import com.android.tv.tuner.layout.ScaledLayout;
 
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
 
 /**
  * Layout which renders a caption window of CEA-708B. It contains a {@link SubtitleView} that
  * takes care of displaying the actual cc text.
+ * <p>
+ * The text of the window is built by {@link CaptionWindowModel} off the UI thread, and applied by
+ * {@link #apply}. The text metrics of the window can be read on any thread, so that the layout of
+ * the text can be prepared in advance by {@link #prepareTextLayout}.
  */
 public class CaptionWindowLayout extends RelativeLayout implements View.OnLayoutChangeListener {
     private static final String TAG = "CaptionWindowLayout";
     private static final boolean DEBUG = false;
 
-    private static final float PROPORTION_PEN_SIZE_SMALL = .75f;
-    private static final float PROPORTION_PEN_SIZE_LARGE = 1.25f;
-
     // The following values indicates the maximum cell number of a window.
     private static final int ANCHOR_RELATIVE_POSITIONING_MAX = 99;
     private static final int ANCHOR_VERTICAL_MAX = 74;
@@ -90,29 +78,58 @@ public class CaptionWindowLayout extends RelativeLayout implements View.OnLayout
             new String("\uAC00".getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
     private static final float WIDE_SCREEN_ASPECT_RATIO_THRESHOLD = 1.6f;
 
+    // The widest character and the text size are measured only when the style or the size of the
+    // caption layout is changed, instead of for every window. They are used on the UI thread.
+    private static Typeface sWidestCharTypeface;
+    private static String sWidestChar;
+    private static final TextSizeKey sTextSizeKey = new TextSizeKey();
+    private static float sTextSize;
+
     private CaptionLayout mCaptionLayout;
     private CaptionStyleCompat mCaptionStyleCompat;
 
     // TODO: Replace SubtitleView to {@link com.google.android.exoplayer.text.SubtitleLayout}.
     private final SubtitleView mSubtitleView;
-    private int mRowLimit = 0;
-    private final SpannableStringBuilder mBuilder = new SpannableStringBuilder();
-    private final List<CharacterStyle> mCharacterStyles = new ArrayList<>();
     private int mCaptionWindowId;
-    private int mCurrentTextRow = -1;
     private float mFontScale;
-    private float mTextSize;
+    // The text metrics, which are read by the thread which prepares the text layouts.
+    private volatile float mTextSize;
+    private volatile Typeface mTypeface;
+    private volatile Alignment mTextAlignment;
     private String mWidestChar;
     private int mLastCaptionLayoutWidth;
     private int mLastCaptionLayoutHeight;
-    private int mWindowJustify;
-    private int mPrintDirection;
+    // The width of the widest text of a centered window, which is measured when it's defined.
+    private int mMaxWindowColumnCount = -1;
+    private float mMaxWindowTextSize;
+    private float mMaxWindowWidth;
+
+    // The inputs of the text size of a caption layout.
+    private static class TextSizeKey {
+        int width;
+        int height;
+        Typeface typeface;
+        String widestText;
+
+        boolean matches(int width, int height, Typeface typeface, String widestText) {
+            return this.width == width && this.height == height && this.typeface == typeface
+                    && widestText.equals(this.widestText);
+        }
+
+        void set(int width, int height, Typeface typeface, String widestText) {
+            this.width = width;
+            this.height = height;
+            this.typeface = typeface;
+            this.widestText = widestText;
+        }
+    }
 
     private class SystemWideCaptioningChangeListener extends CaptioningChangeListener {
         @Override
         public void onUserStyleChanged(CaptionStyle userStyle) {
             mCaptionStyleCompat = CaptionStyleCompat.createFromCaptionStyle(userStyle);
             mSubtitleView.setStyle(mCaptionStyleCompat);
+            mTypeface = mCaptionStyleCompat.typeface;
             updateWidestChar();
         }
 
@@ -147,7 +164,9 @@ public class CaptionWindowLayout extends RelativeLayout implements View.OnLayout
         mCaptionStyleCompat =
                 CaptionStyleCompat.createFromCaptionStyle(captioningManager.getUserStyle());
         mSubtitleView.setStyle(mCaptionStyleCompat);
+        mTypeface = mCaptionStyleCompat.typeface;
         mSubtitleView.setText("");
+        setSubtitleAlignment(Alignment.ALIGN_CENTER);
         captioningManager.addCaptioningChangeListener(new SystemWideCaptioningChangeListener());
         updateWidestChar();
     }
@@ -160,11 +179,6 @@ public class CaptionWindowLayout extends RelativeLayout implements View.OnLayout
         mCaptionWindowId = captionWindowId;
     }
 
-    public void clear() {
-        clearText();
-        hide();
-    }
-
     public void show() {
         setVisibility(View.VISIBLE);
         requestLayout();
@@ -175,68 +189,41 @@ public class CaptionWindowLayout extends RelativeLayout implements View.OnLayout
         requestLayout();
     }
 
-    public void setPenAttr(CaptionPenAttr penAttr) {
-        mCharacterStyles.clear();
-        if (penAttr.italic) {
-            mCharacterStyles.add(new StyleSpan(Typeface.ITALIC));
-        }
-        if (penAttr.underline) {
-            mCharacterStyles.add(new UnderlineSpan());
+    /**
+     * Applies the changes of the window which were made off the UI thread.
+     *
+     * @param captionLayout a given {@link CaptionLayout}, which contains a safe title area
+     * @param snapshot the changes of the window
+     */
+    void apply(CaptionLayout captionLayout, CaptionWindowModel.Snapshot snapshot) {
+        if (snapshot.window != null) {
+            initWindow(captionLayout, snapshot.window);
         }
-        switch (penAttr.penSize) {
-            case CaptionPenAttr.PEN_SIZE_SMALL:
-                mCharacterStyles.add(new RelativeSizeSpan(PROPORTION_PEN_SIZE_SMALL));
-                break;
-            case CaptionPenAttr.PEN_SIZE_LARGE:
-                mCharacterStyles.add(new RelativeSizeSpan(PROPORTION_PEN_SIZE_LARGE));
-                break;
+        if (snapshot.text != null) {
+            mSubtitleView.setPrefixSpaces(snapshot.prefixSpaces);
+            mSubtitleView.setText(snapshot.text, snapshot.layout);
         }
-        switch (penAttr.penOffset) {
-            case CaptionPenAttr.OFFSET_SUBSCRIPT:
-                mCharacterStyles.add(new SubscriptSpan());
-                break;
-            case CaptionPenAttr.OFFSET_SUPERSCRIPT:
-                mCharacterStyles.add(new SuperscriptSpan());
-                break;
+        if (snapshot.visible) {
+            show();
+        } else {
+            hide();
         }
     }
 
-    public void setPenColor(CaptionPenColor penColor) {
-        // TODO: apply pen colors or skip this and use the style of system wide cc style as is.
-    }
-
-    public void setPenLocation(int row, int column) {
-        // TODO: change the location of pen when window's justify isn't left.
-        // According to the CEA708B spec 8.7, setPenLocation means set the pen cursor within
-        // window's text buffer. When row > mCurrentTextRow, we add "\n" to make the cursor locate
-        // at row. Adding white space to make cursor locate at column.
-        if (mWindowJustify == CaptionWindowAttr.JUSTIFY_LEFT) {
-            if (mCurrentTextRow >= 0) {
-                for (int r = mCurrentTextRow; r < row; ++r) {
-                    appendText("\n");
-                }
-                if (mCurrentTextRow <= row) {
-                    for (int i = 0; i < column; ++i) {
-                        appendText(" ");
-                    }
-                }
-            }
+    /**
+     * Prepares the layout of the given text for the current text metrics of the window. This can
+     * be called on any thread. If the metrics are changed before the text is applied, the layout
+     * is ignored and the text is laid out again on the UI thread.
+     *
+     * @return the layout, or {@code null} if the window isn't measured yet
+     */
+    StaticLayout prepareTextLayout(CharSequence text, CaptionLayoutCache cache) {
+        int width = mSubtitleView.getLastMeasuredWidth();
+        float textSize = mTextSize;
+        if (width <= 0 || textSize <= 0) {
+            return null;
         }
-        mCurrentTextRow = row;
-    }
-
-    public void setWindowAttr(CaptionWindowAttr windowAttr) {
-        // TODO: apply window attrs or skip this and use the style of system wide cc style as is.
-        mWindowJustify = windowAttr.justify;
-        mPrintDirection = windowAttr.printDirection;
-    }
-
-    public void sendBuffer(String buffer) {
-        appendText(buffer);
-    }
-
-    public void sendControl(char control) {
-        // TODO: there are a bunch of ASCII-style control codes.
+        return cache.getLayout(text, width, textSize, mTypeface, mTextAlignment);
     }
 
     /**
@@ -291,7 +278,7 @@ public class CaptionWindowLayout extends RelativeLayout implements View.OnLayout
      * @param captionWindow a given {@link CaptionWindow}, which stores the construction info of the
      *                      window
      */
-    public void initWindow(CaptionLayout captionLayout, CaptionWindow captionWindow) {
+    private void initWindow(CaptionLayout captionLayout, CaptionWindow captionWindow) {
         if (DEBUG) {
             Log.d(TAG, "initWindow with "
                     + (captionLayout != null ? captionLayout.getCaptionTrack() : null));
@@ -335,7 +322,7 @@ public class CaptionWindowLayout extends RelativeLayout implements View.OnLayout
         switch (horizontalMode) {
             case ANCHOR_HORIZONTAL_MODE_LEFT:
                 gravity = Gravity.LEFT;
-                mSubtitleView.setTextAlignment(Alignment.ALIGN_NORMAL);
+                setSubtitleAlignment(Alignment.ALIGN_NORMAL);
                 scaleStartCol = scaleCol;
                 break;
             case ANCHOR_HORIZONTAL_MODE_CENTER:
@@ -348,14 +335,7 @@ public class CaptionWindowLayout extends RelativeLayout implements View.OnLayout
                     columnCount /= 2;
                 }
                 columnCount = Math.min(getScreenColumnCount(), columnCount);
-                StringBuilder widestTextBuilder = new StringBuilder();
-                for (int i = 0; i < columnCount; ++i) {
-                    widestTextBuilder.append(mWidestChar);
-                }
-                Paint paint = new Paint();
-                paint.setTypeface(mCaptionStyleCompat.typeface);
-                paint.setTextSize(mTextSize);
-                float maxWindowWidth = paint.measureText(widestTextBuilder.toString());
+                float maxWindowWidth = getMaxWindowWidth(columnCount);
                 float halfMaxWidthScale = mCaptionLayout.getWidth() > 0
                         ? maxWindowWidth / 2.0f / (mCaptionLayout.getWidth() * 0.8f) : 0.0f;
                 if (halfMaxWidthScale > 0f && halfMaxWidthScale < scaleCol) {
@@ -363,7 +343,7 @@ public class CaptionWindowLayout extends RelativeLayout implements View.OnLayout
                     // caption window multiplied by average alphabets char width, then align the
                     // left side of the window with the left side of the expected max window.
                     gravity = Gravity.LEFT;
-                    mSubtitleView.setTextAlignment(Alignment.ALIGN_NORMAL);
+                    setSubtitleAlignment(Alignment.ALIGN_NORMAL);
                     scaleStartCol = scaleCol - halfMaxWidthScale;
                     scaleEndCol = 1.0f;
                 } else {
@@ -374,14 +354,14 @@ public class CaptionWindowLayout extends RelativeLayout implements View.OnLayout
                     // The anchor point is located at the horizontal center of the window in both
                     // cases.
                     gravity = Gravity.CENTER_HORIZONTAL;
-                    mSubtitleView.setTextAlignment(Alignment.ALIGN_CENTER);
+                    setSubtitleAlignment(Alignment.ALIGN_CENTER);
                     scaleStartCol = scaleCol - gap;
                     scaleEndCol = scaleCol + gap;
                 }
                 break;
             case ANCHOR_HORIZONTAL_MODE_RIGHT:
                 gravity = Gravity.RIGHT;
-                mSubtitleView.setTextAlignment(Alignment.ALIGN_OPPOSITE);
+                setSubtitleAlignment(Alignment.ALIGN_OPPOSITE);
                 scaleEndCol = scaleCol;
                 break;
         }
@@ -406,17 +386,32 @@ public class CaptionWindowLayout extends RelativeLayout implements View.OnLayout
         mCaptionLayout.addOrUpdateViewToSafeTitleArea(this, new ScaledLayout
                 .ScaledLayoutParams(scaleStartRow, scaleEndRow, scaleStartCol, scaleEndCol));
         setCaptionWindowId(captionWindow.id);
-        setRowLimit(captionWindow.rowCount);
         setGravity(gravity);
-        setWindowStyle(captionWindow.windowStyle);
-        if (mWindowJustify == CaptionWindowAttr.JUSTIFY_CENTER) {
-            mSubtitleView.setTextAlignment(Alignment.ALIGN_CENTER);
+        if (CaptionWindowModel.getJustify(captionWindow.windowStyle)
+                == CaptionWindowAttr.JUSTIFY_CENTER) {
+            setSubtitleAlignment(Alignment.ALIGN_CENTER);
         }
-        if (captionWindow.visible) {
-            show();
-        } else {
-            hide();
+    }
+
+    private void setSubtitleAlignment(Alignment alignment) {
+        mTextAlignment = alignment;
+        mSubtitleView.setTextAlignment(alignment);
+    }
+
+    private float getMaxWindowWidth(int columnCount) {
+        if (columnCount != mMaxWindowColumnCount || mTextSize != mMaxWindowTextSize) {
+            StringBuilder widestTextBuilder = new StringBuilder();
+            for (int i = 0; i < columnCount; ++i) {
+                widestTextBuilder.append(mWidestChar);
+            }
+            Paint paint = new Paint();
+            paint.setTypeface(mCaptionStyleCompat.typeface);
+            paint.setTextSize(mTextSize);
+            mMaxWindowWidth = paint.measureText(widestTextBuilder.toString());
+            mMaxWindowColumnCount = columnCount;
+            mMaxWindowTextSize = mTextSize;
         }
+        return mMaxWindowWidth;
     }
 
     @Override
@@ -446,19 +441,25 @@ public class CaptionWindowLayout extends RelativeLayout implements View.OnLayout
         if (isKoreanLanguageTrack()) {
             mWidestChar = KOR_ALPHABET;
         } else {
-            Paint paint = new Paint();
-            paint.setTypeface(mCaptionStyleCompat.typeface);
-            Charset latin1 = Charset.forName("ISO-8859-1");
-            float widestCharWidth = 0f;
-            for (int i = 0; i < 256; ++i) {
-                String ch = new String(new byte[]{(byte) i}, latin1);
-                float charWidth = paint.measureText(ch);
-                if (widestCharWidth < charWidth) {
-                    widestCharWidth = charWidth;
-                    mWidestChar = ch;
+            Typeface typeface = mCaptionStyleCompat.typeface;
+            if (sWidestChar == null || sWidestCharTypeface != typeface) {
+                Paint paint = new Paint();
+                paint.setTypeface(typeface);
+                Charset latin1 = Charset.forName("ISO-8859-1");
+                float widestCharWidth = 0f;
+                for (int i = 0; i < 256; ++i) {
+                    String ch = new String(new byte[]{(byte) i}, latin1);
+                    float charWidth = paint.measureText(ch);
+                    if (widestCharWidth < charWidth) {
+                        widestCharWidth = charWidth;
+                        sWidestChar = ch;
+                    }
                 }
+                sWidestCharTypeface = typeface;
             }
+            mWidestChar = sWidestChar;
         }
+        mMaxWindowColumnCount = -1;
         updateTextSize();
     }
 
@@ -474,6 +475,13 @@ public class CaptionWindowLayout extends RelativeLayout implements View.OnLayout
         String widestText = widestTextBuilder.toString();
         Paint paint = new Paint();
         paint.setTypeface(mCaptionStyleCompat.typeface);
+        int captionLayoutWidth = mCaptionLayout.getWidth();
+        int captionLayoutHeight = mCaptionLayout.getHeight();
+        if (sTextSizeKey.matches(captionLayoutWidth, captionLayoutHeight,
+                mCaptionStyleCompat.typeface, widestText)) {
+            setTextSize(paint, sTextSize * mFontScale);
+            return;
+        }
         float startFontSize = 0f;
         float endFontSize = 255f;
         Rect boundRect = new Rect();
@@ -486,18 +494,25 @@ public class CaptionWindowLayout extends RelativeLayout implements View.OnLayout
             // According to CEA-708B Section 9.13, the height of standard font size shouldn't taller
             // than 1/15 of the height of the safe-title area, and the width shouldn't wider than
             // 1/{@code getScreenColumnCount()} of the width of the safe-title area.
-            if (mCaptionLayout.getWidth() * 0.8f > width
-                    && mCaptionLayout.getHeight() * 0.8f / MAX_ROW_COUNT > height) {
+            if (captionLayoutWidth * 0.8f > width
+                    && captionLayoutHeight * 0.8f / MAX_ROW_COUNT > height) {
                 startFontSize = testTextSize + 0.01f;
             } else {
                 endFontSize = testTextSize - 0.01f;
             }
         }
-        mTextSize = endFontSize * mFontScale;
-        paint.setTextSize(mTextSize);
+        sTextSizeKey.set(captionLayoutWidth, captionLayoutHeight, mCaptionStyleCompat.typeface,
+                widestText);
+        sTextSize = endFontSize;
+        setTextSize(paint, endFontSize * mFontScale);
+    }
+
+    private void setTextSize(Paint paint, float textSize) {
+        mTextSize = textSize;
+        paint.setTextSize(textSize);
         float whiteSpaceWidth = paint.measureText(" ");
         mSubtitleView.setWhiteSpaceWidth(whiteSpaceWidth);
-        mSubtitleView.setTextSize(mTextSize);
+        mSubtitleView.setTextSize(textSize);
     }
 
     private int getScreenColumnCount() {
@@ -526,125 +541,4 @@ public class CaptionWindowLayout extends RelativeLayout implements View.OnLayout
             mCaptionLayout = null;
         }
     }
-
-    public void setText(String text) {
-        updateText(text, false);
-    }
-
-    public void appendText(String text) {
-        updateText(text, true);
-    }
-
-    public void clearText() {
-        mBuilder.clear();
-        mSubtitleView.setText("");
-    }
-
-    private void updateText(String text, boolean appended) {
-        if (!appended) {
-            mBuilder.clear();
-        }
-        if (text != null && text.length() > 0) {
-            int length = mBuilder.length();
-            mBuilder.append(text);
-            for (CharacterStyle characterStyle : mCharacterStyles) {
-                mBuilder.setSpan(characterStyle, length, mBuilder.length(),
-                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-        }
-        String[] lines = TextUtils.split(mBuilder.toString(), "\n");
-
-        // Truncate text not to exceed the row limit.
-        // Plus one here since the range of the rows is [0, mRowLimit].
-        int startRow = Math.max(0, lines.length - (mRowLimit + 1));
-        String truncatedText = TextUtils.join("\n", Arrays.copyOfRange(
-                lines, startRow, lines.length));
-        mBuilder.delete(0, mBuilder.length() - truncatedText.length());
-        mCurrentTextRow = lines.length - startRow - 1;
-
-        // Trim the buffer first then set text to {@link SubtitleView}.
-        int start = 0, last = mBuilder.length() - 1;
-        int end = last;
-        while ((start <= end) && (mBuilder.charAt(start) <= ' ')) {
-            ++start;
-        }
-        while (start - 1 >= 0 && start <= end && mBuilder.charAt(start - 1) != '\n') {
-            --start;
-        }
-        while ((end >= start) && (mBuilder.charAt(end) <= ' ')) {
-            --end;
-        }
-        if (start == 0 && end == last) {
-            mSubtitleView.setPrefixSpaces(getPrefixSpaces(mBuilder));
-            mSubtitleView.setText(mBuilder);
-        } else {
-            SpannableStringBuilder trim = new SpannableStringBuilder();
-            trim.append(mBuilder);
-            if (end < last) {
-                trim.delete(end + 1, last + 1);
-            }
-            if (start > 0) {
-                trim.delete(0, start);
-            }
-            mSubtitleView.setPrefixSpaces(getPrefixSpaces(trim));
-            mSubtitleView.setText(trim);
-        }
-    }
-
-    private static ArrayList<Integer> getPrefixSpaces(SpannableStringBuilder builder) {
-        ArrayList<Integer> prefixSpaces = new ArrayList<>();
-        String[] lines = TextUtils.split(builder.toString(), "\n");
-        for (String line : lines) {
-            int start = 0;
-            while (start < line.length() && line.charAt(start) <= ' ') {
-                start++;
-            }
-            prefixSpaces.add(start);
-        }
-        return prefixSpaces;
-    }
-
-    public void setRowLimit(int rowLimit) {
-        if (rowLimit < 0) {
-            throw new IllegalArgumentException("A rowLimit should have a positive number");
-        }
-        mRowLimit = rowLimit;
-    }
-
-    private void setWindowStyle(int windowStyle) {
-        // TODO: Set other attributes of window style. Like fill opacity and fill color.
-        switch (windowStyle) {
-            case 2:
-                mWindowJustify = CaptionWindowAttr.JUSTIFY_LEFT;
-                mPrintDirection = CaptionWindowAttr.PRINT_LEFT_TO_RIGHT;
-                break;
-            case 3:
-                mWindowJustify = CaptionWindowAttr.JUSTIFY_CENTER;
-                mPrintDirection = CaptionWindowAttr.PRINT_LEFT_TO_RIGHT;
-                break;
-            case 4:
-                mWindowJustify = CaptionWindowAttr.JUSTIFY_LEFT;
-                mPrintDirection = CaptionWindowAttr.PRINT_LEFT_TO_RIGHT;
-                break;
-            case 5:
-                mWindowJustify = CaptionWindowAttr.JUSTIFY_LEFT;
-                mPrintDirection = CaptionWindowAttr.PRINT_LEFT_TO_RIGHT;
-                break;
-            case 6:
-                mWindowJustify = CaptionWindowAttr.JUSTIFY_CENTER;
-                mPrintDirection = CaptionWindowAttr.PRINT_LEFT_TO_RIGHT;
-                break;
-            case 7:
-                mWindowJustify = CaptionWindowAttr.JUSTIFY_LEFT;
-                mPrintDirection = CaptionWindowAttr.PRINT_TOP_TO_BOTTOM;
-                break;
-            default:
-                if (windowStyle != 0 && windowStyle != 1) {
-                    Log.e(TAG, "Error predefined window style:" + windowStyle);
-                }
-                mWindowJustify = CaptionWindowAttr.JUSTIFY_LEFT;
-                mPrintDirection = CaptionWindowAttr.PRINT_LEFT_TO_RIGHT;
-                break;
-        }
-    }
 }
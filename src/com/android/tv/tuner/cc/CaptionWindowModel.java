@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.cc;
+
+import android.graphics.Typeface;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.SpannedString;
+import android.text.StaticLayout;
+import android.text.TextUtils;
+import android.text.style.CharacterStyle;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StyleSpan;
+import android.text.style.SubscriptSpan;
+import android.text.style.SuperscriptSpan;
+import android.text.style.UnderlineSpan;
+import android.util.Log;
+
+import com.android.tv.tuner.data.Cea708Data.CaptionPenAttr;
+import com.android.tv.tuner.data.Cea708Data.CaptionWindow;
+import com.android.tv.tuner.data.Cea708Data.CaptionWindowAttr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The text and the state of a caption window of CEA-708B, which are updated by the caption
+ * commands off the UI thread. The changes are handed to the {@link CaptionWindowLayout} of the
+ * window as an immutable {@link Snapshot}.
+ */
+class CaptionWindowModel {
+    private static final String TAG = "CaptionWindowModel";
+
+    private static final float PROPORTION_PEN_SIZE_SMALL = .75f;
+    private static final float PROPORTION_PEN_SIZE_LARGE = 1.25f;
+
+    private final int mId;
+    private final SpannableStringBuilder mBuilder = new SpannableStringBuilder();
+    private final List<CharacterStyle> mCharacterStyles = new ArrayList<>();
+    private int mRowLimit = 0;
+    private int mCurrentTextRow = -1;
+    private int mWindowJustify;
+    private int mPrintDirection;
+    private boolean mVisible;
+
+    // The changes since the last snapshot.
+    private CaptionWindow mPendingWindow;
+    private boolean mTextChanged;
+    private boolean mChanged;
+
+    /**
+     * The state of a window which is applied to its view.
+     */
+    static class Snapshot {
+        final int windowId;
+        /** The definition of the window if it was (re)defined, or {@code null}. */
+        final CaptionWindow window;
+        /** The trimmed text if it was changed, or {@code null}. */
+        final CharSequence text;
+        final ArrayList<Integer> prefixSpaces;
+        final boolean visible;
+        /** The layout of {@link #text} which was prepared in advance, or {@code null}. */
+        StaticLayout layout;
+
+        Snapshot(int windowId, CaptionWindow window, CharSequence text,
+                ArrayList<Integer> prefixSpaces, boolean visible) {
+            this.windowId = windowId;
+            this.window = window;
+            this.text = text;
+            this.prefixSpaces = prefixSpaces;
+            this.visible = visible;
+        }
+    }
+
+    CaptionWindowModel(int id) {
+        mId = id;
+    }
+
+    int getId() {
+        return mId;
+    }
+
+    boolean isVisible() {
+        return mVisible;
+    }
+
+    /**
+     * Returns whether the window was changed since the last snapshot.
+     */
+    boolean hasChanges() {
+        return mChanged;
+    }
+
+    void define(CaptionWindow window) {
+        mPendingWindow = window;
+        setRowLimit(window.rowCount);
+        setWindowStyle(window.windowStyle);
+        mVisible = window.visible;
+        mChanged = true;
+    }
+
+    void clear() {
+        clearText();
+        setVisible(false);
+    }
+
+    void setVisible(boolean visible) {
+        mVisible = visible;
+        mChanged = true;
+    }
+
+    void setPenAttr(CaptionPenAttr penAttr) {
+        mCharacterStyles.clear();
+        if (penAttr.italic) {
+            mCharacterStyles.add(new StyleSpan(Typeface.ITALIC));
+        }
+        if (penAttr.underline) {
+            mCharacterStyles.add(new UnderlineSpan());
+        }
+        switch (penAttr.penSize) {
+            case CaptionPenAttr.PEN_SIZE_SMALL:
+                mCharacterStyles.add(new RelativeSizeSpan(PROPORTION_PEN_SIZE_SMALL));
+                break;
+            case CaptionPenAttr.PEN_SIZE_LARGE:
+                mCharacterStyles.add(new RelativeSizeSpan(PROPORTION_PEN_SIZE_LARGE));
+                break;
+        }
+        switch (penAttr.penOffset) {
+            case CaptionPenAttr.OFFSET_SUBSCRIPT:
+                mCharacterStyles.add(new SubscriptSpan());
+                break;
+            case CaptionPenAttr.OFFSET_SUPERSCRIPT:
+                mCharacterStyles.add(new SuperscriptSpan());
+                break;
+        }
+    }
+
+    void setPenLocation(int row, int column) {
+        // TODO: change the location of pen when window's justify isn't left.
+        // According to the CEA708B spec 8.7, setPenLocation means set the pen cursor within
+        // window's text buffer. When row > mCurrentTextRow, we add "\n" to make the cursor locate
+        // at row. Adding white space to make cursor locate at column.
+        if (mWindowJustify == CaptionWindowAttr.JUSTIFY_LEFT) {
+            if (mCurrentTextRow >= 0) {
+                for (int r = mCurrentTextRow; r < row; ++r) {
+                    appendText("\n");
+                }
+                if (mCurrentTextRow <= row) {
+                    for (int i = 0; i < column; ++i) {
+                        appendText(" ");
+                    }
+                }
+            }
+        }
+        mCurrentTextRow = row;
+    }
+
+    void setWindowAttr(CaptionWindowAttr windowAttr) {
+        // TODO: apply window attrs or skip this and use the style of system wide cc style as is.
+        mWindowJustify = windowAttr.justify;
+        mPrintDirection = windowAttr.printDirection;
+    }
+
+    void appendText(String text) {
+        if (text != null && text.length() > 0) {
+            int length = mBuilder.length();
+            mBuilder.append(text);
+            for (CharacterStyle characterStyle : mCharacterStyles) {
+                mBuilder.setSpan(characterStyle, length, mBuilder.length(),
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        }
+        String[] lines = TextUtils.split(mBuilder.toString(), "\n");
+
+        // Truncate text not to exceed the row limit.
+        // Plus one here since the range of the rows is [0, mRowLimit].
+        int startRow = Math.max(0, lines.length - (mRowLimit + 1));
+        String truncatedText = TextUtils.join("\n", Arrays.copyOfRange(
+                lines, startRow, lines.length));
+        mBuilder.delete(0, mBuilder.length() - truncatedText.length());
+        mCurrentTextRow = lines.length - startRow - 1;
+        mTextChanged = true;
+        mChanged = true;
+    }
+
+    void clearText() {
+        mBuilder.clear();
+        mTextChanged = true;
+        mChanged = true;
+    }
+
+    /**
+     * Takes the changes since the last snapshot.
+     */
+    Snapshot takeSnapshot() {
+        CharSequence text = null;
+        ArrayList<Integer> prefixSpaces = null;
+        if (mTextChanged) {
+            text = getTrimmedText();
+            prefixSpaces = getPrefixSpaces(text);
+        }
+        Snapshot snapshot = new Snapshot(mId, mPendingWindow, text, prefixSpaces, mVisible);
+        mPendingWindow = null;
+        mTextChanged = false;
+        mChanged = false;
+        return snapshot;
+    }
+
+    /**
+     * Returns the text without the leading blank lines and the trailing spaces. The text is a
+     * {@link String} unless it has any pen styles, so that its layout can be cached.
+     */
+    private CharSequence getTrimmedText() {
+        int start = 0, end = mBuilder.length() - 1;
+        while ((start <= end) && (mBuilder.charAt(start) <= ' ')) {
+            ++start;
+        }
+        while (start - 1 >= 0 && start <= end && mBuilder.charAt(start - 1) != '\n') {
+            --start;
+        }
+        while ((end >= start) && (mBuilder.charAt(end) <= ' ')) {
+            --end;
+        }
+        int trimmedEnd = Math.max(start, end + 1);
+        if (mBuilder.getSpans(start, trimmedEnd, Object.class).length == 0) {
+            return mBuilder.toString().substring(start, trimmedEnd);
+        }
+        return new SpannedString(mBuilder.subSequence(start, trimmedEnd));
+    }
+
+    private static ArrayList<Integer> getPrefixSpaces(CharSequence text) {
+        ArrayList<Integer> prefixSpaces = new ArrayList<>();
+        String[] lines = TextUtils.split(text.toString(), "\n");
+        for (String line : lines) {
+            int start = 0;
+            while (start < line.length() && line.charAt(start) <= ' ') {
+                start++;
+            }
+            prefixSpaces.add(start);
+        }
+        return prefixSpaces;
+    }
+
+    private void setRowLimit(int rowLimit) {
+        if (rowLimit < 0) {
+            throw new IllegalArgumentException("A rowLimit should have a positive number");
+        }
+        mRowLimit = rowLimit;
+    }
+
+    private void setWindowStyle(int windowStyle) {
+        // TODO: Set other attributes of window style. Like fill opacity and fill color.
+        mWindowJustify = getJustify(windowStyle);
+        mPrintDirection = windowStyle == 7 ? CaptionWindowAttr.PRINT_TOP_TO_BOTTOM
+                : CaptionWindowAttr.PRINT_LEFT_TO_RIGHT;
+    }
+
+    /**
+     * Returns the justification of the given predefined window style.
+     */
+    static int getJustify(int windowStyle) {
+        switch (windowStyle) {
+            case 3:
+            case 6:
+                return CaptionWindowAttr.JUSTIFY_CENTER;
+            case 0:
+            case 1:
+            case 2:
+            case 4:
+            case 5:
+            case 7:
+                return CaptionWindowAttr.JUSTIFY_LEFT;
+            default:
+                Log.e(TAG, "Error predefined window style:" + windowStyle);
+                return CaptionWindowAttr.JUSTIFY_LEFT;
+        }
+    }
+}
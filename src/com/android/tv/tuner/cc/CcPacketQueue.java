@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.cc;
+
+import com.android.tv.tuner.data.Cea708Data.CcPacket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A ring of pooled {@link CcPacket}s which is ordered by the presentation timestamp.
+ * <p>
+ * Packets arrive in the decoding order, which differs from the display order only by a few
+ * frames, so a packet is inserted near the tail of the ring. The slots and their byte arrays are
+ * reused, and are allocated only when the ring or a packet grows.
+ */
+class CcPacketQueue {
+    private static final int INITIAL_CAPACITY = 16;
+    // A frame has at most 31 cc_data packets of 3 bytes. See ATSC A/53 Part 4.
+    private static final int INITIAL_PACKET_SIZE = 31 * 3;
+
+    private CcPacket[] mSlots = new CcPacket[INITIAL_CAPACITY];
+    private int mHead;
+    private int mSize;
+
+    /**
+     * Copies the cc_data packets of a frame into a slot.
+     *
+     * @return {@code false} if a packet with the same timestamp is already queued, in which case
+     *         the new packet is dropped
+     */
+    boolean add(ByteBuffer data, long pts) {
+        // Finds the position from the tail, since most packets are appended.
+        int index = mSize;
+        while (index > 0 && get(index - 1).pts >= pts) {
+            if (get(index - 1).pts == pts) {
+                return false;
+            }
+            --index;
+        }
+        if (mSize == mSlots.length) {
+            grow();
+        }
+        int tail = physicalIndex(mSize);
+        CcPacket packet = mSlots[tail];
+        if (packet == null) {
+            packet = new CcPacket();
+        }
+        // Shifts the later packets by one, which moves the free slot to the position.
+        for (int i = mSize; i > index; --i) {
+            mSlots[physicalIndex(i)] = mSlots[physicalIndex(i - 1)];
+        }
+        mSlots[physicalIndex(index)] = packet;
+        ++mSize;
+
+        int ccCount = data.limit() / 3;
+        int length = 3 * ccCount;
+        if (packet.bytes.length < length) {
+            packet.bytes = new byte[Math.max(length, INITIAL_PACKET_SIZE)];
+        }
+        for (int i = 0; i < length; ++i) {
+            packet.bytes[i] = data.get(i);
+        }
+        packet.ccCount = ccCount;
+        packet.pts = pts;
+        return true;
+    }
+
+    /**
+     * Returns the packet with the earliest timestamp, or {@code null} if the queue is empty.
+     * The packet is valid until it is removed by {@link #removeFirst}.
+     */
+    CcPacket peekFirst() {
+        return mSize == 0 ? null : mSlots[mHead];
+    }
+
+    /**
+     * Removes the packet with the earliest timestamp, whose slot is reused later.
+     */
+    void removeFirst() {
+        if (mSize == 0) {
+            return;
+        }
+        mHead = physicalIndex(1);
+        --mSize;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+    private CcPacket get(int index) {
+        return mSlots[physicalIndex(index)];
+    }
+
+    private int physicalIndex(int index) {
+        return (mHead + index) % mSlots.length;
+    }
+
+    private void grow() {
+        CcPacket[] slots = new CcPacket[mSlots.length * 2];
+        for (int i = 0; i < mSize; ++i) {
+            slots[i] = get(i);
+        }
+        mSlots = slots;
+        mHead = 0;
+    }
+}
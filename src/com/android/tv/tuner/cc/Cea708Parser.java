@@ -37,8 +37,6 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
-import java.util.TreeSet;
 
 /**
  * A class for parsing CEA-708, which is the standard for closed captioning for ATSC DTV.
@@ -55,6 +53,11 @@ import java.util.TreeSet;
  * collection of cc_data packets in a frame along with same presentation timestamp. Because cc_data
  * packets must be reassembled in the frame display order, CcPackets are reordered.
  *
+ * <p>Since this runs on every video frame, the decoding path does not allocate in the steady
+ * state. CcPackets are pooled in a {@link CcPacketQueue}, and the caption events of repeated
+ * commands are reused from a {@link CaptionEventCache}. Only a caption text emits a new
+ * {@link String}.
+ *
  * <h3>Step 2. CcPacket -&gt; DTVCC packet ({@link #parseCcPacket} method)</h3>
  *
  * <p>Each cc_data packet has a one byte for declaring a type of itself and data validity, and the
@@ -133,8 +136,10 @@ public class Cea708Parser {
     private static final int DISCOVERY_CC_SERVICE_NUMBER_END = 4; // CC4
 
     private final ByteArrayBuffer mDtvCcPacket = new ByteArrayBuffer(MAX_ALLOCATED_SIZE);
-    private final TreeSet<CcPacket> mCcPackets = new TreeSet<>();
-    private final StringBuffer mBuffer = new StringBuffer();
+    private final CcPacketQueue mCcPackets = new CcPacketQueue();
+    private final CaptionEventCache mEventCache =
+            new CaptionEventCache(CAPTION_EMIT_TYPE_COMMAND_DFX);
+    private final StringBuilder mBuffer = new StringBuilder();
     private final SparseIntArray mDiscoveredNumBytes = new SparseIntArray(); // per service number
     private long mLastDiscoveryLaunchedMs = SystemClock.elapsedRealtime();
     private int mCommand = 0;
@@ -218,6 +223,23 @@ public class Cea708Parser {
         mListener.emitEvent(captionEvent);
     }
 
+    private void emitCachedEvent(@CaptionEmitType int type, long key, Object obj) {
+        CaptionEvent event = mEventCache.get(type, key);
+        if (event == null) {
+            event = mEventCache.put(type, key, new CaptionEvent(type, obj));
+        }
+        emitCaptionEvent(event);
+    }
+
+    private void emitCachedIntEvent(@CaptionEmitType int type, long key, int value) {
+        // Checks the cache before boxing the value.
+        CaptionEvent event = mEventCache.get(type, key);
+        if (event == null) {
+            event = mEventCache.put(type, key, new CaptionEvent(type, value));
+        }
+        emitCaptionEvent(event);
+    }
+
     private void emitCaptionBuffer() {
         if (mBuffer.length() > 0) {
             mListener.emitEvent(new CaptionEvent(CAPTION_EMIT_TYPE_BUFFER, mBuffer.toString()));
@@ -227,27 +249,18 @@ public class Cea708Parser {
 
     // Step 1. user_data -> CcPacket ({@link #parseClosedCaption} method)
     public void parseClosedCaption(ByteBuffer data, long framePtsUs) {
-        int ccCount = data.limit() / 3;
-        byte[] ccBytes = new byte[3 * ccCount];
-        for (int i = 0; i < 3 * ccCount; i++) {
-            ccBytes[i] = data.get(i);
-        }
-        CcPacket ccPacket = new CcPacket(ccBytes, ccCount, framePtsUs);
-        mCcPackets.add(ccPacket);
+        // A packet with the same pts as a queued packet is dropped.
+        mCcPackets.add(data, framePtsUs);
     }
 
     public boolean processClosedCaptions(long framePtsUs) {
-        // To get the sorted cc packets that have lower frame pts than current frame pts,
-        // the following offset divides off the lower side of the packets.
-        CcPacket offsetPacket = new CcPacket(new byte[0], 0, framePtsUs);
-        offsetPacket = mCcPackets.lower(offsetPacket);
+        // Processes the sorted cc packets that have lower frame pts than current frame pts.
         boolean processed = false;
-        if (offsetPacket != null) {
-            while (!mCcPackets.isEmpty() && offsetPacket.compareTo(mCcPackets.first()) >= 0) {
-                CcPacket packet = mCcPackets.pollFirst();
-                parseCcPacket(packet);
-                processed = true;
-            }
+        CcPacket packet;
+        while ((packet = mCcPackets.peekFirst()) != null && packet.pts < framePtsUs) {
+            parseCcPacket(packet);
+            mCcPackets.removeFirst();
+            processed = true;
         }
         return processed;
     }
@@ -399,10 +412,7 @@ public class Cea708Parser {
                     if (data[pos] == 0) {
                         mBuffer.append((char) data[pos + 1]);
                     } else {
-                        String value = new String(
-                                Arrays.copyOfRange(data, pos, pos + 2),
-                                "EUC-KR");
-                        mBuffer.append(value);
+                        mBuffer.append(new String(data, pos, 2, "EUC-KR"));
                     }
                 } catch (UnsupportedEncodingException e) {
                     Log.e(TAG, "P16 Code - Could not find supported encoding", e);
@@ -422,19 +432,19 @@ public class Cea708Parser {
                 case Cea708Data.CODE_C0_NUL:
                     break;
                 case Cea708Data.CODE_C0_ETX:
-                    emitCaptionEvent(new CaptionEvent(CAPTION_EMIT_TYPE_CONTROL, (char) mCommand));
+                    emitCachedEvent(CAPTION_EMIT_TYPE_CONTROL, mCommand, (char) mCommand);
                     break;
                 case Cea708Data.CODE_C0_BS:
-                    emitCaptionEvent(new CaptionEvent(CAPTION_EMIT_TYPE_CONTROL, (char) mCommand));
+                    emitCachedEvent(CAPTION_EMIT_TYPE_CONTROL, mCommand, (char) mCommand);
                     break;
                 case Cea708Data.CODE_C0_FF:
-                    emitCaptionEvent(new CaptionEvent(CAPTION_EMIT_TYPE_CONTROL, (char) mCommand));
+                    emitCachedEvent(CAPTION_EMIT_TYPE_CONTROL, mCommand, (char) mCommand);
                     break;
                 case Cea708Data.CODE_C0_CR:
                     mBuffer.append('\n');
                     break;
                 case Cea708Data.CODE_C0_HCR:
-                    emitCaptionEvent(new CaptionEvent(CAPTION_EMIT_TYPE_CONTROL, (char) mCommand));
+                    emitCachedEvent(CAPTION_EMIT_TYPE_CONTROL, mCommand, (char) mCommand);
                     break;
                 default:
                     break;
@@ -457,7 +467,7 @@ public class Cea708Parser {
             case Cea708Data.CODE_C1_CW7: {
                 // SetCurrentWindow0-7
                 int windowId = mCommand - Cea708Data.CODE_C1_CW0;
-                emitCaptionEvent(new CaptionEvent(CAPTION_EMIT_TYPE_COMMAND_CWX, windowId));
+                emitCachedIntEvent(CAPTION_EMIT_TYPE_COMMAND_CWX, mCommand, windowId);
                 if (DEBUG) {
                     Log.d(TAG, String.format("CaptionCommand CWX windowId: %d", windowId));
                 }
@@ -467,8 +477,9 @@ public class Cea708Parser {
             case Cea708Data.CODE_C1_CLW: {
                 // ClearWindows
                 int windowBitmap = data[pos] & 0xff;
+                emitCachedIntEvent(CAPTION_EMIT_TYPE_COMMAND_CLW,
+                        CaptionEventCache.getKey(mCommand, data, pos, 1), windowBitmap);
                 ++pos;
-                emitCaptionEvent(new CaptionEvent(CAPTION_EMIT_TYPE_COMMAND_CLW, windowBitmap));
                 if (DEBUG) {
                     Log.d(TAG, String.format("CaptionCommand CLW windowBitmap: %d", windowBitmap));
                 }
@@ -478,8 +489,9 @@ public class Cea708Parser {
             case Cea708Data.CODE_C1_DSW: {
                 // DisplayWindows
                 int windowBitmap = data[pos] & 0xff;
+                emitCachedIntEvent(CAPTION_EMIT_TYPE_COMMAND_DSW,
+                        CaptionEventCache.getKey(mCommand, data, pos, 1), windowBitmap);
                 ++pos;
-                emitCaptionEvent(new CaptionEvent(CAPTION_EMIT_TYPE_COMMAND_DSW, windowBitmap));
                 if (DEBUG) {
                     Log.d(TAG, String.format("CaptionCommand DSW windowBitmap: %d", windowBitmap));
                 }
@@ -489,8 +501,9 @@ public class Cea708Parser {
             case Cea708Data.CODE_C1_HDW: {
                 // HideWindows
                 int windowBitmap = data[pos] & 0xff;
+                emitCachedIntEvent(CAPTION_EMIT_TYPE_COMMAND_HDW,
+                        CaptionEventCache.getKey(mCommand, data, pos, 1), windowBitmap);
                 ++pos;
-                emitCaptionEvent(new CaptionEvent(CAPTION_EMIT_TYPE_COMMAND_HDW, windowBitmap));
                 if (DEBUG) {
                     Log.d(TAG, String.format("CaptionCommand HDW windowBitmap: %d", windowBitmap));
                 }
@@ -500,8 +513,9 @@ public class Cea708Parser {
             case Cea708Data.CODE_C1_TGW: {
                 // ToggleWindows
                 int windowBitmap = data[pos] & 0xff;
+                emitCachedIntEvent(CAPTION_EMIT_TYPE_COMMAND_TGW,
+                        CaptionEventCache.getKey(mCommand, data, pos, 1), windowBitmap);
                 ++pos;
-                emitCaptionEvent(new CaptionEvent(CAPTION_EMIT_TYPE_COMMAND_TGW, windowBitmap));
                 if (DEBUG) {
                     Log.d(TAG, String.format("CaptionCommand TGW windowBitmap: %d", windowBitmap));
                 }
@@ -511,8 +525,9 @@ public class Cea708Parser {
             case Cea708Data.CODE_C1_DLW: {
                 // DeleteWindows
                 int windowBitmap = data[pos] & 0xff;
+                emitCachedIntEvent(CAPTION_EMIT_TYPE_COMMAND_DLW,
+                        CaptionEventCache.getKey(mCommand, data, pos, 1), windowBitmap);
                 ++pos;
-                emitCaptionEvent(new CaptionEvent(CAPTION_EMIT_TYPE_COMMAND_DLW, windowBitmap));
                 if (DEBUG) {
                     Log.d(TAG, String.format("CaptionCommand DLW windowBitmap: %d", windowBitmap));
                 }
@@ -522,8 +537,9 @@ public class Cea708Parser {
             case Cea708Data.CODE_C1_DLY: {
                 // Delay
                 int tenthsOfSeconds = data[pos] & 0xff;
+                emitCachedIntEvent(CAPTION_EMIT_TYPE_COMMAND_DLY,
+                        CaptionEventCache.getKey(mCommand, data, pos, 1), tenthsOfSeconds);
                 ++pos;
-                emitCaptionEvent(new CaptionEvent(CAPTION_EMIT_TYPE_COMMAND_DLY, tenthsOfSeconds));
                 if (DEBUG) {
                     Log.d(TAG, String.format("CaptionCommand DLY %d tenths of seconds",
                             tenthsOfSeconds));
@@ -532,7 +548,7 @@ public class Cea708Parser {
             }
             case Cea708Data.CODE_C1_DLC: {
                 // DelayCancel
-                emitCaptionEvent(new CaptionEvent(CAPTION_EMIT_TYPE_COMMAND_DLC, null));
+                emitCachedEvent(CAPTION_EMIT_TYPE_COMMAND_DLC, mCommand, null);
                 if (DEBUG) {
                     Log.d(TAG, "CaptionCommand DLC");
                 }
@@ -541,7 +557,7 @@ public class Cea708Parser {
 
             case Cea708Data.CODE_C1_RST: {
                 // Reset
-                emitCaptionEvent(new CaptionEvent(CAPTION_EMIT_TYPE_COMMAND_RST, null));
+                emitCachedEvent(CAPTION_EMIT_TYPE_COMMAND_RST, mCommand, null);
                 if (DEBUG) {
                     Log.d(TAG, "CaptionCommand RST");
                 }
@@ -557,10 +573,16 @@ public class Cea708Parser {
                 boolean underline = (data[pos + 1] & 0x40) != 0;
                 int edgeType = (data[pos + 1] & 0x38) >> 3;
                 int fontTag = data[pos + 1] & 0x7;
+                long key = CaptionEventCache.getKey(mCommand, data, pos, 2);
                 pos += 2;
-                emitCaptionEvent(new CaptionEvent(CAPTION_EMIT_TYPE_COMMAND_SPA,
-                        new CaptionPenAttr(penSize, penOffset, textTag, fontTag, edgeType,
-                                underline, italic)));
+                CaptionEvent event = mEventCache.get(CAPTION_EMIT_TYPE_COMMAND_SPA, key);
+                if (event == null) {
+                    event = mEventCache.put(CAPTION_EMIT_TYPE_COMMAND_SPA, key,
+                            new CaptionEvent(CAPTION_EMIT_TYPE_COMMAND_SPA,
+                                    new CaptionPenAttr(penSize, penOffset, textTag, fontTag,
+                                            edgeType, underline, italic)));
+                }
+                emitCaptionEvent(event);
                 if (DEBUG) {
                     Log.d(TAG, String.format(
                             "CaptionCommand SPA penSize: %d, penOffset: %d, textTag: %d, "
@@ -572,30 +594,37 @@ public class Cea708Parser {
 
             case Cea708Data.CODE_C1_SPC: {
                 // SetPenColor
-                int opacity = (data[pos] & 0xc0) >> 6;
-                int red = (data[pos] & 0x30) >> 4;
-                int green = (data[pos] & 0x0c) >> 2;
-                int blue = data[pos] & 0x03;
-                CaptionColor foregroundColor = new CaptionColor(opacity, red, green, blue);
-                ++pos;
-                opacity = (data[pos] & 0xc0) >> 6;
-                red = (data[pos] & 0x30) >> 4;
-                green = (data[pos] & 0x0c) >> 2;
-                blue = data[pos] & 0x03;
-                CaptionColor backgroundColor = new CaptionColor(opacity, red, green, blue);
-                ++pos;
-                red = (data[pos] & 0x30) >> 4;
-                green = (data[pos] & 0x0c) >> 2;
-                blue = data[pos] & 0x03;
-                CaptionColor edgeColor = new CaptionColor(
-                        CaptionColor.OPACITY_SOLID, red, green, blue);
-                ++pos;
-                emitCaptionEvent(new CaptionEvent(CAPTION_EMIT_TYPE_COMMAND_SPC,
-                        new CaptionPenColor(foregroundColor, backgroundColor, edgeColor)));
+                long key = CaptionEventCache.getKey(mCommand, data, pos, 3);
+                CaptionEvent event = mEventCache.get(CAPTION_EMIT_TYPE_COMMAND_SPC, key);
+                if (event == null) {
+                    int opacity = (data[pos] & 0xc0) >> 6;
+                    int red = (data[pos] & 0x30) >> 4;
+                    int green = (data[pos] & 0x0c) >> 2;
+                    int blue = data[pos] & 0x03;
+                    CaptionColor foregroundColor = new CaptionColor(opacity, red, green, blue);
+                    opacity = (data[pos + 1] & 0xc0) >> 6;
+                    red = (data[pos + 1] & 0x30) >> 4;
+                    green = (data[pos + 1] & 0x0c) >> 2;
+                    blue = data[pos + 1] & 0x03;
+                    CaptionColor backgroundColor = new CaptionColor(opacity, red, green, blue);
+                    red = (data[pos + 2] & 0x30) >> 4;
+                    green = (data[pos + 2] & 0x0c) >> 2;
+                    blue = data[pos + 2] & 0x03;
+                    CaptionColor edgeColor = new CaptionColor(
+                            CaptionColor.OPACITY_SOLID, red, green, blue);
+                    event = mEventCache.put(CAPTION_EMIT_TYPE_COMMAND_SPC, key,
+                            new CaptionEvent(CAPTION_EMIT_TYPE_COMMAND_SPC,
+                                    new CaptionPenColor(foregroundColor, backgroundColor,
+                                            edgeColor)));
+                }
+                pos += 3;
+                emitCaptionEvent(event);
                 if (DEBUG) {
+                    CaptionPenColor penColor = (CaptionPenColor) event.obj;
                     Log.d(TAG, String.format(
                             "CaptionCommand SPC foregroundColor %s backgroundColor %s edgeColor %s",
-                            foregroundColor, backgroundColor, edgeColor));
+                            penColor.foregroundColor, penColor.backgroundColor,
+                            penColor.edgeColor));
                 }
                 break;
             }
@@ -605,9 +634,15 @@ public class Cea708Parser {
                 // column is normally 0-31 for 4:3 formats, and 0-41 for 16:9 formats
                 int row = data[pos] & 0x0f;
                 int column = data[pos + 1] & 0x3f;
+                long key = CaptionEventCache.getKey(mCommand, data, pos, 2);
                 pos += 2;
-                emitCaptionEvent(new CaptionEvent(CAPTION_EMIT_TYPE_COMMAND_SPL,
-                        new CaptionPenLocation(row, column)));
+                CaptionEvent event = mEventCache.get(CAPTION_EMIT_TYPE_COMMAND_SPL, key);
+                if (event == null) {
+                    event = mEventCache.put(CAPTION_EMIT_TYPE_COMMAND_SPL, key,
+                            new CaptionEvent(CAPTION_EMIT_TYPE_COMMAND_SPL,
+                                    new CaptionPenLocation(row, column)));
+                }
+                emitCaptionEvent(event);
                 if (DEBUG) {
                     Log.d(TAG, String.format("CaptionCommand SPL row: %d, column: %d",
                             row, column));
@@ -621,13 +656,10 @@ public class Cea708Parser {
                 int red = (data[pos] & 0x30) >> 4;
                 int green = (data[pos] & 0x0c) >> 2;
                 int blue = data[pos] & 0x03;
-                CaptionColor fillColor = new CaptionColor(opacity, red, green, blue);
                 int borderType = (data[pos + 1] & 0xc0) >> 6 | (data[pos + 2] & 0x80) >> 5;
-                red = (data[pos + 1] & 0x30) >> 4;
-                green = (data[pos + 1] & 0x0c) >> 2;
-                blue = data[pos + 1] & 0x03;
-                CaptionColor borderColor = new CaptionColor(
-                        CaptionColor.OPACITY_SOLID, red, green, blue);
+                int borderRed = (data[pos + 1] & 0x30) >> 4;
+                int borderGreen = (data[pos + 1] & 0x0c) >> 2;
+                int borderBlue = data[pos + 1] & 0x03;
                 boolean wordWrap = (data[pos + 2] & 0x40) != 0;
                 int printDirection = (data[pos + 2] & 0x30) >> 4;
                 int scrollDirection = (data[pos + 2] & 0x0c) >> 2;
@@ -635,12 +667,24 @@ public class Cea708Parser {
                 int effectSpeed = (data[pos + 3] & 0xf0) >> 4;
                 int effectDirection = (data[pos + 3] & 0x0c) >> 2;
                 int displayEffect = data[pos + 3] & 0x3;
+                long key = CaptionEventCache.getKey(mCommand, data, pos, 4);
                 pos += 4;
-                emitCaptionEvent(new CaptionEvent(CAPTION_EMIT_TYPE_COMMAND_SWA,
-                        new CaptionWindowAttr(fillColor, borderColor, borderType, wordWrap,
-                                printDirection, scrollDirection, justify,
-                                effectDirection, effectSpeed, displayEffect)));
+                CaptionEvent event = mEventCache.get(CAPTION_EMIT_TYPE_COMMAND_SWA, key);
+                if (event == null) {
+                    CaptionColor fillColor = new CaptionColor(opacity, red, green, blue);
+                    CaptionColor borderColor = new CaptionColor(
+                            CaptionColor.OPACITY_SOLID, borderRed, borderGreen, borderBlue);
+                    event = mEventCache.put(CAPTION_EMIT_TYPE_COMMAND_SWA, key,
+                            new CaptionEvent(CAPTION_EMIT_TYPE_COMMAND_SWA,
+                                    new CaptionWindowAttr(fillColor, borderColor, borderType,
+                                            wordWrap, printDirection, scrollDirection, justify,
+                                            effectDirection, effectSpeed, displayEffect)));
+                }
+                emitCaptionEvent(event);
                 if (DEBUG) {
+                    CaptionWindowAttr windowAttr = (CaptionWindowAttr) event.obj;
+                    CaptionColor fillColor = windowAttr.fillColor;
+                    CaptionColor borderColor = windowAttr.borderColor;
                     Log.d(TAG, String.format(
                             "CaptionCommand SWA fillColor: %s, borderColor: %s, borderType: %d"
                                     + "wordWrap: %s, printDirection: %d, scrollDirection: %d, "
@@ -674,11 +718,18 @@ public class Cea708Parser {
                 int columnCount = data[pos + 4] & 0x3f;
                 int windowStyle = (data[pos + 5] & 0x38) >> 3;
                 int penStyle = data[pos + 5] & 0x07;
+                long key = CaptionEventCache.getKey(mCommand, data, pos, 6);
                 pos += 6;
-                emitCaptionEvent(new CaptionEvent(CAPTION_EMIT_TYPE_COMMAND_DFX,
-                        new CaptionWindow(windowId, visible, rowLock, columnLock, priority,
-                                relativePositioning, anchorVertical, anchorHorizontal, anchorId,
-                                rowCount, columnCount, penStyle, windowStyle)));
+                CaptionEvent event = mEventCache.get(CAPTION_EMIT_TYPE_COMMAND_DFX, key);
+                if (event == null) {
+                    event = mEventCache.put(CAPTION_EMIT_TYPE_COMMAND_DFX, key,
+                            new CaptionEvent(CAPTION_EMIT_TYPE_COMMAND_DFX,
+                                    new CaptionWindow(windowId, visible, rowLock, columnLock,
+                                            priority, relativePositioning, anchorVertical,
+                                            anchorHorizontal, anchorId, rowCount, columnCount,
+                                            penStyle, windowStyle)));
+                }
+                emitCaptionEvent(event);
                 if (DEBUG) {
                     Log.d(TAG, String.format(
                             "CaptionCommand DFx windowId: %d, priority: %d, columnLock: %s, "
@@ -19,7 +19,6 @@ package com.android.tv.tuner.data;
 import com.android.tv.tuner.cc.Cea708Parser;
 
 import android.graphics.Color;
-import android.support.annotation.NonNull;
 
 /**
  * Collection of CEA-708 structures.
@@ -117,21 +116,14 @@ public class Cea708Data {
     public static final int CODE_C1_DF6 = 0x9e;
     public static final int CODE_C1_DF7 = 0x9f;
 
-    public static class CcPacket implements Comparable<CcPacket> {
-        public final byte[] bytes;
-        public final int ccCount;
-        public final long pts;
-
-        public CcPacket(byte[] bytes, int ccCount, long pts) {
-            this.bytes = bytes;
-            this.ccCount = ccCount;
-            this.pts = pts;
-        }
-
-        @Override
-        public int compareTo(@NonNull CcPacket another) {
-            return Long.compare(pts, another.pts);
-        }
+    /**
+     * cc_data packets in a frame along with the presentation timestamp. The packets are pooled by
+     * {@link Cea708Parser}, so the fields are overwritten when a packet is reused.
+     */
+    public static class CcPacket {
+        public byte[] bytes = new byte[0];
+        public int ccCount;
+        public long pts;
     }
 
     /**
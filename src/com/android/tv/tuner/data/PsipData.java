@@ -38,71 +38,6 @@ public class PsipData {
     private PsipData() {
     }
 
-    public static class PsipSection {
-        private final int mTableId;
-        private final int mTableIdExtension;
-        private final int mSectionNumber;
-        private final boolean mCurrentNextIndicator;
-
-        public static PsipSection create(byte[] data) {
-            if (data.length < 9) {
-                return null;
-            }
-            int tableId = data[0] & 0xff;
-            int tableIdExtension = (data[3] & 0xff) << 8 | (data[4] & 0xff);
-            int sectionNumber = data[6] & 0xff;
-            boolean currentNextIndicator = (data[5] & 0x01) != 0;
-            return new PsipSection(tableId, tableIdExtension, sectionNumber, currentNextIndicator);
-        }
-
-        private PsipSection(int tableId, int tableIdExtension, int sectionNumber,
-                boolean currentNextIndicator) {
-            mTableId = tableId;
-            mTableIdExtension = tableIdExtension;
-            mSectionNumber = sectionNumber;
-            mCurrentNextIndicator = currentNextIndicator;
-        }
-
-        public int getTableId() {
-            return mTableId;
-        }
-
-        public int getTableIdExtension() {
-            return mTableIdExtension;
-        }
-
-        public int getSectionNumber() {
-            return mSectionNumber;
-        }
-
-        // This is for indicating that the section sent is applicable.
-        // We only consider a situation where currentNextIndicator is expected to have a true value.
-        // So, we are not going to compare this variable in hashCode() and equals() methods.
-        public boolean getCurrentNextIndicator() {
-            return mCurrentNextIndicator;
-        }
-
-        @Override
-        public int hashCode() {
-            int result = 17;
-            result = 31 * result + mTableId;
-            result = 31 * result + mTableIdExtension;
-            result = 31 * result + mSectionNumber;
-            return result;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (obj instanceof PsipSection) {
-                PsipSection another = (PsipSection) obj;
-                return mTableId == another.getTableId()
-                        && mTableIdExtension == another.getTableIdExtension()
-                        && mSectionNumber == another.getSectionNumber();
-            }
-            return false;
-        }
-    }
-
     /**
      * {@link TvTracksInterface} for serving the audio and caption tracks.
      */
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A FIFO ring of the cc_data of video frames, which is backed by primitive arrays.
+ * <p>
+ * Each entry has a fixed-size slot, since a frame has at most 31 cc_data packets. The ring is
+ * grown only when the caption track is not read as fast as the video track.
+ */
+class CcDataQueue {
+    // cc_count has 5 bits, and each cc_data packet has 3 bytes. See ATSC A/53 Part 4.
+    static final int MAX_CC_DATA_SIZE = 31 * 3;
+    private static final int INITIAL_CAPACITY = 32;
+
+    private byte[] mData = new byte[INITIAL_CAPACITY * MAX_CC_DATA_SIZE];
+    private int[] mSizes = new int[INITIAL_CAPACITY];
+    private long[] mTimesUs = new long[INITIAL_CAPACITY];
+    private int mHead;
+    private int mCount;
+
+    /**
+     * Copies the cc_data of a frame at the given offset of the buffer.
+     */
+    void add(ByteBuffer buffer, int offset, int size, long timeUs) {
+        if (size > MAX_CC_DATA_SIZE) {
+            throw new IllegalArgumentException("Too large cc_data: " + size);
+        }
+        if (mCount == mSizes.length) {
+            grow();
+        }
+        int index = (mHead + mCount) % mSizes.length;
+        int dataOffset = index * MAX_CC_DATA_SIZE;
+        for (int i = 0; i < size; ++i) {
+            mData[dataOffset + i] = buffer.get(offset + i);
+        }
+        mSizes[index] = size;
+        mTimesUs[index] = timeUs;
+        ++mCount;
+    }
+
+    boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    /**
+     * Removes the earliest cc_data and puts it into the given buffer.
+     *
+     * @return the presentation time of the cc_data
+     */
+    long poll(ByteBuffer out) {
+        if (mCount == 0) {
+            throw new IllegalStateException("No cc_data");
+        }
+        long timeUs = mTimesUs[mHead];
+        out.put(mData, mHead * MAX_CC_DATA_SIZE, mSizes[mHead]);
+        mHead = (mHead + 1) % mSizes.length;
+        --mCount;
+        return timeUs;
+    }
+
+    void clear() {
+        mHead = 0;
+        mCount = 0;
+    }
+
+    private void grow() {
+        int capacity = mSizes.length * 2;
+        byte[] data = new byte[capacity * MAX_CC_DATA_SIZE];
+        int[] sizes = new int[capacity];
+        long[] timesUs = new long[capacity];
+        for (int i = 0; i < mCount; ++i) {
+            int index = (mHead + i) % mSizes.length;
+            System.arraycopy(mData, index * MAX_CC_DATA_SIZE, data, i * MAX_CC_DATA_SIZE,
+                    mSizes[index]);
+            sizes[i] = mSizes[index];
+            timesUs[i] = mTimesUs[index];
+        }
+        mData = data;
+        mSizes = sizes;
+        mTimesUs = timesUs;
+        mHead = 0;
+    }
+}
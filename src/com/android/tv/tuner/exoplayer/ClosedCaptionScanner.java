@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Scans video samples for ATSC closed caption data, and queues them to a {@link CcDataQueue}.
+ * <p>
+ * The start codes are searched in the sample buffer directly 8 bytes at a time. Since a start
+ * code begins with two zero bytes, and compressed video rarely has zero bytes except for start
+ * codes, a word without any zero byte is skipped at once. Only the headers of the units which are
+ * found are checked, so the payloads of the units which cannot carry captions, e.g. slices, are
+ * skipped by the word scan.
+ */
+abstract class ClosedCaptionScanner {
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+    private static final int WORD_LENGTH = 8;
+    private static final int START_CODE_LENGTH = 3;
+
+    private final CcDataQueue mQueue;
+
+    /**
+     * Creates a scanner for the video of the given MIME type.
+     *
+     * @return the scanner, or {@code null} if the video does not carry ATSC closed captions
+     */
+    static ClosedCaptionScanner create(String mimeType, CcDataQueue queue) {
+        if (android.media.MediaFormat.MIMETYPE_VIDEO_MPEG2.equals(mimeType)) {
+            return new Mpeg2Scanner(queue);
+        } else if (android.media.MediaFormat.MIMETYPE_VIDEO_AVC.equals(mimeType)) {
+            return new H264Scanner(queue);
+        }
+        return null;
+    }
+
+    private ClosedCaptionScanner(CcDataQueue queue) {
+        mQueue = queue;
+    }
+
+    /**
+     * Scans a video sample whose data ends at the position of the buffer. The position is
+     * unchanged.
+     */
+    abstract void scan(ByteBuffer buffer, long presentationTimeUs);
+
+    /**
+     * Returns the position of the first start code, {@code 0x000001}, in {@code [from, limit)}, or
+     * {@code -1} if there is none.
+     */
+    static int findStartCode(ByteBuffer buffer, int from, int limit) {
+        int pos = from;
+        while (pos + WORD_LENGTH <= limit) {
+            long word = buffer.getLong(pos);
+            // Checks if any byte of the word is zero.
+            if (((word - ONES) & ~word & HIGHS) == 0) {
+                pos += WORD_LENGTH;
+                continue;
+            }
+            for (int end = pos + WORD_LENGTH; pos < end; ++pos) {
+                if (isStartCode(buffer, pos, limit)) {
+                    return pos;
+                }
+            }
+        }
+        for (; pos < limit; ++pos) {
+            if (isStartCode(buffer, pos, limit)) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isStartCode(ByteBuffer buffer, int pos, int limit) {
+        return pos + START_CODE_LENGTH <= limit && buffer.get(pos) == 0
+                && buffer.get(pos + 1) == 0 && buffer.get(pos + 2) == 1;
+    }
+
+    private static boolean isAtscIdentifier(ByteBuffer buffer, int pos) {
+        return buffer.get(pos) == 'G' && buffer.get(pos + 1) == 'A' && buffer.get(pos + 2) == '9'
+                && buffer.get(pos + 3) == '4';
+    }
+
+    /**
+     * Queues the cc_data at the given offset.
+     *
+     * @return the position after the cc_data, or {@code offset} if there is no valid cc_data
+     */
+    protected int parseClosedCaption(ByteBuffer buffer, int offset, int limit,
+            long presentationTimeUs) {
+        // For the details of user_data_type_structure, see ATSC A/53 Part 4 - Table 6.9.
+        int pos = offset;
+        if (pos + 2 >= limit) {
+            return offset;
+        }
+        boolean processCcDataFlag = (buffer.get(pos) & 64) != 0;
+        int ccCount = buffer.get(pos) & 0x1f;
+        pos += 2;
+        if (!processCcDataFlag || pos + 3 * ccCount >= limit || ccCount == 0) {
+            return offset;
+        }
+        mQueue.add(buffer, pos, 3 * ccCount, presentationTimeUs);
+        return pos + 3 * ccCount;
+    }
+
+    private static class Mpeg2Scanner extends ClosedCaptionScanner {
+        private static final int PATTERN_LENGTH = 9;
+        private static final int USER_DATA_START_CODE = 0xb2;
+
+        private Mpeg2Scanner(CcDataQueue queue) {
+            super(queue);
+        }
+
+        @Override
+        void scan(ByteBuffer buffer, long presentationTimeUs) {
+            int limit = buffer.position();
+            int pos = 0;
+            while ((pos = findStartCode(buffer, pos, limit)) >= 0
+                    && pos + PATTERN_LENGTH < limit) {
+                if ((buffer.get(pos + 3) & 0xff) == USER_DATA_START_CODE) {
+                    // ATSC closed caption data embedded in MPEG2VIDEO stream has 'GA94' user
+                    // identifier and user data type code 3.
+                    if (isAtscIdentifier(buffer, pos + 4) && buffer.get(pos + 8) == 3) {
+                        pos = parseClosedCaption(buffer, pos + PATTERN_LENGTH, limit,
+                                presentationTimeUs);
+                    } else {
+                        pos += PATTERN_LENGTH;
+                    }
+                } else {
+                    pos += START_CODE_LENGTH;
+                }
+            }
+        }
+    }
+
+    private static class H264Scanner extends ClosedCaptionScanner {
+        private static final int PATTERN_LENGTH = 14;
+        private static final int NAL_UNIT_TYPE_SEI = 6;
+        private static final int SEI_PAYLOAD_TYPE_USER_DATA_REGISTERED = 4;
+
+        private H264Scanner(CcDataQueue queue) {
+            super(queue);
+        }
+
+        @Override
+        void scan(ByteBuffer buffer, long presentationTimeUs) {
+            int limit = buffer.position();
+            int pos = 0;
+            while ((pos = findStartCode(buffer, pos, limit)) >= 0
+                    && pos + PATTERN_LENGTH < limit) {
+                int nalType = buffer.get(pos + 3) & 0x1f;
+                int payloadType = buffer.get(pos + 4) & 0xff;
+                // ATSC closed caption data embedded in H264 private user data has NAL type 6,
+                // payload type 4, and 'GA94' user identifier for ATSC.
+                if (nalType == NAL_UNIT_TYPE_SEI
+                        && payloadType == SEI_PAYLOAD_TYPE_USER_DATA_REGISTERED
+                        && isAtscIdentifier(buffer, pos + 9)) {
+                    pos = parseClosedCaption(buffer, pos + PATTERN_LENGTH, limit,
+                            presentationTimeUs);
+                } else {
+                    // The payload of the other NAL units is skipped by the word scan, while the
+                    // next start code may be right after a short NAL unit such as an AUD.
+                    pos += START_CODE_LENGTH;
+                }
+            }
+        }
+    }
+}
@@ -17,12 +17,12 @@
 package com.android.tv.tuner.exoplayer;
 
 import android.net.Uri;
-import android.os.ConditionVariable;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.SystemClock;
+import android.util.Log;
 
 import com.google.android.exoplayer.C;
 import com.google.android.exoplayer.MediaFormat;
@@ -38,14 +38,15 @@ import com.android.tv.tuner.exoplayer.buffer.BufferManager;
 import com.android.tv.tuner.exoplayer.buffer.RecordingSampleBuffer;
 import com.android.tv.tuner.exoplayer.buffer.SimpleSampleBuffer;
 import com.android.tv.tuner.tvinput.PlaybackBufferListener;
+import com.android.tv.tuner.util.SystemPropertiesProxy;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A class that extracts samples from a live broadcast stream while storing the sample on the disk.
@@ -58,6 +59,12 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
     private static final int BUFFER_SEGMENT_SIZE_IN_BYTES = 64 * 1024;
     // Buffer segment count for sample source. Copied from demo implementation of ExoPlayer.
     private static final int BUFFER_SEGMENT_COUNT = 256;
+    // The duration by which the extracted samples can be ahead of the played samples, when the
+    // samples are kept only in memory.
+    private static final String WRITE_AHEAD_BUDGET_KEY = "tv.tuner.writeahead_ms";
+    private static final int WRITE_AHEAD_BUDGET_DEF =
+            (int) TimeUnit.MICROSECONDS.toMillis(SimpleSampleBuffer.DEFAULT_WRITE_AHEAD_BUDGET_US);
+    private static final long NO_POSITION_US = Long.MIN_VALUE;
 
     private final HandlerThread mSourceReaderThread;
     private final long mId;
@@ -70,7 +77,8 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
     private AtomicBoolean mOnCompletionCalled = new AtomicBoolean();
     private IOException mExceptionOnPrepare;
     private List<MediaFormat> mTrackFormats;
-    private HashMap<Integer, Long> mLastExtractedPositionUsMap = new HashMap<>();
+    // Written only by the source reader thread.
+    private volatile long[] mLastExtractedPositionsUs;
     private OnCompletionListener mOnCompletionListener;
     private Handler mOnCompletionListenerHandler;
     private IOException mError;
@@ -100,7 +108,10 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
                     RecordingSampleBuffer.BUFFER_REASON_RECORDING);
         } else {
             if (bufferManager == null || bufferManager.isDisabled()) {
-                mSampleBuffer = new SimpleSampleBuffer(bufferListener);
+                int writeAheadBudgetMs = SystemPropertiesProxy.getInt(WRITE_AHEAD_BUDGET_KEY,
+                        WRITE_AHEAD_BUDGET_DEF);
+                mSampleBuffer = new SimpleSampleBuffer(bufferListener,
+                        TimeUnit.MILLISECONDS.toMicros(writeAheadBudgetMs));
             } else {
                 mSampleBuffer = new RecordingSampleBuffer(bufferManager, bufferListener, true,
                         RecordingSampleBuffer.BUFFER_REASON_LIVE_PLAYBACK);
@@ -119,12 +130,23 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
         public static final int MSG_FETCH_SAMPLES = 2;
         public static final int MSG_RELEASE = 3;
         private static final int RETRY_INTERVAL_MS = 50;
+        // The interval to retry when the tracks with samples ran ahead of the consumers.
+        private static final int THROTTLE_INTERVAL_MS = 10;
+        private static final long THROTTLE_WARNING_TIMEOUT_MS = 10 * 1000;  // 10 seconds
 
         private final SampleSource mSampleSource;
+        private final SampleHolder mSample =
+                new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
+        private final MediaFormatHolder mFormatHolder = new MediaFormatHolder();
         private SampleSource.SampleSourceReader mSampleSourceReader;
         private boolean[] mTrackMetEos;
         private boolean mMetEos = false;
         private long mCurrentPosition;
+        private long mLastRoundEndTimeNs;
+        private long mThrottleStartTimeMs;
+        private boolean mThrottleWarned;
+        private int mRoundSampleCount;
+        private long mRoundSampleBytes;
 
         public SourceReaderWorker(SampleSource sampleSource) {
             mSampleSource = sampleSource;
@@ -143,14 +165,23 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
                     }
                     return true;
                 case MSG_FETCH_SAMPLES:
+                    long roundStartTimeNs = SystemClock.elapsedRealtimeNanos();
                     boolean didSomething = false;
-                    SampleHolder sample = new SampleHolder(
-                            SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
-                    ConditionVariable conditionVariable = new ConditionVariable();
+                    boolean throttled = false;
+                    mRoundSampleCount = 0;
+                    mRoundSampleBytes = 0;
                     int trackCount = mSampleSourceReader.getTrackCount();
                     for (int i = 0; i < trackCount; ++i) {
-                        if (!mTrackMetEos[i] && SampleSource.NOTHING_READ
-                                != fetchSample(i, sample, conditionVariable)) {
+                        if (mTrackMetEos[i]) {
+                            continue;
+                        }
+                        if (!mSampleBuffer.canWriteSample(i)) {
+                            // Leaves the samples of the track in the source until the consumer
+                            // catches up, instead of blocking the other tracks.
+                            throttled = true;
+                            continue;
+                        }
+                        if (SampleSource.NOTHING_READ != fetchSample(i)) {
                             if (mMetEos) {
                                 // If mMetEos was on during fetchSample() due to an error,
                                 // fetching from other tracks is not necessary.
@@ -159,9 +190,13 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
                             didSomething = true;
                         }
                     }
+                    recordRound(roundStartTimeNs, throttled);
                     if (!mMetEos) {
                         if (didSomething) {
                             mSourceReaderHandler.sendEmptyMessage(MSG_FETCH_SAMPLES);
+                        } else if (throttled) {
+                            mSourceReaderHandler.sendEmptyMessageDelayed(MSG_FETCH_SAMPLES,
+                                    THROTTLE_INTERVAL_MS);
                         } else {
                             mSourceReaderHandler.sendEmptyMessageDelayed(MSG_FETCH_SAMPLES,
                                     RETRY_INTERVAL_MS);
@@ -200,6 +235,9 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
             if (mTrackFormats == null) {
                 int trackCount = mSampleSourceReader.getTrackCount();
                 mTrackMetEos = new boolean[trackCount];
+                long[] lastExtractedPositionsUs = new long[trackCount];
+                Arrays.fill(lastExtractedPositionsUs, NO_POSITION_US);
+                mLastExtractedPositionsUs = lastExtractedPositionsUs;
                 List<MediaFormat> trackFormats = new ArrayList<>();
                 for (int i = 0; i < trackCount; i++) {
                     trackFormats.add(mSampleSourceReader.getFormat(i));
@@ -224,28 +262,26 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
             return true;
         }
 
-        private int fetchSample(int track, SampleHolder sample,
-                ConditionVariable conditionVariable) {
+        private int fetchSample(int track) {
             mSampleSourceReader.continueBuffering(track, mCurrentPosition);
 
-            MediaFormatHolder formatHolder = new MediaFormatHolder();
+            SampleHolder sample = mSample;
             sample.clearData();
-            int ret = mSampleSourceReader.readData(track, mCurrentPosition, formatHolder, sample);
+            int ret = mSampleSourceReader.readData(track, mCurrentPosition, mFormatHolder, sample);
             if (ret == SampleSource.SAMPLE_READ) {
                 if (mCurrentPosition < sample.timeUs) {
                     mCurrentPosition = sample.timeUs;
                 }
+                long[] lastExtractedPositionsUs = mLastExtractedPositionsUs;
                 try {
-                    Long lastExtractedPositionUs = mLastExtractedPositionUsMap.get(track);
-                    if (lastExtractedPositionUs == null) {
-                        mLastExtractedPositionUsMap.put(track, sample.timeUs);
-                    } else {
-                        mLastExtractedPositionUsMap.put(track,
-                                Math.max(lastExtractedPositionUs, sample.timeUs));
-                    }
-                    queueSample(track, sample, conditionVariable);
+                    // NO_POSITION_US is less than any position.
+                    lastExtractedPositionsUs[track] =
+                            Math.max(lastExtractedPositionsUs[track], sample.timeUs);
+                    queueSample(track, sample);
+                    ++mRoundSampleCount;
+                    mRoundSampleBytes += sample.size;
                 } catch (IOException e) {
-                    mLastExtractedPositionUsMap.clear();
+                    Arrays.fill(lastExtractedPositionsUs, NO_POSITION_US);
                     mMetEos = true;
                     mSampleBuffer.setEos();
                 }
@@ -264,12 +300,30 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
             // TODO: Handle SampleSource.FORMAT_READ for dynamic resolution change. b/28169263
             return ret;
         }
+
+        private void recordRound(long roundStartTimeNs, boolean throttled) {
+            long roundEndTimeNs = SystemClock.elapsedRealtimeNanos();
+            long elapsedTimeNs = mLastRoundEndTimeNs == 0 ? roundEndTimeNs - roundStartTimeNs
+                    : roundEndTimeNs - mLastRoundEndTimeNs;
+            mLastRoundEndTimeNs = roundEndTimeNs;
+            SampleReaderStats.getInstance().recordRound(roundEndTimeNs - roundStartTimeNs,
+                    elapsedTimeNs, mRoundSampleCount, mRoundSampleBytes, throttled);
+            if (!throttled || mRoundSampleCount > 0) {
+                mThrottleStartTimeMs = 0;
+                mThrottleWarned = false;
+            } else if (mThrottleStartTimeMs == 0) {
+                mThrottleStartTimeMs = SystemClock.elapsedRealtime();
+            } else if (!mThrottleWarned && SystemClock.elapsedRealtime() - mThrottleStartTimeMs
+                    > THROTTLE_WARNING_TIMEOUT_MS) {
+                Log.e(TAG, "Error: Serious delay on writing buffer");
+                mThrottleWarned = true;
+            }
+        }
     }
 
-    private void queueSample(int index, SampleHolder sample, ConditionVariable conditionVariable)
-            throws IOException {
+    private void queueSample(int index, SampleHolder sample) throws IOException {
         long writeStartTimeNs = SystemClock.elapsedRealtimeNanos();
-        mSampleBuffer.writeSample(index, sample, conditionVariable);
+        mSampleBuffer.writeSample(index, sample);
 
         // Checks whether the storage has enough bandwidth for recording samples.
         if (mSampleBuffer.isWriteSpeedSlow(sample.size,
@@ -387,8 +441,13 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
 
     private long getLastExtractedPositionUs() {
         long lastExtractedPositionUs = Long.MAX_VALUE;
-        for (long value : mLastExtractedPositionUsMap.values()) {
-            lastExtractedPositionUs = Math.min(lastExtractedPositionUs, value);
+        long[] lastExtractedPositionsUs = mLastExtractedPositionsUs;
+        if (lastExtractedPositionsUs != null) {
+            for (long value : lastExtractedPositionsUs) {
+                if (value != NO_POSITION_US) {
+                    lastExtractedPositionUs = Math.min(lastExtractedPositionUs, value);
+                }
+            }
         }
         if (lastExtractedPositionUs == Long.MAX_VALUE) {
             lastExtractedPositionUs = C.UNKNOWN_TIME_US;
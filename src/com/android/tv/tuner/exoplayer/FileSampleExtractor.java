@@ -45,12 +45,15 @@ public class FileSampleExtractor implements SampleExtractor{
     private final List<MediaFormat> mTrackFormats = new ArrayList<>();
     private final BufferManager mBufferManager;
     private final PlaybackBufferListener mBufferListener;
+    private final boolean mParallelRead;
     private BufferManager.SampleBuffer mSampleBuffer;
 
     public FileSampleExtractor(
-            BufferManager bufferManager, PlaybackBufferListener bufferListener) {
+            BufferManager bufferManager, PlaybackBufferListener bufferListener,
+            boolean parallelRead) {
         mBufferManager = bufferManager;
         mBufferListener = bufferListener;
+        mParallelRead = parallelRead;
         mTrackCount = -1;
     }
 
@@ -75,7 +78,7 @@ public class FileSampleExtractor implements SampleExtractor{
             mTrackFormats.add(MediaFormatUtil.createMediaFormat(pair.second));
         }
         mSampleBuffer = new RecordingSampleBuffer(mBufferManager, mBufferListener, true,
-                RecordingSampleBuffer.BUFFER_REASON_RECORDED_PLAYBACK);
+                RecordingSampleBuffer.BUFFER_REASON_RECORDED_PLAYBACK, mParallelRead);
         mSampleBuffer.init(ids, mTrackFormats);
         return true;
     }
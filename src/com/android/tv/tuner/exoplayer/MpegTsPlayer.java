@@ -41,9 +41,12 @@ import com.android.tv.tuner.data.Cea708Data.CaptionEvent;
 import com.android.tv.tuner.data.TunerChannel;
 import com.android.tv.tuner.exoplayer.ac3.Ac3PassthroughTrackRenderer;
 import com.android.tv.tuner.exoplayer.ac3.Ac3TrackRenderer;
+import com.android.tv.tuner.exoplayer.buffer.RecordedPlaybackStats;
 import com.android.tv.tuner.source.TsDataSource;
 import com.android.tv.tuner.source.TsDataSourceManager;
 import com.android.tv.tuner.tvinput.EventDetector;
+import com.android.tv.tuner.util.SystemPropertiesProxy;
+import com.android.tv.tuner.util.ZapTracer;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -121,6 +124,11 @@ public class MpegTsPlayer implements ExoPlayer.Listener, MediaCodecVideoTrackRen
     private static final float MAX_SMOOTH_TRICKPLAY_SPEED = 9.0f;
     private static final float MIN_SMOOTH_TRICKPLAY_SPEED = 0.1f;
 
+    // Whether each track of a recording is read by its own read lane, so that the reads of large
+    // video samples don't delay the audio.
+    private static final String PARALLEL_READ_KEY = "tv.tuner.dvr_parallel_read";
+    private static final boolean PARALLEL_READ_DEF = false;
+
     private final RendererBuilder mRendererBuilder;
     private final ExoPlayer mPlayer;
     private final Handler mMainHandler;
@@ -132,6 +140,9 @@ public class MpegTsPlayer implements ExoPlayer.Listener, MediaCodecVideoTrackRen
 
     private Surface mSurface;
     private TsDataSource mDataSource;
+    private boolean mRecordedPlayback;
+    private boolean mParallelRead;
+    private ZapTracer.Zap mZap;
     private InternalRendererBuilderCallback mBuilderCallback;
     private TrackRenderer mVideoRenderer;
     private TrackRenderer mAudioRenderer;
@@ -215,19 +226,24 @@ public class MpegTsPlayer implements ExoPlayer.Listener, MediaCodecVideoTrackRen
      * Creates renderers and {@link DataSource} and initializes player.
      * @param context a {@link Context} instance
      * @param channel to play
+     * @param zap the zap whose stages are marked, or {@code null} if the playback isn't traced
      * @param eventListener for program information which will be scanned from MPEG2-TS stream
      * @return true when everything is created and initialized well, false otherwise
      */
-    public boolean prepare(Context context, TunerChannel channel,
+    public boolean prepare(Context context, TunerChannel channel, ZapTracer.Zap zap,
             EventDetector.EventListener eventListener) {
+        mZap = zap;
         TsDataSource source = null;
         if (channel != null) {
-            source = mSourceManager.createDataSource(context, channel, eventListener);
+            source = mSourceManager.createDataSource(context, channel, eventListener, zap);
             if (source == null) {
                 return false;
             }
         }
         mDataSource = source;
+        mRecordedPlayback = channel == null;
+        mParallelRead = mRecordedPlayback
+                && SystemPropertiesProxy.getBoolean(PARALLEL_READ_KEY, PARALLEL_READ_DEF);
         if (mRendererBuildingState == RENDERER_BUILDING_STATE_BUILT) {
             mPlayer.stop();
         }
@@ -247,6 +263,13 @@ public class MpegTsPlayer implements ExoPlayer.Listener, MediaCodecVideoTrackRen
         return mDataSource;
     }
 
+    /**
+     * Returns whether each track of the recording which is played is read by its own read lane.
+     */
+    public boolean isParallelRead() {
+        return mParallelRead;
+    }
+
     private void onRenderers(TrackRenderer[] renderers) {
         mBuilderCallback = null;
         for (int i = 0; i < RENDERER_COUNT; i++) {
@@ -506,6 +529,9 @@ public class MpegTsPlayer implements ExoPlayer.Listener, MediaCodecVideoTrackRen
         if (mListener == null) {
             return;
         }
+        if (state == ExoPlayer.STATE_READY && mZap != null) {
+            mZap.markStage(ZapTracer.STAGE_PLAYER_READY);
+        }
         mListener.onStateChanged(playWhenReady, state);
         if (state == ExoPlayer.STATE_READY && mPlayer.getTrackCount(TRACK_TYPE_VIDEO) > 0
                 && playWhenReady) {
@@ -557,7 +583,10 @@ public class MpegTsPlayer implements ExoPlayer.Listener, MediaCodecVideoTrackRen
     @Override
     public void onAudioTrackUnderrun(int bufferSize, long bufferSizeMs,
             long elapsedSinceLastFeedMs) {
-        // Do nothing.
+        if (mRecordedPlayback) {
+            RecordedPlaybackStats.getInstance().recordAudioUnderrun(mParallelRead
+                    ? RecordedPlaybackStats.MODE_PARALLEL : RecordedPlaybackStats.MODE_SEQUENTIAL);
+        }
     }
 
     @Override
@@ -572,6 +601,9 @@ public class MpegTsPlayer implements ExoPlayer.Listener, MediaCodecVideoTrackRen
 
     @Override
     public void onDrawnToSurface(Surface surface) {
+        if (mZap != null) {
+            mZap.markStage(ZapTracer.STAGE_FIRST_FRAME);
+        }
         if (mListener != null) {
             mListener.onDrawnToSurface(this, surface);
         }
@@ -47,7 +47,8 @@ public class MpegTsRendererBuilder implements RendererBuilder {
             RendererBuilderCallback callback) {
         // Build the video and audio renderers.
         SampleExtractor extractor = dataSource == null ?
-                new MpegTsSampleExtractor(mBufferManager, mBufferListener) :
+                new MpegTsSampleExtractor(mBufferManager, mBufferListener,
+                        mpegTsPlayer.isParallelRead()) :
                 new MpegTsSampleExtractor(dataSource, mBufferManager, mBufferListener);
         SampleSource sampleSource = new MpegTsSampleSource(extractor);
         MpegTsVideoTrackRenderer videoRenderer = new MpegTsVideoTrackRenderer(mContext,
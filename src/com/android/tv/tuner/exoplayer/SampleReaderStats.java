@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer;
+
+import android.support.annotation.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Keeps how busy the source reader threads of {@link ExoPlayerSampleExtractor} are, so that it
+ * can be told from the dump of the tuner service whether the reader or the consumers of the
+ * samples are the bottleneck.
+ *
+ * <p>A reader thread records once per round of fetching samples from all the tracks, not once
+ * per sample.
+ */
+public class SampleReaderStats {
+    // @GuardedBy("this")
+    private long mRoundCount;
+    private long mIdleRoundCount;
+    private long mThrottledRoundCount;
+    private long mSampleCount;
+    private long mSampleBytes;
+    private long mBusyTimeNs;
+    private long mElapsedTimeNs;
+    private long mMaxRoundTimeNs;
+
+    private static class LazyHolder {
+        private static final SampleReaderStats INSTANCE = new SampleReaderStats();
+    }
+
+    public static SampleReaderStats getInstance() {
+        return LazyHolder.INSTANCE;
+    }
+
+    @VisibleForTesting
+    SampleReaderStats() { }
+
+    /**
+     * Records a round of fetching samples.
+     *
+     * @param busyTimeNs the time which the round took
+     * @param elapsedTimeNs the time since the end of the previous round to the end of this round
+     * @param sampleCount the number of the samples which were written
+     * @param sampleBytes the size of the samples which were written
+     * @param throttled whether any track was skipped since it ran ahead too much
+     */
+    synchronized void recordRound(long busyTimeNs, long elapsedTimeNs, int sampleCount,
+            long sampleBytes, boolean throttled) {
+        ++mRoundCount;
+        if (sampleCount == 0) {
+            ++mIdleRoundCount;
+        }
+        if (throttled) {
+            ++mThrottledRoundCount;
+        }
+        mSampleCount += sampleCount;
+        mSampleBytes += sampleBytes;
+        mBusyTimeNs += busyTimeNs;
+        mElapsedTimeNs += elapsedTimeNs;
+        mMaxRoundTimeNs = Math.max(mMaxRoundTimeNs, busyTimeNs);
+    }
+
+    /**
+     * Returns the percentage of the time which the reader threads were busy.
+     */
+    @VisibleForTesting
+    synchronized int getUtilizationPercent() {
+        return mElapsedTimeNs == 0 ? 0 : (int) (mBusyTimeNs * 100 / mElapsedTimeNs);
+    }
+
+    /**
+     * Dumps the counters.
+     */
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Sample reader: utilizationPct=" + getUtilizationPercent()
+                + " rounds=" + mRoundCount + " idleRounds=" + mIdleRoundCount
+                + " throttledRounds=" + mThrottledRoundCount
+                + " samples=" + mSampleCount + " bytes=" + mSampleBytes
+                + " maxRoundMs=" + mMaxRoundTimeNs / 1000000);
+    }
+}
@@ -16,10 +16,14 @@
 
 package com.android.tv.tuner.exoplayer.buffer;
 
+import android.content.SharedPreferences;
 import android.media.MediaFormat;
-import android.os.ConditionVariable;
+import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.VisibleForTesting;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.ArrayMap;
 import android.util.Log;
 import android.util.Pair;
@@ -31,6 +35,8 @@ import com.android.tv.util.Utils;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.LongBuffer;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
@@ -38,51 +44,63 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Manages {@link SampleChunk} objects.
  * <p>
- * The buffer manager can be disabled, while running, if the write throughput to the associated
- * external storage is detected to be lower than a threshold {@code MINIMUM_DISK_WRITE_SPEED_MBPS}".
- * This leads to restarting playback flow.
+ * The writes to the associated storage are profiled by {@link WriteLatencyProfiler}, and
+ * {@link BufferingPolicy} degrades buffering while the storage is slow. The buffer manager is
+ * disabled, while running, only if the storage cannot keep up with the stream even then. This
+ * leads to restarting playback flow.
  */
 public class BufferManager {
     private static final String TAG = "BufferManager";
     private static final boolean DEBUG = false;
 
-    // Constants for the disk write speed checking
-    private static final long MINIMUM_WRITE_SIZE_FOR_SPEED_CHECK =
-            10L * 1024 * 1024;  // Checks for every 10M disk write
+    // Smaller writes are not profiled, since their latency does not reflect the bandwidth.
     private static final int MINIMUM_SAMPLE_SIZE_FOR_SPEED_CHECK = 15 * 1024;
-    private static final int MAXIMUM_SPEED_CHECK_COUNT = 5;  // Checks only 5 times
-    private static final int MINIMUM_DISK_WRITE_SPEED_MBPS = 3;  // 3 Megabytes per second
+
+    // The benchmark results are kept for each storage volume, whose device ID is appended.
+    private static final String PREFS_KEY_BENCHMARK_BANDWIDTH = "write_benchmark_bandwidth_";
+    private static final String PREFS_KEY_BENCHMARK_LATENCY = "write_benchmark_latency_";
+
+    // Once the storage limit is reached, chunks are evicted until this many bytes below it, so
+    // that they are evicted in batches rather than one by one whenever a chunk is created.
+    private static final long DEFAULT_EVICTION_HEADROOM_BYTES = 16L * 1024 * 1024;
 
     private final SampleChunk.SampleChunkCreator mSampleChunkCreator;
     // Maps from track name to a map which maps from starting position to {@link SampleChunk}.
     private final Map<String, SortedMap<Long, SampleChunk>> mChunkMap = new ArrayMap<>();
     private final Map<String, Long> mStartPositionMap = new ArrayMap<>();
+    // Maps from track name to the index of its key frames, which may be missing for the
+    // recordings made before the index was introduced.
+    private final Map<String, KeyframeIndex> mKeyframeIndexMap = new ArrayMap<>();
     private final Map<String, ChunkEvictedListener> mEvictListeners = new ArrayMap<>();
     private final StorageManager mStorageManager;
-    private long mBufferSize = 0;
+    // Updated on the eviction thread as well as the I/O thread.
+    private final AtomicLong mBufferSize = new AtomicLong();
     private final EvictChunkQueueMap mPendingDelete = new EvictChunkQueueMap();
+    private final ChunkEvictionDaemon mEvictionDaemon = new ChunkEvictionDaemon();
+    private long mEvictionHeadroomBytes = DEFAULT_EVICTION_HEADROOM_BYTES;
+    private final ReadAheadPolicy mReadAheadPolicy = new ReadAheadPolicy();
+    private final WriteLatencyProfiler mWriteLatencyProfiler = new WriteLatencyProfiler();
+    private final BufferingPolicy mBufferingPolicy = new BufferingPolicy();
     private final SampleChunk.ChunkCallback mChunkCallback = new SampleChunk.ChunkCallback() {
         @Override
         public void onChunkWrite(SampleChunk chunk) {
-            mBufferSize += chunk.getSize();
+            mBufferSize.addAndGet(chunk.getSize());
         }
 
         @Override
         public void onChunkDelete(SampleChunk chunk) {
-            mBufferSize -= chunk.getSize();
+            mBufferSize.addAndGet(-chunk.getSize());
         }
     };
 
     private volatile boolean mClosed = false;
     private int mMinSampleSizeForSpeedCheck = MINIMUM_SAMPLE_SIZE_FOR_SPEED_CHECK;
-    private long mTotalWriteSize;
-    private long mTotalWriteTimeNs;
-    private float mWriteBandwidth = 0.0f;
-    private volatile int mSpeedCheckCount;
+    private boolean mWriteSlowReported;
     private boolean mDisabled = false;
 
     public interface ChunkEvictedListener {
@@ -116,15 +134,20 @@ public class BufferManager {
         void deselectTrack(int index);
 
         /**
-         * Writes sample to storage.
+         * Returns whether a sample of the track at {@code index} can be written without waiting
+         * for the samples which were written before to be consumed.
+         */
+        boolean canWriteSample(int index);
+
+        /**
+         * Writes sample to storage. The sample is copied, so {@code sample} can be reused once
+         * this returns.
          *
          * @param index track index
          * @param sample sample to write at storage
-         * @param conditionVariable notifies the completion of writing sample.
          * @throws IOException
          */
-        void writeSample(int index, SampleHolder sample, ConditionVariable conditionVariable)
-                throws IOException;
+        void writeSample(int index, SampleHolder sample) throws IOException;
 
         /**
          * Checks whether storage write speed is slow.
@@ -197,6 +220,13 @@ public class BufferManager {
          */
         boolean isPersistent();
 
+        /**
+         * Informs whether {@link SampleChunk}s are accessed through memory-mapped files.
+         *
+         * @return {@code true} if {@link MappedSampleChunk} is used for the storage
+         */
+        boolean isMemoryMapped();
+
         /**
          * Informs whether the storage usage exceeds pre-determined size.
          *
@@ -229,10 +259,10 @@ public class BufferManager {
          * Reads sample indexes for each written sample from storage.
          *
          * @param trackId track name
-         * @return indexes of the specified track
+         * @return indexes of the specified track, which may be read lazily from storage
          * @throws IOException
          */
-        ArrayList<Long> readIndexFile(String trackId) throws IOException;
+        LongBuffer readIndexFile(String trackId) throws IOException;
 
         /**
          * Writes track information to storage.
@@ -300,7 +330,9 @@ public class BufferManager {
     }
 
     public BufferManager(StorageManager storageManager) {
-        this(storageManager, new SampleChunk.SampleChunkCreator());
+        this(storageManager, storageManager.isMemoryMapped()
+                ? new MappedSampleChunk.MappedSampleChunkCreator()
+                : new SampleChunk.SampleChunkCreator());
     }
 
     public BufferManager(StorageManager storageManager,
@@ -323,7 +355,7 @@ public class BufferManager {
         if (deleteFiles) {
             mStorageManager.clearStorage();
         }
-        mBufferSize = 0;
+        mBufferSize.set(0);
     }
 
     private static String getFileName(String id, long positionUs) {
@@ -350,10 +382,15 @@ public class BufferManager {
             mChunkMap.put(id, map);
             mStartPositionMap.put(id, positionUs);
             mPendingDelete.init(id);
+            mKeyframeIndexMap.put(id, mStorageManager.isPersistent()
+                    ? KeyframeIndex.create(getKeyframeIndexFile(id))
+                    : KeyframeIndex.createInMemory());
         }
+        // Since chunks have the same duration, the previous chunk predicts the size of the new one.
+        long expectedSize = map.isEmpty() ? 0 : map.get(map.lastKey()).getSize();
         File file = new File(mStorageManager.getBufferDir(), getFileName(id, positionUs));
         SampleChunk sampleChunk = mSampleChunkCreator.createSampleChunk(samplePool, file,
-                positionUs, mChunkCallback);
+                positionUs, mChunkCallback, expectedSize);
         map.put(positionUs, sampleChunk);
         return sampleChunk;
     }
@@ -366,8 +403,9 @@ public class BufferManager {
      * @throws IOException
      */
     public void loadTrackFromStorage(String trackId, SamplePool samplePool) throws IOException {
-        ArrayList<Long> keyPositions = mStorageManager.readIndexFile(trackId);
-        long startPositionUs = keyPositions.size() > 0 ? keyPositions.get(0) : 0;
+        LongBuffer keyPositions = mStorageManager.readIndexFile(trackId);
+        int keyPositionCount = keyPositions.remaining();
+        long startPositionUs = keyPositionCount > 0 ? keyPositions.get(0) : 0;
 
         SortedMap<Long, SampleChunk> map = mChunkMap.get(trackId);
         if (map == null) {
@@ -375,9 +413,14 @@ public class BufferManager {
             mChunkMap.put(trackId, map);
             mStartPositionMap.put(trackId, startPositionUs);
             mPendingDelete.init(trackId);
+            KeyframeIndex keyframeIndex = KeyframeIndex.load(getKeyframeIndexFile(trackId));
+            if (keyframeIndex != null) {
+                mKeyframeIndexMap.put(trackId, keyframeIndex);
+            }
         }
         SampleChunk chunk = null;
-        for (long positionUs: keyPositions) {
+        for (int i = 0; i < keyPositionCount; ++i) {
+            long positionUs = keyPositions.get(i);
             chunk = mSampleChunkCreator.loadSampleChunkFromFile(samplePool,
                     mStorageManager.getBufferDir(), getFileName(trackId, positionUs), positionUs,
                     mChunkCallback, chunk);
@@ -407,6 +450,34 @@ public class BufferManager {
         return sampleChunk;
     }
 
+    /**
+     * Returns the offset in {@code chunk} of the last key frame at or before {@code positionUs}
+     * to start reading from, or {@code 0} to read from the start of the chunk.
+     *
+     * @param id the name of the track.
+     * @param chunk the {@link SampleChunk} which is found by {@link #getReadFile}.
+     * @param positionUs the position.
+     */
+    public long getReadOffset(String id, SampleChunk chunk, long positionUs) {
+        KeyframeIndex keyframeIndex = mKeyframeIndexMap.get(id);
+        return keyframeIndex == null ? 0
+                : keyframeIndex.findOffset(chunk.getStartPositionUs(), positionUs);
+    }
+
+    /**
+     * Returns the index of the key frames of the specified track, or {@code null} if the track
+     * has no index.
+     *
+     * @param id the name of the track.
+     */
+    KeyframeIndex getKeyframeIndex(String id) {
+        return mKeyframeIndexMap.get(id);
+    }
+
+    private File getKeyframeIndexFile(String id) {
+        return new File(mStorageManager.getBufferDir(), id + KeyframeIndex.FILE_SUFFIX);
+    }
+
     /**
      * Evicts chunks which are ready to be evicted for the specified track
      *
@@ -415,9 +486,20 @@ public class BufferManager {
      *                   should be earlier than
      */
     public void evictChunks(String id, long earlierThanPositionUs) {
+        List<SampleChunk> chunks = null;
         SampleChunk chunk = null;
         while ((chunk = mPendingDelete.poll(id, earlierThanPositionUs)) != null) {
-            SampleChunk.IoState.release(chunk, !mStorageManager.isPersistent())  ;
+            if (mStorageManager.isPersistent()) {
+                SampleChunk.IoState.release(chunk, false);
+                continue;
+            }
+            if (chunks == null) {
+                chunks = new ArrayList<>();
+            }
+            chunks.add(chunk);
+        }
+        if (chunks != null) {
+            mEvictionDaemon.evict(chunks);
         }
     }
 
@@ -431,14 +513,16 @@ public class BufferManager {
         return ret == null ? 0 : ret;
     }
 
+    private long getPendingDeleteSize() {
+        return mPendingDelete.getSize() + mEvictionDaemon.getPendingBytes();
+    }
+
     private boolean maybeEvictChunk() {
-        long pendingDelete = mPendingDelete.getSize();
-        while (mStorageManager.reachedStorageMax(mBufferSize, pendingDelete)
-                || !mStorageManager.hasEnoughBuffer(pendingDelete)) {
-            if (mStorageManager.isPersistent()) {
-                // Since chunks are persistent, we cannot evict chunks.
-                return false;
-            }
+        long pendingDelete = getPendingDeleteSize();
+        // The size of the chunks pending delete until which chunks are evicted, which is the low
+        // watermark. Nothing is evicted until the storage limit, the high watermark, is reached.
+        long targetPendingDelete = Long.MIN_VALUE;
+        while (true) {
             SortedMap<Long, SampleChunk> earliestChunkMap = null;
             SampleChunk earliestChunk = null;
             String earliestChunkId = null;
@@ -455,15 +539,31 @@ public class BufferManager {
                     earliestChunkId = entry.getKey();
                 }
             }
+            if (mStorageManager.reachedStorageMax(mBufferSize.get(), pendingDelete)
+                    || !mStorageManager.hasEnoughBuffer(pendingDelete)) {
+                if (mStorageManager.isPersistent()) {
+                    // Since chunks are persistent, we cannot evict chunks.
+                    return false;
+                }
+                targetPendingDelete = pendingDelete + mEvictionHeadroomBytes;
+            } else if (!isOutOfTimeShiftWindow(earliestChunk)
+                    && pendingDelete >= targetPendingDelete) {
+                break;
+            }
             if (earliestChunk == null) {
                 break;
             }
             mPendingDelete.add(earliestChunkId, earliestChunk);
             earliestChunkMap.remove(earliestChunk.getStartPositionUs());
+            KeyframeIndex keyframeIndex = mKeyframeIndexMap.get(earliestChunkId);
+            if (keyframeIndex != null) {
+                keyframeIndex.removeChunksUntil(earliestChunk.getStartPositionUs());
+            }
             if (DEBUG) {
                 Log.d(TAG, String.format("bufferSize = %d; pendingDelete = %b; "
                                 + "earliestChunk size = %d; %s@%d (%s)",
-                        mBufferSize, pendingDelete, earliestChunk.getSize(), earliestChunkId,
+                        mBufferSize.get(), pendingDelete, earliestChunk.getSize(),
+                        earliestChunkId,
                         earliestChunk.getStartPositionUs(),
                         Utils.toIsoDateTimeString(earliestChunk.getCreatedTimeMs())));
             }
@@ -471,7 +571,7 @@ public class BufferManager {
             if (listener != null) {
                 listener.onChunkEvicted(earliestChunkId, earliestChunk.getCreatedTimeMs());
             }
-            pendingDelete = mPendingDelete.getSize();
+            pendingDelete = getPendingDeleteSize();
         }
         for (Map.Entry<String, SortedMap<Long, SampleChunk>> entry : mChunkMap.entrySet()) {
             SortedMap<Long, SampleChunk> map = entry.getValue();
@@ -483,6 +583,12 @@ public class BufferManager {
         return true;
     }
 
+    private boolean isOutOfTimeShiftWindow(SampleChunk chunk) {
+        long windowMs = mBufferingPolicy.getTimeShiftWindowMs();
+        return chunk != null && windowMs > 0 && !mStorageManager.isPersistent()
+                && chunk.getCreatedTimeMs() < System.currentTimeMillis() - windowMs;
+    }
+
     /**
      * Reads track information which includes {@link MediaFormat}.
      *
@@ -544,6 +650,13 @@ public class BufferManager {
      * Releases all the resources.
      */
     public void release() {
+        // Waits for the evictions in flight, since clearBuffer() resets the buffer size.
+        mEvictionDaemon.drain();
+        if (DEBUG) {
+            Log.d(TAG, "Evicted " + mEvictionDaemon.getReclaimedBytes() + " bytes, latency avg="
+                    + mEvictionDaemon.getAverageLatencyMs() + "ms max="
+                    + mEvictionDaemon.getMaxLatencyMs() + "ms");
+        }
         mPendingDelete.release();
         for (Map.Entry<String, SortedMap<Long, SampleChunk>> entry : mChunkMap.entrySet()) {
             for (SampleChunk chunk : entry.getValue().values()) {
@@ -551,48 +664,71 @@ public class BufferManager {
             }
         }
         mChunkMap.clear();
+        for (KeyframeIndex keyframeIndex : mKeyframeIndexMap.values()) {
+            keyframeIndex.close();
+        }
+        mKeyframeIndexMap.clear();
         if (mClosed) {
             clearBuffer(!mStorageManager.isPersistent());
         }
     }
 
-    private void resetWriteStat(float writeBandwidth) {
-        mWriteBandwidth = writeBandwidth;
-        mTotalWriteSize = 0;
-        mTotalWriteTimeNs = 0;
+    /**
+     * Sets how far below the storage limit chunks are evicted to once the limit is reached.
+     */
+    @VisibleForTesting
+    void setEvictionHeadroomBytes(long evictionHeadroomBytes) {
+        mEvictionHeadroomBytes = evictionHeadroomBytes;
+    }
+
+    /**
+     * Returns the total size of the evicted chunks whose files are deleted in bytes.
+     */
+    public long getReclaimedBytes() {
+        return mEvictionDaemon.getReclaimedBytes();
+    }
+
+    /**
+     * Returns the longest time which the eviction thread took to delete a batch of chunks after
+     * it was requested.
+     */
+    public long getMaxEvictionLatencyMs() {
+        return mEvictionDaemon.getMaxLatencyMs();
+    }
+
+    /**
+     * Dumps the statistics of the chunk eviction and the disk writes.
+     */
+    public void dump(PrintWriter writer) {
+        writer.println(TAG + ": bufferSize=" + mBufferSize.get() + " bytes, bufferingLevel="
+                + mBufferingPolicy.getLevel());
+        mEvictionDaemon.dump(writer);
+        mWriteLatencyProfiler.dump(writer);
     }
 
     /**
-     * Adds a disk write sample size to calculate the average disk write bandwidth.
+     * Adds a disk write sample size to profile the disk write latency and bandwidth.
      */
     public void addWriteStat(long size, long timeNs) {
         if (size >= mMinSampleSizeForSpeedCheck) {
-            mTotalWriteSize += size;
-            mTotalWriteTimeNs += timeNs;
+            mWriteLatencyProfiler.addWrite(size, timeNs, SystemClock.elapsedRealtimeNanos());
+            mBufferingPolicy.onWrite(mWriteLatencyProfiler);
         }
     }
 
     /**
-     * Returns if the average disk write bandwidth is slower than
-     * threshold {@code MINIMUM_DISK_WRITE_SPEED_MBPS}.
+     * Returns if the disk cannot keep up with the stream even though {@link BufferingPolicy}
+     * degraded buffering. It returns {@code true} only once.
      */
     public boolean isWriteSlow() {
-        if (mTotalWriteSize < MINIMUM_WRITE_SIZE_FOR_SPEED_CHECK) {
+        if (mWriteSlowReported || !mBufferingPolicy.isDisabled()) {
             return false;
         }
-
-        // Checks write speed for only MAXIMUM_SPEED_CHECK_COUNT times to ignore outliers
-        // by temporary system overloading during the playback.
-        if (mSpeedCheckCount > MAXIMUM_SPEED_CHECK_COUNT) {
-            return false;
-        }
-        mSpeedCheckCount++;
-        float megabytePerSecond = calculateWriteBandwidth();
-        resetWriteStat(megabytePerSecond);
+        mWriteSlowReported = true;
         if (DEBUG) {
-            Log.d(TAG, "Measured disk write performance: " + megabytePerSecond + "MBps");
+            Log.d(TAG, "Measured disk write performance: " + getWriteBandwidth() + "MBps");
         }
-        return megabytePerSecond < MINIMUM_DISK_WRITE_SPEED_MBPS;
+        return true;
     }
 
     /**
@@ -600,14 +736,68 @@ public class BufferManager {
      * returns {float -1.0f}.
      */
     public float getWriteBandwidth() {
-        return mWriteBandwidth == 0.0f ? -1.0f : mWriteBandwidth;
+        return mWriteLatencyProfiler.getBandwidthMbps();
     }
 
-    private float calculateWriteBandwidth() {
-        if (mTotalWriteTimeNs == 0) {
-            return -1;
-        }
-        return ((float) mTotalWriteSize * 1000 / mTotalWriteTimeNs);
+    /**
+     * Measures the storage on a background thread, so that {@link BufferingPolicy} can degrade
+     * buffering before the first samples are written to a slow storage.
+     * <p>
+     * A storage volume is measured only once, and its result is kept in the given preferences,
+     * since the synced writes of the benchmark would slow down the first tune. The storage is not
+     * measured either once samples are written, since the writes are profiled instead.
+     */
+    public void startWriteBenchmark(final SharedPreferences preferences) {
+        final File dir = mStorageManager.getBufferDir();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                String volumeId;
+                try {
+                    volumeId = Long.toString(Os.stat(dir.getPath()).st_dev);
+                } catch (ErrnoException e) {
+                    Log.w(TAG, "Failed to find the storage of " + dir, e);
+                    return;
+                }
+                String bandwidthKey = PREFS_KEY_BENCHMARK_BANDWIDTH + volumeId;
+                String latencyKey = PREFS_KEY_BENCHMARK_LATENCY + volumeId;
+                float bandwidthMbps = preferences.getFloat(bandwidthKey, -1);
+                if (bandwidthMbps >= 0) {
+                    mWriteLatencyProfiler.setBenchmarkResult(bandwidthMbps,
+                            preferences.getLong(latencyKey, -1));
+                } else if (mWriteLatencyProfiler.getTotalWriteCount() > 0) {
+                    return;
+                } else {
+                    try {
+                        mWriteLatencyProfiler.runBenchmark(dir);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Failed to benchmark " + dir, e);
+                        return;
+                    }
+                    preferences.edit()
+                            .putFloat(bandwidthKey,
+                                    mWriteLatencyProfiler.getBenchmarkBandwidthMbps())
+                            .putLong(latencyKey, mWriteLatencyProfiler.getBenchmarkLatencyUs())
+                            .apply();
+                }
+                mBufferingPolicy.evaluate(mWriteLatencyProfiler.getBandwidthMbps(), -1,
+                        mWriteLatencyProfiler.getLatencyPercentileUs(95));
+            }
+        });
+    }
+
+    /**
+     * Returns the policy which degrades buffering while the storage is slow.
+     */
+    public BufferingPolicy getBufferingPolicy() {
+        return mBufferingPolicy;
+    }
+
+    /**
+     * Returns the policy for reading samples ahead of playback.
+     */
+    public ReadAheadPolicy getReadAheadPolicy() {
+        return mReadAheadPolicy;
     }
 
     /**
@@ -630,7 +820,7 @@ public class BufferManager {
      */
     @VisibleForTesting
     public boolean hasSpeedCheckDone() {
-        return mSpeedCheckCount > 0;
+        return mWriteLatencyProfiler.getTotalWriteCount() > 0;
     }
 
     /**
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.support.annotation.IntDef;
+import android.util.Log;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Degrades buffering step by step when the storage is too slow, based on
+ * {@link WriteLatencyProfiler}.
+ * <p>
+ * Each level includes the degradations of the lower levels. The buffer is disabled only when the
+ * storage cannot keep up with the stream even at the highest degraded level, and the level goes
+ * back down when the storage stays healthy.
+ * <p>
+ * This class is thread-safe, since the writes of all the sessions which share a
+ * {@link BufferManager} are reported to it.
+ */
+public class BufferingPolicy {
+    private static final String TAG = "BufferingPolicy";
+
+    @IntDef({LEVEL_NORMAL, LEVEL_LARGE_BATCHES, LEVEL_NO_CAPTION_TRACK, LEVEL_REDUCED_WINDOW,
+            LEVEL_DISABLED})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Level {}
+    public static final int LEVEL_NORMAL = 0;
+    // Writes fewer and larger batches.
+    public static final int LEVEL_LARGE_BATCHES = 1;
+    // Stops writing the caption sample track.
+    public static final int LEVEL_NO_CAPTION_TRACK = 2;
+    // Keeps a shorter time-shift window, which evicts and deletes less at a time.
+    public static final int LEVEL_REDUCED_WINDOW = 3;
+    public static final int LEVEL_DISABLED = 4;
+
+    private static final long NORMAL_FLUSH_SIZE_BYTES = 256 * 1024;
+    private static final long NORMAL_FLUSH_AGE_MS = 100;
+    private static final long LARGE_FLUSH_SIZE_BYTES = 1024 * 1024;
+    private static final long LARGE_FLUSH_AGE_MS = 400;
+    private static final long REDUCED_WINDOW_MS = TimeUnit.MINUTES.toMillis(10);
+
+    // The storage is healthy if it writes at least this fast, ...
+    private static final float MIN_BANDWIDTH_MBPS = 3.0f;
+    // ... if a write finishes before this many batches are staged, ...
+    private static final int MAX_LATENCY_BATCH_INTERVALS = 2;
+    private static final int LATENCY_PERCENTILE = 95;
+    // ... and if it is faster than the stream by this factor to absorb bursts.
+    private static final float MIN_BANDWIDTH_TO_INGEST_RATIO = 1.2f;
+
+    private static final int EVALUATION_INTERVAL_WRITES = 32;
+    private static final int HEALTHY_EVALUATIONS_TO_RECOVER = 4;
+
+    private volatile @Level int mLevel = LEVEL_NORMAL;
+    // @GuardedBy("this")
+    private int mWritesSinceEvaluation;
+    private int mHealthyEvaluationCount;
+
+    /**
+     * Returns the current level.
+     */
+    public @Level int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * Returns the size at which a batch of staged samples is written.
+     */
+    public long getFlushSizeBytes() {
+        return mLevel >= LEVEL_LARGE_BATCHES ? LARGE_FLUSH_SIZE_BYTES : NORMAL_FLUSH_SIZE_BYTES;
+    }
+
+    /**
+     * Returns the age at which a batch of staged samples is written.
+     */
+    public long getFlushAgeMs() {
+        return mLevel >= LEVEL_LARGE_BATCHES ? LARGE_FLUSH_AGE_MS : NORMAL_FLUSH_AGE_MS;
+    }
+
+    /**
+     * Returns whether the samples of the caption track are dropped instead of written.
+     */
+    public boolean isCaptionTrackDropped() {
+        return mLevel >= LEVEL_NO_CAPTION_TRACK;
+    }
+
+    /**
+     * Returns the duration of the time-shift window, or {@code 0} if it is limited only by the
+     * storage.
+     */
+    public long getTimeShiftWindowMs() {
+        return mLevel >= LEVEL_REDUCED_WINDOW ? REDUCED_WINDOW_MS : 0;
+    }
+
+    /**
+     * Returns whether the buffer should be disabled, since the storage cannot keep up.
+     */
+    public boolean isDisabled() {
+        return mLevel == LEVEL_DISABLED;
+    }
+
+    /**
+     * Called after each write is added to the profiler, and evaluates the storage periodically.
+     *
+     * @return {@code true} if the level is changed
+     */
+    boolean onWrite(WriteLatencyProfiler profiler) {
+        synchronized (this) {
+            if (mLevel == LEVEL_DISABLED
+                    || ++mWritesSinceEvaluation < EVALUATION_INTERVAL_WRITES) {
+                return false;
+            }
+            mWritesSinceEvaluation = 0;
+        }
+        // The profiler is read without holding the lock, since it has its own lock.
+        return evaluate(profiler.getBandwidthMbps(), profiler.getIngestRateMbps(),
+                profiler.getLatencyPercentileUs(LATENCY_PERCENTILE));
+    }
+
+    /**
+     * Evaluates the storage with the given measurements, which may be also called with the
+     * result of {@link WriteLatencyProfiler#runBenchmark} before any write.
+     *
+     * @param bandwidthMbps the write bandwidth, or a negative value if unknown
+     * @param ingestRateMbps the rate of the stream, or a negative value if unknown
+     * @param latencyUs the write latency at {@link #LATENCY_PERCENTILE}, or a negative value if
+     *        unknown
+     * @return {@code true} if the level is changed
+     */
+    synchronized boolean evaluate(float bandwidthMbps, float ingestRateMbps, long latencyUs) {
+        if (mLevel == LEVEL_DISABLED || bandwidthMbps < 0) {
+            return false;
+        }
+        boolean keepsUp = ingestRateMbps < 0
+                || bandwidthMbps >= ingestRateMbps * MIN_BANDWIDTH_TO_INGEST_RATIO;
+        long maxLatencyUs =
+                TimeUnit.MILLISECONDS.toMicros(getFlushAgeMs() * MAX_LATENCY_BATCH_INTERVALS);
+        boolean healthy = keepsUp && bandwidthMbps >= MIN_BANDWIDTH_MBPS
+                && latencyUs <= maxLatencyUs;
+        int level = mLevel;
+        if (healthy) {
+            if (level > LEVEL_NORMAL
+                    && ++mHealthyEvaluationCount >= HEALTHY_EVALUATIONS_TO_RECOVER) {
+                mHealthyEvaluationCount = 0;
+                --level;
+            }
+        } else {
+            mHealthyEvaluationCount = 0;
+            if (level < LEVEL_REDUCED_WINDOW) {
+                ++level;
+            } else if (!keepsUp) {
+                level = LEVEL_DISABLED;
+            }
+        }
+        if (level == mLevel) {
+            return false;
+        }
+        Log.i(TAG, "Buffering level " + mLevel + " -> " + level + ": bandwidth="
+                + bandwidthMbps + "MBps, ingest=" + ingestRateMbps + "MBps, latency="
+                + latencyUs + "us");
+        mLevel = level;
+        return true;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.os.ConditionVariable;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.tv.util.NamedThreadFactory;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes the files of evicted {@link SampleChunk}s in batches on a background thread, so that
+ * the I/O thread of {@link SampleChunkIoHelper} is not blocked by unlinking large files.
+ * <p>
+ * The size of the chunks is counted by {@link #getPendingBytes} until their files are deleted,
+ * so that {@link BufferManager} does not evict more chunks for the same storage shortage.
+ */
+class ChunkEvictionDaemon {
+    private static final String TAG = "ChunkEvictionDaemon";
+    private static final boolean DEBUG = false;
+
+    private static final long KEEP_ALIVE_TIME_SECONDS = 10;
+
+    // Shared by all the buffer managers, so that evictions do not compete for the storage.
+    // The thread is finished when it is idle, since recordings create their own buffer managers.
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(1, 1,
+            KEEP_ALIVE_TIME_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            new NamedThreadFactory(TAG));
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final Executor mExecutor;
+
+    // The statistics below are guarded by this.
+    private long mPendingBytes;
+    private int mPendingBatchCount;
+    private long mReclaimedBytes;
+    private int mEvictedChunkCount;
+    private int mBatchCount;
+    private long mTotalLatencyMs;
+    private long mMaxLatencyMs;
+
+    ChunkEvictionDaemon() {
+        this(EXECUTOR);
+    }
+
+    ChunkEvictionDaemon(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Releases the chunks and deletes their files on the background thread.
+     */
+    void evict(final List<SampleChunk> chunks) {
+        long size = 0;
+        for (SampleChunk chunk : chunks) {
+            size += chunk.getSize();
+        }
+        final long batchSize = size;
+        final long requestedTimeMs = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            mPendingBytes += batchSize;
+            ++mPendingBatchCount;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (SampleChunk chunk : chunks) {
+                    SampleChunk.IoState.release(chunk, true);
+                }
+                long latencyMs = SystemClock.elapsedRealtime() - requestedTimeMs;
+                synchronized (ChunkEvictionDaemon.this) {
+                    mPendingBytes -= batchSize;
+                    --mPendingBatchCount;
+                    mReclaimedBytes += batchSize;
+                    mEvictedChunkCount += chunks.size();
+                    ++mBatchCount;
+                    mTotalLatencyMs += latencyMs;
+                    mMaxLatencyMs = Math.max(mMaxLatencyMs, latencyMs);
+                }
+                if (DEBUG) {
+                    Log.d(TAG, "Evicted " + chunks.size() + " chunks, " + batchSize
+                            + " bytes in " + latencyMs + "ms");
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until all the requested evictions are finished.
+     */
+    void drain() {
+        final ConditionVariable finished = new ConditionVariable();
+        synchronized (this) {
+            if (mPendingBatchCount == 0) {
+                return;
+            }
+        }
+        // The executor runs the batches in order, so every batch requested before is finished
+        // when this runs.
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                finished.open();
+            }
+        });
+        finished.block();
+    }
+
+    /**
+     * Returns the size of the chunks whose files are not deleted yet in bytes.
+     */
+    synchronized long getPendingBytes() {
+        return mPendingBytes;
+    }
+
+    /**
+     * Returns the total size of the chunks whose files are deleted in bytes.
+     */
+    synchronized long getReclaimedBytes() {
+        return mReclaimedBytes;
+    }
+
+    /**
+     * Returns the longest time from requesting an eviction until the files are deleted.
+     */
+    synchronized long getMaxLatencyMs() {
+        return mMaxLatencyMs;
+    }
+
+    /**
+     * Returns the average time from requesting an eviction until the files are deleted.
+     */
+    synchronized long getAverageLatencyMs() {
+        return mBatchCount == 0 ? 0 : mTotalLatencyMs / mBatchCount;
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println(TAG + ": evicted=" + mEvictedChunkCount + " chunks/" + mReclaimedBytes
+                + " bytes in " + mBatchCount + " batches, pending=" + mPendingBytes
+                + " bytes, latency avg=" + getAverageLatencyMs() + "ms max=" + mMaxLatencyMs
+                + "ms");
+    }
+}
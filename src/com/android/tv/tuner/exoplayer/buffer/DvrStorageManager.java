@@ -17,29 +17,53 @@
 package com.android.tv.tuner.exoplayer.buffer;
 
 import android.media.MediaFormat;
+import android.util.Log;
 import android.util.Pair;
 
+import com.android.tv.tuner.data.nano.Track.DvrTrackInfoProto;
+import com.google.protobuf.nano.MessageNano;
+
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.SortedMap;
 
 /**
  * Manages DVR storage.
+ * <p>
+ * The format of each track is stored in a {@link DvrTrackInfoProto} file, and the start positions
+ * of its chunks are stored in a chunk index file, which is a header followed by a fixed-width
+ * array of big-endian longs, so that it can be memory-mapped and read lazily. The files of the
+ * recordings made before those formats are read as well, and are migrated when they are replayed.
  */
 public class DvrStorageManager implements BufferManager.StorageManager {
+    private static final String TAG = "DvrStorageManager";
 
-    // TODO: make serializable classes and use protobuf after internal data structure is finalized.
     private static final String KEY_PIXEL_WIDTH_HEIGHT_RATIO =
             "com.google.android.videos.pixelWidthHeightRatio";
-    private static final String META_FILE_SUFFIX = ".meta";
-    private static final String IDX_FILE_SUFFIX = ".idx";
+    private static final String TRACK_INFO_FILE_SUFFIX = ".trackinfo";
+    private static final String CHUNK_INDEX_FILE_SUFFIX = ".chunks";
+    private static final int TRACK_INFO_VERSION = 1;
+    private static final int CSD_COUNT = 3;
+
+    // The chunk index starts with the magic, the version and the number of the entries.
+    private static final int CHUNK_INDEX_MAGIC = 0x63696478;  // "cidx"
+    private static final int CHUNK_INDEX_VERSION = 1;
+    private static final int CHUNK_INDEX_HEADER_LENGTH = 16;
+    private static final int INDEX_ENTRY_LENGTH = 8;
+
+    // The files of the recordings made before the formats above.
+    private static final String LEGACY_META_FILE_SUFFIX = ".meta";
+    private static final String LEGACY_IDX_FILE_SUFFIX = ".idx";
+    private static final int LEGACY_IDX_HEADER_LENGTH = 8;
 
     // Size of minimum reserved storage buffer which will be used to save meta files
     // and index files after actual recording finished.
@@ -48,14 +72,30 @@ public class DvrStorageManager implements BufferManager.StorageManager {
     private static final long NO_VALUE_LONG = -1L;
 
     private final File mBufferDir;
+    private final UsableSpaceCache mUsableSpaceCache;
 
     // {@code true} when this is for recording, {@code false} when this is for replaying.
     private final boolean mIsRecording;
+    private final boolean mIsMemoryMapped;
 
     public DvrStorageManager(File file, boolean isRecording) {
+        // Recordings can be on removable storage which may not support mmap well.
+        this(file, isRecording, false);
+    }
+
+    /**
+     * Creates a storage manager for a recording.
+     *
+     * @param file the directory of the recording
+     * @param isRecording {@code true} for recording, {@code false} for replaying
+     * @param isMemoryMapped {@code true} if the recording is accessed through memory-mapped files
+     */
+    public DvrStorageManager(File file, boolean isRecording, boolean isMemoryMapped) {
         mBufferDir = file;
         mBufferDir.mkdirs();
+        mUsableSpaceCache = new UsableSpaceCache(mBufferDir);
         mIsRecording = isRecording;
+        mIsMemoryMapped = isMemoryMapped;
     }
 
     @Override
@@ -80,6 +120,11 @@ public class DvrStorageManager implements BufferManager.StorageManager {
         return true;
     }
 
+    @Override
+    public boolean isMemoryMapped() {
+        return mIsMemoryMapped;
+    }
+
     @Override
     public boolean reachedStorageMax(long bufferSize, long pendingDelete) {
         return false;
@@ -87,77 +132,211 @@ public class DvrStorageManager implements BufferManager.StorageManager {
 
     @Override
     public boolean hasEnoughBuffer(long pendingDelete) {
-        return !mIsRecording || mBufferDir.getUsableSpace() >= MIN_BUFFER_BYTES;
+        return !mIsRecording
+                || mUsableSpaceCache.getUsableSpace(pendingDelete) >= MIN_BUFFER_BYTES;
     }
 
-    private void readFormatInt(DataInputStream in, MediaFormat format, String key)
-            throws IOException {
-        int val = in.readInt();
-        if (val != NO_VALUE) {
-            format.setInteger(key, val);
+    @Override
+    public Pair<String, MediaFormat> readTrackInfoFile(boolean isAudio) throws IOException {
+        File file = getTrackInfoFile(isAudio);
+        if (!file.exists()) {
+            Pair<String, MediaFormat> trackInfo = readLegacyTrackInfoFile(isAudio);
+            if (!mIsRecording) {
+                try {
+                    writeTrackInfoFile(trackInfo.first, trackInfo.second, isAudio);
+                } catch (IOException e) {
+                    // The legacy file is read again next time.
+                    Log.w(TAG, "Failed to migrate " + file, e);
+                    file.delete();
+                }
+            }
+            return trackInfo;
+        }
+        byte[] data = new byte[(int) file.length()];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(data);
         }
+        DvrTrackInfoProto proto = DvrTrackInfoProto.parseFrom(data);
+        if (proto.version > TRACK_INFO_VERSION) {
+            throw new IOException("Unsupported track info version " + proto.version + ": " + file);
+        }
+        return new Pair<>(proto.trackId, toMediaFormat(proto));
     }
 
-    private void readFormatLong(DataInputStream in, MediaFormat format, String key)
+    @Override
+    public LongBuffer readIndexFile(String trackId) throws IOException {
+        File file = getChunkIndexFile(trackId);
+        if (!file.exists()) {
+            LongBuffer indices = readLegacyIndexFile(trackId);
+            if (!mIsRecording) {
+                try {
+                    writeIndexFile(file, indices);
+                } catch (IOException e) {
+                    // The legacy file is read again next time.
+                    Log.w(TAG, "Failed to migrate " + file, e);
+                    file.delete();
+                }
+            }
+            return indices;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.length() < CHUNK_INDEX_HEADER_LENGTH || in.readInt() != CHUNK_INDEX_MAGIC) {
+                throw new IOException("Invalid chunk index: " + file);
+            }
+            int version = in.readInt();
+            if (version > CHUNK_INDEX_VERSION) {
+                throw new IOException("Unsupported chunk index version " + version + ": " + file);
+            }
+            return mapIndices(in.getChannel(), CHUNK_INDEX_HEADER_LENGTH, in.readLong(), file);
+        }
+    }
+
+    @Override
+    public void writeTrackInfoFile(String trackId, MediaFormat format, boolean isAudio)
             throws IOException {
-        long val = in.readLong();
-        if (val != NO_VALUE_LONG) {
-            format.setLong(key, val);
+        try (FileOutputStream out = new FileOutputStream(getTrackInfoFile(isAudio))) {
+            out.write(MessageNano.toByteArray(toProto(trackId, format)));
         }
     }
 
-    private void readFormatFloat(DataInputStream in, MediaFormat format, String key)
+    @Override
+    public void writeIndexFile(String trackName, SortedMap<Long, SampleChunk> index)
             throws IOException {
-        float val = in.readFloat();
-        if (val != NO_VALUE) {
-            format.setFloat(key, val);
+        LongBuffer indices = LongBuffer.allocate(index.size());
+        for (Long key : index.keySet()) {
+            indices.put(key);
         }
+        indices.flip();
+        writeIndexFile(getChunkIndexFile(trackName), indices);
     }
 
-    private String readString(DataInputStream in) throws IOException {
-        int len = in.readInt();
-        if (len <= 0) {
-            return null;
+    private File getTrackInfoFile(boolean isAudio) {
+        return new File(getBufferDir(), (isAudio ? "audio" : "video") + TRACK_INFO_FILE_SUFFIX);
+    }
+
+    private File getChunkIndexFile(String trackId) {
+        return new File(getBufferDir(), trackId + CHUNK_INDEX_FILE_SUFFIX);
+    }
+
+    private static void writeIndexFile(File file, LongBuffer indices) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(
+                CHUNK_INDEX_HEADER_LENGTH + indices.remaining() * INDEX_ENTRY_LENGTH);
+        buffer.putInt(CHUNK_INDEX_MAGIC);
+        buffer.putInt(CHUNK_INDEX_VERSION);
+        buffer.putLong(indices.remaining());
+        buffer.asLongBuffer().put(indices.duplicate());
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
         }
-        byte [] strBytes = new byte[len];
-        in.readFully(strBytes);
-        return new String(strBytes, StandardCharsets.UTF_8);
     }
 
-    private void readFormatString(DataInputStream in, MediaFormat format, String key)
+    /**
+     * Maps the index entries of a file, which are read lazily by the page cache. The entries
+     * which are cut off at the end of the file are ignored.
+     */
+    private static LongBuffer mapIndices(FileChannel channel, int offset, long count, File file)
             throws IOException {
-        String str = readString(in);
-        if (str != null) {
-            format.setString(key, str);
+        long available = (channel.size() - offset) / INDEX_ENTRY_LENGTH;
+        if (count < 0 || count > available) {
+            Log.w(TAG, "Chunk index has " + available + " of " + count + " entries: " + file);
+            count = Math.max(0, available);
         }
+        // The mapping stays valid after the channel is closed.
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, count * INDEX_ENTRY_LENGTH)
+                .asLongBuffer();
     }
 
-    private ByteBuffer readByteBuffer(DataInputStream in) throws IOException {
-        int len = in.readInt();
-        if (len <= 0) {
-            return null;
+    private static DvrTrackInfoProto toProto(String trackId, MediaFormat format) {
+        DvrTrackInfoProto proto = new DvrTrackInfoProto();
+        proto.version = TRACK_INFO_VERSION;
+        proto.trackId = trackId;
+        if (format.containsKey(MediaFormat.KEY_MIME)) {
+            proto.mime = format.getString(MediaFormat.KEY_MIME);
         }
-        byte [] bytes = new byte[len];
-        in.readFully(bytes);
-        ByteBuffer buffer = ByteBuffer.allocate(len);
-        buffer.put(bytes);
-        buffer.flip();
+        proto.maxInputSize = getInteger(format, MediaFormat.KEY_MAX_INPUT_SIZE);
+        proto.width = getInteger(format, MediaFormat.KEY_WIDTH);
+        proto.height = getInteger(format, MediaFormat.KEY_HEIGHT);
+        proto.channelCount = getInteger(format, MediaFormat.KEY_CHANNEL_COUNT);
+        proto.sampleRate = getInteger(format, MediaFormat.KEY_SAMPLE_RATE);
+        proto.pixelWidthHeightRatio = format.containsKey(KEY_PIXEL_WIDTH_HEIGHT_RATIO)
+                ? format.getFloat(KEY_PIXEL_WIDTH_HEIGHT_RATIO) : NO_VALUE;
+        proto.durationUs = format.containsKey(MediaFormat.KEY_DURATION)
+                ? format.getLong(MediaFormat.KEY_DURATION) : NO_VALUE_LONG;
+        int csdCount = 0;
+        for (int i = 0; i < CSD_COUNT; ++i) {
+            if (format.containsKey("csd-" + i)) {
+                csdCount = i + 1;
+            }
+        }
+        proto.csd = new byte[csdCount][];
+        for (int i = 0; i < csdCount; ++i) {
+            ByteBuffer buffer = format.getByteBuffer("csd-" + i);
+            if (buffer == null) {
+                proto.csd[i] = new byte[0];
+                continue;
+            }
+            ByteBuffer data = buffer.duplicate();
+            data.rewind();
+            proto.csd[i] = new byte[data.remaining()];
+            data.get(proto.csd[i]);
+        }
+        return proto;
+    }
 
-        return buffer;
+    private static MediaFormat toMediaFormat(DvrTrackInfoProto proto) {
+        MediaFormat format = new MediaFormat();
+        if (!proto.mime.isEmpty()) {
+            format.setString(MediaFormat.KEY_MIME, proto.mime);
+        }
+        setInteger(format, MediaFormat.KEY_MAX_INPUT_SIZE, proto.maxInputSize);
+        setInteger(format, MediaFormat.KEY_WIDTH, proto.width);
+        setInteger(format, MediaFormat.KEY_HEIGHT, proto.height);
+        setInteger(format, MediaFormat.KEY_CHANNEL_COUNT, proto.channelCount);
+        setInteger(format, MediaFormat.KEY_SAMPLE_RATE, proto.sampleRate);
+        if (proto.pixelWidthHeightRatio != NO_VALUE) {
+            format.setFloat(KEY_PIXEL_WIDTH_HEIGHT_RATIO, proto.pixelWidthHeightRatio);
+        }
+        for (int i = 0; i < proto.csd.length; ++i) {
+            if (proto.csd[i].length > 0) {
+                format.setByteBuffer("csd-" + i, ByteBuffer.wrap(proto.csd[i]));
+            }
+        }
+        if (proto.durationUs != NO_VALUE_LONG) {
+            format.setLong(MediaFormat.KEY_DURATION, proto.durationUs);
+        }
+        return format;
     }
 
-    private void readFormatByteBuffer(DataInputStream in, MediaFormat format, String key)
-            throws IOException {
-        ByteBuffer buffer = readByteBuffer(in);
-        if (buffer != null) {
-            format.setByteBuffer(key, buffer);
+    private static int getInteger(MediaFormat format, String key) {
+        return format.containsKey(key) ? format.getInteger(key) : NO_VALUE;
+    }
+
+    private static void setInteger(MediaFormat format, String key, int val) {
+        if (val != NO_VALUE) {
+            format.setInteger(key, val);
         }
     }
 
-    @Override
-    public Pair<String, MediaFormat> readTrackInfoFile(boolean isAudio) throws IOException {
-        File file = new File(getBufferDir(), (isAudio ? "audio" : "video") + META_FILE_SUFFIX);
-        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+    private LongBuffer readLegacyIndexFile(String trackId) throws IOException {
+        File file = new File(getBufferDir(), trackId + LEGACY_IDX_FILE_SUFFIX);
+        // The legacy index is the number of the entries followed by the entries.
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.length() < LEGACY_IDX_HEADER_LENGTH) {
+                throw new IOException("Invalid index: " + file);
+            }
+            return mapIndices(in.getChannel(), LEGACY_IDX_HEADER_LENGTH, in.readLong(), file);
+        }
+    }
+
+    private Pair<String, MediaFormat> readLegacyTrackInfoFile(boolean isAudio)
+            throws IOException {
+        File file = new File(getBufferDir(),
+                (isAudio ? "audio" : "video") + LEGACY_META_FILE_SUFFIX);
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
             String name = readString(in);
             MediaFormat format = new MediaFormat();
             readFormatString(in, format, MediaFormat.KEY_MIME);
@@ -167,7 +346,7 @@ public class DvrStorageManager implements BufferManager.StorageManager {
             readFormatInt(in, format, MediaFormat.KEY_CHANNEL_COUNT);
             readFormatInt(in, format, MediaFormat.KEY_SAMPLE_RATE);
             readFormatFloat(in, format, KEY_PIXEL_WIDTH_HEIGHT_RATIO);
-            for (int i = 0; i < 3; ++i) {
+            for (int i = 0; i < CSD_COUNT; ++i) {
                 readFormatByteBuffer(in, format, "csd-" + i);
             }
             readFormatLong(in, format, MediaFormat.KEY_DURATION);
@@ -175,113 +354,67 @@ public class DvrStorageManager implements BufferManager.StorageManager {
         }
     }
 
-    @Override
-    public ArrayList<Long> readIndexFile(String trackId) throws IOException {
-        ArrayList<Long> indices = new ArrayList<>();
-        File file = new File(getBufferDir(), trackId + IDX_FILE_SUFFIX);
-        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
-            long count = in.readLong();
-            for (long i = 0; i < count; ++i) {
-                indices.add(in.readLong());
-            }
-            return indices;
-        }
-    }
-
-    private void writeFormatInt(DataOutputStream out, MediaFormat format, String key)
+    private void readFormatInt(DataInputStream in, MediaFormat format, String key)
             throws IOException {
-        if (format.containsKey(key)) {
-            out.writeInt(format.getInteger(key));
-        } else {
-            out.writeInt(NO_VALUE);
+        int val = in.readInt();
+        if (val != NO_VALUE) {
+            format.setInteger(key, val);
         }
     }
 
-    private void writeFormatLong(DataOutputStream out, MediaFormat format, String key)
+    private void readFormatLong(DataInputStream in, MediaFormat format, String key)
             throws IOException {
-        if (format.containsKey(key)) {
-            out.writeLong(format.getLong(key));
-        } else {
-            out.writeLong(NO_VALUE_LONG);
+        long val = in.readLong();
+        if (val != NO_VALUE_LONG) {
+            format.setLong(key, val);
         }
     }
 
-    private void writeFormatFloat(DataOutputStream out, MediaFormat format, String key)
+    private void readFormatFloat(DataInputStream in, MediaFormat format, String key)
             throws IOException {
-        if (format.containsKey(key)) {
-            out.writeFloat(format.getFloat(key));
-        } else {
-            out.writeFloat(NO_VALUE);
+        float val = in.readFloat();
+        if (val != NO_VALUE) {
+            format.setFloat(key, val);
         }
     }
 
-    private void writeString(DataOutputStream out, String str) throws IOException {
-        byte [] data = str.getBytes(StandardCharsets.UTF_8);
-        out.writeInt(data.length);
-        if (data.length > 0) {
-            out.write(data);
+    private String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len <= 0) {
+            return null;
         }
+        byte [] strBytes = new byte[len];
+        in.readFully(strBytes);
+        return new String(strBytes, StandardCharsets.UTF_8);
     }
 
-    private void writeFormatString(DataOutputStream out, MediaFormat format, String key)
+    private void readFormatString(DataInputStream in, MediaFormat format, String key)
             throws IOException {
-        if (format.containsKey(key)) {
-            writeString(out, format.getString(key));
-        } else {
-            out.writeInt(0);
-        }
-    }
-
-    private void writeByteBuffer(DataOutputStream out, ByteBuffer buffer) throws IOException {
-        byte [] data = new byte[buffer.limit()];
-        buffer.get(data);
-        buffer.flip();
-        out.writeInt(data.length);
-        if (data.length > 0) {
-            out.write(data);
-        } else {
-            out.writeInt(0);
+        String str = readString(in);
+        if (str != null) {
+            format.setString(key, str);
         }
     }
 
-    private void writeFormatByteBuffer(DataOutputStream out, MediaFormat format, String key)
-            throws IOException {
-        if (format.containsKey(key)) {
-            writeByteBuffer(out, format.getByteBuffer(key));
-        } else {
-            out.writeInt(0);
+    private ByteBuffer readByteBuffer(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len <= 0) {
+            return null;
         }
-    }
+        byte [] bytes = new byte[len];
+        in.readFully(bytes);
+        ByteBuffer buffer = ByteBuffer.allocate(len);
+        buffer.put(bytes);
+        buffer.flip();
 
-    @Override
-    public void writeTrackInfoFile(String trackId, MediaFormat format, boolean isAudio)
-            throws IOException {
-        File file = new File(getBufferDir(), (isAudio ? "audio" : "video") + META_FILE_SUFFIX);
-        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
-            writeString(out, trackId);
-            writeFormatString(out, format, MediaFormat.KEY_MIME);
-            writeFormatInt(out, format, MediaFormat.KEY_MAX_INPUT_SIZE);
-            writeFormatInt(out, format, MediaFormat.KEY_WIDTH);
-            writeFormatInt(out, format, MediaFormat.KEY_HEIGHT);
-            writeFormatInt(out, format, MediaFormat.KEY_CHANNEL_COUNT);
-            writeFormatInt(out, format, MediaFormat.KEY_SAMPLE_RATE);
-            writeFormatFloat(out, format, KEY_PIXEL_WIDTH_HEIGHT_RATIO);
-            for (int i = 0; i < 3; ++i) {
-                writeFormatByteBuffer(out, format, "csd-" + i);
-            }
-            writeFormatLong(out, format, MediaFormat.KEY_DURATION);
-        }
+        return buffer;
     }
 
-    @Override
-    public void writeIndexFile(String trackName, SortedMap<Long, SampleChunk> index)
+    private void readFormatByteBuffer(DataInputStream in, MediaFormat format, String key)
             throws IOException {
-        File indexFile  = new File(getBufferDir(), trackName + IDX_FILE_SUFFIX);
-        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(indexFile))) {
-            out.writeLong(index.size());
-            for (Long key : index.keySet()) {
-                out.writeLong(key);
-            }
+        ByteBuffer buffer = readByteBuffer(in);
+        if (buffer != null) {
+            format.setByteBuffer(key, buffer);
         }
     }
 }
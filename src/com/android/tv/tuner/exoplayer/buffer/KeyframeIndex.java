@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An index of the key frames of a track, which maps a position to the byte offset of the key
+ * frame to start reading from in a {@link SampleChunk}.
+ * Index file = Header, Entry * N
+ * Header = magic : int, version : int
+ * Entry = sample PTS in micro second : long, start position of the chunk : long,
+ *         offset of the sample header in the chunk : int, sample flag : int
+ * <p>
+ * Entries are sorted by PTS, and only key frames are indexed, so a seek is a binary search.
+ * The index of a recording is appended to its file as samples are written and memory-mapped when
+ * the recording is played. The index of a time-shift buffer is kept in memory only.
+ * <p>
+ * All the methods are called on the I/O thread of {@link SampleChunkIoHelper}, or on the read
+ * lane of the track, so this is not thread-safe.
+ */
+class KeyframeIndex {
+    private static final String TAG = "KeyframeIndex";
+
+    static final String FILE_SUFFIX = ".kfi";
+    private static final int MAGIC = 0x6b666931;  // "kfi1"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final int ENTRY_LENGTH = 24;
+    private static final int INITIAL_CAPACITY = 256;
+
+    // Entries from mFirstEntry (inclusive) to mEndEntry (exclusive) are valid.
+    private ByteBuffer mEntries;
+    private int mFirstEntry;
+    private int mEndEntry;
+    private int mFlushedEntry;
+    private final boolean mReadOnly;
+    private FileChannel mChannel;
+
+    /**
+     * Creates an index which is kept in memory only.
+     */
+    static KeyframeIndex createInMemory() {
+        return new KeyframeIndex(ByteBuffer.allocate(INITIAL_CAPACITY * ENTRY_LENGTH), 0, false,
+                null);
+    }
+
+    /**
+     * Creates an index which is appended to {@code file}. An existing file is overwritten.
+     *
+     * @param file the index file
+     * @throws IOException
+     */
+    static KeyframeIndex create(File file) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new KeyframeIndex(ByteBuffer.allocate(INITIAL_CAPACITY * ENTRY_LENGTH), 0, false,
+                channel);
+    }
+
+    /**
+     * Loads a read-only index from {@code file} by memory-mapping it.
+     *
+     * @param file the index file
+     * @return the loaded index, or {@code null} if the file does not exist or is not a known
+     *         version, e.g. for the recordings which were made before the index was introduced
+     * @throws IOException
+     */
+    @Nullable
+    static KeyframeIndex load(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        try (RandomAccessFile accessFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = accessFile.getChannel();
+            long size = channel.size();
+            if (size < HEADER_LENGTH) {
+                Log.w(TAG, "Index file is too short: " + file);
+                return null;
+            }
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+                Log.w(TAG, "Unknown index file format: " + file);
+                return null;
+            }
+            mapped.position(HEADER_LENGTH);
+            // A partially written entry at the end, e.g. by a crash while recording, is ignored.
+            int entryCount = (int) ((size - HEADER_LENGTH) / ENTRY_LENGTH);
+            return new KeyframeIndex(mapped.slice(), entryCount, true, null);
+        }
+    }
+
+    private KeyframeIndex(ByteBuffer entries, int entryCount, boolean readOnly,
+            @Nullable FileChannel channel) {
+        mEntries = entries;
+        mEndEntry = entryCount;
+        mFlushedEntry = entryCount;
+        mReadOnly = readOnly;
+        mChannel = channel;
+    }
+
+    /**
+     * Adds a key frame. A key frame which is not after the last one is ignored.
+     *
+     * @param timeUs the PTS of the key frame
+     * @param chunkPositionUs the start position of the {@link SampleChunk} of the key frame
+     * @param offset the offset of the sample header in the {@link SampleChunk}
+     * @param flags the flags of the key frame
+     */
+    void add(long timeUs, long chunkPositionUs, int offset, int flags) {
+        if (mReadOnly) {
+            throw new IllegalStateException("Index is read-only");
+        }
+        if (mEndEntry > mFirstEntry && timeUs <= getTimeUs(mEndEntry - 1)) {
+            return;
+        }
+        if ((mEndEntry + 1) * ENTRY_LENGTH > mEntries.capacity()) {
+            grow();
+        }
+        int position = mEndEntry * ENTRY_LENGTH;
+        mEntries.putLong(position, timeUs);
+        mEntries.putLong(position + 8, chunkPositionUs);
+        mEntries.putInt(position + 16, offset);
+        mEntries.putInt(position + 20, flags);
+        ++mEndEntry;
+    }
+
+    /**
+     * Appends the entries which are added since the last flush to the index file.
+     *
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        if (mChannel == null || mFlushedEntry == mEndEntry) {
+            return;
+        }
+        ByteBuffer entries = mEntries.duplicate();
+        entries.limit(mEndEntry * ENTRY_LENGTH).position(mFlushedEntry * ENTRY_LENGTH);
+        while (entries.hasRemaining()) {
+            mChannel.write(entries);
+        }
+        mFlushedEntry = mEndEntry;
+    }
+
+    /**
+     * Returns the offset in the {@link SampleChunk} of the last key frame at or before
+     * {@code positionUs}, or {@code 0} if the key frame is not in the chunk.
+     *
+     * @param chunkPositionUs the start position of the {@link SampleChunk} to read
+     * @param positionUs the position to seek to
+     */
+    int findOffset(long chunkPositionUs, long positionUs) {
+        int low = mFirstEntry;
+        int high = mEndEntry - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (getTimeUs(mid) <= positionUs) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (found < 0 || mEntries.getLong(found * ENTRY_LENGTH + 8) != chunkPositionUs) {
+            // The chunk starts with a key frame at or after its start position.
+            return 0;
+        }
+        return mEntries.getInt(found * ENTRY_LENGTH + 16);
+    }
+
+    /**
+     * Removes the entries of the {@link SampleChunk}s which start at or before
+     * {@code chunkPositionUs}, when the chunks are evicted.
+     */
+    void removeChunksUntil(long chunkPositionUs) {
+        while (mFirstEntry < mEndEntry
+                && mEntries.getLong(mFirstEntry * ENTRY_LENGTH + 8) <= chunkPositionUs) {
+            ++mFirstEntry;
+        }
+    }
+
+    /**
+     * Returns the number of the entries.
+     */
+    int size() {
+        return mEndEntry - mFirstEntry;
+    }
+
+    /**
+     * Closes the index file.
+     */
+    void close() {
+        if (mChannel == null) {
+            return;
+        }
+        try {
+            flush();
+            mChannel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close index file", e);
+        } finally {
+            mChannel = null;
+        }
+    }
+
+    private long getTimeUs(int entry) {
+        return mEntries.getLong(entry * ENTRY_LENGTH);
+    }
+
+    private void grow() {
+        // Drops the removed entries, and doubles the capacity if more than a half is used.
+        int count = mEndEntry - mFirstEntry;
+        int capacity = mEntries.capacity() / ENTRY_LENGTH;
+        if (count * 2 > capacity) {
+            capacity *= 2;
+        }
+        ByteBuffer entries = ByteBuffer.allocate(capacity * ENTRY_LENGTH);
+        ByteBuffer src = mEntries.duplicate();
+        src.limit(mEndEntry * ENTRY_LENGTH).position(mFirstEntry * ENTRY_LENGTH);
+        entries.put(src);
+        mEntries = entries;
+        mFlushedEntry = Math.max(0, mFlushedEntry - mFirstEntry);
+        mEndEntry = count;
+        mFirstEntry = 0;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.support.annotation.VisibleForTesting;
+
+import com.google.android.exoplayer.SampleHolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link SampleChunk} which accesses its file through a single memory mapping.
+ * <p>
+ * The file format is the same as {@link SampleChunk}, so chunks can be written by one and read by
+ * the other. While writing, the file is mapped to a region which is pre-sized from the expected
+ * size of the chunk and grown by remapping when needed. The region is forced to storage and the
+ * file is truncated to the written size once when the write is finished. Samples are read by
+ * bulk copies from the mapping, so neither read nor write makes a system call per sample.
+ * <p>
+ * All I/O is done on the I/O thread of {@link SampleChunkIoHelper}, so this is not thread-safe.
+ */
+public class MappedSampleChunk extends SampleChunk {
+    // The initial mapping size of a chunk whose expected size is unknown, which is enough for
+    // 500ms of a 19.39Mbps ATSC stream.
+    private static final long DEFAULT_MAPPING_SIZE = 2L * 1024 * 1024;
+    private static final long MIN_MAPPING_SIZE = 64L * 1024;
+
+    private final long mInitialMappingSize;
+    private FileChannel mChannel;
+    private MappedByteBuffer mMappedBuffer;
+    // A view of mMappedBuffer whose position and limit are changed for bulk copies.
+    private ByteBuffer mView;
+    private long mMappingSize;
+
+    /**
+     * A class for {@link MappedSampleChunk} creation.
+     */
+    public static class MappedSampleChunkCreator extends SampleChunk.SampleChunkCreator {
+        @Override
+        SampleChunk createSampleChunk(SamplePool samplePool, File file,
+                long startPositionUs, ChunkCallback chunkCallback) {
+            return createSampleChunk(samplePool, file, startPositionUs, chunkCallback, 0);
+        }
+
+        @Override
+        SampleChunk createSampleChunk(SamplePool samplePool, File file,
+                long startPositionUs, ChunkCallback chunkCallback, long expectedSize) {
+            return new MappedSampleChunk(samplePool, file, startPositionUs,
+                    System.currentTimeMillis(), chunkCallback, expectedSize);
+        }
+
+        @Override
+        protected SampleChunk openSampleChunk(SamplePool samplePool, File file,
+                long startPositionUs, ChunkCallback chunkCallback) {
+            return new MappedSampleChunk(samplePool, file, startPositionUs, chunkCallback);
+        }
+    }
+
+    @VisibleForTesting
+    MappedSampleChunk(SamplePool samplePool, File file, long startPositionUs,
+            long createdTimeMs, ChunkCallback chunkCallback, long expectedSize) {
+        super(samplePool, file, startPositionUs, createdTimeMs, chunkCallback);
+        // Leaves a margin since the bitrate of a chunk differs from the previous one.
+        mInitialMappingSize = expectedSize <= 0 ? DEFAULT_MAPPING_SIZE
+                : Math.max(expectedSize + expectedSize / 4, MIN_MAPPING_SIZE);
+    }
+
+    private MappedSampleChunk(SamplePool samplePool, File file, long startPositionUs,
+            ChunkCallback chunkCallback) {
+        super(samplePool, file, startPositionUs, chunkCallback);
+        mInitialMappingSize = 0;
+    }
+
+    @Override
+    protected void openFile(boolean forWrite) throws IOException {
+        if (forWrite) {
+            mChannel = new RandomAccessFile(getFile(), "rw").getChannel();
+            map(FileChannel.MapMode.READ_WRITE, mInitialMappingSize);
+        } else if (mChannel == null) {
+            // A chunk which is being written is read through the write mapping.
+            mChannel = new RandomAccessFile(getFile(), "r").getChannel();
+            map(FileChannel.MapMode.READ_ONLY, mChannel.size());
+        }
+    }
+
+    @Override
+    protected boolean isFileOpened() {
+        return mChannel != null;
+    }
+
+    @Override
+    protected long getFileLength() throws IOException {
+        return mChannel.size();
+    }
+
+    @Override
+    protected SampleHolder readSample(SamplePool samplePool, long offset) throws IOException {
+        int position = (int) offset;
+        int size = mMappedBuffer.getInt(position);
+        SampleHolder sample = samplePool.acquireSample(size);
+        sample.size = size;
+        sample.flags = mMappedBuffer.getInt(position + 4);
+        sample.timeUs = mMappedBuffer.getLong(position + 8);
+        sample.clearData();
+        int dataPosition = position + SAMPLE_HEADER_LENGTH;
+        mView.limit(dataPosition + size).position(dataPosition);
+        sample.data.put(mView);
+        return sample;
+    }
+
+    @Override
+    protected void writeSample(SampleHolder sample, long offset) throws IOException {
+        long end = offset + SAMPLE_HEADER_LENGTH + sample.size;
+        if (end > mMappingSize) {
+            map(FileChannel.MapMode.READ_WRITE, Math.max(end, mMappingSize * 2));
+        }
+        int position = (int) offset;
+        mMappedBuffer.putInt(position, sample.size);
+        mMappedBuffer.putInt(position + 4, sample.flags);
+        mMappedBuffer.putLong(position + 8, sample.timeUs);
+        sample.data.position(0).limit(sample.size);
+        mView.limit((int) end).position(position + SAMPLE_HEADER_LENGTH);
+        mView.put(sample.data);
+    }
+
+    @Override
+    protected void writeSamples(ByteBuffer[] buffers, long size, long offset)
+            throws IOException {
+        long end = offset + size;
+        if (end > mMappingSize) {
+            map(FileChannel.MapMode.READ_WRITE, Math.max(end, mMappingSize * 2));
+        }
+        int position = (int) offset;
+        for (ByteBuffer buffer : buffers) {
+            int length = buffer.remaining();
+            mView.limit(position + length).position(position);
+            mView.put(buffer);
+            position += length;
+        }
+    }
+
+    @Override
+    protected void finishWrite(long size) throws IOException {
+        // Flushes all the samples of the chunk at once, and drops the unused pre-sized region.
+        mMappedBuffer.force();
+        mChannel.truncate(size);
+    }
+
+    @Override
+    protected void closeFile() throws IOException {
+        // The mapping is released when it is garbage-collected. It remains valid after the
+        // channel is closed.
+        mMappedBuffer = null;
+        mView = null;
+        mMappingSize = 0;
+        try {
+            if (mChannel != null) {
+                mChannel.close();
+            }
+        } finally {
+            mChannel = null;
+        }
+    }
+
+    private void map(FileChannel.MapMode mode, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Chunk is too large to map: " + size);
+        }
+        mMappedBuffer = mChannel.map(mode, 0, size);
+        mView = mMappedBuffer.duplicate();
+        mMappingSize = size;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import com.google.android.exoplayer.SampleHolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link SampleChunk} which keeps its samples in an off-heap buffer until it is demoted to its
+ * file by {@link TieredStorageManager}.
+ * <p>
+ * Samples are written to the buffer, and read from it while the chunk is in memory. Once the
+ * chunk is written completely, the storage manager may write the buffer to the file on its
+ * demotion thread, in the file format of {@link SampleChunk}. The buffer is dropped when the
+ * demotion is finished and no reader uses it, and the chunk is read from the file afterwards.
+ * A chunk which is evicted before it is demoted never touches the storage.
+ */
+public class MemorySampleChunk extends SampleChunk {
+    // The initial buffer size of a chunk whose expected size is unknown, which is enough for
+    // 500ms of a 19.39Mbps ATSC stream.
+    private static final int DEFAULT_BUFFER_SIZE = 2 * 1024 * 1024;
+    private static final int MIN_BUFFER_SIZE = 64 * 1024;
+
+    private final TieredStorageManager mStorageManager;
+    private final int mInitialBufferSize;
+
+    // mBuffer and the flags below are guarded by this, since the demotion thread reads the buffer.
+    private ByteBuffer mBuffer;
+    private long mWrittenSize;
+    private boolean mOpened;
+    private boolean mDemoted;
+    private boolean mReleased;
+
+    // The view of mBuffer which is used by the I/O thread while the chunk is opened from memory,
+    // or null if the chunk is read from the file.
+    private ByteBuffer mView;
+
+    /**
+     * A class for {@link MemorySampleChunk} creation.
+     */
+    public static class MemorySampleChunkCreator extends SampleChunk.SampleChunkCreator {
+        private final TieredStorageManager mStorageManager;
+
+        MemorySampleChunkCreator(TieredStorageManager storageManager) {
+            mStorageManager = storageManager;
+        }
+
+        @Override
+        SampleChunk createSampleChunk(SamplePool samplePool, File file,
+                long startPositionUs, ChunkCallback chunkCallback) {
+            return createSampleChunk(samplePool, file, startPositionUs, chunkCallback, 0);
+        }
+
+        @Override
+        SampleChunk createSampleChunk(SamplePool samplePool, File file,
+                long startPositionUs, ChunkCallback chunkCallback, long expectedSize) {
+            return new MemorySampleChunk(samplePool, file, startPositionUs,
+                    System.currentTimeMillis(), chunkCallback, mStorageManager, expectedSize);
+        }
+    }
+
+    MemorySampleChunk(SamplePool samplePool, File file, long startPositionUs,
+            long createdTimeMs, ChunkCallback chunkCallback, TieredStorageManager storageManager,
+            long expectedSize) {
+        super(samplePool, file, startPositionUs, createdTimeMs, chunkCallback);
+        mStorageManager = storageManager;
+        // Leaves a margin since the bitrate of a chunk differs from the previous one.
+        mInitialBufferSize = expectedSize <= 0 ? DEFAULT_BUFFER_SIZE
+                : (int) Math.min(Math.max(expectedSize + expectedSize / 4, MIN_BUFFER_SIZE),
+                        Integer.MAX_VALUE);
+    }
+
+    @Override
+    protected void openFile(boolean forWrite) throws IOException {
+        synchronized (this) {
+            if (forWrite) {
+                allocateLocked(mInitialBufferSize);
+            }
+            if (mBuffer != null) {
+                if (!forWrite) {
+                    mStorageManager.onChunkOpened(true);
+                }
+                mOpened = true;
+                mView = mBuffer.duplicate();
+                return;
+            }
+        }
+        mStorageManager.onChunkOpened(false);
+        super.openFile(false);
+    }
+
+    @Override
+    protected boolean isFileOpened() {
+        return mView != null || super.isFileOpened();
+    }
+
+    @Override
+    protected long getFileLength() throws IOException {
+        if (mView != null) {
+            synchronized (this) {
+                return mWrittenSize;
+            }
+        }
+        return super.getFileLength();
+    }
+
+    @Override
+    protected SampleHolder readSample(SamplePool samplePool, long offset) throws IOException {
+        if (mView == null) {
+            return super.readSample(samplePool, offset);
+        }
+        int position = (int) offset;
+        int size = mView.getInt(position);
+        SampleHolder sample = samplePool.acquireSample(size);
+        sample.size = size;
+        sample.flags = mView.getInt(position + 4);
+        sample.timeUs = mView.getLong(position + 8);
+        sample.clearData();
+        int dataPosition = position + SAMPLE_HEADER_LENGTH;
+        mView.limit(dataPosition + size).position(dataPosition);
+        sample.data.put(mView);
+        return sample;
+    }
+
+    @Override
+    protected void writeSample(SampleHolder sample, long offset) throws IOException {
+        int position = (int) offset;
+        ensureCapacity(offset + SAMPLE_HEADER_LENGTH + sample.size);
+        mView.putInt(position, sample.size);
+        mView.putInt(position + 4, sample.flags);
+        mView.putLong(position + 8, sample.timeUs);
+        sample.data.position(0).limit(sample.size);
+        mView.limit(position + SAMPLE_HEADER_LENGTH + sample.size)
+                .position(position + SAMPLE_HEADER_LENGTH);
+        mView.put(sample.data);
+    }
+
+    @Override
+    protected void writeSamples(ByteBuffer[] buffers, long size, long offset)
+            throws IOException {
+        ensureCapacity(offset + size);
+        int position = (int) offset;
+        for (ByteBuffer buffer : buffers) {
+            int length = buffer.remaining();
+            mView.limit(position + length).position(position);
+            mView.put(buffer);
+            position += length;
+        }
+    }
+
+    @Override
+    protected void finishWrite(long size) throws IOException {
+        synchronized (this) {
+            mWrittenSize = size;
+            if (mReleased) {
+                return;
+            }
+        }
+        mStorageManager.onChunkWritten(this);
+    }
+
+    @Override
+    protected void closeFile() throws IOException {
+        mView = null;
+        synchronized (this) {
+            mOpened = false;
+            if (mDemoted || mReleased) {
+                freeLocked();
+            }
+        }
+        super.closeFile();
+    }
+
+    @Override
+    protected void onRelease(boolean delete) {
+        synchronized (this) {
+            mReleased = true;
+        }
+        mStorageManager.onChunkReleased(this);
+    }
+
+    /**
+     * Writes the samples to the file, and drops the buffer if no reader uses it. Called on the
+     * demotion thread of {@link TieredStorageManager}.
+     *
+     * @return {@code true} if the samples are written to the file, {@code false} if the chunk
+     *         was released before it is demoted
+     * @throws IOException
+     */
+    boolean demote() throws IOException {
+        ByteBuffer src;
+        synchronized (this) {
+            if (mReleased || mDemoted || mBuffer == null) {
+                return false;
+            }
+            src = mBuffer.duplicate();
+            src.limit((int) mWrittenSize).position(0);
+        }
+        try (FileOutputStream out = new FileOutputStream(getFile())) {
+            // The time-shift buffer is not persistent, so it is not synced to the storage.
+            FileChannel channel = out.getChannel();
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+        }
+        synchronized (this) {
+            if (mReleased) {
+                // Evicted while being demoted.
+                getFile().delete();
+                return false;
+            }
+            mDemoted = true;
+            if (!mOpened) {
+                freeLocked();
+            }
+        }
+        return true;
+    }
+
+    private void ensureCapacity(long end) throws IOException {
+        if (end <= mView.capacity()) {
+            return;
+        }
+        if (end > Integer.MAX_VALUE) {
+            throw new IOException("Chunk is too large to keep in memory: " + end);
+        }
+        synchronized (this) {
+            ByteBuffer old = mBuffer.duplicate();
+            old.clear();
+            allocateLocked((int) Math.min(Math.max(end, 2L * old.capacity()), Integer.MAX_VALUE));
+            mBuffer.put(old);
+            mBuffer.clear();
+            mView = mBuffer.duplicate();
+            mStorageManager.onMemoryAllocated(-old.capacity());
+        }
+    }
+
+    private void allocateLocked(int capacity) {
+        mBuffer = ByteBuffer.allocateDirect(capacity);
+        mStorageManager.onMemoryAllocated(capacity);
+    }
+
+    private void freeLocked() {
+        if (mBuffer != null) {
+            mStorageManager.onMemoryAllocated(-mBuffer.capacity());
+            // The direct buffer is freed when it is garbage-collected.
+            mBuffer = null;
+        }
+    }
+}
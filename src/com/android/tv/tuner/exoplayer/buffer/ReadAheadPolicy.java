@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import com.google.android.exoplayer.C;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how far {@link SampleChunkIoHelper} reads ahead of playback.
+ * <p>
+ * The playback thread reports the playback speed and, during trickplay by seek, the position of
+ * the next seek. The I/O thread sizes its read-ahead window from the speed and the measured disk
+ * bandwidth, and prefetches the key frame at the next seek position.
+ */
+public class ReadAheadPolicy {
+    // The read-ahead window at 1x on a fast enough disk, which is about 3 video frames.
+    private static final long BASE_READ_AHEAD_US = TimeUnit.MILLISECONDS.toMicros(100);
+    private static final long MAX_READ_AHEAD_US = TimeUnit.SECONDS.toMicros(2);
+    // Disks slower than this get a proportionally larger window, up to MAX_SLOW_DISK_FACTOR.
+    private static final float REFERENCE_BANDWIDTH_MBPS = 10.0f;
+    private static final float MAX_SLOW_DISK_FACTOR = 4.0f;
+    private static final int BASE_RESCHEDULING_DELAY_MS = 10;
+    private static final int MIN_RESCHEDULING_DELAY_MS = 2;
+
+    private volatile float mPlaybackSpeed = 1.0f;
+    private volatile long mNextSeekPositionUs = C.UNKNOWN_TIME_US;
+
+    /**
+     * Sets the current playback speed. The next seek position is cleared, since it is set again
+     * by every seek of trickplay by seek.
+     */
+    public void setPlaybackSpeed(float speed) {
+        mPlaybackSpeed = speed;
+        mNextSeekPositionUs = C.UNKNOWN_TIME_US;
+    }
+
+    /**
+     * Sets the position which is expected to be sought next during trickplay by seek, or
+     * {@link C#UNKNOWN_TIME_US} if it is unknown.
+     */
+    public void setNextSeekPositionUs(long positionUs) {
+        mNextSeekPositionUs = positionUs;
+    }
+
+    /**
+     * Returns the position which is expected to be sought next, or {@link C#UNKNOWN_TIME_US}.
+     */
+    public long getNextSeekPositionUs() {
+        return mNextSeekPositionUs;
+    }
+
+    /**
+     * Returns the duration of samples to read ahead of the samples which are not consumed yet.
+     *
+     * @param bandwidthMbps the measured disk bandwidth in MBps, or a negative value if unknown
+     */
+    public long getReadAheadDurationUs(float bandwidthMbps) {
+        if (mNextSeekPositionUs != C.UNKNOWN_TIME_US) {
+            // Only the key frame after each seek is rendered during trickplay by seek, and it is
+            // prefetched separately.
+            return BASE_READ_AHEAD_US;
+        }
+        float factor = Math.max(1.0f, Math.abs(mPlaybackSpeed));
+        if (bandwidthMbps > 0 && bandwidthMbps < REFERENCE_BANDWIDTH_MBPS) {
+            factor *= Math.min(MAX_SLOW_DISK_FACTOR, REFERENCE_BANDWIDTH_MBPS / bandwidthMbps);
+        }
+        return Math.min((long) (BASE_READ_AHEAD_US * factor), MAX_READ_AHEAD_US);
+    }
+
+    /**
+     * Returns the delay before checking again whether the read-ahead window has room.
+     * Samples are consumed faster at higher speeds, so it is checked more often.
+     */
+    public int getReadReschedulingDelayMs() {
+        float speed = Math.max(1.0f, Math.abs(mPlaybackSpeed));
+        return Math.max(MIN_RESCHEDULING_DELAY_MS, (int) (BASE_RESCHEDULING_DELAY_MS / speed));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coordinates the read lanes of {@link SampleChunkIoHelper}, each of which reads a track on its
+ * own thread.
+ * <p>
+ * The lanes share the bandwidth of the storage. A lane whose buffered horizon, the position of
+ * the last sample it read, is too far ahead of a lane which is waiting for samples yields to it,
+ * so that the track with the smallest buffered horizon is served first. e.g. large 4K video reads
+ * don't starve the audio after a seek. A lane only yields for a limited time, so a lane which is
+ * not consumed can't stall the others.
+ */
+class ReadLaneScheduler {
+    /** The delay before a lane which yielded tries to read again. */
+    static final int YIELD_DELAY_MS = 2;
+
+    // A lane can read this much ahead of the lane with the smallest horizon.
+    private static final long MAX_LEAD_US = TimeUnit.MILLISECONDS.toMicros(500);
+    // A lane is waiting for samples if it was asked to read within this time.
+    private static final long WAITING_TIMEOUT_MS = 50;
+    private static final long MAX_YIELD_MS = 200;
+    private static final long NO_TIME = -1;
+
+    // @GuardedBy("this")
+    private final boolean[] mOpened;
+    private final boolean[] mReadFinished;
+    private final boolean[] mHungry;
+    private final long[] mHorizonsUs;
+    private final long[] mLastRequestTimesMs;
+    private final long[] mYieldStartTimesMs;
+
+    ReadLaneScheduler(int laneCount) {
+        mOpened = new boolean[laneCount];
+        mReadFinished = new boolean[laneCount];
+        // A lane which was never opened has nothing to read, as in SampleChunk.IoState.
+        Arrays.fill(mReadFinished, true);
+        mHungry = new boolean[laneCount];
+        mHorizonsUs = new long[laneCount];
+        mLastRequestTimesMs = new long[laneCount];
+        mYieldStartTimesMs = new long[laneCount];
+        Arrays.fill(mLastRequestTimesMs, NO_TIME);
+        Arrays.fill(mYieldStartTimesMs, NO_TIME);
+    }
+
+    /**
+     * Called when a lane starts to read from {@code positionUs}.
+     */
+    synchronized void onOpen(int lane, long positionUs) {
+        mOpened[lane] = true;
+        mReadFinished[lane] = false;
+        mHungry[lane] = true;
+        mHorizonsUs[lane] = positionUs;
+        mYieldStartTimesMs[lane] = NO_TIME;
+    }
+
+    /**
+     * Called when a lane is asked to read.
+     *
+     * @param hungry {@code false} if the read-ahead buffer of the lane is full
+     * @param nowMs the current time in {@link android.os.SystemClock#elapsedRealtime}
+     */
+    synchronized void onRequest(int lane, boolean hungry, long nowMs) {
+        mHungry[lane] = hungry;
+        mLastRequestTimesMs[lane] = nowMs;
+        if (!hungry) {
+            mYieldStartTimesMs[lane] = NO_TIME;
+        }
+    }
+
+    /**
+     * Called when a lane read a sample.
+     */
+    synchronized void onSampleRead(int lane, long timeUs) {
+        mHorizonsUs[lane] = timeUs;
+        mYieldStartTimesMs[lane] = NO_TIME;
+    }
+
+    /**
+     * Called when a lane read all the samples of its track.
+     *
+     * @return {@code true} if all the lanes read all the samples
+     */
+    synchronized boolean onReadFinished(int lane) {
+        mReadFinished[lane] = true;
+        mHungry[lane] = false;
+        for (boolean readFinished : mReadFinished) {
+            if (!readFinished) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether a lane should let the other lanes read first.
+     *
+     * @param nowMs the current time in {@link android.os.SystemClock#elapsedRealtime}
+     */
+    synchronized boolean shouldYield(int lane, long nowMs) {
+        long horizonUs = mHorizonsUs[lane];
+        boolean behind = false;
+        for (int i = 0; i < mOpened.length; ++i) {
+            if (i != lane && mOpened[i] && !mReadFinished[i] && mHungry[i]
+                    && mLastRequestTimesMs[i] != NO_TIME
+                    && nowMs - mLastRequestTimesMs[i] <= WAITING_TIMEOUT_MS
+                    && mHorizonsUs[i] + MAX_LEAD_US < horizonUs) {
+                behind = true;
+                break;
+            }
+        }
+        if (!behind) {
+            mYieldStartTimesMs[lane] = NO_TIME;
+            return false;
+        }
+        if (mYieldStartTimesMs[lane] == NO_TIME) {
+            mYieldStartTimesMs[lane] = nowMs;
+        }
+        return nowMs - mYieldStartTimesMs[lane] < MAX_YIELD_MS;
+    }
+}
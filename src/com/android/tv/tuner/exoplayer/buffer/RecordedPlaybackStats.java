@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.support.annotation.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Keeps how fast the samples of recordings are read after seeks, so that the sequential reads
+ * and the parallel read lanes of {@link SampleChunkIoHelper} can be compared from the dump of the
+ * tuner service.
+ *
+ * <p>The seek-to-first-frame time is from a seek until the first video sample is handed to the
+ * player. An audio underrun is counted when the audio track of the player runs out of data while
+ * a recording is played.
+ */
+public class RecordedPlaybackStats {
+    public static final int MODE_SEQUENTIAL = 0;
+    public static final int MODE_PARALLEL = 1;
+    private static final int MODE_COUNT = 2;
+
+    private static final String[] STAGE_NAMES = {
+            "seek_to_first_frame_sequential", "seek_to_first_frame_parallel" };
+    private static final long SEEK_TO_FIRST_FRAME_BUDGET_MS = 200;
+
+    // The upper bounds of the histogram buckets, in milliseconds.
+    private static final long[] BUCKET_BOUNDS_MS = {
+            16, 33, 50, 100, 200, 500, 1000, 2000, Long.MAX_VALUE };
+
+    // @GuardedBy("this")
+    private final int[][] mHistograms = new int[MODE_COUNT][BUCKET_BOUNDS_MS.length];
+    private final long[] mMaxTimesMs = new long[MODE_COUNT];
+    private final int[] mAudioUnderrunCounts = new int[MODE_COUNT];
+
+    private static class LazyHolder {
+        private static final RecordedPlaybackStats INSTANCE = new RecordedPlaybackStats();
+    }
+
+    public static RecordedPlaybackStats getInstance() {
+        return LazyHolder.INSTANCE;
+    }
+
+    @VisibleForTesting
+    RecordedPlaybackStats() { }
+
+    /**
+     * Records the time from a seek to the first video sample.
+     */
+    synchronized void recordSeekToFirstFrame(int mode, long timeNs) {
+        long timeMs = timeNs / 1000000;
+        mMaxTimesMs[mode] = Math.max(mMaxTimesMs[mode], timeMs);
+        for (int i = 0; i < BUCKET_BOUNDS_MS.length; ++i) {
+            if (timeMs <= BUCKET_BOUNDS_MS[i]) {
+                ++mHistograms[mode][i];
+                break;
+            }
+        }
+    }
+
+    /**
+     * Records an underrun of the audio track.
+     *
+     * @param mode {@link #MODE_SEQUENTIAL} or {@link #MODE_PARALLEL}, how the recording is read
+     */
+    public synchronized void recordAudioUnderrun(int mode) {
+        ++mAudioUnderrunCounts[mode];
+    }
+
+    /**
+     * Returns the number of the seeks which were recorded for the given mode.
+     */
+    @VisibleForTesting
+    synchronized int getSeekCount(int mode) {
+        int count = 0;
+        for (int bucketCount : mHistograms[mode]) {
+            count += bucketCount;
+        }
+        return count;
+    }
+
+    @VisibleForTesting
+    synchronized int getAudioUnderrunCount(int mode) {
+        return mAudioUnderrunCounts[mode];
+    }
+
+    /**
+     * Dumps the histograms and the counters.
+     */
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Recorded playback reads: audioUnderrunsSequential="
+                + mAudioUnderrunCounts[MODE_SEQUENTIAL] + " audioUnderrunsParallel="
+                + mAudioUnderrunCounts[MODE_PARALLEL]);
+        for (int mode = 0; mode < MODE_COUNT; ++mode) {
+            int[] histogram = mHistograms[mode];
+            int count = getSeekCount(mode);
+            StringBuilder sb = new StringBuilder("  stage=").append(STAGE_NAMES[mode])
+                    .append(" count=").append(count)
+                    .append(" budgetMs=").append(SEEK_TO_FIRST_FRAME_BUDGET_MS)
+                    .append(" p50Ms=").append(getPercentileBoundMs(histogram, count, 50))
+                    .append(" p90Ms=").append(getPercentileBoundMs(histogram, count, 90))
+                    .append(" maxMs=").append(mMaxTimesMs[mode])
+                    .append(" buckets=");
+            for (int i = 0; i < histogram.length; ++i) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(histogram[i]);
+            }
+            writer.println(sb);
+        }
+    }
+
+    private static long getPercentileBoundMs(int[] histogram, int count, int percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        // The upper bound of the bucket which holds the percentile.
+        int target = (count * percentile + 99) / 100;
+        int sum = 0;
+        for (int i = 0; i < histogram.length; ++i) {
+            sum += histogram[i];
+            if (sum >= target) {
+                return BUCKET_BOUNDS_MS[i];
+            }
+        }
+        return BUCKET_BOUNDS_MS[BUCKET_BOUNDS_MS.length - 1];
+    }
+}
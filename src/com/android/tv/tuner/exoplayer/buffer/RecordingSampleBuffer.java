@@ -16,7 +16,7 @@
 
 package com.android.tv.tuner.exoplayer.buffer;
 
-import android.os.ConditionVariable;
+import android.os.SystemClock;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.util.Log;
@@ -26,6 +26,7 @@ import com.google.android.exoplayer.MediaFormat;
 import com.google.android.exoplayer.SampleHolder;
 import com.google.android.exoplayer.SampleSource;
 import com.google.android.exoplayer.util.Assertions;
+import com.google.android.exoplayer.util.MimeTypes;
 import com.android.tv.tuner.exoplayer.MpegTsPlayer;
 import com.android.tv.tuner.tvinput.PlaybackBufferListener;
 import com.android.tv.tuner.exoplayer.SampleExtractor;
@@ -69,13 +70,13 @@ public class RecordingSampleBuffer implements BufferManager.SampleBuffer,
      * The duration of a chunk of samples, {@link SampleChunk}.
      */
     static final long CHUNK_DURATION_US = TimeUnit.MILLISECONDS.toMicros(500);
-    private static final long BUFFER_WRITE_TIMEOUT_MS = 10 * 1000;  // 10 seconds
     private static final long BUFFER_NEEDED_US =
             1000L * Math.max(MpegTsPlayer.MIN_BUFFER_MS, MpegTsPlayer.MIN_REBUFFER_MS);
 
     private final BufferManager mBufferManager;
     private final PlaybackBufferListener mBufferListener;
     private final @BufferReason int mBufferReason;
+    private final boolean mParallelRead;
 
     private int mTrackCount;
     private boolean[] mTrackSelected;
@@ -85,6 +86,10 @@ public class RecordingSampleBuffer implements BufferManager.SampleBuffer,
     private long mLastBufferedPositionUs = C.UNKNOWN_TIME_US;
     private long mCurrentPlaybackPositionUs = 0;
 
+    // The track which is measured for RecordedPlaybackStats, or -1.
+    private int mVideoTrackIndex = -1;
+    private long mSeekStartTimeNs;
+
     // An error in I/O thread of {@link SampleChunkIoHelper} will be notified.
     private volatile boolean mError;
 
@@ -115,6 +120,23 @@ public class RecordingSampleBuffer implements BufferManager.SampleBuffer,
      */
     public RecordingSampleBuffer(BufferManager bufferManager, PlaybackBufferListener bufferListener,
             boolean enableTrickplay, @BufferReason int bufferReason) {
+        this(bufferManager, bufferListener, enableTrickplay, bufferReason, false);
+    }
+
+    /**
+     * Creates {@link BufferManager.SampleBuffer} with
+     * cached I/O backed by physical storage (e.g. trickplay,recording,recorded-playback).
+     *
+     * @param bufferManager the manager of {@link SampleChunk}
+     * @param bufferListener the listener for buffer I/O event
+     * @param enableTrickplay {@code true} when trickplay should be enabled
+     * @param bufferReason the reason for caching samples {@link RecordingSampleBuffer.BufferReason}
+     * @param parallelRead {@code true} to read each track on its own read lane, which is
+     *        supported only for {@link #BUFFER_REASON_RECORDED_PLAYBACK}
+     */
+    public RecordingSampleBuffer(BufferManager bufferManager, PlaybackBufferListener bufferListener,
+            boolean enableTrickplay, @BufferReason int bufferReason, boolean parallelRead) {
+        mParallelRead = parallelRead;
         mBufferManager = bufferManager;
         mBufferListener = bufferListener;
         if (bufferListener != null) {
@@ -134,9 +156,15 @@ public class RecordingSampleBuffer implements BufferManager.SampleBuffer,
         mTrackSelected = new boolean[mTrackCount];
         mReadSampleQueues = new ArrayList<>();
         mSampleChunkIoHelper = new SampleChunkIoHelper(ids, mediaFormats, mBufferReason,
-                mBufferManager, mSamplePool, mIoCallback);
+                mBufferManager, mSamplePool, mIoCallback, mParallelRead);
         for (int i = 0; i < mTrackCount; ++i) {
             mReadSampleQueues.add(i, new SampleQueue(mSamplePool));
+            if (mBufferReason != BUFFER_REASON_RECORDED_PLAYBACK) {
+                continue;
+            }
+            if (mVideoTrackIndex < 0 && MimeTypes.isVideo(mediaFormats.get(i).mimeType)) {
+                mVideoTrackIndex = i;
+            }
         }
         mSampleChunkIoHelper.init();
     }
@@ -149,6 +177,9 @@ public class RecordingSampleBuffer implements BufferManager.SampleBuffer,
             mBufferManager.registerChunkEvictedListener(mIds.get(index),
                     RecordingSampleBuffer.this);
             mSampleChunkIoHelper.openRead(index, mCurrentPlaybackPositionUs);
+            if (index == mVideoTrackIndex) {
+                mSeekStartTimeNs = SystemClock.elapsedRealtimeNanos();
+            }
         }
     }
 
@@ -162,14 +193,13 @@ public class RecordingSampleBuffer implements BufferManager.SampleBuffer,
     }
 
     @Override
-    public void writeSample(int index, SampleHolder sample, ConditionVariable conditionVariable)
-            throws IOException {
-        mSampleChunkIoHelper.writeSample(index, sample, conditionVariable);
+    public boolean canWriteSample(int index) {
+        return mSampleChunkIoHelper.canWriteSample();
+    }
 
-        if (!conditionVariable.block(BUFFER_WRITE_TIMEOUT_MS)) {
-            Log.e(TAG, "Error: Serious delay on writing buffer");
-            conditionVariable.block();
-        }
+    @Override
+    public void writeSample(int index, SampleHolder sample) throws IOException {
+        mSampleChunkIoHelper.writeSample(index, sample);
     }
 
     @Override
@@ -177,8 +207,9 @@ public class RecordingSampleBuffer implements BufferManager.SampleBuffer,
         if (mBufferReason == BUFFER_REASON_RECORDED_PLAYBACK) {
             return false;
         }
-        mBufferManager.addWriteStat(sampleSize, writeDurationNs);
-        return mBufferManager.isWriteSlow();
+        // Since samples are written in batches, the bandwidth is measured by the I/O thread
+        // instead of by the duration of staging a sample.
+        return mSampleChunkIoHelper.isWriteSlow();
     }
 
     @Override
@@ -203,8 +234,7 @@ public class RecordingSampleBuffer implements BufferManager.SampleBuffer,
     }
 
     private boolean maybeReadSample(SampleQueue queue, int index) {
-        if (queue.getLastQueuedPositionUs() != null
-                && queue.getLastQueuedPositionUs() > mCurrentPlaybackPositionUs + BUFFER_NEEDED_US
+        if (queue.getLastQueuedPositionUs() > mCurrentPlaybackPositionUs + BUFFER_NEEDED_US
                 && queue.isDurationGreaterThan(CHUNK_DURATION_US)) {
             // The speed of queuing samples can be higher than the playback speed.
             // If the duration of the samples in the queue is not limited,
@@ -229,6 +259,13 @@ public class RecordingSampleBuffer implements BufferManager.SampleBuffer,
         if ((result != SampleSource.SAMPLE_READ && mEos) || mError) {
             return SampleSource.END_OF_STREAM;
         }
+        if (track == mVideoTrackIndex && result == SampleSource.SAMPLE_READ
+                && mSeekStartTimeNs != 0) {
+            RecordedPlaybackStats.getInstance().recordSeekToFirstFrame(mParallelRead
+                    ? RecordedPlaybackStats.MODE_PARALLEL : RecordedPlaybackStats.MODE_SEQUENTIAL,
+                    SystemClock.elapsedRealtimeNanos() - mSeekStartTimeNs);
+            mSeekStartTimeNs = 0;
+        }
         return result;
     }
 
@@ -241,27 +278,28 @@ public class RecordingSampleBuffer implements BufferManager.SampleBuffer,
             }
         }
         mLastBufferedPositionUs = positionUs;
+        mSeekStartTimeNs = SystemClock.elapsedRealtimeNanos();
     }
 
     @Override
     public long getBufferedPositionUs() {
-        Long result = null;
+        long result = SampleQueue.NO_POSITION_US;
         for (int i = 0; i < mTrackCount; ++i) {
             if (!mTrackSelected[i]) {
                 continue;
             }
-            Long lastQueuedSamplePositionUs =
+            long lastQueuedSamplePositionUs =
                     mReadSampleQueues.get(i).getLastQueuedPositionUs();
-            if (lastQueuedSamplePositionUs == null) {
+            if (lastQueuedSamplePositionUs == SampleQueue.NO_POSITION_US) {
                 // No sample has been queued.
                 result = mLastBufferedPositionUs;
                 continue;
             }
-            if (result == null || result > lastQueuedSamplePositionUs) {
+            if (result == SampleQueue.NO_POSITION_US || result > lastQueuedSamplePositionUs) {
                 result = lastQueuedSamplePositionUs;
             }
         }
-        if (result == null) {
+        if (result == SampleQueue.NO_POSITION_US) {
             return mLastBufferedPositionUs;
         }
         return (mLastBufferedPositionUs = result);
@@ -276,8 +314,8 @@ public class RecordingSampleBuffer implements BufferManager.SampleBuffer,
             }
             SampleQueue queue = mReadSampleQueues.get(i);
             maybeReadSample(queue, i);
-            if (queue.getLastQueuedPositionUs() == null
-                    || positionUs > queue.getLastQueuedPositionUs()) {
+            // Any position is after NO_POSITION_US, when no sample has been queued.
+            if (positionUs > queue.getLastQueuedPositionUs()) {
                 // No more buffered data.
                 return false;
             }
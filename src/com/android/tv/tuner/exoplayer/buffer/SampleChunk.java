@@ -25,6 +25,7 @@ import com.google.android.exoplayer.SampleHolder;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
 /**
@@ -41,7 +42,7 @@ public class SampleChunk {
     private SampleChunk mNextChunk;
 
     // Header = sample size : int, sample flag : int, sample PTS in micro second : long
-    private static final int SAMPLE_HEADER_LENGTH = 16;
+    static final int SAMPLE_HEADER_LENGTH = 16;
 
     private final File mFile;
     private final ChunkCallback mChunkCallback;
@@ -49,7 +50,8 @@ public class SampleChunk {
     private RandomAccessFile mAccessFile;
     private long mWriteOffset;
     private boolean mWriteFinished;
-    private boolean mIsReading;
+    // The number of IoStates which are reading this, e.g. the reader and the prefetcher.
+    private int mReaderCount;
     private boolean mIsWriting;
 
     /**
@@ -95,6 +97,21 @@ public class SampleChunk {
                     chunkCallback);
         }
 
+        /**
+         * Returns a newly created SampleChunk to read & write samples, which is expected to
+         * grow up to {@code expectedSize} bytes.
+         *
+         * @param samplePool sample allocator
+         * @param file filename which will be created newly
+         * @param startPositionUs the start position of the earliest sample to be stored
+         * @param chunkCallback for total storage usage change notification
+         * @param expectedSize the expected size of the chunk in bytes, or {@code 0} if unknown
+         */
+        SampleChunk createSampleChunk(SamplePool samplePool, File file,
+                long startPositionUs, ChunkCallback chunkCallback, long expectedSize) {
+            return createSampleChunk(samplePool, file, startPositionUs, chunkCallback);
+        }
+
         /**
          * Returns a newly created SampleChunk which is backed by an existing file.
          * Created SampleChunk is read-only.
@@ -111,13 +128,25 @@ public class SampleChunk {
                 String filename, long startPositionUs, ChunkCallback chunkCallback,
                 SampleChunk prev) throws IOException {
             File file = new File(bufferDir, filename);
-            SampleChunk chunk =
-                    new SampleChunk(samplePool, file, startPositionUs, chunkCallback);
+            SampleChunk chunk = openSampleChunk(samplePool, file, startPositionUs, chunkCallback);
             if (prev != null) {
                 prev.mNextChunk = chunk;
             }
             return chunk;
         }
+
+        /**
+         * Returns a read-only SampleChunk which is backed by the given existing file.
+         *
+         * @param samplePool sample allocator
+         * @param file the file to read
+         * @param startPositionUs the start position of the earliest sample in the file
+         * @param chunkCallback for total storage usage change notification
+         */
+        protected SampleChunk openSampleChunk(SamplePool samplePool, File file,
+                long startPositionUs, ChunkCallback chunkCallback) {
+            return new SampleChunk(samplePool, file, startPositionUs, chunkCallback);
+        }
     }
 
     /**
@@ -158,11 +187,54 @@ public class SampleChunk {
          * @throws IOException
          */
         void openRead(SampleChunk chunk) throws IOException {
+            openRead(chunk, 0);
+        }
+
+        /**
+         * Prepares for read I/O operation from a new SampleChunk, starting at the sample at
+         * {@code offset}, e.g. a key frame which is found by {@link KeyframeIndex}.
+         *
+         * @param chunk the new SampleChunk to read from
+         * @param offset the offset of the header of the first sample to read
+         * @throws IOException
+         */
+        void openRead(SampleChunk chunk, long offset) throws IOException {
             if (mChunk != null) {
                 mChunk.closeRead();
             }
             chunk.openRead();
             reset(chunk);
+            if (offset > chunk.mWriteOffset) {
+                Log.w(TAG, "Tried to read from over the written samples: " + offset);
+                offset = 0;
+            }
+            mCurrentOffset = offset;
+        }
+
+        /**
+         * Finishes read I/O operation of the current SampleChunk.
+         *
+         * @throws IOException
+         */
+        void closeRead() throws IOException {
+            if (mChunk != null) {
+                mChunk.closeRead();
+                reset(null);
+            }
+        }
+
+        /**
+         * Returns the offset for the next I/O operation in the current SampleChunk.
+         */
+        long getOffset() {
+            return mCurrentOffset;
+        }
+
+        /**
+         * Returns whether the current SampleChunk is {@code chunk}.
+         */
+        boolean isAt(SampleChunk chunk) {
+            return mChunk != null && mChunk == chunk;
         }
 
         /**
@@ -217,6 +289,26 @@ public class SampleChunk {
          */
         void write(SampleHolder sample, SampleChunk nextChunk)
                 throws IOException {
+            switchWriteChunk(nextChunk);
+            mChunk.write(sample, this);
+        }
+
+        /**
+         * Writes samples which are already serialized in the file format of SampleChunk, by a
+         * single gathering write.
+         *
+         * @param buffers serialized samples, from the position to the limit of each buffer
+         * @param size the total number of remaining bytes in {@code buffers}
+         * @param nextChunk if this is {@code null} writes at the current SampleChunk,
+         *             otherwise close current SampleChunk and writes at this
+         * @throws IOException
+         */
+        void write(ByteBuffer[] buffers, long size, SampleChunk nextChunk) throws IOException {
+            switchWriteChunk(nextChunk);
+            mChunk.write(buffers, size, this);
+        }
+
+        private void switchWriteChunk(SampleChunk nextChunk) throws IOException {
             if (nextChunk != null) {
                 if (mChunk == null || mChunk.mNextChunk != null) {
                     throw new IllegalStateException("Requested write for wrong SampleChunk");
@@ -226,7 +318,6 @@ public class SampleChunk {
                 nextChunk.openWrite();
                 reset(nextChunk);
             }
-            mChunk.write(sample, this);
         }
 
         /**
@@ -263,8 +354,8 @@ public class SampleChunk {
     }
 
     // Constructor of SampleChunk which is backed by the given existing file.
-    private SampleChunk(SamplePool samplePool, File file, long startPositionUs,
-            ChunkCallback chunkCallback) throws IOException {
+    protected SampleChunk(SamplePool samplePool, File file, long startPositionUs,
+            ChunkCallback chunkCallback) {
         mStartPositionUs = startPositionUs;
         mCreatedTimeMs = mStartPositionUs / 1000;
         mSamplePool = samplePool;
@@ -274,17 +365,15 @@ public class SampleChunk {
     }
 
     private void openRead() throws IOException {
-        if (!mIsReading) {
-            if (mAccessFile == null) {
-                mAccessFile = new RandomAccessFile(mFile, "r");
-            }
+        if (mReaderCount == 0) {
+            openFile(false);
             if (mWriteFinished && mWriteOffset == 0) {
                 // Lazy loading of write offset, in order not to load
                 // all SampleChunk's write offset at start time of recorded playback.
-                mWriteOffset = mAccessFile.length();
+                mWriteOffset = getFileLength();
             }
-            mIsReading = true;
         }
+        ++mReaderCount;
     }
 
     private void openWrite() throws IOException {
@@ -292,30 +381,24 @@ public class SampleChunk {
             throw new IllegalStateException("Opened for write though write is already finished");
         }
         if (!mIsWriting) {
-            if (mIsReading) {
+            if (mReaderCount > 0) {
                 throw new IllegalStateException("Write is requested for "
                         + "an already opened SampleChunk");
             }
-            mAccessFile = new RandomAccessFile(mFile, "rw");
+            openFile(true);
             mIsWriting = true;
         }
     }
 
     private void CloseAccessFileIfNeeded() throws IOException {
-        if (!mIsReading && !mIsWriting) {
-            try {
-                if (mAccessFile != null) {
-                    mAccessFile.close();
-                }
-            } finally {
-                mAccessFile = null;
-            }
+        if (mReaderCount == 0 && !mIsWriting) {
+            closeFile();
         }
     }
 
     private void closeRead() throws IOException{
-        if (mIsReading) {
-            mIsReading = false;
+        if (mReaderCount > 0) {
+            --mReaderCount;
             CloseAccessFileIfNeeded();
         }
     }
@@ -326,7 +409,11 @@ public class SampleChunk {
             mNextChunk = nextChunk;
             mIsWriting = false;
             mWriteFinished = true;
-            CloseAccessFileIfNeeded();
+            try {
+                finishWrite(mWriteOffset);
+            } finally {
+                CloseAccessFileIfNeeded();
+            }
         }
     }
 
@@ -335,7 +422,7 @@ public class SampleChunk {
     }
 
     private SampleHolder read(IoState state) throws IOException {
-        if (mAccessFile == null || state.mChunk != this) {
+        if (!isFileOpened() || state.mChunk != this) {
             throw new IllegalStateException("Requested read for wrong SampleChunk");
         }
         long offset = state.mCurrentOffset;
@@ -349,15 +436,7 @@ public class SampleChunk {
                 return null;
             }
         }
-        mAccessFile.seek(offset);
-        int size = mAccessFile.readInt();
-        SampleHolder sample = mSamplePool.acquireSample(size);
-        sample.size = size;
-        sample.flags = mAccessFile.readInt();
-        sample.timeUs = mAccessFile.readLong();
-        sample.clearData();
-        sample.data.put(mAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY,
-                offset + SAMPLE_HEADER_LENGTH, sample.size));
+        SampleHolder sample = readSample(mSamplePool, offset);
         offset += sample.size + SAMPLE_HEADER_LENGTH;
         state.mCurrentOffset = offset;
         return sample;
@@ -366,27 +445,146 @@ public class SampleChunk {
     @VisibleForTesting
     protected void write(SampleHolder sample, IoState state)
             throws IOException {
-        if (mAccessFile == null || mNextChunk != null || !state.equals(this, mWriteOffset)) {
+        if (!isFileOpened() || mNextChunk != null || !state.equals(this, mWriteOffset)) {
+            throw new IllegalStateException("Requested write for wrong SampleChunk");
+        }
+        writeSample(sample, mWriteOffset);
+        mWriteOffset += sample.size + SAMPLE_HEADER_LENGTH;
+        state.mCurrentOffset = mWriteOffset;
+    }
+
+    private void write(ByteBuffer[] buffers, long size, IoState state) throws IOException {
+        if (!isFileOpened() || mNextChunk != null || !state.equals(this, mWriteOffset)) {
             throw new IllegalStateException("Requested write for wrong SampleChunk");
         }
+        writeSamples(buffers, size, mWriteOffset);
+        mWriteOffset += size;
+        state.mCurrentOffset = mWriteOffset;
+    }
+
+    /**
+     * Opens the backing file. The file can be already opened for the other direction, e.g. a
+     * chunk which is being written can be opened for read afterwards.
+     *
+     * @param forWrite {@code true} if the file is opened for write, {@code false} for read
+     * @throws IOException
+     */
+    protected void openFile(boolean forWrite) throws IOException {
+        if (forWrite) {
+            mAccessFile = new RandomAccessFile(mFile, "rw");
+        } else if (mAccessFile == null) {
+            mAccessFile = new RandomAccessFile(mFile, "r");
+        }
+    }
+
+    /**
+     * Returns whether the backing file is opened.
+     */
+    protected boolean isFileOpened() {
+        return mAccessFile != null;
+    }
 
-        mAccessFile.seek(mWriteOffset);
+    /**
+     * Returns the length of the opened backing file.
+     *
+     * @throws IOException
+     */
+    protected long getFileLength() throws IOException {
+        return mAccessFile.length();
+    }
+
+    /**
+     * Reads a sample which starts at {@code offset} of the backing file.
+     *
+     * @param samplePool sample allocator
+     * @param offset the offset of the sample header
+     * @return the sample which is read
+     * @throws IOException
+     */
+    protected SampleHolder readSample(SamplePool samplePool, long offset) throws IOException {
+        mAccessFile.seek(offset);
+        int size = mAccessFile.readInt();
+        SampleHolder sample = samplePool.acquireSample(size);
+        sample.size = size;
+        sample.flags = mAccessFile.readInt();
+        sample.timeUs = mAccessFile.readLong();
+        sample.clearData();
+        sample.data.put(mAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                offset + SAMPLE_HEADER_LENGTH, sample.size));
+        return sample;
+    }
+
+    /**
+     * Writes a sample at {@code offset} of the backing file.
+     *
+     * @param sample the sample to write
+     * @param offset the offset where the sample header is written
+     * @throws IOException
+     */
+    protected void writeSample(SampleHolder sample, long offset) throws IOException {
+        mAccessFile.seek(offset);
         mAccessFile.writeInt(sample.size);
         mAccessFile.writeInt(sample.flags);
         mAccessFile.writeLong(sample.timeUs);
         sample.data.position(0).limit(sample.size);
-        mAccessFile.getChannel().position(mWriteOffset + SAMPLE_HEADER_LENGTH).write(sample.data);
-        mWriteOffset += sample.size + SAMPLE_HEADER_LENGTH;
-        state.mCurrentOffset = mWriteOffset;
+        mAccessFile.getChannel().position(offset + SAMPLE_HEADER_LENGTH).write(sample.data);
     }
 
-    private void release(boolean delete) {
-        mWriteFinished = true;
-        mIsReading = mIsWriting = false;
+    /**
+     * Writes serialized samples at {@code offset} of the backing file.
+     *
+     * @param buffers serialized samples, from the position to the limit of each buffer
+     * @param size the total number of remaining bytes in {@code buffers}
+     * @param offset the offset where the first sample header is written
+     * @throws IOException
+     */
+    protected void writeSamples(ByteBuffer[] buffers, long size, long offset)
+            throws IOException {
+        FileChannel channel = mAccessFile.getChannel().position(offset);
+        long written = 0;
+        while (written < size) {
+            written += channel.write(buffers);
+        }
+    }
+
+    /**
+     * Called when all the samples are written, before the backing file is closed.
+     *
+     * @param size the total size of the written samples in bytes
+     * @throws IOException
+     */
+    protected void finishWrite(long size) throws IOException {
+    }
+
+    /**
+     * Closes the backing file.
+     *
+     * @throws IOException
+     */
+    protected void closeFile() throws IOException {
         try {
             if (mAccessFile != null) {
                 mAccessFile.close();
             }
+        } finally {
+            mAccessFile = null;
+        }
+    }
+
+    private void release(boolean delete) {
+        onRelease(delete);
+        mWriteFinished = true;
+        boolean wasWriting = mIsWriting;
+        mReaderCount = 0;
+        mIsWriting = false;
+        try {
+            try {
+                if (wasWriting) {
+                    finishWrite(mWriteOffset);
+                }
+            } finally {
+                closeFile();
+            }
         } catch (IOException e) {
             // Since the SampleChunk will not be reused, ignore exception.
         }
@@ -396,6 +594,21 @@ public class SampleChunk {
         }
     }
 
+    /**
+     * Called when the chunk is released, before the backing file is closed and deleted.
+     *
+     * @param delete {@code true} when the backing file will be deleted
+     */
+    protected void onRelease(boolean delete) {
+    }
+
+    /**
+     * Returns the backing file.
+     */
+    protected File getFile() {
+        return mFile;
+    }
+
     /**
      * Returns the start position.
      */
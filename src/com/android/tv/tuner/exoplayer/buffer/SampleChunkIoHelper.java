@@ -21,9 +21,11 @@ import android.os.ConditionVariable;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Pair;
 
+import com.google.android.exoplayer.C;
 import com.google.android.exoplayer.MediaFormat;
 import com.google.android.exoplayer.SampleHolder;
 import com.google.android.exoplayer.util.MimeTypes;
@@ -31,18 +33,36 @@ import com.android.tv.common.SoftPreconditions;
 import com.android.tv.tuner.exoplayer.buffer.RecordingSampleBuffer.BufferReason;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Handles all {@link SampleChunk} I/O operations.
  * An I/O dedicated thread handles all I/O operations for synchronization.
+ * <p>
+ * Samples to write are serialized into a staging batch of the track on the writer thread, and
+ * the batch is handed over to the I/O thread when it is large or old enough, or when the next
+ * sample starts a new {@link SampleChunk}. The I/O thread writes a batch by a single gathering
+ * write, so the writer does not wait for the storage on every sample.
+ * <p>
+ * For the playback of a recording, each track can be read by its own read lane instead, which is
+ * a thread with its own {@link SampleChunk} files. The lanes are coordinated by
+ * {@link ReadLaneScheduler}, so a track with large samples doesn't hold up the other tracks.
  */
 public class SampleChunkIoHelper implements Handler.Callback {
     private static final String TAG = "SampleChunkIoHelper";
+    private static final boolean DEBUG = false;
 
-    private static final int MAX_READ_BUFFER_SAMPLES = 3;
-    private static final int READ_RESCHEDULING_DELAY_MS = 10;
+    // The number of samples to read ahead is decided by ReadAheadPolicy within these bounds.
+    private static final int MIN_READ_BUFFER_SAMPLES = 3;
+    private static final int MAX_READ_BUFFER_SAMPLES = 64;
+    private static final long MAX_SAMPLE_INTERVAL_US = C.MICROS_PER_SECOND;
 
     private static final int MSG_OPEN_READ = 1;
     private static final int MSG_OPEN_WRITE = 2;
@@ -50,25 +70,71 @@ public class SampleChunkIoHelper implements Handler.Callback {
     private static final int MSG_READ = 4;
     private static final int MSG_WRITE = 5;
     private static final int MSG_RELEASE = 6;
+    private static final int MSG_FLUSH = 7;
+    private static final int MSG_PREFETCH = 8;
+
+    // Staged samples are flushed when a batch reaches the flush size or the flush age of
+    // BufferingPolicy.
+    private static final int STAGING_BLOCK_SIZE = 64 * 1024;
+    // The writer holds off while more than this many bytes are waiting to be written.
+    private static final long MAX_PENDING_WRITE_BYTES = 4L * 1024 * 1024;
+    private static final long NO_NEW_CHUNK = -1;
+    // Tracks whose samples are all key frames, e.g. audio, are indexed at this interval at most.
+    private static final long MIN_KEY_FRAME_INDEX_INTERVAL_US = 100000;
 
     private final int mTrackCount;
     private final List<String> mIds;
     private final List<MediaFormat> mMediaFormats;
     private final @BufferReason int mBufferReason;
     private final BufferManager mBufferManager;
+    private final ReadAheadPolicy mReadAheadPolicy;
+    private final BufferingPolicy mBufferingPolicy;
+    // Whether each track is a caption track, which BufferingPolicy may drop.
+    private final boolean[] mIsCaptionTrack;
     private final SamplePool mSamplePool;
     private final IoCallback mIoCallback;
 
+    private final boolean mParallelRead;
+
     private Handler mIoHandler;
+    // The handlers of the read lanes, or mIoHandler for each track if reads are not parallel.
+    private Handler[] mReadHandlers;
+    private ReadLaneScheduler mReadLaneScheduler;
     private final ConcurrentLinkedQueue<SampleHolder> mReadSampleBuffers[];
     private final ConcurrentLinkedQueue<SampleHolder> mHandlerReadSampleBuffers[];
     private final long[] mWriteEndPositionUs;
     private final SampleChunk.IoState[] mReadIoStates;
     private final SampleChunk.IoState[] mWriteIoStates;
+
+    // The position and the average interval of the samples which are read, to convert the
+    // read-ahead duration into the number of samples.
+    private final long[] mLastReadTimeUs;
+    private final long[] mReadIntervalUs;
+
+    // The key frames at the next trickplay seek position, which are read by the prefetch
+    // IoStates. A hit swaps the prefetch IoState with the read IoState of the track.
+    private final SampleChunk.IoState[] mPrefetchIoStates;
+    private final SampleHolder[] mPrefetchedSamples;
+    private final long[] mPrefetchOffsets;
+    private final AtomicInteger mPrefetchCount = new AtomicInteger();
+    private final AtomicInteger mPrefetchHitCount = new AtomicInteger();
+    private final AtomicInteger mPrefetchMissCount = new AtomicInteger();
+
+    // Guards mStagingBatches, which are filled by the writer thread and can be flushed by the
+    // I/O thread when they get old.
+    private final Object mStagingLock = new Object();
+    private final WriteBatch[] mStagingBatches;
+    private final long[] mLastIndexedTimeUs;
+    private final ByteBuffer mHeaderBuffer =
+            ByteBuffer.allocate(SampleChunk.SAMPLE_HEADER_LENGTH);
+    private final ConcurrentLinkedQueue<ByteBuffer> mFreeBlocks = new ConcurrentLinkedQueue<>();
+    private final AtomicLong mPendingWriteBytes = new AtomicLong();
+    private final AtomicBoolean mWriteSlow = new AtomicBoolean();
+
     private long mBufferDurationUs = 0;
     private boolean mWriteEnded;
-    private boolean mErrorNotified;
-    private boolean mFinished;
+    private volatile boolean mErrorNotified;
+    private volatile boolean mFinished;
 
     /**
      * A Callback for I/O events.
@@ -91,21 +157,56 @@ public class SampleChunkIoHelper implements Handler.Callback {
     private class IoParams {
         private final int index;
         private final long positionUs;
-        private final SampleHolder sample;
-        private final ConditionVariable conditionVariable;
         private final ConcurrentLinkedQueue<SampleHolder> readSampleBuffer;
 
-        private IoParams(int index, long positionUs, SampleHolder sample,
-                ConditionVariable conditionVariable,
+        private IoParams(int index, long positionUs,
                 ConcurrentLinkedQueue<SampleHolder> readSampleBuffer) {
             this.index = index;
             this.positionUs = positionUs;
-            this.sample = sample;
-            this.conditionVariable = conditionVariable;
             this.readSampleBuffer = readSampleBuffer;
         }
     }
 
+    /**
+     * Serialized samples of a track which are written to a {@link SampleChunk} at once.
+     */
+    private static class WriteBatch {
+        private final int index;
+        // The start position of the SampleChunk to create before writing this batch,
+        // or NO_NEW_CHUNK if this batch is appended to the current SampleChunk.
+        private final long newChunkPositionUs;
+        private final long createdTimeMs = SystemClock.elapsedRealtime();
+        private final ArrayList<ByteBuffer> blocks = new ArrayList<>();
+        private long size;
+        private long maxKeyFrameTimeUs;
+        // The key frames to add to KeyframeIndex, with their offsets in this batch.
+        private long[] keyFrameTimesUs;
+        private int[] keyFrameOffsets;
+        private int[] keyFrameFlags;
+        private int keyFrameCount;
+
+        private WriteBatch(int index, long newChunkPositionUs) {
+            this.index = index;
+            this.newChunkPositionUs = newChunkPositionUs;
+        }
+
+        private void addKeyFrame(long timeUs, int flags) {
+            if (keyFrameTimesUs == null) {
+                keyFrameTimesUs = new long[4];
+                keyFrameOffsets = new int[4];
+                keyFrameFlags = new int[4];
+            } else if (keyFrameCount == keyFrameTimesUs.length) {
+                keyFrameTimesUs = Arrays.copyOf(keyFrameTimesUs, keyFrameCount * 2);
+                keyFrameOffsets = Arrays.copyOf(keyFrameOffsets, keyFrameCount * 2);
+                keyFrameFlags = Arrays.copyOf(keyFrameFlags, keyFrameCount * 2);
+            }
+            keyFrameTimesUs[keyFrameCount] = timeUs;
+            keyFrameOffsets[keyFrameCount] = (int) size;
+            keyFrameFlags[keyFrameCount] = flags;
+            ++keyFrameCount;
+        }
+    }
+
     /**
      * Creates {@link SampleChunk} I/O handler.
      *
@@ -119,23 +220,61 @@ public class SampleChunkIoHelper implements Handler.Callback {
     public SampleChunkIoHelper(List<String> ids, List<MediaFormat> mediaFormats,
             @BufferReason int bufferReason, BufferManager bufferManager, SamplePool samplePool,
             IoCallback ioCallback) {
+        this(ids, mediaFormats, bufferReason, bufferManager, samplePool, ioCallback, false);
+    }
+
+    /**
+     * Creates {@link SampleChunk} I/O handler.
+     *
+     * @param ids track names
+     * @param mediaFormats {@link android.media.MediaFormat} for each track
+     * @param bufferReason reason to be buffered
+     * @param bufferManager manager of {@link SampleChunk} collections
+     * @param samplePool allocator for a sample
+     * @param ioCallback listeners for I/O events
+     * @param parallelRead {@code true} to read each track on its own read lane, which is
+     *        supported only for {@link RecordingSampleBuffer#BUFFER_REASON_RECORDED_PLAYBACK}
+     */
+    public SampleChunkIoHelper(List<String> ids, List<MediaFormat> mediaFormats,
+            @BufferReason int bufferReason, BufferManager bufferManager, SamplePool samplePool,
+            IoCallback ioCallback, boolean parallelRead) {
+        if (parallelRead && bufferReason != RecordingSampleBuffer.BUFFER_REASON_RECORDED_PLAYBACK) {
+            throw new IllegalArgumentException("Parallel read is only for recorded playback");
+        }
+        mParallelRead = parallelRead;
         mTrackCount = ids.size();
         mIds = ids;
         mMediaFormats = mediaFormats;
         mBufferReason = bufferReason;
         mBufferManager = bufferManager;
+        mReadAheadPolicy = bufferManager.getReadAheadPolicy();
+        mBufferingPolicy = bufferManager.getBufferingPolicy();
         mSamplePool = samplePool;
         mIoCallback = ioCallback;
 
         mReadSampleBuffers = new ConcurrentLinkedQueue[mTrackCount];
         mHandlerReadSampleBuffers = new ConcurrentLinkedQueue[mTrackCount];
         mWriteEndPositionUs = new long[mTrackCount];
+        mStagingBatches = new WriteBatch[mTrackCount];
         mReadIoStates = new SampleChunk.IoState[mTrackCount];
         mWriteIoStates = new SampleChunk.IoState[mTrackCount];
+        mLastReadTimeUs = new long[mTrackCount];
+        mReadIntervalUs = new long[mTrackCount];
+        mPrefetchIoStates = new SampleChunk.IoState[mTrackCount];
+        mPrefetchedSamples = new SampleHolder[mTrackCount];
+        mPrefetchOffsets = new long[mTrackCount];
+        mLastIndexedTimeUs = new long[mTrackCount];
+        mIsCaptionTrack = new boolean[mTrackCount];
         for (int i = 0; i < mTrackCount; ++i) {
             mWriteEndPositionUs[i] = RecordingSampleBuffer.CHUNK_DURATION_US;
             mReadIoStates[i] = new SampleChunk.IoState();
             mWriteIoStates[i] = new SampleChunk.IoState();
+            mLastReadTimeUs[i] = C.UNKNOWN_TIME_US;
+            mPrefetchIoStates[i] = new SampleChunk.IoState();
+            mLastIndexedTimeUs[i] = C.UNKNOWN_TIME_US;
+            String mimeType = mediaFormats.get(i).mimeType;
+            mIsCaptionTrack[i] = MimeTypes.isText(mimeType)
+                    || MimeTypes.APPLICATION_EIA608.equals(mimeType);
         }
     }
 
@@ -148,6 +287,19 @@ public class SampleChunkIoHelper implements Handler.Callback {
         HandlerThread handlerThread = new HandlerThread(TAG);
         handlerThread.start();
         mIoHandler = new Handler(handlerThread.getLooper(), this);
+        mReadHandlers = new Handler[mTrackCount];
+        if (mParallelRead) {
+            // The chunks of the recording are loaded before the lanes start, and are not
+            // changed while they are read.
+            mReadLaneScheduler = new ReadLaneScheduler(mTrackCount);
+            for (int i = 0; i < mTrackCount; ++i) {
+                HandlerThread laneThread = new HandlerThread(TAG + "-read-" + i);
+                laneThread.start();
+                mReadHandlers[i] = new Handler(laneThread.getLooper(), this);
+            }
+        } else {
+            Arrays.fill(mReadHandlers, mIoHandler);
+        }
         if (mBufferReason == RecordingSampleBuffer.BUFFER_REASON_RECORDED_PLAYBACK) {
             for (int i = 0; i < mTrackCount; ++i) {
                 mBufferManager.loadTrackFromStorage(mIds.get(i), mSamplePool);
@@ -168,26 +320,96 @@ public class SampleChunkIoHelper implements Handler.Callback {
      */
     public SampleHolder readSample(int index) {
         SampleHolder sample = mReadSampleBuffers[index].poll();
-        mIoHandler.sendMessage(mIoHandler.obtainMessage(MSG_READ, index));
+        Handler handler = mReadHandlers[index];
+        handler.sendMessage(handler.obtainMessage(MSG_READ, index));
         return sample;
     }
 
     /**
-     * Writes a sample.
+     * Returns whether the samples which are waiting to be written are few enough to stage more.
+     * The writer should hold off writing while this returns {@code false}, instead of blocking
+     * on the I/O thread.
+     */
+    public boolean canWriteSample() {
+        return mPendingWriteBytes.get() <= MAX_PENDING_WRITE_BYTES;
+    }
+
+    /**
+     * Writes a sample. The sample is copied into a staging batch, so it can be reused as soon as
+     * this returns.
      *
      * @param index track index
      * @param sample to write
-     * @param conditionVariable which will be wait until the write is finished
      * @throws IOException
      */
-    public void writeSample(int index, SampleHolder sample,
-            ConditionVariable conditionVariable) throws IOException {
+    public void writeSample(int index, SampleHolder sample) throws IOException {
         if (mErrorNotified) {
             throw new IOException("Storage I/O error happened");
         }
-        conditionVariable.close();
-        IoParams params = new IoParams(index, 0, sample, conditionVariable, null);
-        mIoHandler.sendMessage(mIoHandler.obtainMessage(MSG_WRITE, params));
+        if (mIsCaptionTrack[index] && mBufferingPolicy.isCaptionTrackDropped()
+                && mBufferReason == RecordingSampleBuffer.BUFFER_REASON_LIVE_PLAYBACK) {
+            // Drops the sample to save the disk bandwidth for the audio and the video.
+            return;
+        }
+        boolean isKeyFrame = (sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        synchronized (mStagingLock) {
+            WriteBatch batch = mStagingBatches[index];
+            boolean startsChunk = isKeyFrame && sample.timeUs >= mWriteEndPositionUs[index];
+            if (startsChunk) {
+                // The sample starts a new chunk.
+                flushLocked(index);
+                batch = startBatchLocked(index, mWriteEndPositionUs[index]);
+                mWriteEndPositionUs[index] =
+                        ((sample.timeUs / RecordingSampleBuffer.CHUNK_DURATION_US) + 1) *
+                                RecordingSampleBuffer.CHUNK_DURATION_US;
+            } else if (batch == null) {
+                batch = startBatchLocked(index, NO_NEW_CHUNK);
+            }
+            if (isKeyFrame && sample.timeUs > batch.maxKeyFrameTimeUs) {
+                batch.maxKeyFrameTimeUs = sample.timeUs;
+            }
+            if (isKeyFrame && (startsChunk || mLastIndexedTimeUs[index] == C.UNKNOWN_TIME_US
+                    || sample.timeUs - mLastIndexedTimeUs[index]
+                            >= MIN_KEY_FRAME_INDEX_INTERVAL_US)) {
+                batch.addKeyFrame(sample.timeUs, sample.flags);
+                mLastIndexedTimeUs[index] = sample.timeUs;
+            }
+            mHeaderBuffer.clear();
+            mHeaderBuffer.putInt(sample.size).putInt(sample.flags).putLong(sample.timeUs).flip();
+            stage(batch, mHeaderBuffer);
+            sample.data.position(0).limit(sample.size);
+            stage(batch, sample.data);
+            long stagedSize = SampleChunk.SAMPLE_HEADER_LENGTH + sample.size;
+            batch.size += stagedSize;
+            mPendingWriteBytes.addAndGet(stagedSize);
+            if (batch.size >= mBufferingPolicy.getFlushSizeBytes()) {
+                flushLocked(index);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of key frames which were prefetched for trickplay seeks.
+     */
+    public int getPrefetchCount() {
+        return mPrefetchCount.get();
+    }
+
+    /**
+     * Returns the ratio of the prefetched key frames which were used by the following seeks,
+     * or {@code 0} if no prefetched key frame was used or discarded yet.
+     */
+    public float getPrefetchHitRate() {
+        int hits = mPrefetchHitCount.get();
+        int total = hits + mPrefetchMissCount.get();
+        return total == 0 ? 0 : (float) hits / total;
+    }
+
+    /**
+     * Returns whether the write bandwidth was measured to be slow since the last call.
+     */
+    public boolean isWriteSlow() {
+        return mWriteSlow.getAndSet(false);
     }
 
     /**
@@ -199,14 +421,16 @@ public class SampleChunkIoHelper implements Handler.Callback {
     public void openRead(int index, long positionUs) {
         // Old mReadSampleBuffers may have a pending read.
         mReadSampleBuffers[index] = new ConcurrentLinkedQueue<>();
-        IoParams params = new IoParams(index, positionUs, null, null, mReadSampleBuffers[index]);
-        mIoHandler.sendMessage(mIoHandler.obtainMessage(MSG_OPEN_READ, params));
+        IoParams params = new IoParams(index, positionUs, mReadSampleBuffers[index]);
+        Handler handler = mReadHandlers[index];
+        handler.sendMessage(handler.obtainMessage(MSG_OPEN_READ, params));
     }
 
     /**
      * Notifies writes are finished.
      */
     public void closeWrite() {
+        flushAll();
         mIoHandler.sendEmptyMessage(MSG_CLOSE_WRITE);
     }
 
@@ -218,10 +442,23 @@ public class SampleChunkIoHelper implements Handler.Callback {
         if (mIoHandler == null) {
             return;
         }
-        // Finishes all I/O operations.
+        // Finishes all I/O operations including the staged writes.
+        flushAll();
         ConditionVariable conditionVariable = new ConditionVariable();
         mIoHandler.sendMessage(mIoHandler.obtainMessage(MSG_RELEASE, conditionVariable));
         conditionVariable.block();
+        if (mParallelRead) {
+            // Waits for the reads in progress, since mFinished stops only the following ones.
+            for (Handler handler : mReadHandlers) {
+                ConditionVariable laneFinished = new ConditionVariable();
+                handler.post(laneFinished::open);
+                laneFinished.block();
+            }
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Prefetched " + getPrefetchCount() + " key frames, hit rate "
+                    + getPrefetchHitRate());
+        }
 
         for (int i = 0; i < mTrackCount; ++i) {
             mBufferManager.unregisterChunkEvictedListener(mIds.get(i));
@@ -248,6 +485,11 @@ public class SampleChunkIoHelper implements Handler.Callback {
         } finally {
             mBufferManager.release();
             mIoHandler.getLooper().quitSafely();
+            if (mParallelRead) {
+                for (Handler handler : mReadHandlers) {
+                    handler.getLooper().quitSafely();
+                }
+            }
         }
     }
 
@@ -272,9 +514,15 @@ public class SampleChunkIoHelper implements Handler.Callback {
                     doRead((int) message.obj);
                     return true;
                 case MSG_WRITE:
-                    doWrite((IoParams) message.obj);
+                    doWrite((WriteBatch) message.obj);
                     // Since only write will increase storage, eviction will be handled here.
                     return true;
+                case MSG_FLUSH:
+                    doFlush((WriteBatch) message.obj);
+                    return true;
+                case MSG_PREFETCH:
+                    doPrefetch((int) message.obj);
+                    return true;
                 case MSG_RELEASE:
                     doRelease((ConditionVariable) message.obj);
                     return true;
@@ -290,7 +538,8 @@ public class SampleChunkIoHelper implements Handler.Callback {
 
     private void doOpenRead(IoParams params) throws IOException {
         int index = params.index;
-        mIoHandler.removeMessages(MSG_READ, index);
+        Handler handler = mReadHandlers[index];
+        handler.removeMessages(MSG_READ, index);
         SampleChunk chunk = mBufferManager.getReadFile(mIds.get(index), params.positionUs);
         if (chunk == null) {
             String errorMessage = "Chunk ID:" + mIds.get(index) + " pos:" + params.positionUs
@@ -298,7 +547,22 @@ public class SampleChunkIoHelper implements Handler.Callback {
             SoftPreconditions.checkNotNull(chunk, TAG, errorMessage);
             throw new IOException(errorMessage);
         }
-        mReadIoStates[index].openRead(chunk);
+        long offset = mBufferManager.getReadOffset(mIds.get(index), chunk, params.positionUs);
+        SampleHolder prefetchedSample = null;
+        if (mPrefetchedSamples[index] != null && mPrefetchIoStates[index].isAt(chunk)
+                && mPrefetchOffsets[index] == offset) {
+            // The prefetch IoState already read the key frame to start from.
+            SampleChunk.IoState readIoState = mReadIoStates[index];
+            mReadIoStates[index] = mPrefetchIoStates[index];
+            mPrefetchIoStates[index] = readIoState;
+            readIoState.closeRead();
+            prefetchedSample = mPrefetchedSamples[index];
+            mPrefetchedSamples[index] = null;
+            mPrefetchHitCount.incrementAndGet();
+        } else {
+            discardPrefetch(index);
+            mReadIoStates[index].openRead(chunk, offset);
+        }
         if (mHandlerReadSampleBuffers[index] != null) {
             SampleHolder sample;
             while ((sample = mHandlerReadSampleBuffers[index].poll()) != null) {
@@ -306,7 +570,79 @@ public class SampleChunkIoHelper implements Handler.Callback {
             }
         }
         mHandlerReadSampleBuffers[index] = params.readSampleBuffer;
-        mIoHandler.sendMessage(mIoHandler.obtainMessage(MSG_READ, index));
+        mLastReadTimeUs[index] = C.UNKNOWN_TIME_US;
+        if (mReadLaneScheduler != null) {
+            mReadLaneScheduler.onOpen(index, params.positionUs);
+        }
+        if (prefetchedSample != null) {
+            onSampleRead(index, prefetchedSample);
+        }
+        handler.sendMessage(handler.obtainMessage(MSG_READ, index));
+        if (mReadAheadPolicy.getNextSeekPositionUs() != C.UNKNOWN_TIME_US) {
+            // Prefetches after the read for the current seek.
+            handler.sendMessage(handler.obtainMessage(MSG_PREFETCH, index));
+        }
+    }
+
+    private void doPrefetch(int index) throws IOException {
+        long positionUs = mReadAheadPolicy.getNextSeekPositionUs();
+        if (positionUs == C.UNKNOWN_TIME_US || mHandlerReadSampleBuffers[index] == null) {
+            return;
+        }
+        SampleChunk chunk = mBufferManager.getReadFile(mIds.get(index), positionUs);
+        if (chunk == null || mReadIoStates[index].isAt(chunk)
+                || mPrefetchIoStates[index].isAt(chunk)) {
+            return;
+        }
+        discardPrefetch(index);
+        long offset = mBufferManager.getReadOffset(mIds.get(index), chunk, positionUs);
+        mPrefetchIoStates[index].openRead(chunk, offset);
+        // Since a chunk starts with a key frame and the offset is of a key frame, the first
+        // sample is the key frame to render.
+        SampleHolder sample = mPrefetchIoStates[index].read();
+        if (sample == null) {
+            mPrefetchIoStates[index].closeRead();
+            return;
+        }
+        mPrefetchedSamples[index] = sample;
+        mPrefetchOffsets[index] = offset;
+        mPrefetchCount.incrementAndGet();
+    }
+
+    private void discardPrefetch(int index) throws IOException {
+        if (mPrefetchedSamples[index] != null) {
+            mSamplePool.releaseSample(mPrefetchedSamples[index]);
+            mPrefetchedSamples[index] = null;
+            mPrefetchMissCount.incrementAndGet();
+        }
+        mPrefetchIoStates[index].closeRead();
+    }
+
+    private void onSampleRead(int index, SampleHolder sample) {
+        long intervalUs = sample.timeUs - mLastReadTimeUs[index];
+        if (mLastReadTimeUs[index] != C.UNKNOWN_TIME_US && intervalUs > 0
+                && intervalUs < MAX_SAMPLE_INTERVAL_US) {
+            mReadIntervalUs[index] = mReadIntervalUs[index] == 0 ? intervalUs
+                    : (mReadIntervalUs[index] * 7 + intervalUs) / 8;
+        }
+        mLastReadTimeUs[index] = sample.timeUs;
+        if (mReadLaneScheduler != null) {
+            mReadLaneScheduler.onSampleRead(index, sample.timeUs);
+        }
+        mHandlerReadSampleBuffers[index].offer(sample);
+    }
+
+    private boolean isReadAheadFull(int index) {
+        int size = mHandlerReadSampleBuffers[index].size();
+        if (size < MIN_READ_BUFFER_SAMPLES) {
+            return false;
+        }
+        if (size >= MAX_READ_BUFFER_SAMPLES || mReadIntervalUs[index] == 0) {
+            return true;
+        }
+        long readAheadDurationUs =
+                mReadAheadPolicy.getReadAheadDurationUs(mBufferManager.getWriteBandwidth());
+        return size * mReadIntervalUs[index] >= readAheadDurationUs;
     }
 
     private void doOpenWrite(int index) throws IOException {
@@ -315,14 +651,27 @@ public class SampleChunkIoHelper implements Handler.Callback {
     }
 
     private void doRead(int index) throws IOException {
-        mIoHandler.removeMessages(MSG_READ, index);
-        if (mHandlerReadSampleBuffers[index].size() >= MAX_READ_BUFFER_SAMPLES) {
+        Handler handler = mReadHandlers[index];
+        handler.removeMessages(MSG_READ, index);
+        boolean readAheadFull = isReadAheadFull(index);
+        long nowMs = SystemClock.elapsedRealtime();
+        if (mReadLaneScheduler != null) {
+            mReadLaneScheduler.onRequest(index, !readAheadFull, nowMs);
+        }
+        if (readAheadFull) {
             // If enough samples are buffered, try again few moments later hoping that
             // buffered samples are consumed.
-            mIoHandler.sendMessageDelayed(
-                    mIoHandler.obtainMessage(MSG_READ, index), READ_RESCHEDULING_DELAY_MS);
+            handler.sendMessageDelayed(handler.obtainMessage(MSG_READ, index),
+                    mReadAheadPolicy.getReadReschedulingDelayMs());
         } else {
             if (mReadIoStates[index].isReadFinished()) {
+                if (mReadLaneScheduler != null) {
+                    // The other lanes are on their own threads.
+                    if (mReadLaneScheduler.onReadFinished(index)) {
+                        mIoCallback.onIoReachedEos();
+                    }
+                    return;
+                }
                 for (int i = 0; i < mTrackCount; ++i) {
                     if (!mReadIoStates[i].isReadFinished()) {
                         return;
@@ -331,45 +680,135 @@ public class SampleChunkIoHelper implements Handler.Callback {
                 mIoCallback.onIoReachedEos();
                 return;
             }
+            if (mReadLaneScheduler != null && mReadLaneScheduler.shouldYield(index, nowMs)) {
+                // Lets the lanes which are behind use the storage first.
+                handler.sendMessageDelayed(handler.obtainMessage(MSG_READ, index),
+                        ReadLaneScheduler.YIELD_DELAY_MS);
+                return;
+            }
             SampleHolder sample = mReadIoStates[index].read();
             if (sample != null) {
-                mHandlerReadSampleBuffers[index].offer(sample);
+                onSampleRead(index, sample);
             } else {
                 // Read reached write but write is not finished yet --- wait a few moments to
                 // see if another sample is written.
-                mIoHandler.sendMessageDelayed(
-                        mIoHandler.obtainMessage(MSG_READ, index),
-                        READ_RESCHEDULING_DELAY_MS);
+                handler.sendMessageDelayed(
+                        handler.obtainMessage(MSG_READ, index),
+                        mReadAheadPolicy.getReadReschedulingDelayMs());
             }
         }
     }
 
-    private void doWrite(IoParams params) throws IOException {
+    private void doWrite(WriteBatch batch) throws IOException {
         try {
             if (mWriteEnded) {
                 SoftPreconditions.checkState(false);
                 return;
             }
-            int index = params.index;
-            SampleHolder sample = params.sample;
+            if (batch.maxKeyFrameTimeUs > mBufferDurationUs) {
+                mBufferDurationUs = batch.maxKeyFrameTimeUs;
+            }
             SampleChunk nextChunk = null;
-            if ((sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
-                if (sample.timeUs > mBufferDurationUs) {
-                    mBufferDurationUs = sample.timeUs;
+            if (batch.newChunkPositionUs != NO_NEW_CHUNK) {
+                nextChunk = mBufferManager.createNewWriteFile(mIds.get(batch.index),
+                        batch.newChunkPositionUs, mSamplePool);
+            }
+            ByteBuffer[] buffers = new ByteBuffer[batch.blocks.size()];
+            for (int i = 0; i < buffers.length; ++i) {
+                buffers[i] = batch.blocks.get(i);
+                buffers[i].flip();
+            }
+            long writeStartTimeNs = SystemClock.elapsedRealtimeNanos();
+            SampleChunk.IoState writeIoState = mWriteIoStates[batch.index];
+            writeIoState.write(buffers, batch.size, nextChunk);
+            // Measures the bandwidth by the actual writes, rather than by the staging.
+            mBufferManager.addWriteStat(batch.size,
+                    SystemClock.elapsedRealtimeNanos() - writeStartTimeNs);
+            KeyframeIndex keyframeIndex = mBufferManager.getKeyframeIndex(mIds.get(batch.index));
+            if (keyframeIndex != null && batch.keyFrameCount > 0) {
+                // Indexes the key frames only after they are written, so that a seek never goes
+                // beyond the written samples.
+                long batchOffset = writeIoState.getOffset() - batch.size;
+                long chunkPositionUs = writeIoState.getStartPositionUs();
+                for (int i = 0; i < batch.keyFrameCount; ++i) {
+                    keyframeIndex.add(batch.keyFrameTimesUs[i], chunkPositionUs,
+                            (int) (batchOffset + batch.keyFrameOffsets[i]),
+                            batch.keyFrameFlags[i]);
                 }
+                keyframeIndex.flush();
+            }
+            if (mBufferManager.isWriteSlow()) {
+                mWriteSlow.set(true);
+            }
+        } finally {
+            recycle(batch);
+        }
+    }
+
+    private void doFlush(WriteBatch batch) throws IOException {
+        synchronized (mStagingLock) {
+            if (mStagingBatches[batch.index] != batch) {
+                // The batch was already flushed.
+                return;
+            }
+            mStagingBatches[batch.index] = null;
+        }
+        doWrite(batch);
+    }
+
+    private WriteBatch startBatchLocked(int index, long newChunkPositionUs) {
+        WriteBatch batch = new WriteBatch(index, newChunkPositionUs);
+        mStagingBatches[index] = batch;
+        mIoHandler.sendMessageDelayed(mIoHandler.obtainMessage(MSG_FLUSH, batch),
+                mBufferingPolicy.getFlushAgeMs());
+        return batch;
+    }
+
+    private void flushLocked(int index) {
+        WriteBatch batch = mStagingBatches[index];
+        if (batch != null) {
+            mStagingBatches[index] = null;
+            mIoHandler.removeMessages(MSG_FLUSH, batch);
+            mIoHandler.sendMessage(mIoHandler.obtainMessage(MSG_WRITE, batch));
+        }
+    }
 
-                if (sample.timeUs >= mWriteEndPositionUs[index]) {
-                    nextChunk = mBufferManager.createNewWriteFile(mIds.get(index),
-                            mWriteEndPositionUs[index], mSamplePool);
-                    mWriteEndPositionUs[index] =
-                            ((sample.timeUs / RecordingSampleBuffer.CHUNK_DURATION_US) + 1) *
-                                    RecordingSampleBuffer.CHUNK_DURATION_US;
+    private void flushAll() {
+        if (mIoHandler == null) {
+            return;
+        }
+        synchronized (mStagingLock) {
+            for (int i = 0; i < mTrackCount; ++i) {
+                flushLocked(i);
+            }
+        }
+    }
+
+    private void stage(WriteBatch batch, ByteBuffer src) {
+        int blockCount = batch.blocks.size();
+        ByteBuffer block = blockCount == 0 ? null : batch.blocks.get(blockCount - 1);
+        while (src.hasRemaining()) {
+            if (block == null || !block.hasRemaining()) {
+                block = mFreeBlocks.poll();
+                if (block == null) {
+                    block = ByteBuffer.allocateDirect(STAGING_BLOCK_SIZE);
                 }
+                batch.blocks.add(block);
             }
-            mWriteIoStates[params.index].write(params.sample, nextChunk);
-        } finally {
-            params.conditionVariable.open();
+            int limit = src.limit();
+            src.limit(src.position() + Math.min(block.remaining(), src.remaining()));
+            block.put(src);
+            src.limit(limit);
+        }
+    }
+
+    private void recycle(WriteBatch batch) {
+        for (ByteBuffer block : batch.blocks) {
+            block.clear();
+            mFreeBlocks.offer(block);
         }
+        batch.blocks.clear();
+        mPendingWriteBytes.addAndGet(-batch.size);
     }
 
     private void doCloseWrite() throws IOException {
@@ -389,6 +828,11 @@ public class SampleChunkIoHelper implements Handler.Callback {
 
     private void doRelease(ConditionVariable conditionVariable) {
         mIoHandler.removeCallbacksAndMessages(null);
+        if (mParallelRead) {
+            for (Handler handler : mReadHandlers) {
+                handler.removeCallbacksAndMessages(null);
+            }
+        }
         mFinished = true;
         conditionVariable.open();
     }
@@ -400,6 +844,10 @@ public class SampleChunkIoHelper implements Handler.Callback {
         for (int i = 0; i < mTrackCount; ++i) {
             long evictEndPositionUs = Math.min(mBufferManager.getStartPositionUs(mIds.get(i)),
                     mReadIoStates[i].getStartPositionUs());
+            if (!mPrefetchIoStates[i].isReadFinished()) {
+                evictEndPositionUs = Math.min(evictEndPositionUs,
+                        mPrefetchIoStates[i].getStartPositionUs());
+            }
             mBufferManager.evictChunks(mIds.get(i), evictEndPositionUs);
         }
     }
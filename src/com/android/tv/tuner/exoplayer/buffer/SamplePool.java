@@ -16,56 +16,344 @@
 
 package com.android.tv.tuner.exoplayer.buffer;
 
+import android.content.ComponentCallbacks2;
+import android.support.annotation.VisibleForTesting;
+
 import com.google.android.exoplayer.SampleHolder;
+import com.android.tv.common.MemoryManageable;
 
-import java.util.LinkedList;
+import java.io.PrintWriter;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Pool of samples to recycle ByteBuffers as much as possible.
+ *
+ * <p>The buffers are kept in power-of-two size classes. A sample is taken from the class which is
+ * large enough for the requested size, so no buffer has to be searched for or resized, and is
+ * returned to the largest class which its buffer can fill. Each class is a fixed array of slots
+ * which are claimed by compare-and-set, so the IO, the extractor and the renderer threads don't
+ * block each other, and neither acquiring nor releasing allocates. The pool keeps at most a given
+ * number of bytes, and all the pools of the process keep at most {@link #MAX_TOTAL_POOLED_BYTES}
+ * together. The buffers over them are dropped to the garbage collector.
  */
-public class SamplePool {
-    private final LinkedList<SampleHolder> mSamplePool = new LinkedList<>();
+public class SamplePool implements MemoryManageable {
+    private static final int MIN_SIZE_CLASS_SHIFT = 8;
+    private static final int MAX_SIZE_CLASS_SHIFT = 22;
+    private static final int SIZE_CLASS_COUNT = MAX_SIZE_CLASS_SHIFT - MIN_SIZE_CLASS_SHIFT + 1;
+    private static final int MAX_SLOTS_PER_CLASS = 64;
+
+    /**
+     * The default maximum number of bytes which are kept in a pool.
+     */
+    public static final long DEFAULT_MAX_POOLED_BYTES = 8L * 1024 * 1024;
+
+    /**
+     * The maximum number of bytes which are kept in all the pools of the process.
+     */
+    public static final long MAX_TOTAL_POOLED_BYTES = 4 * DEFAULT_MAX_POOLED_BYTES;
+
+    // The bytes which are pooled by all the pools, including the ones which were garbage collected
+    // but not reclaimed yet.
+    private static final AtomicLong sTotalPooledBytes = new AtomicLong();
+    // The pools which are trimmed by trimAllPools().
+    // @GuardedBy("sPools")
+    private static final Set<PoolReference> sPools = new HashSet<>();
+    private static final ReferenceQueue<SamplePool> sCollectedPools = new ReferenceQueue<>();
+    // The counts of the pools which were garbage collected.
+    // @GuardedBy("sPools")
+    private static long sCollectedHitCount;
+    private static long sCollectedAllocationCount;
+    private static long sCollectedDropCount;
+
+    private final long mMaxPooledBytes;
+    private final long mMaxTotalPooledBytes;
+    private final AtomicReferenceArray<SampleHolder>[] mSizeClasses;
+    private final AtomicLong mPooledBytes = new AtomicLong();
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mAllocationCount = new AtomicLong();
+    private final AtomicLong mDropCount = new AtomicLong();
+
+    // Keeps the pooled bytes of a pool, so that they are reclaimed from the total when the pool is
+    // garbage collected, and its counts, so that they stay in the totals which are dumped.
+    private static class PoolReference extends WeakReference<SamplePool> {
+        private final AtomicLong mPooledBytes;
+        private final AtomicLong mHitCount;
+        private final AtomicLong mAllocationCount;
+        private final AtomicLong mDropCount;
+
+        private PoolReference(SamplePool pool) {
+            super(pool, sCollectedPools);
+            mPooledBytes = pool.mPooledBytes;
+            mHitCount = pool.mHitCount;
+            mAllocationCount = pool.mAllocationCount;
+            mDropCount = pool.mDropCount;
+        }
+    }
 
     /**
-     * Acquires a sample with a buffer larger than size from the pool. Allocate new one or resize
-     * an existing buffer if necessary.
+     * Trims all the pools of the process, until the pools keep at most half of
+     * {@link #MAX_TOTAL_POOLED_BYTES} together, or nothing if the memory is critically low. This
+     * can be called from {@link android.content.ComponentCallbacks2#onTrimMemory}.
      */
-    public synchronized SampleHolder acquireSample(int size) {
-        if (mSamplePool.isEmpty()) {
-            SampleHolder sample = new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
-            sample.ensureSpaceForWrite(size);
-            return sample;
-        }
-        SampleHolder smallestSufficientSample = null;
-        SampleHolder maxSample = mSamplePool.getFirst();
-        for (SampleHolder sample : mSamplePool) {
-            // Grab the smallest sufficient sample.
-            if (sample.data.capacity() >= size && (smallestSufficientSample == null
-                    || smallestSufficientSample.data.capacity() > sample.data.capacity())) {
-                smallestSufficientSample = sample;
+    public static void trimAllPools(int level) {
+        long maxTotalBytes;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            maxTotalBytes = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            maxTotalBytes = MAX_TOTAL_POOLED_BYTES / 2;
+        } else {
+            return;
+        }
+        reclaimCollectedPools();
+        List<PoolReference> references;
+        synchronized (sPools) {
+            references = new ArrayList<>(sPools);
+        }
+        for (PoolReference reference : references) {
+            long excessBytes = sTotalPooledBytes.get() - maxTotalBytes;
+            if (excessBytes <= 0) {
+                break;
+            }
+            SamplePool pool = reference.get();
+            if (pool != null) {
+                pool.trimTo(Math.max(0, pool.getPooledBytes() - excessBytes));
             }
+        }
+    }
 
-            // Grab the max size sample.
-            if (maxSample.data.capacity() < sample.data.capacity()) {
-                maxSample = sample;
+    /**
+     * Returns the number of bytes of the buffers in all the pools of the process.
+     */
+    public static long getTotalPooledBytes() {
+        reclaimCollectedPools();
+        return sTotalPooledBytes.get();
+    }
+
+    /**
+     * Dumps the totals of all the pools of the process, including the counts of the pools which
+     * were garbage collected.
+     */
+    public static void dumpAllPools(PrintWriter writer) {
+        reclaimCollectedPools();
+        int poolCount;
+        long hits;
+        long allocations;
+        long drops;
+        synchronized (sPools) {
+            poolCount = sPools.size();
+            hits = sCollectedHitCount;
+            allocations = sCollectedAllocationCount;
+            drops = sCollectedDropCount;
+            for (PoolReference reference : sPools) {
+                hits += reference.mHitCount.get();
+                allocations += reference.mAllocationCount.get();
+                drops += reference.mDropCount.get();
             }
         }
-        SampleHolder sampleFromPool = smallestSufficientSample;
+        long acquisitions = hits + allocations;
+        writer.println("Sample pools: pools=" + poolCount
+                + " pooledBytes=" + sTotalPooledBytes.get()
+                + " maxPooledBytes=" + MAX_TOTAL_POOLED_BYTES
+                + " hitRatePct=" + (acquisitions == 0 ? 0 : hits * 100 / acquisitions)
+                + " allocations=" + allocations + " drops=" + drops);
+    }
 
-        // If there's no sufficient sample, grab the maximum sample and resize it to size.
-        if (sampleFromPool == null) {
-            sampleFromPool = maxSample;
-            sampleFromPool.ensureSpaceForWrite(size);
+    private static void reclaimCollectedPools() {
+        PoolReference reference;
+        while ((reference = (PoolReference) sCollectedPools.poll()) != null) {
+            synchronized (sPools) {
+                sPools.remove(reference);
+                // No one changes the pooled bytes and the counts of a collected pool any more.
+                sCollectedHitCount += reference.mHitCount.get();
+                sCollectedAllocationCount += reference.mAllocationCount.get();
+                sCollectedDropCount += reference.mDropCount.get();
+            }
+            sTotalPooledBytes.addAndGet(-reference.mPooledBytes.get());
+        }
+    }
+
+    public SamplePool() {
+        this(DEFAULT_MAX_POOLED_BYTES);
+    }
+
+    /**
+     * Creates a pool which keeps up to the given number of bytes.
+     */
+    public SamplePool(long maxPooledBytes) {
+        this(maxPooledBytes, MAX_TOTAL_POOLED_BYTES);
+    }
+
+    /**
+     * Creates a pool which doesn't pool a buffer when all the pools keep more than
+     * {@code maxTotalPooledBytes} with it.
+     */
+    @VisibleForTesting
+    @SuppressWarnings("unchecked")
+    SamplePool(long maxPooledBytes, long maxTotalPooledBytes) {
+        mMaxPooledBytes = maxPooledBytes;
+        mMaxTotalPooledBytes = maxTotalPooledBytes;
+        mSizeClasses = new AtomicReferenceArray[SIZE_CLASS_COUNT];
+        for (int i = 0; i < SIZE_CLASS_COUNT; ++i) {
+            long classSize = 1L << (MIN_SIZE_CLASS_SHIFT + i);
+            int slotCount = (int) Math.max(1, Math.min(MAX_SLOTS_PER_CLASS,
+                    maxPooledBytes / classSize));
+            mSizeClasses[i] = new AtomicReferenceArray<>(slotCount);
+        }
+        synchronized (sPools) {
+            sPools.add(new PoolReference(this));
+        }
+    }
+
+    /**
+     * Acquires a sample with a buffer larger than size from the pool. Allocate new one if
+     * necessary.
+     */
+    public SampleHolder acquireSample(int size) {
+        int sizeClass = getSizeClassForSize(size);
+        if (sizeClass < SIZE_CLASS_COUNT) {
+            AtomicReferenceArray<SampleHolder> slots = mSizeClasses[sizeClass];
+            for (int i = 0; i < slots.length(); ++i) {
+                SampleHolder sample = slots.get(i);
+                if (sample != null && slots.compareAndSet(i, sample, null)) {
+                    addPooledBytes(-sample.data.capacity());
+                    mHitCount.incrementAndGet();
+                    return sample;
+                }
+            }
         }
-        mSamplePool.remove(sampleFromPool);
-        return sampleFromPool;
+        mAllocationCount.incrementAndGet();
+        SampleHolder sample = new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
+        // Allocates the whole class, so that the buffer can be reused for any size of the class.
+        sample.ensureSpaceForWrite(sizeClass < SIZE_CLASS_COUNT
+                ? 1 << (MIN_SIZE_CLASS_SHIFT + sizeClass) : size);
+        return sample;
     }
 
     /**
      * Releases the sample back to the pool.
      */
-    public synchronized void releaseSample(SampleHolder sample) {
+    public void releaseSample(SampleHolder sample) {
         sample.clearData();
-        mSamplePool.offerLast(sample);
+        if (sample.data == null) {
+            return;
+        }
+        int capacity = sample.data.capacity();
+        int sizeClass = getSizeClassForCapacity(capacity);
+        if (sizeClass < 0) {
+            mDropCount.incrementAndGet();
+            return;
+        }
+        if (mPooledBytes.addAndGet(capacity) > mMaxPooledBytes
+                || !reserveTotalPooledBytes(capacity)) {
+            mPooledBytes.addAndGet(-capacity);
+            mDropCount.incrementAndGet();
+            return;
+        }
+        AtomicReferenceArray<SampleHolder> slots = mSizeClasses[sizeClass];
+        for (int i = 0; i < slots.length(); ++i) {
+            if (slots.get(i) == null && slots.compareAndSet(i, null, sample)) {
+                return;
+            }
+        }
+        addPooledBytes(-capacity);
+        mDropCount.incrementAndGet();
+    }
+
+    private boolean reserveTotalPooledBytes(int capacity) {
+        if (sTotalPooledBytes.addAndGet(capacity) <= mMaxTotalPooledBytes) {
+            return true;
+        }
+        sTotalPooledBytes.addAndGet(-capacity);
+        // The pools which were garbage collected may still be counted.
+        reclaimCollectedPools();
+        if (sTotalPooledBytes.addAndGet(capacity) <= mMaxTotalPooledBytes) {
+            return true;
+        }
+        sTotalPooledBytes.addAndGet(-capacity);
+        return false;
+    }
+
+    private void addPooledBytes(long bytes) {
+        mPooledBytes.addAndGet(bytes);
+        sTotalPooledBytes.addAndGet(bytes);
+    }
+
+    @Override
+    public void performTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimTo(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimTo(mMaxPooledBytes / 2);
+        }
+    }
+
+    /**
+     * Drops pooled buffers, from the largest ones, until at most the given number of bytes are
+     * pooled.
+     */
+    public void trimTo(long maxBytes) {
+        for (int sizeClass = SIZE_CLASS_COUNT - 1; sizeClass >= 0; --sizeClass) {
+            AtomicReferenceArray<SampleHolder> slots = mSizeClasses[sizeClass];
+            for (int i = 0; i < slots.length(); ++i) {
+                if (mPooledBytes.get() <= maxBytes) {
+                    return;
+                }
+                SampleHolder sample = slots.get(i);
+                if (sample != null && slots.compareAndSet(i, sample, null)) {
+                    addPooledBytes(-sample.data.capacity());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes of the buffers in the pool.
+     */
+    public long getPooledBytes() {
+        return mPooledBytes.get();
+    }
+
+    /**
+     * Returns the ratio of the acquisitions which were served from the pool.
+     */
+    public float getHitRate() {
+        long hits = mHitCount.get();
+        long total = hits + mAllocationCount.get();
+        return total == 0 ? 0 : (float) hits / total;
+    }
+
+    /**
+     * Returns the number of buffers which were allocated since no pooled buffer was large enough.
+     */
+    public long getAllocationCount() {
+        return mAllocationCount.get();
+    }
+
+    /**
+     * Returns the number of released buffers which were not pooled, since the pool was full.
+     */
+    public long getDropCount() {
+        return mDropCount.get();
+    }
+
+    private static int getSizeClassForSize(int size) {
+        if (size <= 1 << MIN_SIZE_CLASS_SHIFT) {
+            return 0;
+        }
+        // The smallest class which is not smaller than size.
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SIZE_CLASS_SHIFT;
+    }
+
+    private static int getSizeClassForCapacity(int capacity) {
+        // The largest class which the capacity can fill, or -1 if it is too small for any.
+        int sizeClass = 31 - Integer.numberOfLeadingZeros(capacity) - MIN_SIZE_CLASS_SHIFT;
+        return Math.min(sizeClass, SIZE_CLASS_COUNT - 1);
     }
 }
@@ -19,30 +19,48 @@ package com.android.tv.tuner.exoplayer.buffer;
 import com.google.android.exoplayer.SampleHolder;
 import com.google.android.exoplayer.SampleSource;
 
-import java.util.LinkedList;
-
 /**
  * A sample queue which reads from the buffer and passes to player pipeline.
+ *
+ * <p>The samples are kept in a ring array which grows only when it is full, so queuing a sample
+ * doesn't allocate once the queue has reached its usual depth.
  */
 public class SampleQueue {
-    private final LinkedList<SampleHolder> mQueue = new LinkedList<>();
+    /**
+     * Returned by {@link #getLastQueuedPositionUs} when no sample has been queued. Since it is
+     * smaller than any position, a position is always after it.
+     */
+    public static final long NO_POSITION_US = Long.MIN_VALUE;
+
+    private static final int INITIAL_CAPACITY = 16;
+
     private final SamplePool mSamplePool;
-    private Long mLastQueuedPositionUs = null;
+    private SampleHolder[] mSamples = new SampleHolder[INITIAL_CAPACITY];
+    private int mHead;
+    private int mSize;
+    private long mLastQueuedPositionUs = NO_POSITION_US;
 
     public SampleQueue(SamplePool samplePool) {
         mSamplePool = samplePool;
     }
 
     public void queueSample(SampleHolder sample) {
-        mQueue.offer(sample);
+        if (mSize == mSamples.length) {
+            grow();
+        }
+        mSamples[(mHead + mSize) % mSamples.length] = sample;
+        ++mSize;
         mLastQueuedPositionUs = sample.timeUs;
     }
 
     public int dequeueSample(SampleHolder sample) {
-        SampleHolder sampleFromQueue = mQueue.poll();
-        if (sampleFromQueue == null) {
+        if (mSize == 0) {
             return SampleSource.NOTHING_READ;
         }
+        SampleHolder sampleFromQueue = mSamples[mHead];
+        mSamples[mHead] = null;
+        mHead = (mHead + 1) % mSamples.length;
+        --mSize;
         sample.size = sampleFromQueue.size;
         sample.flags = sampleFromQueue.flags;
         sample.timeUs = sampleFromQueue.timeUs;
@@ -54,21 +72,38 @@ public class SampleQueue {
     }
 
     public void clear() {
-        while (!mQueue.isEmpty()) {
-            mSamplePool.releaseSample(mQueue.poll());
+        while (mSize > 0) {
+            mSamplePool.releaseSample(mSamples[mHead]);
+            mSamples[mHead] = null;
+            mHead = (mHead + 1) % mSamples.length;
+            --mSize;
         }
-        mLastQueuedPositionUs = null;
+        mHead = 0;
+        mLastQueuedPositionUs = NO_POSITION_US;
     }
 
-    public Long getLastQueuedPositionUs() {
+    /**
+     * Returns the position of the last sample which was queued since the last {@link #clear},
+     * or {@link #NO_POSITION_US} if there is none.
+     */
+    public long getLastQueuedPositionUs() {
         return mLastQueuedPositionUs;
     }
 
     public boolean isDurationGreaterThan(long durationUs) {
-        return !mQueue.isEmpty() && mQueue.getLast().timeUs - mQueue.getFirst().timeUs > durationUs;
+        return mSize > 0 && mLastQueuedPositionUs - mSamples[mHead].timeUs > durationUs;
     }
 
     public boolean isEmpty() {
-        return mQueue.isEmpty();
+        return mSize == 0;
+    }
+
+    private void grow() {
+        SampleHolder[] samples = new SampleHolder[mSamples.length * 2];
+        int firstPart = Math.min(mSize, mSamples.length - mHead);
+        System.arraycopy(mSamples, mHead, samples, 0, firstPart);
+        System.arraycopy(mSamples, 0, samples, firstPart, mSize - firstPart);
+        mSamples = samples;
+        mHead = 0;
     }
 }
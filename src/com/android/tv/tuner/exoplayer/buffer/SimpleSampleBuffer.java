@@ -16,8 +16,6 @@
 
 package com.android.tv.tuner.exoplayer.buffer;
 
-import android.os.ConditionVariable;
-
 import android.support.annotation.NonNull;
 import com.google.android.exoplayer.C;
 import com.google.android.exoplayer.MediaFormat;
@@ -28,21 +26,42 @@ import com.android.tv.tuner.exoplayer.SampleExtractor;
 
 import java.io.IOException;
 import java.util.List;
-
-import junit.framework.Assert;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handles I/O for {@link SampleExtractor} when
  * physical storage based buffer is not used. Trickplay is disabled.
+ *
+ * <p>The samples of each track are handed from the extractor to the player through a
+ * {@link SpscSampleQueue}, so neither side blocks the other. The extractor is allowed to run
+ * ahead of the player by up to a given duration of samples.
  */
 public class SimpleSampleBuffer implements BufferManager.SampleBuffer {
+    /**
+     * The default duration by which the written samples can be ahead of the read samples.
+     */
+    public static final long DEFAULT_WRITE_AHEAD_BUDGET_US = TimeUnit.SECONDS.toMicros(5);
+
+    // Enough for the write-ahead budget of 60 fps video.
+    private static final int QUEUE_CAPACITY = 512;
+
     private final SamplePool mSamplePool = new SamplePool();
-    private SampleQueue[] mPlayingSampleQueues;
+    private final long mWriteAheadBudgetUs;
+    private volatile SpscSampleQueue[] mPlayingSampleQueues;
     private long mLastBufferedPositionUs = C.UNKNOWN_TIME_US;
 
     private volatile boolean mEos;
 
     public SimpleSampleBuffer(PlaybackBufferListener bufferListener) {
+        this(bufferListener, DEFAULT_WRITE_AHEAD_BUDGET_US);
+    }
+
+    /**
+     * @param writeAheadBudgetUs the duration by which the written samples of a track can be ahead
+     *                           of the read samples
+     */
+    public SimpleSampleBuffer(PlaybackBufferListener bufferListener, long writeAheadBudgetUs) {
+        mWriteAheadBudgetUs = writeAheadBudgetUs;
         if (bufferListener != null) {
             // Disables trickplay.
             bufferListener.onBufferStateChanged(false);
@@ -53,10 +72,11 @@ public class SimpleSampleBuffer implements BufferManager.SampleBuffer {
     public synchronized void init(@NonNull List<String> ids,
             @NonNull List<MediaFormat> mediaFormats) {
         int trackCount = ids.size();
-        mPlayingSampleQueues = new SampleQueue[trackCount];
+        SpscSampleQueue[] queues = new SpscSampleQueue[trackCount];
         for (int i = 0; i < trackCount; i++) {
-            mPlayingSampleQueues[i] = null;
+            queues[i] = new SpscSampleQueue(mSamplePool, QUEUE_CAPACITY);
         }
+        mPlayingSampleQueues = queues;
     }
 
     @Override
@@ -70,53 +90,44 @@ public class SimpleSampleBuffer implements BufferManager.SampleBuffer {
 
     @Override
     public void selectTrack(int index) {
-        synchronized (this) {
-            if (mPlayingSampleQueues[index] == null) {
-                mPlayingSampleQueues[index] = new SampleQueue(mSamplePool);
-            } else {
-                mPlayingSampleQueues[index].clear();
-            }
-        }
+        mPlayingSampleQueues[index].reset(true);
     }
 
     @Override
     public void deselectTrack(int index) {
-        synchronized (this) {
-            if (mPlayingSampleQueues[index] != null) {
-                mPlayingSampleQueues[index].clear();
-                mPlayingSampleQueues[index] = null;
-            }
-        }
+        mPlayingSampleQueues[index].reset(false);
     }
 
     @Override
-    public synchronized long getBufferedPositionUs() {
-        Long result = null;
-        for (SampleQueue queue : mPlayingSampleQueues) {
-            if (queue == null) {
+    public long getBufferedPositionUs() {
+        long result = SampleQueue.NO_POSITION_US;
+        for (SpscSampleQueue queue : mPlayingSampleQueues) {
+            if (!queue.isEnabled()) {
                 continue;
             }
-            Long lastQueuedSamplePositionUs = queue.getLastQueuedPositionUs();
-            if (lastQueuedSamplePositionUs == null) {
+            long lastQueuedSamplePositionUs = queue.getLastQueuedPositionUs();
+            if (lastQueuedSamplePositionUs == SampleQueue.NO_POSITION_US) {
                 // No sample has been queued.
                 result = mLastBufferedPositionUs;
                 continue;
             }
-            if (result == null || result > lastQueuedSamplePositionUs) {
+            if (result == SampleQueue.NO_POSITION_US || result > lastQueuedSamplePositionUs) {
                 result = lastQueuedSamplePositionUs;
             }
         }
-        if (result == null) {
+        if (result == SampleQueue.NO_POSITION_US) {
             return mLastBufferedPositionUs;
         }
         return (mLastBufferedPositionUs = result);
     }
 
     @Override
-    public synchronized int readSample(int track, SampleHolder sampleHolder) {
-        SampleQueue queue = mPlayingSampleQueues[track];
-        Assert.assertNotNull(queue);
-        int result = queue.dequeueSample(sampleHolder);
+    public int readSample(int track, SampleHolder sampleHolder) {
+        SpscSampleQueue queue = mPlayingSampleQueues[track];
+        if (!queue.isEnabled()) {
+            throw new IllegalStateException("Track " + track + " is not selected");
+        }
+        int result = queue.poll(sampleHolder);
         if (result != SampleSource.SAMPLE_READ && reachedEos()) {
             return SampleSource.END_OF_STREAM;
         }
@@ -124,20 +135,17 @@ public class SimpleSampleBuffer implements BufferManager.SampleBuffer {
     }
 
     @Override
-    public void writeSample(int index, SampleHolder sample,
-            ConditionVariable conditionVariable) throws IOException {
-        sample.data.position(0).limit(sample.size);
-        SampleHolder sampleToQueue = mSamplePool.acquireSample(sample.size);
-        sampleToQueue.size = sample.size;
-        sampleToQueue.clearData();
-        sampleToQueue.data.put(sample.data);
-        sampleToQueue.timeUs = sample.timeUs;
-        sampleToQueue.flags = sample.flags;
-
-        synchronized (this) {
-            if (mPlayingSampleQueues[index] != null) {
-                mPlayingSampleQueues[index].queueSample(sampleToQueue);
-            }
+    public boolean canWriteSample(int index) {
+        SpscSampleQueue queue = mPlayingSampleQueues[index];
+        return !queue.isEnabled()
+                || (!queue.isFull() && queue.getQueuedDurationUs() < mWriteAheadBudgetUs);
+    }
+
+    @Override
+    public void writeSample(int index, SampleHolder sample) throws IOException {
+        if (!mPlayingSampleQueues[index].offer(sample)) {
+            // The writer checks canWriteSample() first, so the queue can't be full.
+            throw new IllegalStateException("The sample queue of track " + index + " is full");
         }
     }
 
@@ -154,13 +162,13 @@ public class SimpleSampleBuffer implements BufferManager.SampleBuffer {
     }
 
     @Override
-    public synchronized boolean continueBuffering(long positionUs) {
-        for (SampleQueue queue : mPlayingSampleQueues) {
-            if (queue == null) {
+    public boolean continueBuffering(long positionUs) {
+        for (SpscSampleQueue queue : mPlayingSampleQueues) {
+            if (!queue.isEnabled()) {
                 continue;
             }
-            if (queue.getLastQueuedPositionUs() == null
-                    || positionUs > queue.getLastQueuedPositionUs()) {
+            // Any position is after NO_POSITION_US, when no sample has been queued.
+            if (positionUs > queue.getLastQueuedPositionUs()) {
                 // No more buffered data.
                 return false;
             }
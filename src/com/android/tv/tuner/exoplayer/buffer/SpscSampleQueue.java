@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import com.google.android.exoplayer.SampleHolder;
+import com.google.android.exoplayer.SampleSource;
+
+/**
+ * A bounded sample queue of a track between a single writer thread, which extracts the samples,
+ * and a single reader thread, which passes them to the player pipeline.
+ *
+ * <p>The samples and their positions are kept in fixed ring arrays. Each side only writes its own
+ * index, and publishes it through a volatile write after the slots are filled or emptied, so
+ * neither side takes a lock or allocates for a sample. The samples are copied from and to the
+ * holders of the callers through a {@link SamplePool}.
+ */
+class SpscSampleQueue {
+    private final SamplePool mSamplePool;
+    private final SampleHolder[] mSamples;
+    private final long[] mTimesUs;
+    private final int mMask;
+
+    // Written only by the writer.
+    private volatile long mTail;
+    private volatile long mLastQueuedPositionUs = SampleQueue.NO_POSITION_US;
+
+    // Written only by the reader.
+    private volatile long mHead;
+    private volatile long mClearedTail;
+    private volatile boolean mEnabled;
+
+    /**
+     * @param capacity the maximum number of the queued samples, which is a power of two
+     */
+    SpscSampleQueue(SamplePool samplePool, int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("The capacity should be a power of two: "
+                    + capacity);
+        }
+        mSamplePool = samplePool;
+        mSamples = new SampleHolder[capacity];
+        mTimesUs = new long[capacity];
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Copies a sample into the queue. This should be called only by the writer.
+     *
+     * @return {@code false} if the queue is full, otherwise {@code true}. The sample is dropped
+     *         if the queue is disabled.
+     */
+    boolean offer(SampleHolder sample) {
+        if (!mEnabled) {
+            return true;
+        }
+        long tail = mTail;
+        if (tail - mHead == mSamples.length) {
+            return false;
+        }
+        sample.data.position(0).limit(sample.size);
+        SampleHolder sampleToQueue = mSamplePool.acquireSample(sample.size);
+        sampleToQueue.size = sample.size;
+        sampleToQueue.clearData();
+        sampleToQueue.data.put(sample.data);
+        sampleToQueue.timeUs = sample.timeUs;
+        sampleToQueue.flags = sample.flags;
+        int index = (int) (tail & mMask);
+        mSamples[index] = sampleToQueue;
+        mTimesUs[index] = sample.timeUs;
+        mLastQueuedPositionUs = sample.timeUs;
+        mTail = tail + 1;
+        return true;
+    }
+
+    /**
+     * Returns the duration between the oldest and the newest samples in the queue. This should be
+     * called only by the writer.
+     */
+    long getQueuedDurationUs() {
+        long head = mHead;
+        if (mTail == head) {
+            return 0;
+        }
+        // The slot at the head is not overwritten until the writer wraps around to it.
+        return mLastQueuedPositionUs - mTimesUs[(int) (head & mMask)];
+    }
+
+    /**
+     * Returns whether the queue is full. This should be called only by the writer.
+     */
+    boolean isFull() {
+        return mTail - mHead == mSamples.length;
+    }
+
+    /**
+     * Moves the oldest sample into the given holder. This should be called only by the reader.
+     */
+    int poll(SampleHolder sample) {
+        long head = mHead;
+        if (head == mTail) {
+            return SampleSource.NOTHING_READ;
+        }
+        int index = (int) (head & mMask);
+        SampleHolder sampleFromQueue = mSamples[index];
+        mSamples[index] = null;
+        sample.size = sampleFromQueue.size;
+        sample.flags = sampleFromQueue.flags;
+        sample.timeUs = sampleFromQueue.timeUs;
+        sample.clearData();
+        sampleFromQueue.data.position(0).limit(sample.size);
+        sample.data.put(sampleFromQueue.data);
+        mSamplePool.releaseSample(sampleFromQueue);
+        mHead = head + 1;
+        return SampleSource.SAMPLE_READ;
+    }
+
+    /**
+     * Enables or disables the queue, and drops the queued samples. This should be called only by
+     * the reader. A disabled queue drops the offered samples.
+     */
+    void reset(boolean enabled) {
+        mEnabled = enabled;
+        long tail = mTail;
+        for (long head = mHead; head < tail; ++head) {
+            int index = (int) (head & mMask);
+            mSamplePool.releaseSample(mSamples[index]);
+            mSamples[index] = null;
+        }
+        mHead = tail;
+        mClearedTail = tail;
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Returns the position of the last sample which was queued since the last {@link #reset}, or
+     * {@link SampleQueue#NO_POSITION_US} if there is none.
+     */
+    long getLastQueuedPositionUs() {
+        return mTail == mClearedTail ? SampleQueue.NO_POSITION_US : mLastQueuedPositionUs;
+    }
+}
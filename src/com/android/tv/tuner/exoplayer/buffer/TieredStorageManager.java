@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.content.Context;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import com.android.tv.util.NamedThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Manages Trickplay storage with a memory tier in front of the storage.
+ * <p>
+ * The most recent {@link SampleChunk}s are kept in off-heap memory by {@link MemorySampleChunk},
+ * so that a short pause or rewind is served without the storage. When the memory tier exceeds its
+ * size or duration, the oldest chunks are demoted to the storage on a background thread, in the
+ * same order as {@link BufferManager} evicts chunks. Chunks which are evicted while in memory are
+ * never written to the storage, which also reduces the wear of flash storage.
+ */
+public class TieredStorageManager extends TrickplayStorageManager {
+    private static final String TAG = "TieredStorageManager";
+    private static final boolean DEBUG = false;
+
+    // Demotes the chunk which was created first, as BufferManager evicts the chunk which was
+    // created first.
+    private static final Comparator<SampleChunk> CREATED_TIME_COMPARATOR =
+            new Comparator<SampleChunk>() {
+                @Override
+                public int compare(SampleChunk lhs, SampleChunk rhs) {
+                    int result = Long.compare(lhs.getCreatedTimeMs(), rhs.getCreatedTimeMs());
+                    return result != 0 ? result
+                            : Long.compare(lhs.getStartPositionUs(), rhs.getStartPositionUs());
+                }
+            };
+
+    private final long mMaxMemoryBytes;
+    private final long mMaxMemoryDurationMs;
+    private final Executor mDemotionExecutor;
+
+    private final Object mLock = new Object();
+    // Chunks which are written completely and are not demoted yet. Guarded by mLock.
+    private final PriorityQueue<MemorySampleChunk> mMemoryChunks =
+            new PriorityQueue<>(16, CREATED_TIME_COMPARATOR);
+    private long mLastCreatedTimeMs;
+    private long mMemoryBytes;
+    private long mPeakMemoryBytes;
+    private long mDemotingBytes;
+    private long mDemotedBytes;
+    private int mDemotedChunkCount;
+    private int mHitCount;
+    private int mMissCount;
+
+    /**
+     * Creates a storage manager with a memory tier.
+     *
+     * @param context the context
+     * @param baseDir the base directory of the storage tier
+     * @param maxBufferSize the maximum size of the whole buffer in bytes
+     * @param maxMemoryBytes the maximum size of the memory tier in bytes
+     * @param maxMemoryDurationMs the maximum duration of the memory tier, which is the difference
+     *        of the created times of the oldest and the newest chunks in memory
+     */
+    public TieredStorageManager(Context context, File baseDir, long maxBufferSize,
+            long maxMemoryBytes, long maxMemoryDurationMs) {
+        this(context, baseDir, maxBufferSize, maxMemoryBytes, maxMemoryDurationMs,
+                Executors.newSingleThreadExecutor(new NamedThreadFactory(TAG)));
+    }
+
+    @VisibleForTesting
+    TieredStorageManager(Context context, File baseDir, long maxBufferSize, long maxMemoryBytes,
+            long maxMemoryDurationMs, Executor demotionExecutor) {
+        super(context, baseDir, maxBufferSize);
+        mMaxMemoryBytes = maxMemoryBytes;
+        mMaxMemoryDurationMs = maxMemoryDurationMs;
+        mDemotionExecutor = demotionExecutor;
+    }
+
+    /**
+     * Returns the {@link SampleChunk.SampleChunkCreator} which creates chunks in the memory tier,
+     * to create {@link BufferManager} with.
+     */
+    public SampleChunk.SampleChunkCreator getSampleChunkCreator() {
+        return new MemorySampleChunk.MemorySampleChunkCreator(this);
+    }
+
+    /**
+     * Demotes all the chunks in memory which are written completely, e.g. when the system is
+     * running low on memory.
+     */
+    public void trimMemory() {
+        List<MemorySampleChunk> chunks;
+        synchronized (mLock) {
+            chunks = new ArrayList<>(mMemoryChunks.size());
+            MemorySampleChunk chunk;
+            while ((chunk = mMemoryChunks.poll()) != null) {
+                mDemotingBytes += chunk.getSize();
+                chunks.add(chunk);
+            }
+        }
+        demote(chunks);
+    }
+
+    /**
+     * Returns the number of chunk reads which were served from memory.
+     */
+    public int getMemoryHitCount() {
+        synchronized (mLock) {
+            return mHitCount;
+        }
+    }
+
+    /**
+     * Returns the number of chunk reads which were served from the storage.
+     */
+    public int getMemoryMissCount() {
+        synchronized (mLock) {
+            return mMissCount;
+        }
+    }
+
+    /**
+     * Returns the ratio of the chunk reads which were served from memory, or {@code 0} if no
+     * chunk was read.
+     */
+    public float getMemoryHitRate() {
+        synchronized (mLock) {
+            int total = mHitCount + mMissCount;
+            return total == 0 ? 0 : (float) mHitCount / total;
+        }
+    }
+
+    /**
+     * Returns the size of the off-heap memory which is used by the memory tier in bytes.
+     */
+    public long getMemoryUsageBytes() {
+        synchronized (mLock) {
+            return mMemoryBytes;
+        }
+    }
+
+    /**
+     * Returns the peak size of the off-heap memory which was used by the memory tier in bytes.
+     */
+    public long getPeakMemoryUsageBytes() {
+        synchronized (mLock) {
+            return mPeakMemoryBytes;
+        }
+    }
+
+    /**
+     * Returns the total size of the chunks which were demoted to the storage in bytes.
+     */
+    public long getDemotedBytes() {
+        synchronized (mLock) {
+            return mDemotedBytes;
+        }
+    }
+
+    /**
+     * Dumps the statistics of the memory tier.
+     */
+    public void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println(TAG + ": memory=" + mMemoryBytes + "/" + mMaxMemoryBytes
+                    + " bytes, peak=" + mPeakMemoryBytes + " bytes, hits=" + mHitCount
+                    + ", misses=" + mMissCount + ", demoted=" + mDemotedChunkCount
+                    + " chunks/" + mDemotedBytes + " bytes");
+        }
+    }
+
+    void onMemoryAllocated(long bytes) {
+        synchronized (mLock) {
+            mMemoryBytes += bytes;
+            mPeakMemoryBytes = Math.max(mPeakMemoryBytes, mMemoryBytes);
+        }
+    }
+
+    void onChunkOpened(boolean inMemory) {
+        synchronized (mLock) {
+            if (inMemory) {
+                ++mHitCount;
+            } else {
+                ++mMissCount;
+            }
+        }
+    }
+
+    void onChunkWritten(MemorySampleChunk chunk) {
+        List<MemorySampleChunk> chunks = null;
+        synchronized (mLock) {
+            mMemoryChunks.add(chunk);
+            mLastCreatedTimeMs = Math.max(mLastCreatedTimeMs, chunk.getCreatedTimeMs());
+            // The chunks being demoted are not counted, since their memory is freed soon.
+            MemorySampleChunk oldest;
+            while ((oldest = mMemoryChunks.peek()) != null
+                    && (mMemoryBytes - mDemotingBytes > mMaxMemoryBytes
+                            || mLastCreatedTimeMs - oldest.getCreatedTimeMs()
+                                    > mMaxMemoryDurationMs)) {
+                mMemoryChunks.poll();
+                mDemotingBytes += oldest.getSize();
+                if (chunks == null) {
+                    chunks = new ArrayList<>();
+                }
+                chunks.add(oldest);
+            }
+        }
+        if (chunks != null) {
+            demote(chunks);
+        }
+    }
+
+    void onChunkReleased(MemorySampleChunk chunk) {
+        synchronized (mLock) {
+            mMemoryChunks.remove(chunk);
+        }
+    }
+
+    private void demote(List<MemorySampleChunk> chunks) {
+        for (final MemorySampleChunk chunk : chunks) {
+            final long size = chunk.getSize();
+            mDemotionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean demoted = false;
+                    try {
+                        demoted = chunk.demote();
+                    } catch (IOException e) {
+                        // The chunk stays in memory until it is evicted.
+                        Log.w(TAG, "Failed to demote a chunk to " + chunk.getFile(), e);
+                    } finally {
+                        synchronized (mLock) {
+                            mDemotingBytes -= size;
+                            if (demoted) {
+                                ++mDemotedChunkCount;
+                                mDemotedBytes += size;
+                            }
+                        }
+                    }
+                    if (DEBUG) {
+                        Log.d(TAG, "Demoted " + chunk.getFile() + ", memory="
+                                + getMemoryUsageBytes());
+                    }
+                }
+            });
+        }
+    }
+}
@@ -24,7 +24,7 @@ import android.provider.Settings;
 import android.util.Pair;
 
 import java.io.File;
-import java.util.ArrayList;
+import java.nio.LongBuffer;
 import java.util.SortedMap;
 
 /**
@@ -46,6 +46,7 @@ public class TrickplayStorageManager implements BufferManager.StorageManager {
     private final File mBufferDir;
     private final long mMaxBufferSize;
     private final long mStorageBufferBytes;
+    private final UsableSpaceCache mUsableSpaceCache;
 
     private static long getStorageBufferBytes(Context context, File path) {
         long lowPercentage = Settings.Global.getInt(context.getContentResolver(),
@@ -60,6 +61,7 @@ public class TrickplayStorageManager implements BufferManager.StorageManager {
         mBufferDir = new File(baseDir, BUFFER_DIR);
         mBufferDir.mkdirs();
         mMaxBufferSize = maxBufferSize;
+        mUsableSpaceCache = new UsableSpaceCache(mBufferDir);
         clearStorage();
         mStorageBufferBytes = getStorageBufferBytes(context, mBufferDir);
     }
@@ -97,6 +99,12 @@ public class TrickplayStorageManager implements BufferManager.StorageManager {
         return false;
     }
 
+    @Override
+    public boolean isMemoryMapped() {
+        // The buffer is in the internal storage of the app, which supports mmap well.
+        return true;
+    }
+
     @Override
     public boolean reachedStorageMax(long bufferSize, long pendingDelete) {
         return bufferSize - pendingDelete > mMaxBufferSize;
@@ -104,7 +112,8 @@ public class TrickplayStorageManager implements BufferManager.StorageManager {
 
     @Override
     public boolean hasEnoughBuffer(long pendingDelete) {
-        return mBufferDir.getUsableSpace() + pendingDelete >= mStorageBufferBytes;
+        return mUsableSpaceCache.getUsableSpace(pendingDelete) + pendingDelete
+                >= mStorageBufferBytes;
     }
 
     @Override
@@ -113,7 +122,7 @@ public class TrickplayStorageManager implements BufferManager.StorageManager {
     }
 
     @Override
-    public ArrayList<Long> readIndexFile(String trackId) {
+    public LongBuffer readIndexFile(String trackId) {
         return null;
     }
 
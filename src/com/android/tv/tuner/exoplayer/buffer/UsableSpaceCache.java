@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches {@link File#getUsableSpace} of a buffer directory, which is checked whenever a
+ * {@link SampleChunk} is created.
+ * <p>
+ * The cached value is refreshed periodically, and when the size of the chunks pending delete
+ * decreases, since the chunks are deleted from the storage then. The space which is used by the
+ * chunks written since the last refresh is not reflected, but it is much smaller than the storage
+ * reserved by {@link BufferManager.StorageManager#hasEnoughBuffer}.
+ */
+class UsableSpaceCache {
+    private static final long REFRESH_INTERVAL_MS = TimeUnit.SECONDS.toMillis(1);
+
+    private final File mDir;
+    private long mUsableSpace;
+    private long mRefreshedTimeMs;
+    private long mLastPendingDelete;
+    private boolean mRefreshed;
+
+    UsableSpaceCache(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Returns the usable space of the directory in bytes.
+     *
+     * @param pendingDelete the current storage usage which will be deleted in near future by
+     *                      bytes
+     */
+    synchronized long getUsableSpace(long pendingDelete) {
+        long nowMs = SystemClock.elapsedRealtime();
+        if (!mRefreshed || nowMs - mRefreshedTimeMs >= REFRESH_INTERVAL_MS
+                || pendingDelete < mLastPendingDelete) {
+            mUsableSpace = mDir.getUsableSpace();
+            mRefreshedTimeMs = nowMs;
+            mRefreshed = true;
+        }
+        mLastPendingDelete = pendingDelete;
+        return mUsableSpace;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Profiles the latency of the writes to the buffer over a sliding window of the recent writes.
+ * <p>
+ * The profiler can be seeded by {@link #runBenchmark}, which measures the storage before
+ * any sample is written. The benchmark result is used until the window has enough writes.
+ */
+public class WriteLatencyProfiler {
+    private static final int DEFAULT_WINDOW_SIZE = 64;
+    // The window values are used once they have this many writes.
+    private static final int MIN_WRITE_COUNT = 8;
+
+    private static final String BENCHMARK_FILE_NAME = "write_benchmark.tmp";
+    private static final int BENCHMARK_WRITE_SIZE = 256 * 1024;
+    private static final int BENCHMARK_WRITE_COUNT = 8;
+
+    // Ring buffers of the writes in the window, which are guarded by this.
+    private final long[] mSizes;
+    private final long[] mDurationsNs;
+    private final long[] mEndTimesNs;
+    private final long[] mSortedDurationsNs;
+    private int mCount;
+    private int mNext;
+    private long mTotalWriteCount;
+
+    private float mBenchmarkBandwidthMbps = -1;
+    private long mBenchmarkLatencyUs = -1;
+
+    public WriteLatencyProfiler() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    WriteLatencyProfiler(int windowSize) {
+        mSizes = new long[windowSize];
+        mDurationsNs = new long[windowSize];
+        mEndTimesNs = new long[windowSize];
+        mSortedDurationsNs = new long[windowSize];
+    }
+
+    /**
+     * Adds a write to the window, which drops the oldest write if the window is full.
+     *
+     * @param size the number of written bytes
+     * @param durationNs the duration of the write
+     * @param endTimeNs the {@link SystemClock#elapsedRealtimeNanos} when the write finished
+     */
+    public synchronized void addWrite(long size, long durationNs, long endTimeNs) {
+        mSizes[mNext] = size;
+        mDurationsNs[mNext] = durationNs;
+        mEndTimesNs[mNext] = endTimeNs;
+        mNext = (mNext + 1) % mSizes.length;
+        mCount = Math.min(mCount + 1, mSizes.length);
+        ++mTotalWriteCount;
+    }
+
+    /**
+     * Returns the number of the writes which were added so far.
+     */
+    public synchronized long getTotalWriteCount() {
+        return mTotalWriteCount;
+    }
+
+    /**
+     * Returns the write bandwidth of the window in MBps, the benchmark result if the window does
+     * not have enough writes, or {@code -1} if neither is available.
+     */
+    public synchronized float getBandwidthMbps() {
+        if (mCount < MIN_WRITE_COUNT) {
+            return mBenchmarkBandwidthMbps;
+        }
+        long totalSize = 0;
+        long totalDurationNs = 0;
+        for (int i = 0; i < mCount; ++i) {
+            totalSize += mSizes[i];
+            totalDurationNs += mDurationsNs[i];
+        }
+        return totalDurationNs == 0 ? -1 : (float) totalSize * 1000 / totalDurationNs;
+    }
+
+    /**
+     * Returns the rate of the data which was written during the window in MBps, which is the
+     * bandwidth that the stream requires, or {@code -1} if the window does not have enough writes.
+     */
+    public synchronized float getIngestRateMbps() {
+        if (mCount < MIN_WRITE_COUNT) {
+            return -1;
+        }
+        int oldest = (mNext - mCount + mSizes.length) % mSizes.length;
+        int newest = (mNext - 1 + mSizes.length) % mSizes.length;
+        long elapsedNs = mEndTimesNs[newest] - mEndTimesNs[oldest];
+        if (elapsedNs <= 0) {
+            return -1;
+        }
+        // The oldest write finished at the start of the window.
+        long totalSize = -mSizes[oldest];
+        for (int i = 0; i < mCount; ++i) {
+            totalSize += mSizes[i];
+        }
+        return (float) totalSize * 1000 / elapsedNs;
+    }
+
+    /**
+     * Returns the write latency at the given percentile of the window, the benchmark result if
+     * the window does not have enough writes, or {@code -1} if neither is available.
+     *
+     * @param percentile the percentile between 1 and 100
+     */
+    public synchronized long getLatencyPercentileUs(int percentile) {
+        if (mCount < MIN_WRITE_COUNT) {
+            return mBenchmarkLatencyUs;
+        }
+        System.arraycopy(mDurationsNs, 0, mSortedDurationsNs, 0, mCount);
+        Arrays.sort(mSortedDurationsNs, 0, mCount);
+        int index = Math.max(0, (int) Math.ceil(percentile * mCount / 100.0) - 1);
+        return mSortedDurationsNs[Math.min(index, mCount - 1)] / 1000;
+    }
+
+    /**
+     * Measures the storage of the given directory by synced writes, and uses the result until
+     * the window has enough writes. This blocks, so it should be called on a background thread.
+     */
+    public void runBenchmark(File dir) throws IOException {
+        File file = new File(dir, BENCHMARK_FILE_NAME);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BENCHMARK_WRITE_SIZE);
+        long[] durationsNs = new long[BENCHMARK_WRITE_COUNT];
+        long totalDurationNs = 0;
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            FileChannel channel = out.getChannel();
+            for (int i = 0; i < BENCHMARK_WRITE_COUNT; ++i) {
+                buffer.clear();
+                long startNs = SystemClock.elapsedRealtimeNanos();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                // Syncs each write, since writes to the page cache do not reflect the storage.
+                channel.force(false);
+                durationsNs[i] = SystemClock.elapsedRealtimeNanos() - startNs;
+                totalDurationNs += durationsNs[i];
+            }
+        } finally {
+            file.delete();
+        }
+        Arrays.sort(durationsNs);
+        synchronized (this) {
+            mBenchmarkBandwidthMbps = totalDurationNs == 0 ? -1
+                    : (float) BENCHMARK_WRITE_SIZE * BENCHMARK_WRITE_COUNT * 1000
+                            / totalDurationNs;
+            // The slowest write stands for every percentile, since there are only a few writes.
+            mBenchmarkLatencyUs = durationsNs[durationsNs.length - 1] / 1000;
+        }
+    }
+
+    /**
+     * Returns the bandwidth which was measured by {@link #runBenchmark} in MBps, or {@code -1}
+     * if it was not measured.
+     */
+    public synchronized float getBenchmarkBandwidthMbps() {
+        return mBenchmarkBandwidthMbps;
+    }
+
+    /**
+     * Returns the slowest write latency which was measured by {@link #runBenchmark}, or
+     * {@code -1} if it was not measured.
+     */
+    public synchronized long getBenchmarkLatencyUs() {
+        return mBenchmarkLatencyUs;
+    }
+
+    /**
+     * Uses the result of a benchmark which was run before on the same storage, instead of running
+     * {@link #runBenchmark} again.
+     */
+    public synchronized void setBenchmarkResult(float bandwidthMbps, long latencyUs) {
+        mBenchmarkBandwidthMbps = bandwidthMbps;
+        mBenchmarkLatencyUs = latencyUs;
+    }
+
+    /**
+     * Clears the writes in the window, but keeps the benchmark result.
+     */
+    public synchronized void reset() {
+        mCount = 0;
+        mNext = 0;
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("WriteLatencyProfiler: writes=" + mTotalWriteCount + ", bandwidth="
+                + getBandwidthMbps() + "MBps, ingest=" + getIngestRateMbps() + "MBps, latency p50="
+                + getLatencyPercentileUs(50) + "us p95=" + getLatencyPercentileUs(95) + "us p99="
+                + getLatencyPercentileUs(99) + "us, benchmark=" + mBenchmarkBandwidthMbps + "MBps");
+    }
+}
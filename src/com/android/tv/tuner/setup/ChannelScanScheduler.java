@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.setup;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.tv.tuner.ChannelScanFileParser.ScanChannel;
+import com.android.tv.tuner.data.PsipData;
+import com.android.tv.tuner.data.TunerChannel;
+import com.android.tv.tuner.source.TsStreamer;
+import com.android.tv.tuner.source.TunerTsStreamer;
+import com.android.tv.tuner.tvinput.EventDetector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scans the frequencies of a channel scan on several tuners at once.
+ *
+ * <p>Each tuner runs on its own scan thread, and takes the next frequency of its channel type
+ * from a shared queue whenever it finishes one, so a tuner which is waiting on an empty RF channel
+ * doesn't hold back the others. A frequency is finished as soon as all of its VCT items are
+ * parsed, or when no TS packet has arrived during the no-signal timeout. Otherwise it is finished
+ * after the scan period.
+ */
+public class ChannelScanScheduler {
+    private static final String TAG = "ChannelScanScheduler";
+    private static final boolean DEBUG = false;
+
+    private static final long WAIT_INTERVAL_MS = 100;
+
+    /**
+     * Creates a {@link TsStreamer} for a tuner of the scheduler.
+     */
+    public interface StreamerFactory {
+        /**
+         * Creates a streamer which reports to the given listener.
+         */
+        TsStreamer createStreamer(EventDetector.EventListener listener);
+    }
+
+    /**
+     * Receives the results of a scan. The methods are called on the scan threads, possibly at the
+     * same time.
+     */
+    public interface ScanListener {
+        /**
+         * Called when a channel is detected on any tuner.
+         */
+        void onChannelDetected(TunerChannel channel, boolean channelArrivedAtFirstTime);
+
+        /**
+         * Called when program events of a channel are detected on any tuner.
+         */
+        void onEventDetected(TunerChannel channel, List<PsipData.EitItem> items);
+
+        /**
+         * Called after a frequency is scanned and its stream is stopped.
+         *
+         * @param channel the frequency which was scanned
+         * @param streamer the streamer which scanned the frequency
+         */
+        void onFrequencyScanned(ScanChannel channel, TsStreamer streamer);
+
+        /**
+         * Called when the number of finished frequencies changes.
+         */
+        void onProgress(int scannedCount, int totalCount);
+    }
+
+    private final ScanListener mListener;
+    private final long mScanPeriodMs;
+    private final long mNoSignalTimeoutMs;
+    // Tuners can be added on the scan thread while the scan is canceled on the UI thread.
+    private final List<ScanWorker> mWorkers = new CopyOnWriteArrayList<>();
+    private final SparseArray<Queue<ScanChannel>> mQueues = new SparseArray<>();
+    private final AtomicInteger mScannedCount = new AtomicInteger();
+    private int mTotalCount;
+    private volatile boolean mCanceled;
+
+    /**
+     * Creates a scheduler.
+     *
+     * @param listener the listener for the scan results
+     * @param scanPeriodMs the maximum time to scan a frequency
+     * @param noSignalTimeoutMs the time after which a frequency is skipped if no TS packet has
+     *            arrived from the tuner
+     */
+    public ChannelScanScheduler(ScanListener listener, long scanPeriodMs, long noSignalTimeoutMs) {
+        mListener = listener;
+        mScanPeriodMs = scanPeriodMs;
+        mNoSignalTimeoutMs = noSignalTimeoutMs;
+    }
+
+    /**
+     * Adds a tuner which scans the frequencies of the given type. This should be called before
+     * {@link #scan}.
+     *
+     * @param channelType the type of the channels which the tuner can scan, e.g.
+     *            {@link com.android.tv.tuner.data.nano.Channel#TYPE_TUNER}
+     * @return the streamer of the tuner
+     */
+    public TsStreamer addTuner(int channelType, StreamerFactory factory) {
+        ScanWorker worker = new ScanWorker(channelType, factory);
+        mWorkers.add(worker);
+        return worker.mStreamer;
+    }
+
+    /**
+     * Scans the given frequencies, and blocks until they are scanned or the scan is canceled.
+     */
+    public void scan(List<ScanChannel> channels) {
+        mQueues.clear();
+        for (ScanWorker worker : mWorkers) {
+            if (mQueues.get(worker.mChannelType) == null) {
+                mQueues.put(worker.mChannelType, new ConcurrentLinkedQueue<ScanChannel>());
+            }
+        }
+        mTotalCount = channels.size();
+        mScannedCount.set(0);
+        for (ScanChannel channel : channels) {
+            Queue<ScanChannel> queue = mQueues.get(channel.type);
+            if (queue == null) {
+                Log.w(TAG, "No tuner to scan " + channel.frequency + " " + channel.modulation);
+                notifyScanned();
+                continue;
+            }
+            queue.add(channel);
+        }
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < mWorkers.size(); ++i) {
+            Thread thread = new Thread(mWorkers.get(i), "ChannelScan-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "The current thread is interrupted during scan().", e);
+                cancel();
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops the scan. The frequencies which are being scanned are stopped early, and the remaining
+     * frequencies are not scanned.
+     */
+    public void cancel() {
+        mCanceled = true;
+        for (ScanWorker worker : mWorkers) {
+            worker.countDown();
+        }
+    }
+
+    private void notifyScanned() {
+        mListener.onProgress(mScannedCount.incrementAndGet(), mTotalCount);
+    }
+
+    private final class ScanWorker implements Runnable, EventDetector.EventListener {
+        private final int mChannelType;
+        private final TsStreamer mStreamer;
+        private volatile CountDownLatch mLatch;
+
+        private ScanWorker(int channelType, StreamerFactory factory) {
+            mChannelType = channelType;
+            mStreamer = factory.createStreamer(this);
+        }
+
+        @Override
+        public void run() {
+            Queue<ScanChannel> queue = mQueues.get(mChannelType);
+            ScanChannel channel;
+            while (!mCanceled && (channel = queue.poll()) != null) {
+                Log.i(TAG, "Tuning to " + channel.frequency + " " + channel.modulation);
+                // Created before starting the stream, since the scan can be done as soon as the
+                // stream starts.
+                mLatch = new CountDownLatch(1);
+                if (mStreamer.startStream(channel)) {
+                    long scanTimeMs = waitForScanDone();
+                    mStreamer.stopStream();
+                    // The sections of this frequency which are still being parsed shouldn't end
+                    // the scan of the next one.
+                    mLatch = null;
+                    if (DEBUG) {
+                        Log.d(TAG, "Scanned " + channel.frequency + " in " + scanTimeMs + "ms");
+                    }
+                    mListener.onFrequencyScanned(channel, mStreamer);
+                }
+                notifyScanned();
+            }
+        }
+
+        /**
+         * Waits until the VCT is complete, the tuner turns out to have no signal or the scan
+         * period passes.
+         *
+         * @return the time taken to scan the frequency
+         */
+        private long waitForScanDone() {
+            long startMs = SystemClock.elapsedRealtime();
+            long elapsedMs = 0;
+            try {
+                while (!mCanceled && elapsedMs < mScanPeriodMs) {
+                    long waitMs = Math.min(WAIT_INTERVAL_MS, mScanPeriodMs - elapsedMs);
+                    if (mLatch.await(waitMs, TimeUnit.MILLISECONDS)) {
+                        break;
+                    }
+                    elapsedMs = SystemClock.elapsedRealtime() - startMs;
+                    if (elapsedMs >= mNoSignalTimeoutMs && !hasReceivedData()) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.e(TAG, "The current thread is interrupted during scanChannels(). " +
+                        "The TS stream is stopped earlier than expected.", e);
+                Thread.currentThread().interrupt();
+            }
+            return SystemClock.elapsedRealtime() - startMs;
+        }
+
+        private boolean hasReceivedData() {
+            // Only a tuner can tell whether its stream is empty. Files are scanned for the whole
+            // scan period.
+            return !(mStreamer instanceof TunerTsStreamer)
+                    || ((TunerTsStreamer) mStreamer).getBufferedPosition() > 0;
+        }
+
+        private void countDown() {
+            CountDownLatch latch = mLatch;
+            if (latch != null) {
+                latch.countDown();
+            }
+        }
+
+        @Override
+        public void onChannelDetected(TunerChannel channel, boolean channelArrivedAtFirstTime) {
+            mListener.onChannelDetected(channel, channelArrivedAtFirstTime);
+        }
+
+        @Override
+        public void onEventDetected(TunerChannel channel, List<PsipData.EitItem> items) {
+            mListener.onEventDetected(channel, items);
+        }
+
+        @Override
+        public void onChannelScanDone() {
+            countDown();
+        }
+    }
+}
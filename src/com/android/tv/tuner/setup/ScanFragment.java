@@ -53,13 +53,9 @@ import com.android.tv.tuner.tvinput.ChannelDataManager;
 import com.android.tv.tuner.tvinput.EventDetector;
 import com.android.tv.tuner.util.TunerInputInfoUtils;
 
-import junit.framework.Assert;
-
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
 
 /**
  * A fragment for scanning channels.
@@ -81,10 +77,13 @@ public class ScanFragment extends SetupFragment {
 
     private static final long CHANNEL_SCAN_SHOW_DELAY_MS = 10000;
     private static final long CHANNEL_SCAN_PERIOD_MS = 4000;
+    // A tuner which locks on a frequency but delivers no TS packet moves on after this.
+    private static final long NO_SIGNAL_TIMEOUT_MS = 1500;
     private static final long SHOW_PROGRESS_DIALOG_DELAY_MS = 300;
 
     // Build channels out of the locally stored TS streams.
     private static final boolean SCAN_LOCAL_STREAMS = true;
+    private static final int FILE_STREAMER_COUNT = 2;
 
     private ChannelDataManager mChannelDataManager;
     private ChannelScanTask mChannelScanTask;
@@ -234,34 +233,26 @@ public class ScanFragment extends SetupFragment {
     }
 
     private class ChannelScanTask extends AsyncTask<Void, Integer, Void>
-            implements EventDetector.EventListener, ChannelDataManager.ChannelScanListener {
+            implements ChannelScanScheduler.ScanListener, ChannelDataManager.ChannelScanListener {
         private static final int MAX_PROGRESS = 100;
 
         private final Activity mActivity;
         private final int mChannelMapId;
-        private final TsStreamer mScanTsStreamer;
-        private final TsStreamer mFileTsStreamer;
+        private final ChannelScanScheduler mScanScheduler;
+        private final List<TunerHal> mTunerHals = new ArrayList<>();
         private final ConditionVariable mConditionStopped;
 
         private final List<ChannelScanFileParser.ScanChannel> mScanChannelList = new ArrayList<>();
         private boolean mIsCanceled;
         private boolean mIsFinished;
         private ProgressDialog mFinishingProgressDialog;
-        private CountDownLatch mLatch;
+        private long mScanStartMs;
 
         public ChannelScanTask(int channelMapId) {
             mActivity = getActivity();
             mChannelMapId = channelMapId;
-            if (FAKE_MODE) {
-                mScanTsStreamer = new FakeTsStreamer(this);
-            } else {
-                TunerHal hal = TunerHal.createInstance(mActivity.getApplicationContext());
-                if (hal == null) {
-                    throw new RuntimeException("Failed to open a DVB device");
-                }
-                mScanTsStreamer = new TunerTsStreamer(hal, this);
-            }
-            mFileTsStreamer = SCAN_LOCAL_STREAMS ? new FileTsStreamer(this) : null;
+            mScanScheduler = new ChannelScanScheduler(this, CHANNEL_SCAN_PERIOD_MS,
+                    NO_SIGNAL_TIMEOUT_MS);
             mConditionStopped = new ConditionVariable();
             mChannelDataManager.setChannelScanListener(this, new Handler());
         }
@@ -297,8 +288,59 @@ public class ScanFragment extends SetupFragment {
             });
         }
 
+        // Opens the tuners on the scan thread, since opening a device can take a while.
+        private void addTuners() {
+            if (FAKE_MODE) {
+                mScanScheduler.addTuner(Channel.TYPE_TUNER,
+                        new ChannelScanScheduler.StreamerFactory() {
+                            @Override
+                            public TsStreamer createStreamer(
+                                    EventDetector.EventListener listener) {
+                                return new FakeTsStreamer(listener);
+                            }
+                        });
+            } else {
+                // Shards the frequencies across all the available tuners.
+                Context context = mActivity.getApplicationContext();
+                int tunerCount = Math.max(1, TunerHal.getTunerCount(context));
+                for (int i = 0; i < tunerCount; ++i) {
+                    final TunerHal hal = TunerHal.createInstance(context);
+                    if (hal == null) {
+                        break;
+                    }
+                    mTunerHals.add(hal);
+                    mScanScheduler.addTuner(Channel.TYPE_TUNER,
+                            new ChannelScanScheduler.StreamerFactory() {
+                                @Override
+                                public TsStreamer createStreamer(
+                                        EventDetector.EventListener listener) {
+                                    return new TunerTsStreamer(hal, listener,
+                                            TunerTsStreamer.SCAN_CIRCULAR_BUFFER_SIZE);
+                                }
+                            });
+                }
+                if (mTunerHals.isEmpty()) {
+                    throw new RuntimeException("Failed to open a DVB device");
+                }
+                Log.i(TAG, "Scanning with " + mTunerHals.size() + " tuner(s)");
+            }
+            if (SCAN_LOCAL_STREAMS) {
+                for (int i = 0; i < FILE_STREAMER_COUNT; ++i) {
+                    mScanScheduler.addTuner(Channel.TYPE_FILE,
+                            new ChannelScanScheduler.StreamerFactory() {
+                                @Override
+                                public TsStreamer createStreamer(
+                                        EventDetector.EventListener listener) {
+                                    return new FileTsStreamer(listener);
+                                }
+                            });
+                }
+            }
+        }
+
         @Override
         protected Void doInBackground(Void... params) {
+            addTuners();
             mScanChannelList.clear();
             if (SCAN_LOCAL_STREAMS) {
                 FileTsStreamer.addLocalStreamFiles(mScanChannelList);
@@ -321,6 +363,7 @@ public class ScanFragment extends SetupFragment {
 
         private void stopScan() {
             mConditionStopped.open();
+            mScanScheduler.cancel();
         }
 
         private void cancelScan(boolean cancel) {
@@ -332,39 +375,16 @@ public class ScanFragment extends SetupFragment {
             if (DEBUG) Log.i(TAG, "Channel scan starting");
             mChannelDataManager.notifyScanStarted();
 
-            long startMs = System.currentTimeMillis();
-            int i = 1;
-            for (ChannelScanFileParser.ScanChannel scanChannel : mScanChannelList) {
-                int frequency = scanChannel.frequency;
-                String modulation = scanChannel.modulation;
-                Log.i(TAG, "Tuning to " + frequency + " " + modulation);
-
-                TsStreamer streamer = getStreamer(scanChannel.type);
-                Assert.assertNotNull(streamer);
-                if (streamer.startStream(scanChannel)) {
-                    mLatch = new CountDownLatch(1);
-                    try {
-                        mLatch.await(CHANNEL_SCAN_PERIOD_MS, TimeUnit.MILLISECONDS);
-                    } catch (InterruptedException e) {
-                        Log.e(TAG, "The current thread is interrupted during scanChannels(). " +
-                                "The TS stream is stopped earlier than expected.", e);
-                    }
-                    streamer.stopStream();
-
-                    addChannelsWithoutVct(scanChannel);
-                    if (System.currentTimeMillis() > startMs + CHANNEL_SCAN_SHOW_DELAY_MS
-                            && !mChannelListVisible) {
-                        maybeSetChannelListVisible();
-                    }
-                }
-                if (mConditionStopped.block(-1)) {
-                    break;
-                }
-                onProgressUpdate(MAX_PROGRESS * i++ / mScanChannelList.size());
+            mScanStartMs = System.currentTimeMillis();
+            if (!mConditionStopped.block(-1)) {
+                mScanScheduler.scan(mScanChannelList);
             }
-            if (mScanTsStreamer instanceof TunerTsStreamer) {
-                AutoCloseableUtils.closeQuietly(
-                        ((TunerTsStreamer) mScanTsStreamer).getTunerHal());
+            if (DEBUG) {
+                Log.i(TAG, "Scanned " + mScanChannelList.size() + " frequencies in "
+                        + (System.currentTimeMillis() - mScanStartMs) + "ms");
+            }
+            for (TunerHal hal : mTunerHals) {
+                AutoCloseableUtils.closeQuietly(hal);
             }
             mChannelDataManager.notifyScanCompleted();
             if (!mConditionStopped.block(-1)) {
@@ -374,13 +394,31 @@ public class ScanFragment extends SetupFragment {
         }
 
 
-        private void addChannelsWithoutVct(ChannelScanFileParser.ScanChannel scanChannel) {
+        @Override
+        public void onFrequencyScanned(ChannelScanFileParser.ScanChannel scanChannel,
+                TsStreamer streamer) {
+            addChannelsWithoutVct(scanChannel, streamer);
+            if (System.currentTimeMillis() > mScanStartMs + CHANNEL_SCAN_SHOW_DELAY_MS
+                    && !mChannelListVisible) {
+                maybeSetChannelListVisible();
+            }
+        }
+
+        @Override
+        public void onProgress(int scannedCount, int totalCount) {
+            if (!mConditionStopped.block(-1)) {
+                publishProgress(MAX_PROGRESS * scannedCount / totalCount);
+            }
+        }
+
+        private void addChannelsWithoutVct(ChannelScanFileParser.ScanChannel scanChannel,
+                TsStreamer streamer) {
             if (scanChannel.radioFrequencyNumber == null
-                    || !(mScanTsStreamer instanceof TunerTsStreamer)) {
+                    || !(streamer instanceof TunerTsStreamer)) {
                 return;
             }
             for (TunerChannel tunerChannel
-                    : ((TunerTsStreamer) mScanTsStreamer).getMalFormedChannels()) {
+                    : ((TunerTsStreamer) streamer).getMalFormedChannels()) {
                 if ((tunerChannel.getVideoPid() != TunerChannel.INVALID_PID)
                         && (tunerChannel.getAudioPid() != TunerChannel.INVALID_PID)) {
                     tunerChannel.setFrequency(scanChannel.frequency);
@@ -395,29 +433,11 @@ public class ScanFragment extends SetupFragment {
             }
         }
 
-        private TsStreamer getStreamer(int type) {
-            switch (type) {
-                case Channel.TYPE_TUNER:
-                    return mScanTsStreamer;
-                case Channel.TYPE_FILE:
-                    return mFileTsStreamer;
-                default:
-                    return null;
-            }
-        }
-
         @Override
         public void onEventDetected(TunerChannel channel, List<PsipData.EitItem> items) {
             mChannelDataManager.notifyEventDetected(channel, items);
         }
 
-        @Override
-        public void onChannelScanDone() {
-            if (mLatch != null) {
-                mLatch.countDown();
-            }
-        }
-
         @Override
         public void onChannelDetected(TunerChannel channel, boolean channelArrivedAtFirstTime) {
             if (channelArrivedAtFirstTime) {
@@ -28,6 +28,7 @@ import com.android.tv.tuner.data.TunerChannel;
 import com.android.tv.tuner.ts.TsParser;
 import com.android.tv.tuner.tvinput.EventDetector;
 import com.android.tv.tuner.tvinput.FileSourceEventDetector;
+import com.android.tv.tuner.util.ByteRingBuffer;
 
 import java.io.BufferedInputStream;
 import java.io.File;
@@ -57,13 +58,13 @@ public class FileTsStreamer implements TsStreamer {
     // Virtual frequency base used for file-based source
     public static final int FREQ_BASE = 100;
 
-    private final Object mCircularBufferMonitor = new Object();
-    private final byte[] mCircularBuffer = new byte[CIRCULAR_BUFFER_SIZE];
+    private final Object mStreamingLock = new Object();
+    // The file can be read at any pace, so the data are not overwritten until they are read.
+    private final ByteRingBuffer mCircularBuffer =
+            new ByteRingBuffer(CIRCULAR_BUFFER_SIZE, PADDING_SIZE);
     private final FileSourceEventDetector mEventDetector;
 
-    private long mBytesFetched;
-    private long mLastReadPosition;
-    private boolean mStreaming;
+    private volatile boolean mStreaming;
 
     private Thread mStreamingThread;
     private StreamProvider mSource;
@@ -134,11 +135,12 @@ public class FileTsStreamer implements TsStreamer {
         mEventDetector.start(mSource, FileSourceEventDetector.ALL_PROGRAM_NUMBERS);
         mSource.addPidFilter(TsParser.ATSC_SI_BASE_PID);
         mSource.addPidFilter(TsParser.PAT_PID);
-        synchronized (mCircularBufferMonitor) {
+        synchronized (mStreamingLock) {
             if (mStreaming) {
                 return true;
             }
             mStreaming = true;
+            mCircularBuffer.reset();
         }
 
         mStreamingThread = new StreamingThread();
@@ -162,11 +164,12 @@ public class FileTsStreamer implements TsStreamer {
         mSource.addPidFilter(channel.getPcrPid());
         mSource.addPidFilter(TsParser.ATSC_SI_BASE_PID);
         mSource.addPidFilter(TsParser.PAT_PID);
-        synchronized (mCircularBufferMonitor) {
+        synchronized (mStreamingLock) {
             if (mStreaming) {
                 return true;
             }
             mStreaming = true;
+            mCircularBuffer.reset();
         }
 
         mStreamingThread = new StreamingThread();
@@ -181,9 +184,9 @@ public class FileTsStreamer implements TsStreamer {
      */
     @Override
     public void stopStream() {
-        synchronized (mCircularBufferMonitor) {
+        synchronized (mStreamingLock) {
             mStreaming = false;
-            mCircularBufferMonitor.notify();
+            mCircularBuffer.close();
         }
 
         try {
@@ -205,13 +208,13 @@ public class FileTsStreamer implements TsStreamer {
      * @return the current buffered position
      */
     public long getBufferedPosition() {
-        synchronized (mCircularBufferMonitor) {
-            return mBytesFetched;
-        }
+        return mCircularBuffer.getWritePosition();
     }
 
     /**
      * Provides MPEG-2 transport stream from a local file. Stream can be filtered by PID.
+     *
+     * <p>The PID filter can be updated on any thread.
      */
     public static class StreamProvider {
         private final String mFilepath;
@@ -249,21 +252,27 @@ public class FileTsStreamer implements TsStreamer {
          * Adds a pid for filtering from the MPEG-2 TS file.
          */
         public void addPidFilter(int pid) {
-            mPids.put(pid, true);
+            synchronized (mPids) {
+                mPids.put(pid, true);
+            }
         }
 
         /**
          * Returns whether the current pid filter is empty or not.
          */
         public boolean isFilterEmpty() {
-            return mPids.size() > 0;
+            synchronized (mPids) {
+                return mPids.size() > 0;
+            }
         }
 
         /**
          * Clears the current pid filter.
          */
         public void clearPidFilter() {
-            mPids.clear();
+            synchronized (mPids) {
+                mPids.clear();
+            }
         }
 
         /**
@@ -271,7 +280,9 @@ public class FileTsStreamer implements TsStreamer {
          * @param pid the pid to check
          */
         public boolean isInFilter(int pid) {
-            return mPids.get(pid);
+            synchronized (mPids) {
+                return mPids.get(pid);
+            }
         }
 
         /**
@@ -297,13 +308,15 @@ public class FileTsStreamer implements TsStreamer {
                 return -1;
             }
             int filteredSize = 0;
-            for (int i = 0, destPos = 0; i < readSize; i += TS_PACKET_SIZE) {
-                if (mPreBuffer[i] == TS_SYNC_BYTE) {
-                    int pid = ((mPreBuffer[i + 1] & 0x1f) << 8) + (mPreBuffer[i + 2] & 0xff);
-                    if (mPids.get(pid)) {
-                        System.arraycopy(mPreBuffer, i, inputBuffer, destPos, TS_PACKET_SIZE);
-                        destPos += TS_PACKET_SIZE;
-                        filteredSize += TS_PACKET_SIZE;
+            synchronized (mPids) {
+                for (int i = 0, destPos = 0; i < readSize; i += TS_PACKET_SIZE) {
+                    if (mPreBuffer[i] == TS_SYNC_BYTE) {
+                        int pid = ((mPreBuffer[i + 1] & 0x1f) << 8) + (mPreBuffer[i + 2] & 0xff);
+                        if (mPids.get(pid)) {
+                            System.arraycopy(mPreBuffer, i, inputBuffer, destPos, TS_PACKET_SIZE);
+                            destPos += TS_PACKET_SIZE;
+                            filteredSize += TS_PACKET_SIZE;
+                        }
                     }
                 }
             }
@@ -341,44 +354,22 @@ public class FileTsStreamer implements TsStreamer {
      * @throws IOException
      */
     public int readAt(long pos, byte[] buffer, int offset, int amount) throws IOException {
-        synchronized (mCircularBufferMonitor) {
-            long initialBytesFetched = mBytesFetched;
-            while (mBytesFetched < pos + amount && mStreaming) {
-                try {
-                    mCircularBufferMonitor.wait(READ_TIMEOUT_MS);
-                } catch (InterruptedException e) {
-                    // Wait again.
-                    Thread.currentThread().interrupt();
-                }
-                if (initialBytesFetched == mBytesFetched) {
-                    Log.w(TAG, "No data update for " + READ_TIMEOUT_MS + "ms. returning -1.");
+        int result = mCircularBuffer.read(pos, buffer, offset, amount, READ_TIMEOUT_MS);
+        switch (result) {
+            case ByteRingBuffer.RESULT_TIMED_OUT:
+                Log.w(TAG, "No data update for " + READ_TIMEOUT_MS + "ms. returning -1.");
 
-                    // Returning -1 will make demux report EOS so that the input service can retry
-                    // the playback.
-                    return -1;
-                }
-            }
-            if (!mStreaming) {
+                // Returning -1 will make demux report EOS so that the input service can retry
+                // the playback.
+                return -1;
+            case ByteRingBuffer.RESULT_CLOSED:
                 Log.w(TAG, "Stream is already stopped.");
                 return -1;
-            }
-            if (mBytesFetched - CIRCULAR_BUFFER_SIZE > pos) {
+            case ByteRingBuffer.RESULT_OVERWRITTEN:
                 Log.e(TAG, "Demux is requesting the data which is already overwritten.");
                 return -1;
-            }
-            int posInBuffer = (int) (pos % CIRCULAR_BUFFER_SIZE);
-            int bytesToCopyInFirstPass = amount;
-            if (posInBuffer + bytesToCopyInFirstPass > mCircularBuffer.length) {
-                bytesToCopyInFirstPass = mCircularBuffer.length - posInBuffer;
-            }
-            System.arraycopy(mCircularBuffer, posInBuffer, buffer, offset, bytesToCopyInFirstPass);
-            if (bytesToCopyInFirstPass < amount) {
-                System.arraycopy(mCircularBuffer, 0, buffer, offset + bytesToCopyInFirstPass,
-                        amount - bytesToCopyInFirstPass);
-            }
-            mLastReadPosition = pos + amount;
-            mCircularBufferMonitor.notify();
-            return amount;
+            default:
+                return result;
         }
     }
 
@@ -411,27 +402,7 @@ public class FileTsStreamer implements TsStreamer {
         public void run() {
             byte[] dataBuffer = new byte[READ_BUFFER_SIZE];
 
-            synchronized (mCircularBufferMonitor) {
-                mBytesFetched = 0;
-                mLastReadPosition = 0;
-            }
-
-            while (true) {
-                synchronized (mCircularBufferMonitor) {
-                    while ((mBytesFetched - mLastReadPosition + PADDING_SIZE) > CIRCULAR_BUFFER_SIZE
-                            && mStreaming) {
-                        try {
-                            mCircularBufferMonitor.wait();
-                        } catch (InterruptedException e) {
-                            // Wait again.
-                            Thread.currentThread().interrupt();
-                        }
-                    }
-                    if (!mStreaming) {
-                        break;
-                    }
-                }
-
+            while (mStreaming) {
                 int bytesWritten = mSource.read(dataBuffer);
                 if (bytesWritten <= 0) {
                     try {
@@ -446,21 +417,8 @@ public class FileTsStreamer implements TsStreamer {
 
                 mEventDetector.feedTSStream(dataBuffer, 0, bytesWritten);
 
-                synchronized (mCircularBufferMonitor) {
-                    int posInBuffer = (int) (mBytesFetched % CIRCULAR_BUFFER_SIZE);
-                    int bytesToCopyInFirstPass = bytesWritten;
-                    if (posInBuffer + bytesToCopyInFirstPass > mCircularBuffer.length) {
-                        bytesToCopyInFirstPass = mCircularBuffer.length - posInBuffer;
-                    }
-                    System.arraycopy(dataBuffer, 0, mCircularBuffer, posInBuffer,
-                            bytesToCopyInFirstPass);
-                    if (bytesToCopyInFirstPass < bytesWritten) {
-                        System.arraycopy(dataBuffer, bytesToCopyInFirstPass, mCircularBuffer, 0,
-                                bytesWritten - bytesToCopyInFirstPass);
-                    }
-                    mBytesFetched += bytesWritten;
-                    mCircularBufferMonitor.notify();
-                }
+                // Waits until the player consumes the buffered data.
+                mCircularBuffer.write(dataBuffer, 0, bytesWritten);
             }
 
             Log.i(TAG, "Streaming stopped");
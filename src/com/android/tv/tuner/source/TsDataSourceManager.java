@@ -21,6 +21,7 @@ import android.content.Context;
 import com.android.tv.tuner.data.nano.Channel;
 import com.android.tv.tuner.data.TunerChannel;
 import com.android.tv.tuner.tvinput.EventDetector;
+import com.android.tv.tuner.util.ZapTracer;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -75,6 +76,19 @@ public class TsDataSourceManager {
      */
     public TsDataSource createDataSource(Context context, TunerChannel channel,
             EventDetector.EventListener eventListener) {
+        return createDataSource(context, channel, eventListener, null);
+    }
+
+    /**
+     * Creates or retrieves {@link TsDataSource} for playing a channel on a zap.
+     * @param context a {@link Context} instance
+     * @param channel to play
+     * @param eventListener for program information which will be scanned from MPEG2-TS stream
+     * @param zap the zap whose stages are marked while tuning, or {@code null} if it isn't traced
+     * @return {@link TsDataSource} which will provide the specified channel stream
+     */
+    public TsDataSource createDataSource(Context context, TunerChannel channel,
+            EventDetector.EventListener eventListener, ZapTracer.Zap zap) {
         if (channel.getType() == Channel.TYPE_FILE) {
             // MPEG2 TS captured stream file recording is not supported.
             if (mIsRecording) {
@@ -89,7 +103,7 @@ public class TsDataSourceManager {
             return null;
         }
         return mTunerStreamerManager.createDataSource(context, channel, eventListener,
-                mId, !mIsRecording && mKeepTuneStatus);
+                mId, !mIsRecording && mKeepTuneStatus, zap);
     }
 
     /**
@@ -24,6 +24,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -138,6 +139,27 @@ public class TsStreamWriter {
         }
     }
 
+    /**
+     * Writes the remaining bytes of the buffer to the file. The position of the buffer is
+     * advanced by the number of bytes written.
+     */
+    public void writeToFile(ByteBuffer buffer) {
+        if (mFileOutputStream == null) {
+            return;
+        }
+        if (System.currentTimeMillis() - mFileStartTimeMs > TIME_LIMIT_MS) {
+            closeFile(false);
+            openFile();
+        }
+        try {
+            while (buffer.hasRemaining()) {
+                mFileOutputStream.getChannel().write(buffer);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Error on writing TS stream.", e);
+        }
+    }
+
     /**
      * Deletes outdated files to save storage.
      *
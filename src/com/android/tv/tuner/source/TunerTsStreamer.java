@@ -28,8 +28,12 @@ import com.android.tv.tuner.TunerPreferences;
 import com.android.tv.tuner.data.TunerChannel;
 import com.android.tv.tuner.tvinput.EventDetector;
 import com.android.tv.tuner.tvinput.EventDetector.EventListener;
+import com.android.tv.tuner.tvinput.PsipSnapshotCache;
+import com.android.tv.tuner.util.ByteRingBuffer;
+import com.android.tv.tuner.util.ZapTracer;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -39,24 +43,30 @@ import java.util.concurrent.atomic.AtomicLong;
 public class TunerTsStreamer implements TsStreamer {
     private static final String TAG = "TunerTsStreamer";
 
-    private static final int MIN_READ_UNIT = 1500;
+    private static final int TS_PACKET_SIZE = 188;
+    // Aligned to TS packets, so that a packet is never split at the end of the circular buffer.
+    private static final int MIN_READ_UNIT = TS_PACKET_SIZE * 8;
     private static final int READ_BUFFER_SIZE = MIN_READ_UNIT * 10; // ~15KB
     private static final int CIRCULAR_BUFFER_SIZE = MIN_READ_UNIT * 20000;  // ~ 30MB
+    /**
+     * The size of the circular buffer for a channel scan, which only feeds the event detector.
+     */
+    public static final int SCAN_CIRCULAR_BUFFER_SIZE = MIN_READ_UNIT * 100;  // ~150KB
 
     private static final int READ_TIMEOUT_MS = 5000; // 5 secs.
     private static final int BUFFER_UNDERRUN_SLEEP_MS = 10;
 
-    private final Object mCircularBufferMonitor = new Object();
-    private final byte[] mCircularBuffer = new byte[CIRCULAR_BUFFER_SIZE];
-    private long mBytesFetched;
-    private final AtomicLong mLastReadPosition = new AtomicLong();
-    private boolean mEndOfStreamSent;
-    private boolean mStreaming;
+    private final Object mStreamingLock = new Object();
+    // The live stream can't wait for the readers, so the oldest data are overwritten.
+    private final ByteRingBuffer mCircularBuffer;
+    private volatile boolean mEndOfStreamSent;
+    private volatile boolean mStreaming;
 
     private final TunerHal mTunerHal;
     private TunerChannel mChannel;
     private Thread mStreamingThread;
     private final EventDetector mEventDetector;
+    private final ZapTracer.Zap mZap;
 
     private final TsStreamWriter mTsStreamWriter;
 
@@ -113,8 +123,40 @@ public class TunerTsStreamer implements TsStreamer {
      * @param eventListener the listener for channel & program information
      */
     public TunerTsStreamer(TunerHal tunerHal, EventListener eventListener, Context context) {
+        this(tunerHal, eventListener, context, null);
+    }
+
+    /**
+     * Creates {@link TsStreamer} for playing the specified channel on a zap.
+     * @param tunerHal the HAL for tuner device
+     * @param eventListener the listener for channel & program information
+     * @param zap the zap whose stages are marked while starting the stream, or {@code null} if
+     *            the stream isn't for a zap
+     */
+    public TunerTsStreamer(TunerHal tunerHal, EventListener eventListener, Context context,
+            ZapTracer.Zap zap) {
+        this(tunerHal, eventListener, context, zap, CIRCULAR_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates {@link TsStreamer} with the given size of the circular buffer, e.g.
+     * {@link #SCAN_CIRCULAR_BUFFER_SIZE} for a channel scan.
+     * @param tunerHal the HAL for tuner device
+     * @param eventListener the listener for channel & program information
+     * @param circularBufferSize the size of the buffer which the readers read the stream from
+     */
+    public TunerTsStreamer(TunerHal tunerHal, EventListener eventListener,
+            int circularBufferSize) {
+        this(tunerHal, eventListener, null, null, circularBufferSize);
+    }
+
+    private TunerTsStreamer(TunerHal tunerHal, EventListener eventListener, Context context,
+            ZapTracer.Zap zap, int circularBufferSize) {
         mTunerHal = tunerHal;
-        mEventDetector = new EventDetector(mTunerHal, eventListener);
+        mZap = zap;
+        mCircularBuffer = new ByteRingBuffer(circularBufferSize);
+        mEventDetector = new EventDetector(mTunerHal, eventListener,
+                context != null ? PsipSnapshotCache.getInstance(context) : null);
         mTsStreamWriter = context != null && TunerPreferences.getStoreTsStream(context) ?
                 new TsStreamWriter(context) : null;
     }
@@ -125,7 +167,7 @@ public class TunerTsStreamer implements TsStreamer {
 
     @Override
     public boolean startStream(TunerChannel channel) {
-        if (mTunerHal.tune(channel.getFrequency(), channel.getModulation())) {
+        if (mTunerHal.tune(channel.getFrequency(), channel.getModulation(), mZap)) {
             if (channel.hasVideo()) {
                 mTunerHal.addPidFilter(channel.getVideoPid(),
                         TunerHal.FILTER_TYPE_VIDEO);
@@ -145,17 +187,16 @@ public class TunerTsStreamer implements TsStreamer {
                     TunerHal.FILTER_TYPE_PCR);
             if (mEventDetector != null) {
                 mEventDetector.startDetecting(channel.getFrequency(), channel.getModulation(),
-                        channel.getProgramNumber());
+                        channel.getProgramNumber(), mZap);
             }
             mChannel = channel;
-            synchronized (mCircularBufferMonitor) {
+            synchronized (mStreamingLock) {
                 if (mStreaming) {
                     Log.w(TAG, "Streaming should be stopped before start streaming");
                     return true;
                 }
                 mStreaming = true;
-                mBytesFetched = 0;
-                mLastReadPosition.set(0L);
+                mCircularBuffer.reset();
                 mEndOfStreamSent = false;
             }
             if (mTsStreamWriter != null) {
@@ -175,14 +216,13 @@ public class TunerTsStreamer implements TsStreamer {
         if (mTunerHal.tune(channel.frequency, channel.modulation)) {
             mEventDetector.startDetecting(
                     channel.frequency, channel.modulation, EventDetector.ALL_PROGRAM_NUMBERS);
-            synchronized (mCircularBufferMonitor) {
+            synchronized (mStreamingLock) {
                 if (mStreaming) {
                     Log.w(TAG, "Streaming should be stopped before start streaming");
                     return true;
                 }
                 mStreaming = true;
-                mBytesFetched = 0;
-                mLastReadPosition.set(0L);
+                mCircularBuffer.reset();
                 mEndOfStreamSent = false;
             }
             mStreamingThread = new StreamingThread();
@@ -200,9 +240,9 @@ public class TunerTsStreamer implements TsStreamer {
     @Override
     public void stopStream() {
         mChannel = null;
-        synchronized (mCircularBufferMonitor) {
+        synchronized (mStreamingLock) {
             mStreaming = false;
-            mCircularBufferMonitor.notifyAll();
+            mCircularBuffer.close();
         }
 
         try {
@@ -212,6 +252,7 @@ public class TunerTsStreamer implements TsStreamer {
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
+        mEventDetector.stopDetecting();
         if (mTsStreamWriter != null) {
             mTsStreamWriter.closeFile(true);
             mTsStreamWriter.setChannel(null);
@@ -253,25 +294,25 @@ public class TunerTsStreamer implements TsStreamer {
      * @return the current buffered position
      */
     public long getBufferedPosition() {
-        synchronized (mCircularBufferMonitor) {
-            return mBytesFetched;
-        }
+        return mCircularBuffer.getWritePosition();
     }
 
     private class StreamingThread extends Thread {
         @Override
         public void run() {
-            // Buffers for streaming data from the tuner and the internal buffer.
-            byte[] dataBuffer = new byte[READ_BUFFER_SIZE];
-
-            while (true) {
-                synchronized (mCircularBufferMonitor) {
-                    if (!mStreaming) {
-                        break;
-                    }
+            // The tuner HAL writes the stream directly into this buffer, and the stream is copied
+            // only once into the circular buffer. The event detector parses it in place there.
+            ByteBuffer dataBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+            ByteRingBuffer.ChunkConsumer eventDetectorFeeder = new ByteRingBuffer.ChunkConsumer() {
+                @Override
+                public void onChunk(byte[] data, int offset, int length) {
+                    mEventDetector.feedTSStream(data, offset, offset + length);
                 }
+            };
 
-                int bytesWritten = mTunerHal.readTsStream(dataBuffer, dataBuffer.length);
+            while (mStreaming) {
+                dataBuffer.clear();
+                int bytesWritten = mTunerHal.readTsStream(dataBuffer);
                 if (bytesWritten <= 0) {
                     try {
                         // When buffer is underrun, we sleep for short time to prevent
@@ -283,27 +324,18 @@ public class TunerTsStreamer implements TsStreamer {
                     continue;
                 }
 
+                dataBuffer.flip();
                 if (mTsStreamWriter != null) {
-                    mTsStreamWriter.writeToFile(dataBuffer, bytesWritten);
+                    mTsStreamWriter.writeToFile(dataBuffer);
+                    dataBuffer.rewind();
                 }
 
-                if (mEventDetector != null) {
-                    mEventDetector.feedTSStream(dataBuffer, 0, bytesWritten);
+                long position = mCircularBuffer.getWritePosition();
+                if (!mCircularBuffer.write(dataBuffer)) {
+                    continue;
                 }
-                synchronized (mCircularBufferMonitor) {
-                    int posInBuffer = (int) (mBytesFetched % CIRCULAR_BUFFER_SIZE);
-                    int bytesToCopyInFirstPass = bytesWritten;
-                    if (posInBuffer + bytesToCopyInFirstPass > mCircularBuffer.length) {
-                        bytesToCopyInFirstPass = mCircularBuffer.length - posInBuffer;
-                    }
-                    System.arraycopy(dataBuffer, 0, mCircularBuffer, posInBuffer,
-                            bytesToCopyInFirstPass);
-                    if (bytesToCopyInFirstPass < bytesWritten) {
-                        System.arraycopy(dataBuffer, bytesToCopyInFirstPass, mCircularBuffer, 0,
-                                bytesWritten - bytesToCopyInFirstPass);
-                    }
-                    mBytesFetched += bytesWritten;
-                    mCircularBufferMonitor.notifyAll();
+                if (mEventDetector != null) {
+                    mCircularBuffer.peek(position, bytesWritten, eventDetectorFeeder);
                 }
             }
 
@@ -321,43 +353,16 @@ public class TunerTsStreamer implements TsStreamer {
      * @throws IOException
      */
     public int readAt(long pos, byte[] buffer, int offset, int amount) throws IOException {
-        long readStartTime = System.currentTimeMillis();
-        while (true) {
-            synchronized (mCircularBufferMonitor) {
-                if (mEndOfStreamSent || !mStreaming) {
-                    return -1;
-                }
-                if (mBytesFetched - CIRCULAR_BUFFER_SIZE > pos) {
-                    Log.e(TAG, "Demux is requesting the data which is already overwritten.");
-                    return -1;
-                }
-                if (System.currentTimeMillis() - readStartTime > READ_TIMEOUT_MS) {
-                    // Nothing was received during READ_TIMEOUT_MS before.
-                    mEndOfStreamSent = true;
-                    mCircularBufferMonitor.notifyAll();
-                    return -1;
-                }
-                if (mBytesFetched < pos + amount) {
-                    try {
-                        mCircularBufferMonitor.wait(READ_TIMEOUT_MS);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                    // Try again to prevent starvation.
-                    // Give chances to read from other threads.
-                    continue;
-                }
-                int startPos = (int) (pos % CIRCULAR_BUFFER_SIZE);
-                int endPos = (int) ((pos + amount) % CIRCULAR_BUFFER_SIZE);
-                int firstLength = (startPos > endPos ? CIRCULAR_BUFFER_SIZE : endPos) - startPos;
-                System.arraycopy(mCircularBuffer, startPos, buffer, offset, firstLength);
-                if (firstLength < amount) {
-                    System.arraycopy(mCircularBuffer, 0, buffer, offset + firstLength,
-                            amount - firstLength);
-                }
-                mCircularBufferMonitor.notifyAll();
-                return amount;
-            }
+        if (mEndOfStreamSent || !mStreaming) {
+            return -1;
+        }
+        int result = mCircularBuffer.read(pos, buffer, offset, amount, READ_TIMEOUT_MS);
+        if (result == ByteRingBuffer.RESULT_OVERWRITTEN) {
+            Log.e(TAG, "Demux is requesting the data which is already overwritten.");
+        } else if (result == ByteRingBuffer.RESULT_TIMED_OUT) {
+            // Nothing was received during READ_TIMEOUT_MS before.
+            mEndOfStreamSent = true;
         }
+        return result < 0 ? -1 : result;
     }
 }
@@ -23,6 +23,7 @@ import com.android.tv.common.SoftPreconditions;
 import com.android.tv.tuner.TunerHal;
 import com.android.tv.tuner.data.TunerChannel;
 import com.android.tv.tuner.tvinput.EventDetector;
+import com.android.tv.tuner.util.ZapTracer;
 
 import java.util.HashMap;
 import java.util.HashSet;
@@ -61,7 +62,7 @@ class TunerTsStreamerManager {
 
     synchronized TsDataSource createDataSource(
             Context context, TunerChannel channel, EventDetector.EventListener listener,
-            int sessionId, boolean reuse) {
+            int sessionId, boolean reuse, ZapTracer.Zap zap) {
         TsStreamerCreator creator;
         synchronized (mCancelLock) {
             if (mStreamerFinder.containsLocked(channel)) {
@@ -71,7 +72,7 @@ class TunerTsStreamerManager {
                 mSourceToStreamerMap.put(source, streamer);
                 return source;
             }
-            creator = new TsStreamerCreator(context, channel, listener);
+            creator = new TsStreamerCreator(context, channel, listener, zap);
             mCreators.put(sessionId, creator);
         }
         TunerTsStreamer streamer = creator.create(sessionId, reuse);
@@ -177,16 +178,18 @@ class TunerTsStreamerManager {
         private final Context mContext;
         private final TunerChannel mChannel;
         private final EventDetector.EventListener mEventListener;
+        private final ZapTracer.Zap mZap;
         // mCancelled will be {@code true} if a new tune request for the same session
         // cancels create().
         private boolean mCancelled;
         private TunerHal mTunerHal;
 
         private TsStreamerCreator(Context context, TunerChannel channel,
-                EventDetector.EventListener listener) {
+                EventDetector.EventListener listener, ZapTracer.Zap zap) {
             mContext = context;
             mChannel = channel;
             mEventListener = listener;
+            mZap = zap;
         }
 
         private TunerTsStreamer create(int sessionId, boolean reuse) {
@@ -194,6 +197,9 @@ class TunerTsStreamerManager {
             if (hal == null) {
                 return null;
             }
+            if (mZap != null) {
+                mZap.markStage(ZapTracer.STAGE_TUNER_ACQUIRED);
+            }
             boolean canceled = false;
             synchronized (mCancelLock) {
                 if (!mCancelled) {
@@ -203,7 +209,8 @@ class TunerTsStreamerManager {
                 }
             }
             if (!canceled) {
-                TunerTsStreamer tsStreamer = new TunerTsStreamer(hal, mEventListener, mContext);
+                TunerTsStreamer tsStreamer = new TunerTsStreamer(hal, mEventListener, mContext,
+                        mZap);
                 if (tsStreamer.startStream(mChannel)) {
                     return tsStreamer;
                 }
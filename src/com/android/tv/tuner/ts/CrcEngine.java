@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.ts;
+
+/**
+ * Computes CRC-32/MPEG-2, which is used to validate PSI/PSIP sections.
+ */
+public interface CrcEngine {
+    /**
+     * Returns CRC-32/MPEG-2 of the given range of data.
+     *
+     * <p>The CRC register starts from {@code 0xffffffff} and no final XOR is applied. Since a
+     * section ends with its CRC_32 field, the result for a whole valid section is {@code 0}.
+     *
+     * @param data the buffer which contains the data
+     * @param offset the offset where the data starts
+     * @param length the length of the data
+     */
+    int compute(byte[] data, int offset, int length);
+}
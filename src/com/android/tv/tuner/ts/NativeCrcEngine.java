@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.ts;
+
+import android.util.Log;
+
+/**
+ * A {@link CrcEngine} which uses the CRC32 instructions of the CPU through JNI.
+ *
+ * <p>It is only available when the native library is built with the CRC extension and the CPU
+ * supports it. Check {@link #isSupported} before using it.
+ */
+public class NativeCrcEngine implements CrcEngine {
+    private static final String TAG = "NativeCrcEngine";
+
+    private static final boolean sSupported;
+
+    static {
+        boolean supported = false;
+        try {
+            System.loadLibrary("tunertvinput_jni");
+            supported = nativeIsHardwareCrcSupported();
+        } catch (UnsatisfiedLinkError e) {
+            Log.w(TAG, "Native CRC engine is not available", e);
+        }
+        sSupported = supported;
+    }
+
+    /**
+     * Returns {@code true} if the CPU supports the hardware CRC calculation.
+     */
+    public static boolean isSupported() {
+        return sSupported;
+    }
+
+    @Override
+    public int compute(byte[] data, int offset, int length) {
+        return nativeCompute(data, offset, length);
+    }
+
+    private static native boolean nativeIsHardwareCrcSupported();
+    private static native int nativeCompute(byte[] data, int offset, int length);
+}
@@ -34,13 +34,13 @@ import com.android.tv.tuner.data.PsipData.ExtendedChannelNameDescriptor;
 import com.android.tv.tuner.data.PsipData.GenreDescriptor;
 import com.android.tv.tuner.data.PsipData.Iso639LanguageDescriptor;
 import com.android.tv.tuner.data.PsipData.MgtItem;
-import com.android.tv.tuner.data.PsipData.PsipSection;
 import com.android.tv.tuner.data.PsipData.RatingRegion;
 import com.android.tv.tuner.data.PsipData.RegionalRating;
 import com.android.tv.tuner.data.PsipData.TsDescriptor;
 import com.android.tv.tuner.data.PsipData.VctItem;
 import com.android.tv.tuner.data.nano.Track.AtscAudioTrack;
 import com.android.tv.tuner.data.nano.Track.AtscCaptionTrack;
+import com.android.tv.tuner.tvinput.TunerDebug;
 import com.android.tv.tuner.util.ByteArrayBuffer;
 
 import com.ibm.icu.text.UnicodeDecompressor;
@@ -52,6 +52,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Parses ATSC PSIP sections.
@@ -319,8 +320,15 @@ public class SectionParser {
         ISO_LANGUAGE_CODE_MAP.put("esl", "spa"); // Special entry for channel 9-1 KQED in bay area.
     }
 
-    // Containers to store the last version numbers of the PSIP sections.
-    private final HashMap<PsipSection, Integer> mSectionVersionMap = new HashMap<>();
+    // The last parsed versions and CRC_32 fields of the PSIP sections. The table can be shared by
+    // the parsers of a TS stream, so the keys include the PID of this parser.
+    private final SectionVersionTable mSectionVersionTable;
+    // Remembers the parsed versions of the sections on this PID. It answers whether a section
+    // might have been parsed before without looking up the table.
+    private final VersionFilter mVersionFilter = new VersionFilter();
+    // The keys of the sections which failed to be parsed on a worker thread. They are removed from
+    // the table on the reassembling thread, so that the sections are parsed again when repeated.
+    private final ConcurrentLinkedQueue<Long> mFailedSectionKeys = new ConcurrentLinkedQueue<>();
     private final SparseArray<List<EttItem>> mParsedEttItems = new SparseArray<>();
 
     public interface OutputListener {
@@ -332,13 +340,162 @@ public class SectionParser {
         void onEttParsed(int sourceId, List<EttItem> descriptions);
     }
 
+    /**
+     * Observes the sections which are accepted to be parsed, i.e. the valid sections whose
+     * versions are new.
+     */
+    public interface SectionObserver {
+        /**
+         * Called on the thread which reassembles the sections. The section is only valid during
+         * this call.
+         */
+        void onSectionAccepted(int pid, byte[] data, int offset, int length);
+    }
+
+    private static final CrcEngine DEFAULT_CRC_ENGINE = NativeCrcEngine.isSupported()
+            ? new NativeCrcEngine() : new SlicingBy8CrcEngine();
+
     private final OutputListener mListener;
+    private final CrcEngine mCrcEngine;
+    private final int mPid;
+    // The lane which parses the sections on a worker thread, or null to parse them in place.
+    private final SectionPipeline.Lane mLane;
+    private SectionObserver mSectionObserver;
 
     public SectionParser(OutputListener listener) {
+        this(listener, DEFAULT_CRC_ENGINE);
+    }
+
+    /**
+     * Creates a section parser which validates sections with the given {@link CrcEngine}.
+     */
+    public SectionParser(OutputListener listener, CrcEngine crcEngine) {
+        this(listener, crcEngine, new SectionVersionTable(), 0);
+    }
+
+    /**
+     * Creates a section parser for a PID which keeps the section versions in the given table.
+     */
+    public SectionParser(OutputListener listener, SectionVersionTable sectionVersionTable,
+            int pid) {
+        this(listener, DEFAULT_CRC_ENGINE, sectionVersionTable, pid, null);
+    }
+
+    /**
+     * Creates a section parser for a PID which parses the tables on the worker threads of the
+     * given {@link SectionPipeline}.
+     *
+     * <p>The sections are still reassembled and validated on the calling thread, but the tables
+     * are parsed and {@code listener} is called on a worker thread. The sections of the parser
+     * are parsed in order.
+     */
+    public SectionParser(OutputListener listener, SectionVersionTable sectionVersionTable,
+            int pid, SectionPipeline pipeline) {
+        this(listener, DEFAULT_CRC_ENGINE, sectionVersionTable, pid, pipeline);
+    }
+
+    private SectionParser(OutputListener listener, CrcEngine crcEngine,
+            SectionVersionTable sectionVersionTable, int pid) {
+        this(listener, crcEngine, sectionVersionTable, pid, null);
+    }
+
+    private SectionParser(OutputListener listener, CrcEngine crcEngine,
+            SectionVersionTable sectionVersionTable, int pid, SectionPipeline pipeline) {
         mListener = listener;
+        mCrcEngine = crcEngine;
+        mSectionVersionTable = sectionVersionTable;
+        mPid = pid;
+        mLane = pipeline == null ? null : pipeline.createLane(mSectionHandler);
+    }
+
+    private final SectionPipeline.SectionHandler mSectionHandler =
+            new SectionPipeline.SectionHandler() {
+                @Override
+                public void handleSection(byte[] data, int offset, int length) {
+                    if (!parseTable(data, offset, length)) {
+                        mFailedSectionKeys.add(getSectionKey(data, offset));
+                    }
+                }
+
+                @Override
+                public void onSectionsHandled() {
+                    notifyParsedEttItems();
+                }
+            };
+
+    /**
+     * Sets the observer of the accepted sections. This should be called before parsing.
+     */
+    public void setSectionObserver(SectionObserver observer) {
+        mSectionObserver = observer;
+    }
+
+    /**
+     * Parses a complete section, e.g. the one which was stored before, on the calling thread.
+     *
+     * <p>The section is accepted like the ones reassembled from TS packets, so the same section
+     * received later is skipped, while a section with a newer version replaces it. This should be
+     * called before parsing any section from TS packets.
+     */
+    public void parseStoredSection(byte[] data, int offset, int length) {
+        parseSection(data, offset, length, true);
+        notifyParsedEttItems();
+    }
+
+    /**
+     * Stops parsing the sections which are queued to the worker threads.
+     */
+    public void release() {
+        if (mLane != null) {
+            mLane.close();
+        }
+    }
+
+    /**
+     * Skips the sections which were already parsed with the same versions.
+     *
+     * <p>This is called with the payload of a TS packet which starts a section, so that the
+     * sections of unchanged carousels are not reassembled at all. A section which continues to the
+     * following packets is skipped until the next payload unit start.
+     *
+     * @param data the buffer which contains the TS packet
+     * @param pos the position where the first section starts
+     * @param limit the end of the payload
+     * @return the position of the first section which should be parsed. It can be larger than
+     *         {@code limit} if the remaining payload can be skipped.
+     */
+    public int skipKnownSections(byte[] data, int pos, int limit) {
+        forgetFailedSections();
+        while (pos + 8 <= limit && (data[pos] & 0xff) != 0xff) {
+            if (!isKnownSection(data, pos)) {
+                break;
+            }
+            pos += (((data[pos + 1] & 0x0f) << 8) | (data[pos + 2] & 0xff)) + 3;
+        }
+        return pos;
+    }
+
+    private boolean isKnownSection(byte[] data, int offset) {
+        if (!hasCrc(data, offset) || (data[offset + 5] & 0x01) == 0) {
+            return false;
+        }
+        long key = getSectionKey(data, offset);
+        int versionNumber = (data[offset + 5] & 0x3e) >> 1;
+        if (!mVersionFilter.mightContain(key, versionNumber)) {
+            return false;
+        }
+        int index = mSectionVersionTable.indexOfKey(key);
+        if (index >= 0 && mSectionVersionTable.versionAt(index) == versionNumber) {
+            if (TunerDebug.ENABLED) {
+                TunerDebug.notifySectionCacheHit();
+            }
+            return true;
+        }
+        return false;
     }
 
     public void parseSections(ByteArrayBuffer data) {
+        forgetFailedSections();
         int pos = 0;
         while (pos + 3 <= data.length()) {
             if ((data.byteAt(pos) & 0xff) == 0xff) {
@@ -354,9 +511,24 @@ public class SectionParser {
             if (DEBUG) {
                 Log.d(TAG, "parseSections 0x" + Integer.toHexString(data.byteAt(pos) & 0xff));
             }
-            parseSection(Arrays.copyOfRange(data.buffer(), pos, pos + sectionLength));
+            // Parses the section in place. The section is a window of the reassembly buffer, which
+            // stays untouched until this method returns.
+            parseSection(data.buffer(), pos, sectionLength, false);
             pos += sectionLength;
         }
+        if (mLane == null) {
+            notifyParsedEttItems();
+        }
+    }
+
+    private void forgetFailedSections() {
+        Long key;
+        while ((key = mFailedSectionKeys.poll()) != null) {
+            mSectionVersionTable.remove(key);
+        }
+    }
+
+    private void notifyParsedEttItems() {
         if (mListener != null) {
             for (int i = 0; i < mParsedEttItems.size(); ++i) {
                 int sourceId = mParsedEttItems.keyAt(i);
@@ -367,66 +539,125 @@ public class SectionParser {
         mParsedEttItems.clear();
     }
 
-    private void parseSection(byte[] data) {
-        if (!checkSanity(data)) {
-            Log.d(TAG, "Bad CRC!");
+    private void parseSection(byte[] data, int offset, int length, boolean parseInPlace) {
+        if (length < 9) {
             return;
         }
-        PsipSection section = PsipSection.create(data);
-        if (section == null) {
+        long sectionKey = getSectionKey(data, offset);
+        int index = mSectionVersionTable.indexOfKey(sectionKey);
+        boolean hasCrc = hasCrc(data, offset);
+        int crcField = 0;
+        if (hasCrc) {
+            crcField = (data[offset + length - 4] & 0xff) << 24
+                    | (data[offset + length - 3] & 0xff) << 16
+                    | (data[offset + length - 2] & 0xff) << 8
+                    | (data[offset + length - 1] & 0xff);
+            // The CRC_32 field identifies the version of the section. A repeated section is
+            // rejected by comparing it without calculating the CRC.
+            if (index >= 0 && mSectionVersionTable.crcAt(index) == crcField) {
+                if (TunerDebug.ENABLED) {
+                    TunerDebug.notifySectionCacheHit();
+                }
+                return;
+            }
+        }
+        if (!checkSanity(data, offset, length)) {
+            Log.d(TAG, "Bad CRC!");
             return;
         }
 
         // The currentNextIndicator indicates that the section sent is currently applicable.
-        if (!section.getCurrentNextIndicator()) {
+        if ((data[offset + 5] & 0x01) == 0) {
             return;
         }
-        int versionNumber = (data[5] & 0x3e) >> 1;
-        Integer oldVersionNumber = mSectionVersionMap.get(section);
+        int versionNumber = (data[offset + 5] & 0x3e) >> 1;
 
         // The versionNumber shall be incremented when a change in the information carried within
         // the section occurs.
-        if (oldVersionNumber != null && versionNumber == oldVersionNumber) {
+        if (index >= 0 && mSectionVersionTable.versionAt(index) == versionNumber) {
+            if (TunerDebug.ENABLED) {
+                TunerDebug.notifySectionCacheHit();
+            }
+            return;
+        }
+        if (TunerDebug.ENABLED) {
+            TunerDebug.notifySectionCacheMiss();
+        }
+
+        if (mLane == null || parseInPlace) {
+            // The version is recorded only after the table is parsed, so that a section which
+            // failed to be parsed is parsed again when it is repeated.
+            if (parseTable(data, offset, length)) {
+                acceptSection(sectionKey, versionNumber, crcField, data, offset, length);
+            }
             return;
         }
+        // Records the version before queueing the section, so that the repeated sections are
+        // rejected while the table is being parsed on a worker thread. The version is forgotten
+        // if the table fails to be parsed.
+        acceptSection(sectionKey, versionNumber, crcField, data, offset, length);
+        if (!mLane.offer(data, offset, length, sectionKey)) {
+            // Forgets the dropped section, so that it is accepted again when it is repeated.
+            mSectionVersionTable.remove(sectionKey);
+            if (DEBUG) {
+                Log.d(TAG, "Dropped a section 0x" + Integer.toHexString(data[offset] & 0xff));
+            }
+        }
+    }
+
+    private void acceptSection(long sectionKey, int versionNumber, int crcField, byte[] data,
+            int offset, int length) {
+        mSectionVersionTable.put(sectionKey, versionNumber, crcField);
+        mVersionFilter.add(sectionKey, versionNumber);
+        if (mSectionObserver != null) {
+            mSectionObserver.onSectionAccepted(mPid, data, offset, length);
+        }
+    }
+
+    private boolean parseTable(byte[] data, int offset, int length) {
         boolean result = false;
-        switch (data[0]) {
+        switch (data[offset]) {
             case TABLE_ID_PAT:
-                result = parsePAT(data);
+                result = parsePAT(data, offset, length);
                 break;
             case TABLE_ID_PMT:
-                result = parsePMT(data);
+                result = parsePMT(data, offset, length);
                 break;
             case TABLE_ID_MGT:
-                result = parseMGT(data);
+                result = parseMGT(data, offset, length);
                 break;
             case TABLE_ID_TVCT:
             case TABLE_ID_CVCT:
-                result = parseVCT(data);
+                result = parseVCT(data, offset, length);
                 break;
             case TABLE_ID_EIT:
-                result = parseEIT(data);
+                result = parseEIT(data, offset, length);
                 break;
             case TABLE_ID_ETT:
-                result = parseETT(data);
+                result = parseETT(data, offset, length);
                 break;
             default:
                 break;
         }
-        if (result) {
-            mSectionVersionMap.put(section, versionNumber);
-        }
+        return result;
     }
 
-    private boolean parsePAT(byte[] data) {
+    private long getSectionKey(byte[] data, int offset) {
+        return SectionVersionTable.makeKey(mPid, data[offset] & 0xff,
+                ((data[offset + 3] & 0xff) << 8) | (data[offset + 4] & 0xff),
+                data[offset + 6] & 0xff);
+    }
+
+    private boolean parsePAT(byte[] data, int offset, int length) {
         if (DEBUG) {
             Log.d(TAG, "PAT is discovered.");
         }
-        int pos = 8;
+        int limit = offset + length;
+        int pos = offset + 8;
 
         List<PatItem> results = new ArrayList<>();
-        for (; pos < data.length - 4; pos = pos + 4) {
-            if (pos > data.length - 4 - 4) {
+        for (; pos < limit - 4; pos = pos + 4) {
+            if (pos > limit - 4 - 4) {
                 Log.e(TAG, "Broken PAT.");
                 return false;
             }
@@ -440,37 +671,38 @@ public class SectionParser {
         return true;
     }
 
-    private boolean parsePMT(byte[] data) {
-        int table_id_ext = ((data[3] & 0xff) << 8) | (data[4] & 0xff);
+    private boolean parsePMT(byte[] data, int offset, int length) {
+        int table_id_ext = ((data[offset + 3] & 0xff) << 8) | (data[offset + 4] & 0xff);
         if (DEBUG) {
             Log.d(TAG, "PMT is discovered. programNo = " + table_id_ext);
         }
-        if (data.length <= 11) {
+        if (length <= 11) {
             Log.e(TAG, "Broken PMT.");
             return false;
         }
-        int pcrPid = (data[8] & 0x1f) << 8 | data[9];
-        int programInfoLen = (data[10] & 0x0f) << 8 | data[11];
-        int pos = 12;
-        List<TsDescriptor> descriptors = parseDescriptors(data, pos, pos + programInfoLen);
+        int limit = offset + length;
+        int pcrPid = (data[offset + 8] & 0x1f) << 8 | data[offset + 9];
+        int programInfoLen = (data[offset + 10] & 0x0f) << 8 | data[offset + 11];
+        int pos = offset + 12;
+        List<TsDescriptor> descriptors = parseDescriptors(data, pos, pos + programInfoLen, limit);
         pos += programInfoLen;
         if (DEBUG) {
             Log.d(TAG, "PMT descriptors size: " + descriptors.size());
         }
         List<PmtItem> results = new ArrayList<>();
-        for (; pos < data.length - 4;) {
-            if (pos < 0) {
+        for (; pos < limit - 4;) {
+            if (pos < offset) {
                 Log.e(TAG, "Broken PMT.");
                 return false;
             }
             int streamType = data[pos] & 0xff;
             int esPid = (data[pos + 1] & 0x1f) << 8 | (data[pos + 2] & 0xff);
             int esInfoLen = (data[pos + 3] & 0xf) << 8 | (data[pos + 4] & 0xff);
-            if (data.length < pos + esInfoLen + 5) {
+            if (limit < pos + esInfoLen + 5) {
                 Log.e(TAG, "Broken PMT.");
                 return false;
             }
-            descriptors = parseDescriptors(data, pos + 5, pos + 5 + esInfoLen);
+            descriptors = parseDescriptors(data, pos + 5, pos + 5 + esInfoLen, limit);
             List<AtscAudioTrack> audioTracks = generateAudioTracks(descriptors);
             List<AtscCaptionTrack> captionTracks = generateCaptionTracks(descriptors);
             PmtItem pmtItem = new PmtItem(streamType, esPid, audioTracks, captionTracks);
@@ -487,20 +719,21 @@ public class SectionParser {
         return true;
     }
 
-    private boolean parseMGT(byte[] data) {
+    private boolean parseMGT(byte[] data, int offset, int length) {
         // For details of the structure for MGT, see ATSC A/65 Table 6.2.
         if (DEBUG) {
             Log.d(TAG, "MGT is discovered.");
         }
-        if (data.length <= 10) {
+        if (length <= 10) {
             Log.e(TAG, "Broken MGT.");
             return false;
         }
-        int tablesDefined = ((data[9] & 0xff) << 8) | (data[10] & 0xff);
-        int pos = 11;
+        int limit = offset + length;
+        int tablesDefined = ((data[offset + 9] & 0xff) << 8) | (data[offset + 10] & 0xff);
+        int pos = offset + 11;
         List<MgtItem> results = new ArrayList<>();
         for (int i = 0; i < tablesDefined; ++i) {
-            if (data.length <= pos + 10) {
+            if (limit <= pos + 10) {
                 Log.e(TAG, "Broken MGT.");
                 return false;
             }
@@ -510,7 +743,7 @@ public class SectionParser {
             pos += 11 + descriptorsLength;
             results.add(new MgtItem(tableType, tableTypePid));
         }
-        if ((data[pos] & 0xf0) != 0xf0) {
+        if (limit <= pos || (data[pos] & 0xf0) != 0xf0) {
             Log.e(TAG, "Broken MGT.");
             return false;
         }
@@ -520,18 +753,19 @@ public class SectionParser {
         return true;
     }
 
-    private boolean parseVCT(byte[] data) {
+    private boolean parseVCT(byte[] data, int offset, int length) {
         // For details of the structure for VCT, see ATSC A/65 Table 6.4 and 6.8.
         if (DEBUG) {
             Log.d(TAG, "VCT is discovered.");
         }
-        if (data.length <= 9) {
+        if (length <= 9) {
             Log.e(TAG, "Broken VCT.");
             return false;
         }
-        int numChannelsInSection = (data[9] & 0xff);
-        int sectionNumber = (data[6] & 0xff);
-        int lastSectionNumber = (data[7] & 0xff);
+        int limit = offset + length;
+        int numChannelsInSection = (data[offset + 9] & 0xff);
+        int sectionNumber = (data[offset + 6] & 0xff);
+        int lastSectionNumber = (data[offset + 7] & 0xff);
         if (sectionNumber > lastSectionNumber) {
             // According to section 6.3.1 of the spec ATSC A/65,
             // last section number is the largest section number.
@@ -539,18 +773,17 @@ public class SectionParser {
                     + lastSectionNumber);
             return false;
         }
-        int pos = 10;
+        int pos = offset + 10;
         List<VctItem> results = new ArrayList<>();
         for (int i = 0; i < numChannelsInSection; ++i) {
-            if (data.length <= pos + 31) {
+            if (limit <= pos + 31) {
                 Log.e(TAG, "Broken VCT.");
                 return false;
             }
             String shortName = "";
             int shortNameSize = getShortNameSize(data, pos);
             try {
-                shortName = new String(
-                        Arrays.copyOfRange(data, pos, pos + shortNameSize), "UTF-16");
+                shortName = new String(data, pos, shortNameSize, "UTF-16");
             } catch (UnsupportedEncodingException e) {
                 Log.e(TAG, "Broken VCT.", e);
                 return false;
@@ -576,12 +809,12 @@ public class SectionParser {
             int descriptorsPos = pos + 32;
             int descriptorsLength = ((data[pos + 30] & 0x03) << 8) | (data[pos + 31] & 0xff);
             pos += 32 + descriptorsLength;
-            if (data.length < pos) {
+            if (limit < pos) {
                 Log.e(TAG, "Broken VCT.");
                 return false;
             }
             List<TsDescriptor> descriptors = parseDescriptors(
-                    data, descriptorsPos, descriptorsPos + descriptorsLength);
+                    data, descriptorsPos, descriptorsPos + descriptorsLength, limit);
             String longName = null;
             for (TsDescriptor descriptor : descriptors) {
                 if (descriptor instanceof ExtendedChannelNameDescriptor) {
@@ -614,22 +847,23 @@ public class SectionParser {
         return true;
     }
 
-    private boolean parseEIT(byte[] data) {
+    private boolean parseEIT(byte[] data, int offset, int length) {
         // For details of the structure for EIT, see ATSC A/65 Table 6.11.
         if (DEBUG) {
             Log.d(TAG, "EIT is discovered.");
         }
-        if (data.length <= 9) {
+        if (length <= 9) {
             Log.e(TAG, "Broken EIT.");
             return false;
         }
-        int sourceId = ((data[3] & 0xff) << 8) | (data[4] & 0xff);
-        int numEventsInSection = (data[9] & 0xff);
+        int limit = offset + length;
+        int sourceId = ((data[offset + 3] & 0xff) << 8) | (data[offset + 4] & 0xff);
+        int numEventsInSection = (data[offset + 9] & 0xff);
 
-        int pos = 10;
+        int pos = offset + 10;
         List<EitItem> results = new ArrayList<>();
         for (int i = 0; i < numEventsInSection; ++i) {
-            if (data.length <= pos + 9) {
+            if (limit <= pos + 9) {
                 Log.e(TAG, "Broken EIT.");
                 return false;
             }
@@ -643,13 +877,13 @@ public class SectionParser {
             int lengthInSecond = ((data[pos + 6] & 0x0f) << 16)
                     | ((data[pos + 7] & 0xff) << 8) | (data[pos + 8] & 0xff);
             int titleLength = (data[pos + 9] & 0xff);
-            if (data.length <= pos + 10 + titleLength + 1) {
+            if (limit <= pos + 10 + titleLength + 1) {
                 Log.e(TAG, "Broken EIT.");
                 return false;
             }
             String titleText = "";
             if (titleLength > 0) {
-                titleText = extractText(data, pos + 10);
+                titleText = extractText(data, pos + 10, limit);
             }
             if ((data[pos + 10 + titleLength] & 0xf0) != 0xf0) {
                 Log.e(TAG, "Broken EIT.");
@@ -658,12 +892,12 @@ public class SectionParser {
             int descriptorsLength = ((data[pos + 10 + titleLength] & 0x0f) << 8)
                     | (data[pos + 10 + titleLength + 1] & 0xff);
             int descriptorsPos = pos + 10 + titleLength + 2;
-            if (data.length < descriptorsPos + descriptorsLength) {
+            if (limit < descriptorsPos + descriptorsLength) {
                 Log.e(TAG, "Broken EIT.");
                 return false;
             }
             List<TsDescriptor> descriptors = parseDescriptors(
-                    data, descriptorsPos, descriptorsPos + descriptorsLength);
+                    data, descriptorsPos, descriptorsPos + descriptorsLength, limit);
             if (DEBUG) {
                 Log.d(TAG, String.format("EIT descriptors size: %d", descriptors.size()));
             }
@@ -683,18 +917,18 @@ public class SectionParser {
         return true;
     }
 
-    private boolean parseETT(byte[] data) {
+    private boolean parseETT(byte[] data, int offset, int length) {
         // For details of the structure for ETT, see ATSC A/65 Table 6.13.
         if (DEBUG) {
             Log.d(TAG, "ETT is discovered.");
         }
-        if (data.length <= 12) {
+        if (length <= 12) {
             Log.e(TAG, "Broken ETT.");
             return false;
         }
-        int sourceId = ((data[9] & 0xff) << 8) | (data[10] & 0xff);
-        int eventId = (((data[11] & 0xff) << 8) | (data[12] & 0xff)) >> 2;
-        String text = extractText(data, 13);
+        int sourceId = ((data[offset + 9] & 0xff) << 8) | (data[offset + 10] & 0xff);
+        int eventId = (((data[offset + 11] & 0xff) << 8) | (data[offset + 12] & 0xff)) >> 2;
+        String text = extractText(data, offset + 13, offset + length);
         List<EttItem> ettItems = mParsedEttItems.get(sourceId);
         if (ettItems == null) {
             ettItems = new ArrayList<>();
@@ -849,10 +1083,11 @@ public class SectionParser {
         return null;
     }
 
-    private static List<TsDescriptor> parseDescriptors(byte[] data, int offset, int limit) {
+    private static List<TsDescriptor> parseDescriptors(byte[] data, int offset, int limit,
+            int sectionLimit) {
         // For details of the structure for descriptors, see ATSC A/65 Section 6.9.
         List<TsDescriptor> descriptors = new ArrayList<>();
-        if (data.length < limit) {
+        if (sectionLimit < limit) {
             return descriptors;
         }
         int pos = offset;
@@ -1007,7 +1242,7 @@ public class SectionParser {
                 Log.e(TAG, "Broken ContentAdvisory");
                 return null;
             }
-            String ratingDescription = extractText(data, pos);
+            String ratingDescription = extractText(data, pos, limit);
             pos += ratingDescriptionLength;
             ratingRegions.add(new RatingRegion(ratingRegion, ratingDescription, indices));
         }
@@ -1021,7 +1256,7 @@ public class SectionParser {
             return null;
         }
         pos += 2;
-        String text = extractText(data, pos);
+        String text = extractText(data, pos, limit);
         if (text == null) {
             Log.e(TAG, "Broken ExtendedChannelName.");
             return null;
@@ -1198,41 +1433,41 @@ public class SectionParser {
         return MAX_SHORT_NAME_BYTES;
     }
 
-    private static String extractText(byte[] data, int pos) {
-        if (data.length < pos)  {
+    private static String extractText(byte[] data, int pos, int limit) {
+        if (limit < pos)  {
             return null;
         }
         int numStrings = data[pos] & 0xff;
         pos++;
         for (int i = 0; i < numStrings; ++i) {
-            if (data.length <= pos + 3) {
+            if (limit <= pos + 3) {
                 Log.e(TAG, "Broken text.");
                 return null;
             }
             int numSegments = data[pos + 3] & 0xff;
             pos += 4;
             for (int j = 0; j < numSegments; ++j) {
-                if (data.length <= pos + 2) {
+                if (limit <= pos + 2) {
                     Log.e(TAG, "Broken text.");
                     return null;
                 }
                 int compressionType = data[pos] & 0xff;
                 int mode = data[pos + 1] & 0xff;
                 int numBytes = data[pos + 2] & 0xff;
-                if (data.length < pos + 3 + numBytes) {
+                if (limit < pos + 3 + numBytes) {
                     Log.e(TAG, "Broken text.");
                     return null;
                 }
-                byte[] bytes = Arrays.copyOfRange(data, pos + 3, pos + 3 + numBytes);
                 if (compressionType == COMPRESSION_TYPE_NO_COMPRESSION) {
                     try {
                         switch (mode) {
                             case MODE_SELECTED_UNICODE_RANGE_1:
-                                return new String(bytes, "ISO-8859-1");
+                                return new String(data, pos + 3, numBytes, "ISO-8859-1");
                             case MODE_SCSU:
-                                return UnicodeDecompressor.decompress(bytes);
+                                return UnicodeDecompressor.decompress(
+                                        Arrays.copyOfRange(data, pos + 3, pos + 3 + numBytes));
                             case MODE_UTF16:
-                                return new String(bytes, "UTF-16");
+                                return new String(data, pos + 3, numBytes, "UTF-16");
                         }
                     } catch (UnsupportedEncodingException e) {
                         Log.e(TAG, "Unsupported text format.", e);
@@ -1244,21 +1479,54 @@ public class SectionParser {
         return null;
     }
 
-    private static boolean checkSanity(byte[] data) {
-        if (data.length <= 1) {
+    private static boolean hasCrc(byte[] data, int offset) {
+        return (data[offset + 1] & 0x80) != 0; // section_syntax_indicator
+    }
+
+    private boolean checkSanity(byte[] data, int offset, int length) {
+        if (length <= 1) {
             return false;
         }
-        boolean hasCRC = (data[1] & 0x80) != 0; // section_syntax_indicator
-        if (hasCRC) {
-            int crc = 0xffffffff;
-            for(byte b : data) {
-                int index = ((crc >> 24) ^ (b & 0xff)) & 0xff;
-                crc = CRC_TABLE[index] ^ (crc << 8);
-            }
-            if(crc != 0){
-                return false;
-            }
+        if (hasCrc(data, offset) && mCrcEngine.compute(data, offset, length) != 0) {
+            return false;
         }
         return true;
     }
+
+    /**
+     * A bloom filter of the parsed section versions. It never misses a parsed version, but can
+     * report a version which wasn't parsed, so a positive answer should be confirmed with
+     * {@link SectionVersionTable}.
+     */
+    private static class VersionFilter {
+        private static final int SIZE_IN_BITS = 1024;
+
+        private final long[] mBits = new long[SIZE_IN_BITS / 64];
+
+        void add(long key, int version) {
+            long hash = hash(key, version);
+            setBit((int) hash);
+            setBit((int) (hash >>> 32));
+        }
+
+        boolean mightContain(long key, int version) {
+            long hash = hash(key, version);
+            return getBit((int) hash) && getBit((int) (hash >>> 32));
+        }
+
+        private void setBit(int bit) {
+            bit &= SIZE_IN_BITS - 1;
+            mBits[bit >>> 6] |= 1L << bit;
+        }
+
+        private boolean getBit(int bit) {
+            bit &= SIZE_IN_BITS - 1;
+            return (mBits[bit >>> 6] & (1L << bit)) != 0;
+        }
+
+        private static long hash(long key, int version) {
+            long hash = (key << 5 | version) * 0x9e3779b97f4a7c15L;
+            return hash ^ (hash >>> 29);
+        }
+    }
 }
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.ts;
+
+import android.os.Process;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hands PSIP sections over from the thread which feeds TS packets to worker threads.
+ *
+ * <p>Sections are reassembled on the streaming thread, and queued to a {@link Lane}. Each PID has
+ * its own lane, and a lane is drained by at most one worker at a time, so the sections of a PID
+ * are handled in order while the sections of different PIDs are handled in parallel.
+ *
+ * <p>A lane is a bounded single-producer single-consumer ring, so queueing a section never blocks
+ * the streaming thread. When a lane is full, a new version of a queued section replaces it, and a
+ * new section takes the slot of a queued section which is superseded and would be skipped anyway.
+ * Otherwise, the section is dropped and should be accepted again when the carousel repeats it, so
+ * only the tables which are repeated often, e.g. EIT and ETT, should be parsed on a pipeline.
+ */
+public class SectionPipeline {
+    private static final int WORKER_COUNT =
+            Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+    private static final int LANE_CAPACITY = 32;
+    private static final int MIN_SLOT_SIZE = 1024;
+
+    // The states of a slot. A queued slot is FILLED, and is owned by the producer while it's
+    // replaced and by the consumer while it's handled.
+    private static final int SLOT_FREE = 0;
+    private static final int SLOT_FILLED = 1;
+    private static final int SLOT_WRITING = 2;
+    private static final int SLOT_HANDLING = 3;
+
+    /**
+     * Handles the sections of a lane on a worker thread.
+     */
+    public interface SectionHandler {
+        /**
+         * Handles a section. The section is only valid during this call.
+         */
+        void handleSection(byte[] data, int offset, int length);
+
+        /**
+         * Called after the queued sections were handled.
+         */
+        void onSectionsHandled();
+    }
+
+    private static class LazyHolder {
+        private static final SectionPipeline INSTANCE = new SectionPipeline(
+                Executors.newFixedThreadPool(WORKER_COUNT, new WorkerThreadFactory()));
+    }
+
+    /**
+     * Returns the pipeline which runs on the shared worker threads.
+     */
+    public static SectionPipeline getDefault() {
+        return LazyHolder.INSTANCE;
+    }
+
+    private final Executor mExecutor;
+
+    /**
+     * Creates a pipeline which handles the sections on the given executor.
+     */
+    public SectionPipeline(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Creates a lane whose sections are handled by the given handler.
+     */
+    public Lane createLane(SectionHandler handler) {
+        return new Lane(handler);
+    }
+
+    /**
+     * A queue of the sections of a PID.
+     */
+    public final class Lane implements Runnable {
+        private final SectionHandler mHandler;
+        private final byte[][] mSlots = new byte[LANE_CAPACITY][];
+        private final int[] mLengths = new int[LANE_CAPACITY];
+        private final AtomicLongArray mKeys = new AtomicLongArray(LANE_CAPACITY);
+        private final AtomicIntegerArray mStates = new AtomicIntegerArray(LANE_CAPACITY);
+        // mTail is only written by the producer and mHead is only written by the consumer.
+        private final AtomicLong mHead = new AtomicLong();
+        private final AtomicLong mTail = new AtomicLong();
+        private final AtomicBoolean mScheduled = new AtomicBoolean();
+        private volatile boolean mClosed;
+
+        private Lane(SectionHandler handler) {
+            mHandler = handler;
+        }
+
+        /**
+         * Queues a copy of a section. This should be called on a single thread.
+         *
+         * @param key the key which identifies the section regardless of its version. A queued
+         *            section is skipped if a newer one with the same key is queued after it.
+         * @return {@code false} if the section is dropped since the lane is full or closed
+         */
+        public boolean offer(byte[] data, int offset, int length, long key) {
+            if (mClosed) {
+                return false;
+            }
+            long tail = mTail.get();
+            if (tail - mHead.get() >= LANE_CAPACITY) {
+                // The lane is being drained, so it doesn't need to be scheduled.
+                return replace(data, offset, length, key, tail);
+            }
+            int index = (int) tail & (LANE_CAPACITY - 1);
+            write(index, data, offset, length, key);
+            mTail.lazySet(tail + 1);
+            if (mScheduled.compareAndSet(false, true)) {
+                mExecutor.execute(this);
+            }
+            return true;
+        }
+
+        /**
+         * Stops handling the sections. The sections which are queued will be discarded.
+         */
+        public void close() {
+            mClosed = true;
+        }
+
+        @Override
+        public void run() {
+            do {
+                drain();
+                mScheduled.set(false);
+                // A section can be queued after draining and before clearing the flag. In that
+                // case, the producer didn't schedule the lane, so it should be drained again.
+            } while (mHead.get() != mTail.get() && mScheduled.compareAndSet(false, true));
+        }
+
+        private void write(int index, byte[] data, int offset, int length, long key) {
+            byte[] slot = mSlots[index];
+            if (slot == null || slot.length < length) {
+                slot = new byte[Math.max(length, MIN_SLOT_SIZE)];
+                mSlots[index] = slot;
+            }
+            System.arraycopy(data, offset, slot, 0, length);
+            mLengths[index] = length;
+            mKeys.set(index, key);
+            // Publishes the slot to the consumer.
+            mStates.set(index, SLOT_FILLED);
+        }
+
+        private boolean replace(byte[] data, int offset, int length, long key, long tail) {
+            long head = mHead.get();
+            // Replaces the latest queued section with the same key, which is an older version.
+            for (long i = tail - 1; i >= head; --i) {
+                int index = (int) i & (LANE_CAPACITY - 1);
+                if (mKeys.get(index) == key) {
+                    if (mStates.compareAndSet(index, SLOT_FILLED, SLOT_WRITING)) {
+                        write(index, data, offset, length, key);
+                        return true;
+                    }
+                    // It's being handled or was handled, so the sections which are still queued
+                    // are after it.
+                    break;
+                }
+            }
+            // Takes the slot of a section which would be skipped. The section which supersedes
+            // it is still queued after it, and is never replaced with another key.
+            for (long i = head; i < tail; ++i) {
+                int index = (int) i & (LANE_CAPACITY - 1);
+                if (isSuperseded(index, i + 1, tail)
+                        && mStates.compareAndSet(index, SLOT_FILLED, SLOT_WRITING)) {
+                    write(index, data, offset, length, key);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void drain() {
+            long head = mHead.get();
+            long tail = mTail.get();
+            if (head == tail) {
+                return;
+            }
+            for (; head < tail; ++head) {
+                int index = (int) head & (LANE_CAPACITY - 1);
+                while (!mStates.compareAndSet(index, SLOT_FILLED, SLOT_HANDLING)) {
+                    // The producer is replacing the section.
+                    Thread.yield();
+                }
+                if (!mClosed && !isSuperseded(index, head + 1, tail)) {
+                    mHandler.handleSection(mSlots[index], 0, mLengths[index]);
+                }
+                mStates.set(index, SLOT_FREE);
+                // Releases the slot after handling it, so that the producer doesn't overwrite it.
+                mHead.lazySet(head + 1);
+            }
+            if (!mClosed) {
+                mHandler.onSectionsHandled();
+            }
+        }
+
+        private boolean isSuperseded(int index, long from, long tail) {
+            long key = mKeys.get(index);
+            for (long i = from; i < tail; ++i) {
+                if (mKeys.get((int) i & (LANE_CAPACITY - 1)) == key) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // Parsing PSIP tables shouldn't compete with the playback threads.
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "SectionPipeline-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
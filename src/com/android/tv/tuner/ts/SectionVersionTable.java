@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.ts;
+
+import java.util.Arrays;
+
+/**
+ * Stores the last parsed version and CRC_32 of PSIP sections.
+ *
+ * <p>A section is identified by its PID, table_id, table_id_extension and section_number, which
+ * are packed into a long key by {@link #makeKey}. The keys are stored in an open-addressing hash
+ * table with linear probing, so that looking up a repeated section doesn't allocate any object.
+ * Like {@link android.util.SparseIntArray}, an entry is accessed with {@link #indexOfKey} and
+ * {@link #versionAt}/{@link #crcAt}.
+ *
+ * <p>This class is not thread-safe.
+ */
+public class SectionVersionTable {
+    private static final long EMPTY_KEY = -1L;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] mKeys;
+    private int[] mVersions;
+    private int[] mCrcs;
+    private int mSize;
+
+    public SectionVersionTable() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Packs the identifiers of a section into a key. The result is always non-negative.
+     */
+    public static long makeKey(int pid, int tableId, int tableIdExtension, int sectionNumber) {
+        return ((long) (pid & 0x1fff) << 32) | (long) (tableId & 0xff) << 24
+                | (tableIdExtension & 0xffff) << 8 | (sectionNumber & 0xff);
+    }
+
+    /**
+     * Returns the PID from the given key.
+     */
+    public static int getPid(long key) {
+        return (int) (key >>> 32) & 0x1fff;
+    }
+
+    /**
+     * Returns the index of the given key, or a negative number if the key is not stored.
+     */
+    public int indexOfKey(long key) {
+        int mask = mKeys.length - 1;
+        for (int index = hash(key) & mask; ; index = (index + 1) & mask) {
+            long storedKey = mKeys[index];
+            if (storedKey == key) {
+                return index;
+            }
+            if (storedKey == EMPTY_KEY) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Returns the version number at the given index.
+     */
+    public int versionAt(int index) {
+        return mVersions[index];
+    }
+
+    /**
+     * Returns the CRC_32 field at the given index.
+     */
+    public int crcAt(int index) {
+        return mCrcs[index];
+    }
+
+    /**
+     * Stores the version number and CRC_32 field of a section, replacing the previous ones.
+     */
+    public void put(long key, int version, int crc) {
+        int mask = mKeys.length - 1;
+        int index = hash(key) & mask;
+        while (mKeys[index] != EMPTY_KEY && mKeys[index] != key) {
+            index = (index + 1) & mask;
+        }
+        if (mKeys[index] == EMPTY_KEY) {
+            // Keeps the load factor at or below 0.5 so that probe sequences stay short.
+            if ((mSize + 1) * 2 > mKeys.length) {
+                rehash(mKeys.length * 2, -1);
+                put(key, version, crc);
+                return;
+            }
+            mKeys[index] = key;
+            ++mSize;
+        }
+        mVersions[index] = version;
+        mCrcs[index] = crc;
+    }
+
+    /**
+     * Removes the section of the given key, if any.
+     */
+    public void remove(long key) {
+        int index = indexOfKey(key);
+        if (index < 0) {
+            return;
+        }
+        // Shifts the following entries of the probe sequence back, so that they can still be
+        // found without tombstones.
+        int mask = mKeys.length - 1;
+        int next = (index + 1) & mask;
+        while (mKeys[next] != EMPTY_KEY) {
+            int home = hash(mKeys[next]) & mask;
+            // Moves the entry if its home slot isn't in the cyclic range (index, next].
+            if (((next - home) & mask) >= ((next - index) & mask)) {
+                mKeys[index] = mKeys[next];
+                mVersions[index] = mVersions[next];
+                mCrcs[index] = mCrcs[next];
+                index = next;
+            }
+            next = (next + 1) & mask;
+        }
+        mKeys[index] = EMPTY_KEY;
+        --mSize;
+    }
+
+    /**
+     * Removes all the sections of the given PID.
+     */
+    public void removeAll(int pid) {
+        rehash(mKeys.length, pid);
+    }
+
+    /**
+     * Returns the number of stored sections.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Removes all the sections.
+     */
+    public void clear() {
+        Arrays.fill(mKeys, EMPTY_KEY);
+        mSize = 0;
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mVersions = new int[capacity];
+        mCrcs = new int[capacity];
+        Arrays.fill(mKeys, EMPTY_KEY);
+        mSize = 0;
+    }
+
+    private void rehash(int capacity, int pidToRemove) {
+        long[] keys = mKeys;
+        int[] versions = mVersions;
+        int[] crcs = mCrcs;
+        allocate(capacity);
+        for (int i = 0; i < keys.length; ++i) {
+            if (keys[i] != EMPTY_KEY && getPid(keys[i]) != pidToRemove) {
+                put(keys[i], versions[i], crcs[i]);
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        // The finalizer of MurmurHash3, which spreads the packed fields over all the bits.
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.ts;
+
+/**
+ * A {@link CrcEngine} which processes eight bytes at a time with the slicing-by-8 algorithm.
+ *
+ * <p>{@code TABLES[k][i]} is the CRC of the byte {@code i} followed by {@code k} zero bytes, so
+ * the eight bytes of a block can be looked up independently and combined with XOR.
+ */
+public class SlicingBy8CrcEngine implements CrcEngine {
+    private static final int SLICE_COUNT = 8;
+    private static final int[][] TABLES = new int[SLICE_COUNT][];
+
+    static {
+        TABLES[0] = SectionParser.CRC_TABLE;
+        for (int k = 1; k < SLICE_COUNT; ++k) {
+            TABLES[k] = new int[256];
+            for (int i = 0; i < 256; ++i) {
+                int crc = TABLES[k - 1][i];
+                TABLES[k][i] = (crc << 8) ^ TABLES[0][crc >>> 24];
+            }
+        }
+    }
+
+    @Override
+    public int compute(byte[] data, int offset, int length) {
+        int[] t0 = TABLES[0];
+        int[] t1 = TABLES[1];
+        int[] t2 = TABLES[2];
+        int[] t3 = TABLES[3];
+        int[] t4 = TABLES[4];
+        int[] t5 = TABLES[5];
+        int[] t6 = TABLES[6];
+        int[] t7 = TABLES[7];
+        int crc = 0xffffffff;
+        int pos = offset;
+        int limit = offset + length;
+        for (; pos + SLICE_COUNT <= limit; pos += SLICE_COUNT) {
+            crc ^= (data[pos] & 0xff) << 24 | (data[pos + 1] & 0xff) << 16
+                    | (data[pos + 2] & 0xff) << 8 | (data[pos + 3] & 0xff);
+            crc = t7[crc >>> 24] ^ t6[(crc >>> 16) & 0xff] ^ t5[(crc >>> 8) & 0xff]
+                    ^ t4[crc & 0xff] ^ t3[data[pos + 4] & 0xff] ^ t2[data[pos + 5] & 0xff]
+                    ^ t1[data[pos + 6] & 0xff] ^ t0[data[pos + 7] & 0xff];
+        }
+        for (; pos < limit; ++pos) {
+            crc = t0[((crc >>> 24) ^ data[pos]) & 0xff] ^ (crc << 8);
+        }
+        return crc;
+    }
+}
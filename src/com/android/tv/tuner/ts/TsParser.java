@@ -29,6 +29,7 @@ import com.android.tv.tuner.data.PsipData.VctItem;
 import com.android.tv.tuner.data.TunerChannel;
 import com.android.tv.tuner.ts.SectionParser.OutputListener;
 import com.android.tv.tuner.util.ByteArrayBuffer;
+import com.android.tv.tuner.util.ZapTracer;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -36,9 +37,14 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Parses MPEG-2 TS packets.
+ *
+ * <p>The sections are reassembled on the thread which calls {@link #feedTSData}. If a
+ * {@link SectionPipeline} is given, the tables are parsed and {@link TsOutputListener} is called
+ * on its worker threads.
  */
 public class TsParser {
     private static final String TAG = "TsParser";
@@ -59,6 +65,18 @@ public class TsParser {
      * mStreamMap is the only one called at such a high rate.
      */
     private final SparseArray<Stream> mStreamMap = new SparseArray<>();
+    // The versions of the parsed sections, which are shared by the section streams.
+    private final SectionVersionTable mSectionVersionTable = new SectionVersionTable();
+    // The PIDs to start listening to. They are added by the output listeners, which can run on
+    // worker threads, and are handed over to the thread which feeds TS packets.
+    private final ConcurrentLinkedQueue<Integer> mPendingPids = new ConcurrentLinkedQueue<>();
+    private final SectionPipeline mSectionPipeline;
+    private SectionParser.SectionObserver mSectionObserver;
+    private ZapTracer.Zap mZap;
+
+    // Guards the states below, which are updated by the output listeners of the section streams.
+    private final Object mLock = new Object();
+    private final SparseBooleanArray mListeningPids = new SparseBooleanArray();
     private final Map<Integer, VctItem> mSourceIdToVctItemMap = new HashMap<>();
     private final Map<Integer, String> mSourceIdToVctItemDescriptionMap = new HashMap<>();
     private final Map<Integer, VctItem> mProgramNumberToVctItemMap = new HashMap<>();
@@ -72,6 +90,11 @@ public class TsParser {
     private final SparseBooleanArray mVctItemHandledStatus = new SparseBooleanArray();
     private final TsOutputListener mListener;
 
+    private boolean mReleased;
+    // Whether the stored sections are being parsed, and the VCT sections which were stored. A
+    // stored VCT section is replaced when a newer version is received.
+    private boolean mParsingStoredSections;
+    private final SparseBooleanArray mStoredVctSections = new SparseBooleanArray();
     private int mVctItemCount;
     private int mHandledVctItemCount;
     private int mVctSectionParsedCount;
@@ -93,54 +116,83 @@ public class TsParser {
         protected int mContinuityCounter = INVALID_CONTINUITY_COUNTER;
         protected final ByteArrayBuffer mPacket = new ByteArrayBuffer(TS_PACKET_SIZE);
 
-        public void feedData(byte[] data, int continuityCounter, boolean startIndicator) {
+        /** Releases the resources which are held by the stream. */
+        public void release() { }
+
+        /**
+         * Feeds the payload of a TS packet. The payload is given as a view into the caller's
+         * buffer and is only valid during this call, so implementations should not keep a
+         * reference to {@code data}.
+         */
+        public void feedData(byte[] data, int offset, int length, int continuityCounter,
+                boolean startIndicator) {
             if ((mContinuityCounter + 1) % NUM_CONTINUITY_COUNTER != continuityCounter) {
                 mPacket.setLength(0);
             }
             mContinuityCounter = continuityCounter;
-            handleData(data, startIndicator);
+            handleData(data, offset, length, startIndicator);
         }
 
-        protected abstract void handleData(byte[] data, boolean startIndicator);
+        protected abstract void handleData(byte[] data, int offset, int length,
+                boolean startIndicator);
     }
 
     private class SectionStream extends Stream {
         private final SectionParser mSectionParser;
         private final int mPid;
 
-        public SectionStream(int pid) {
+        public SectionStream(int pid, SectionPipeline pipeline) {
             mPid = pid;
-            mSectionParser = new SectionParser(mSectionListener);
+            mSectionParser = new SectionParser(new LockedOutputListener(mSectionListener),
+                    mSectionVersionTable, pid, pipeline);
+            mSectionParser.setSectionObserver(mSectionObserver);
+        }
+
+        @Override
+        public void release() {
+            mSectionParser.release();
         }
 
         @Override
-        protected void handleData(byte[] data, boolean startIndicator) {
-            int startPos = 0;
+        protected void handleData(byte[] data, int offset, int length, boolean startIndicator) {
+            if (length <= 0) {
+                // An empty payload carries neither a pointer field nor section data.
+                return;
+            }
+            int limit = offset + length;
+            int startPos = offset;
             if (mPacket.length() == 0) {
                 if (startIndicator) {
-                    startPos = (data[0] & 0xff) + 1;
+                    startPos = offset + (data[offset] & 0xff) + 1;
+                    // Sections which were parsed before with the same versions don't need to be
+                    // reassembled. If all the sections in this packet are skipped, the remaining
+                    // packets are discarded until the next start indicator.
+                    startPos = mSectionParser.skipKnownSections(data, startPos, limit);
                 } else {
                     // Don't know where the section starts yet. Wait until start indicator is on.
                     return;
                 }
             } else {
                 if (startIndicator) {
-                    startPos = 1;
+                    startPos = offset + 1;
                 }
             }
 
             // When a broken packet is encountered, parsing will stop and return right away.
-            if (startPos >= data.length) {
+            if (startPos >= limit) {
                 mPacket.setLength(0);
                 return;
             }
-            mPacket.append(data, startPos, data.length - startPos);
+            mPacket.append(data, startPos, limit - startPos);
             mSectionParser.parseSections(mPacket);
         }
 
         private final OutputListener mSectionListener = new OutputListener() {
             @Override
             public void onPatParsed(List<PatItem> items) {
+                if (mZap != null) {
+                    mZap.markStage(ZapTracer.STAGE_PAT_PARSED);
+                }
                 for (PatItem i : items) {
                     startListening(i.getPmtPid());
                 }
@@ -151,6 +203,9 @@ public class TsParser {
 
             @Override
             public void onPmtParsed(int programNumber, List<PmtItem> items) {
+                if (mZap != null) {
+                    mZap.markStage(ZapTracer.STAGE_PMT_PARSED);
+                }
                 mProgramNumberToPMTMap.put(programNumber, items);
                 if (DEBUG) {
                     Log.d(TAG, "onPMTParsed, programNo " + programNumber + " handledStatus is "
@@ -179,7 +234,7 @@ public class TsParser {
             @Override
             public void onMgtParsed(List<MgtItem> items) {
                 for (MgtItem i : items) {
-                    if (mStreamMap.get(i.getTableTypePid()) != null) {
+                    if (mListeningPids.get(i.getTableTypePid())) {
                         continue;
                     }
                     if (i.getTableType() >= MgtItem.TABLE_TYPE_EIT_RANGE_START
@@ -203,18 +258,32 @@ public class TsParser {
 
             @Override
             public void onVctParsed(List<VctItem> items, int sectionNumber, int lastSectionNumber) {
+                boolean replacesStoredSection = false;
                 if (mVctSectionParsed == null) {
                     mVctSectionParsed = new boolean[lastSectionNumber + 1];
+                } else if (sectionNumber >= mVctSectionParsed.length) {
+                    // The stored VCT had fewer sections.
+                    mVctSectionParsed = Arrays.copyOf(mVctSectionParsed, lastSectionNumber + 1);
                 } else if (mVctSectionParsed[sectionNumber]) {
-                    // The current section was handled before.
-                    if (DEBUG) {
-                        Log.d(TAG, "Duplicate VCT section found.");
+                    if (!mStoredVctSections.get(sectionNumber)) {
+                        // The current section was handled before.
+                        if (DEBUG) {
+                            Log.d(TAG, "Duplicate VCT section found.");
+                        }
+                        return;
                     }
-                    return;
+                    // A newer version is received, so the channels are updated with it.
+                    mStoredVctSections.delete(sectionNumber);
+                    replacesStoredSection = true;
+                }
+                if (mParsingStoredSections) {
+                    mStoredVctSections.put(sectionNumber, true);
+                }
+                if (!replacesStoredSection) {
+                    mVctSectionParsed[sectionNumber] = true;
+                    mVctSectionParsedCount++;
+                    mVctItemCount += items.size();
                 }
-                mVctSectionParsed[sectionNumber] = true;
-                mVctSectionParsedCount++;
-                mVctItemCount += items.size();
                 for (VctItem i : items) {
                     if (DEBUG) Log.d(TAG, "onVCTParsed " + i);
                     if (i.getSourceId() != 0) {
@@ -227,6 +296,9 @@ public class TsParser {
                     if (pmtList != null) {
                         mProgramNumberHandledStatus.put(programNumber, true);
                         handleVctItem(i, pmtList);
+                        if (replacesStoredSection) {
+                            continue;
+                        }
                         mHandledVctItemCount++;
                         if (mHandledVctItemCount >= mVctItemCount
                                 && mVctSectionParsedCount >= mVctSectionParsed.length
@@ -279,6 +351,72 @@ public class TsParser {
         };
     }
 
+    /**
+     * Serializes the output listeners of the section streams, whose sections can be parsed on
+     * different worker threads at the same time.
+     */
+    private class LockedOutputListener implements OutputListener {
+        private final OutputListener mOutputListener;
+
+        LockedOutputListener(OutputListener outputListener) {
+            mOutputListener = outputListener;
+        }
+
+        @Override
+        public void onPatParsed(List<PatItem> items) {
+            synchronized (mLock) {
+                if (!mReleased) {
+                    mOutputListener.onPatParsed(items);
+                }
+            }
+        }
+
+        @Override
+        public void onPmtParsed(int programNumber, List<PmtItem> items) {
+            synchronized (mLock) {
+                if (!mReleased) {
+                    mOutputListener.onPmtParsed(programNumber, items);
+                }
+            }
+        }
+
+        @Override
+        public void onMgtParsed(List<MgtItem> items) {
+            synchronized (mLock) {
+                if (!mReleased) {
+                    mOutputListener.onMgtParsed(items);
+                }
+            }
+        }
+
+        @Override
+        public void onVctParsed(List<VctItem> items, int sectionNumber, int lastSectionNumber) {
+            synchronized (mLock) {
+                if (!mReleased) {
+                    mOutputListener.onVctParsed(items, sectionNumber, lastSectionNumber);
+                }
+            }
+        }
+
+        @Override
+        public void onEitParsed(int sourceId, List<EitItem> items) {
+            synchronized (mLock) {
+                if (!mReleased) {
+                    mOutputListener.onEitParsed(sourceId, items);
+                }
+            }
+        }
+
+        @Override
+        public void onEttParsed(int sourceId, List<EttItem> descriptions) {
+            synchronized (mLock) {
+                if (!mReleased) {
+                    mOutputListener.onEttParsed(sourceId, descriptions);
+                }
+            }
+        }
+    }
+
     private static class EventSourceEntry {
         public final int pid;
         public final int sourceId;
@@ -376,13 +514,111 @@ public class TsParser {
      * @param listener TsOutputListener
      */
     public TsParser(TsOutputListener listener) {
+        this(listener, null);
+    }
+
+    /**
+     * Creates MPEG-2 TS parser which parses EIT and ETT sections on the given pipeline. The other
+     * tables are always parsed in {@link #feedTSData}.
+     * @param listener TsOutputListener which is called on the worker threads of the pipeline for
+     *            EIT and ETT
+     * @param pipeline SectionPipeline, or {@code null} to parse all the tables in
+     *            {@link #feedTSData}
+     */
+    public TsParser(TsOutputListener listener, SectionPipeline pipeline) {
+        mListener = listener;
+        mSectionPipeline = pipeline;
         startListening(ATSC_SI_BASE_PID);
         startListening(PAT_PID);
-        mListener = listener;
+    }
+
+    /**
+     * Stops parsing. {@link TsOutputListener} won't be called after this returns.
+     */
+    public void release() {
+        synchronized (mLock) {
+            mReleased = true;
+        }
+    }
+
+    /**
+     * Sets the observer of the sections which are accepted to be parsed. This should be called
+     * before feeding TS packets.
+     */
+    public void setSectionObserver(SectionParser.SectionObserver observer) {
+        mSectionObserver = observer;
+    }
+
+    /**
+     * Sets the zap whose PAT and PMT stages are marked. This should be called before feeding TS
+     * packets, and only when the TS is for a zap.
+     */
+    public void setZap(ZapTracer.Zap zap) {
+        mZap = zap;
+    }
+
+    /**
+     * Parses the sections which were received before, e.g. on the last tune to the same channel,
+     * so that the channel information is available before the sections are received again.
+     *
+     * <p>The sections are parsed on the calling thread, which should be the thread feeding TS
+     * packets, before any packet is fed. The same sections received later are skipped, while the
+     * sections with newer versions replace them.
+     *
+     * @param pids the PIDs of the sections
+     * @param sections the complete sections, in the order of PAT, PMT, MGT and VCT
+     */
+    public void parseStoredSections(int[] pids, byte[][] sections) {
+        synchronized (mLock) {
+            mParsingStoredSections = true;
+        }
+        try {
+            for (int i = 0; i < sections.length; ++i) {
+                int pid = pids[i];
+                synchronized (mLock) {
+                    if (!mListeningPids.get(pid)) {
+                        startListening(pid);
+                    }
+                }
+                // Creates the streams of the PIDs which are found by the previous sections.
+                addPendingStreams();
+                Stream stream = mStreamMap.get(pid);
+                if (stream instanceof SectionStream) {
+                    ((SectionStream) stream).mSectionParser.parseStoredSection(sections[i], 0,
+                            sections[i].length);
+                }
+            }
+        } finally {
+            synchronized (mLock) {
+                mParsingStoredSections = false;
+            }
+        }
     }
 
     private void startListening(int pid) {
-        mStreamMap.put(pid, new SectionStream(pid));
+        mListeningPids.put(pid, true);
+        mPendingPids.add(pid);
+    }
+
+    private void addPendingStreams() {
+        Integer pid;
+        while ((pid = mPendingPids.poll()) != null) {
+            // A new stream parses all the sections of the PID again.
+            mSectionVersionTable.removeAll(pid);
+            Stream stream = mStreamMap.get(pid);
+            if (stream != null) {
+                stream.release();
+            }
+            mStreamMap.put(pid, new SectionStream(pid, isEventPid(pid) ? mSectionPipeline : null));
+        }
+    }
+
+    // Only the EIT and ETT sections are parsed on the pipeline, whose lanes can drop sections.
+    // PAT, PMT, MGT and VCT are parsed in place, so that they are never dropped.
+    private boolean isEventPid(int pid) {
+        synchronized (mLock) {
+            return mEITPids.contains(pid) || mETTPids.contains(pid);
+        }
     }
 
     private boolean feedTSPacket(byte[] tsData, int pos) {
@@ -405,6 +641,9 @@ public class TsParser {
         boolean hasPayload = (tsData[pos + 3] & 0x10) != 0;
         boolean payloadStartIndicator = (tsData[pos + 1] & 0x40) != 0;
         int continuityCounter = tsData[pos + 3] & 0x0f;
+        if (!mPendingPids.isEmpty()) {
+            addPendingStreams();
+        }
         Stream stream = mStreamMap.get(pid);
         int payloadPos = pos;
         payloadPos += hasAdaptation ? 5 + (tsData[pos + 4] & 0xff) : 4;
@@ -416,7 +655,9 @@ public class TsParser {
             if (DEBUG) Log.d(TAG, "Payload should be included in a single TS packet.");
             return false;
         }
-        stream.feedData(Arrays.copyOfRange(tsData, payloadPos, pos + TS_PACKET_SIZE),
+        // Hands the payload over as a view into tsData instead of copying it, since this runs
+        // for every packet of the interested PIDs.
+        stream.feedData(tsData, payloadPos, pos + TS_PACKET_SIZE - payloadPos,
                 continuityCounter, payloadStartIndicator);
         return true;
     }
@@ -439,13 +680,15 @@ public class TsParser {
      */
     public List<TunerChannel> getMalFormedChannels() {
         List<TunerChannel> incompleteChannels = new ArrayList<>();
-        for (int i = 0; i < mProgramNumberHandledStatus.size(); i++) {
-            if (!mProgramNumberHandledStatus.valueAt(i)) {
-                int programNumber = mProgramNumberHandledStatus.keyAt(i);
-                List<PmtItem> pmtList = mProgramNumberToPMTMap.get(programNumber);
-                if (pmtList != null) {
-                    TunerChannel tunerChannel = new TunerChannel(programNumber, pmtList);
-                    incompleteChannels.add(tunerChannel);
+        synchronized (mLock) {
+            for (int i = 0; i < mProgramNumberHandledStatus.size(); i++) {
+                if (!mProgramNumberHandledStatus.valueAt(i)) {
+                    int programNumber = mProgramNumberHandledStatus.keyAt(i);
+                    List<PmtItem> pmtList = mProgramNumberToPMTMap.get(programNumber);
+                    if (pmtList != null) {
+                        TunerChannel tunerChannel = new TunerChannel(programNumber, pmtList);
+                        incompleteChannels.add(tunerChannel);
+                    }
                 }
             }
         }
@@ -24,9 +24,11 @@ import com.android.tv.tuner.TunerHal;
 import com.android.tv.tuner.data.nano.Track.AtscAudioTrack;
 import com.android.tv.tuner.data.nano.Track.AtscCaptionTrack;
 import com.android.tv.tuner.data.TunerChannel;
+import com.android.tv.tuner.ts.SectionPipeline;
 import com.android.tv.tuner.ts.TsParser;
 import com.android.tv.tuner.data.PsiData;
 import com.android.tv.tuner.data.PsipData;
+import com.android.tv.tuner.util.ZapTracer;
 
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -35,6 +37,10 @@ import java.util.Set;
 
 /**
  * Detects channels and programs that are emerged or changed while parsing ATSC PSIP information.
+ *
+ * <p>EIT and ETT are parsed on the worker threads of {@link SectionPipeline}, so that the thread
+ * which feeds TS stream is not blocked by them, while the other tables are parsed on that thread.
+ * {@link EventListener} is called on both.
  */
 public class EventDetector {
     private static final String TAG = "EventDetector";
@@ -42,6 +48,8 @@ public class EventDetector {
     public static final int ALL_PROGRAM_NUMBERS = -1;
 
     private final TunerHal mTunerHal;
+    private final PsipSnapshotCache mSnapshotCache;
+    private PsipSnapshotCache.Recorder mSnapshotRecorder;
 
     private TsParser mTsParser;
     private final Set<Integer> mPidSet = new HashSet<>();
@@ -200,13 +208,32 @@ public class EventDetector {
      * @param listener for ATSC TV channels and program information
      */
     public EventDetector(TunerHal usbTunerInteface, EventListener listener) {
+        this(usbTunerInteface, listener, null);
+    }
+
+    /**
+     * Creates a detector which starts from the PSIP tables stored for the channel being tuned to.
+     * @param usbTunerInteface {@link TunerHal}
+     * @param listener for ATSC TV channels and program information
+     * @param snapshotCache the cache of the PSIP tables, or {@code null} not to use any
+     */
+    public EventDetector(TunerHal usbTunerInteface, EventListener listener,
+            PsipSnapshotCache snapshotCache) {
         mTunerHal = usbTunerInteface;
         mEventListener = listener;
+        mSnapshotCache = snapshotCache;
     }
 
     private void reset() {
-        mTsParser = new TsParser(mTsOutputListener); // TODO: Use TsParser.reset()
-        mPidSet.clear();
+        if (mTsParser != null) {
+            mTsParser.release();
+        }
+        finishSnapshot();
+        // TODO: Use TsParser.reset()
+        mTsParser = new TsParser(mTsOutputListener, SectionPipeline.getDefault());
+        synchronized (mPidSet) {
+            mPidSet.clear();
+        }
         mVctProgramNumberSet.clear();
         mVctCaptionTracksFound.clear();
         mEitCaptionTracksFound.clear();
@@ -222,17 +249,56 @@ public class EventDetector {
      *            purpose, supply {@link #ALL_PROGRAM_NUMBERS}.
      */
     public void startDetecting(int frequency, String modulation, int programNumber) {
+        startDetecting(frequency, modulation, programNumber, null);
+    }
+
+    /**
+     * Starts detecting channel and program information for a zap.
+     *
+     * @param frequency The frequency to listen to.
+     * @param modulation The modulation type.
+     * @param programNumber The program number of the tune request.
+     * @param zap The zap whose PAT and PMT stages are marked, or {@code null} if the tune isn't
+     *            for a zap.
+     */
+    public void startDetecting(int frequency, String modulation, int programNumber,
+            ZapTracer.Zap zap) {
         reset();
+        mTsParser.setZap(zap);
         mFrequency = frequency;
         mModulation = modulation;
         mProgramNumber = programNumber;
+        if (mSnapshotCache != null && programNumber != ALL_PROGRAM_NUMBERS) {
+            mSnapshotRecorder = mSnapshotCache.startRecording(frequency, programNumber);
+            mTsParser.setSectionObserver(mSnapshotRecorder);
+            // The stored tables start the PID filters of the tables which follow, so the base PID
+            // should be listened to here rather than on the first TS packet.
+            startListening(TsParser.ATSC_SI_BASE_PID);
+            mSnapshotRecorder.parseStoredSections(mTsParser);
+        }
+    }
+
+    /**
+     * Stops detecting, and stores the PSIP tables which were updated while detecting.
+     */
+    public void stopDetecting() {
+        finishSnapshot();
+    }
+
+    private void finishSnapshot() {
+        if (mSnapshotRecorder != null) {
+            mSnapshotRecorder.finish();
+            mSnapshotRecorder = null;
+        }
     }
 
     private void startListening(int pid) {
-        if (mPidSet.contains(pid)) {
-            return;
+        synchronized (mPidSet) {
+            if (mPidSet.contains(pid)) {
+                return;
+            }
+            mPidSet.add(pid);
         }
-        mPidSet.add(pid);
         mTunerHal.addPidFilter(pid, TunerHal.FILTER_TYPE_OTHER);
     }
 
@@ -243,7 +309,11 @@ public class EventDetector {
      * @param length The length of available data
      */
     public void feedTSStream(byte[] data, int startOffset, int length) {
-        if (mPidSet.isEmpty()) {
+        boolean pidSetEmpty;
+        synchronized (mPidSet) {
+            pidSetEmpty = mPidSet.isEmpty();
+        }
+        if (pidSetEmpty) {
             startListening(TsParser.ATSC_SI_BASE_PID);
         }
         if (mTsParser != null) {
@@ -28,6 +28,7 @@ import com.android.tv.tuner.data.nano.Track.AtscAudioTrack;
 import com.android.tv.tuner.data.nano.Track.AtscCaptionTrack;
 import com.android.tv.tuner.data.TunerChannel;
 import com.android.tv.tuner.source.FileTsStreamer;
+import com.android.tv.tuner.ts.SectionPipeline;
 import com.android.tv.tuner.ts.TsParser;
 import com.android.tv.tuner.tvinput.EventDetector.EventListener;
 
@@ -40,7 +41,8 @@ import java.util.Set;
  * PSIP event detector for a file source.
  *
  * <p>Uses {@link TsParser} to analyze input MPEG-2 transport stream, detects and reports
- * various PSIP-related events via {@link TsParser.TsOutputListener}.
+ * various PSIP-related events via {@link TsParser.TsOutputListener}. PSIP tables are parsed on the
+ * worker threads of {@link SectionPipeline}.
  */
 public class FileSourceEventDetector {
     private static final String TAG = "FileSourceEventDetector";
@@ -74,7 +76,11 @@ public class FileSourceEventDetector {
     }
 
     private void reset() {
-        mTsParser = new TsParser(mTsOutputListener); // TODO: Use TsParser.reset()
+        if (mTsParser != null) {
+            mTsParser.release();
+        }
+        // TODO: Use TsParser.reset()
+        mTsParser = new TsParser(mTsOutputListener, SectionPipeline.getDefault());
         mStreamProvider.clearPidFilter();
         mVctProgramNumberSet.clear();
         mVctCaptionTracksFound.clear();
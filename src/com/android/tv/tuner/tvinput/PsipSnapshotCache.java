@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.tvinput;
+
+import android.content.Context;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import com.android.tv.tuner.data.nano.Channel.PsipSectionProto;
+import com.android.tv.tuner.data.nano.Channel.PsipSnapshotProto;
+import com.android.tv.tuner.ts.SectionParser;
+import com.android.tv.tuner.ts.SectionVersionTable;
+import com.android.tv.tuner.ts.TsParser;
+import com.google.protobuf.nano.MessageNano;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Stores the PAT, PMT, MGT and VCT sections which were last seen on each channel.
+ *
+ * <p>When a channel is tuned to, its snapshot is parsed before any TS packet arrives, so that the
+ * tracks, captions and content ratings are known without waiting for the PSIP carousel. The
+ * snapshots are kept in memory and in {@link PsipSnapshotProto} files, and are updated when a
+ * section with a newer version is received.
+ */
+public class PsipSnapshotCache {
+    private static final String TAG = "PsipSnapshotCache";
+    private static final boolean DEBUG = false;
+
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final String DIRECTORY_NAME = "psip_snapshots";
+    private static final int MAX_SNAPSHOT_COUNT = 200;
+
+    private static final int TABLE_ID_PAT = 0x00;
+    private static final int TABLE_ID_PMT = 0x02;
+    private static final int TABLE_ID_MGT = 0xc7;
+    private static final int TABLE_ID_TVCT = 0xc8;
+    private static final int TABLE_ID_CVCT = 0xc9;
+
+    private static PsipSnapshotCache sInstance;
+
+    private final File mDirectory;
+    // Writes the snapshots in order, off the streaming and the tuning threads.
+    private final Executor mWriteExecutor;
+    // @GuardedBy("this")
+    private final Map<String, PsipSnapshotProto> mSnapshots = new HashMap<>();
+
+    /**
+     * Returns the cache which stores the snapshots in the cache directory of the application.
+     */
+    public static synchronized PsipSnapshotCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PsipSnapshotCache(
+                    new File(context.getApplicationContext().getCacheDir(), DIRECTORY_NAME));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a cache which stores the snapshots in the given directory.
+     */
+    public PsipSnapshotCache(File directory) {
+        this(directory, Executors.newSingleThreadExecutor());
+    }
+
+    @VisibleForTesting
+    PsipSnapshotCache(File directory, Executor writeExecutor) {
+        mDirectory = directory;
+        mWriteExecutor = writeExecutor;
+    }
+
+    /**
+     * Starts recording the sections of a channel. The sections which were stored before are kept
+     * unless newer versions are recorded.
+     */
+    public Recorder startRecording(int frequency, int programNumber) {
+        return new Recorder(frequency, programNumber, getSnapshot(frequency, programNumber));
+    }
+
+    /**
+     * Removes all the snapshots.
+     */
+    public void clear() {
+        synchronized (this) {
+            mSnapshots.clear();
+        }
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File[] files = mDirectory.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+            }
+        });
+    }
+
+    private synchronized PsipSnapshotProto getSnapshot(int frequency, int programNumber) {
+        String name = getFileName(frequency, programNumber);
+        PsipSnapshotProto snapshot = mSnapshots.get(name);
+        if (snapshot == null) {
+            snapshot = readSnapshot(new File(mDirectory, name));
+            if (snapshot != null) {
+                mSnapshots.put(name, snapshot);
+            }
+        }
+        return snapshot;
+    }
+
+    private void putSnapshot(final PsipSnapshotProto snapshot) {
+        final String name = getFileName(snapshot.frequency, snapshot.programNumber);
+        synchronized (this) {
+            mSnapshots.put(name, snapshot);
+        }
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeSnapshot(new File(mDirectory, name), snapshot);
+                trimSnapshots();
+            }
+        });
+    }
+
+    private static PsipSnapshotProto readSnapshot(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        byte[] data = new byte[(int) file.length()];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < data.length) {
+                int result = in.read(data, read, data.length - read);
+                if (result < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                read += result;
+            }
+            PsipSnapshotProto snapshot = PsipSnapshotProto.parseFrom(data);
+            if (snapshot.version == SNAPSHOT_VERSION) {
+                return snapshot;
+            }
+            Log.i(TAG, "Discarding a snapshot of version " + snapshot.version);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read a PSIP snapshot " + file, e);
+        }
+        file.delete();
+        return null;
+    }
+
+    private void writeSnapshot(File file, PsipSnapshotProto snapshot) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Failed to create " + mDirectory);
+            return;
+        }
+        // Writes to a temporary file first, so that a snapshot is never read half-written.
+        File tempFile = new File(mDirectory, file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            out.write(MessageNano.toByteArray(snapshot));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write a PSIP snapshot " + file, e);
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(file)) {
+            Log.w(TAG, "Failed to rename " + tempFile);
+            tempFile.delete();
+        }
+    }
+
+    private void trimSnapshots() {
+        File[] files = mDirectory.listFiles();
+        if (files == null || files.length <= MAX_SNAPSHOT_COUNT) {
+            return;
+        }
+        // Removes the snapshots of the channels which were not watched for the longest time.
+        long[] lastModified = new long[files.length];
+        for (int i = 0; i < files.length; ++i) {
+            lastModified[i] = files[i].lastModified();
+        }
+        long[] sorted = lastModified.clone();
+        Arrays.sort(sorted);
+        long threshold = sorted[files.length - MAX_SNAPSHOT_COUNT];
+        for (int i = 0; i < files.length; ++i) {
+            if (lastModified[i] < threshold) {
+                synchronized (this) {
+                    mSnapshots.remove(files[i].getName());
+                }
+                files[i].delete();
+            }
+        }
+    }
+
+    private static String getFileName(int frequency, int programNumber) {
+        return frequency + "_" + programNumber;
+    }
+
+    /**
+     * Records the sections of a channel while it is tuned to.
+     */
+    public final class Recorder implements SectionParser.SectionObserver {
+        private final int mFrequency;
+        private final int mProgramNumber;
+        // The sections keyed by SectionVersionTable.makeKey(), which sorts them by PID and table.
+        // @GuardedBy("this")
+        private final LongSparseArray<byte[]> mSections = new LongSparseArray<>();
+        private final PsipSnapshotProto mStoredSnapshot;
+        // @GuardedBy("this")
+        private boolean mChanged;
+
+        private Recorder(int frequency, int programNumber, PsipSnapshotProto storedSnapshot) {
+            mFrequency = frequency;
+            mProgramNumber = programNumber;
+            mStoredSnapshot = storedSnapshot;
+            if (storedSnapshot != null) {
+                for (PsipSectionProto section : storedSnapshot.sections) {
+                    if (section.data != null && section.data.length >= 8) {
+                        mSections.put(getKey(section.pid, section.data, 0), section.data);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Parses the stored sections with the given parser. This should be called before TS
+         * packets are fed to the parser.
+         *
+         * @return {@code true} if there were stored sections
+         */
+        public boolean parseStoredSections(TsParser parser) {
+            if (mStoredSnapshot == null || mStoredSnapshot.sections.length == 0) {
+                return false;
+            }
+            int count = mStoredSnapshot.sections.length;
+            int[] pids = new int[count];
+            byte[][] sections = new byte[count][];
+            for (int i = 0; i < count; ++i) {
+                pids[i] = mStoredSnapshot.sections[i].pid;
+                sections[i] = mStoredSnapshot.sections[i].data;
+            }
+            if (DEBUG) {
+                Log.d(TAG, "Parsing " + count + " stored sections for " + mFrequency + "-"
+                        + mProgramNumber);
+            }
+            parser.parseStoredSections(pids, sections);
+            return true;
+        }
+
+        @Override
+        public void onSectionAccepted(int pid, byte[] data, int offset, int length) {
+            int tableId = data[offset] & 0xff;
+            switch (tableId) {
+                case TABLE_ID_PMT:
+                    int programNumber =
+                            ((data[offset + 3] & 0xff) << 8) | (data[offset + 4] & 0xff);
+                    if (programNumber != mProgramNumber) {
+                        return;
+                    }
+                    break;
+                case TABLE_ID_PAT:
+                case TABLE_ID_MGT:
+                case TABLE_ID_TVCT:
+                case TABLE_ID_CVCT:
+                    break;
+                default:
+                    return;
+            }
+            long key = getKey(pid, data, offset);
+            synchronized (this) {
+                byte[] stored = mSections.get(key);
+                if (stored != null && stored.length == length && rangeEquals(stored, data,
+                        offset)) {
+                    return;
+                }
+                mSections.put(key, Arrays.copyOfRange(data, offset, offset + length));
+                mChanged = true;
+            }
+        }
+
+        /**
+         * Stops recording, and stores the sections if any of them changed.
+         */
+        public void finish() {
+            PsipSnapshotProto snapshot;
+            synchronized (this) {
+                if (!mChanged) {
+                    return;
+                }
+                mChanged = false;
+                snapshot = new PsipSnapshotProto();
+                snapshot.version = SNAPSHOT_VERSION;
+                snapshot.frequency = mFrequency;
+                snapshot.programNumber = mProgramNumber;
+                snapshot.sections = new PsipSectionProto[mSections.size()];
+                for (int i = 0; i < mSections.size(); ++i) {
+                    PsipSectionProto section = new PsipSectionProto();
+                    section.pid = SectionVersionTable.getPid(mSections.keyAt(i));
+                    section.data = mSections.valueAt(i);
+                    snapshot.sections[i] = section;
+                }
+            }
+            putSnapshot(snapshot);
+        }
+
+        private long getKey(int pid, byte[] data, int offset) {
+            return SectionVersionTable.makeKey(pid, data[offset] & 0xff,
+                    ((data[offset + 3] & 0xff) << 8) | (data[offset + 4] & 0xff),
+                    data[offset + 6] & 0xff);
+        }
+
+        private boolean rangeEquals(byte[] stored, byte[] data, int offset) {
+            for (int i = 0; i < stored.length; ++i) {
+                if (stored[i] != data[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -19,6 +19,8 @@ package com.android.tv.tuner.tvinput;
 import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * A class to maintain various debugging information.
  */
@@ -42,6 +44,10 @@ public class TunerDebug {
     private long mAudioPtsUsRate;
     private long mVideoPtsUsRate;
 
+    // Updated by the section parsers, which run on the streaming and worker threads.
+    private final AtomicLong mSectionCacheHits = new AtomicLong();
+    private final AtomicLong mSectionCacheMisses = new AtomicLong();
+
     private TunerDebug() {
         mVideoFrameDrop = 0;
         mLastCheckTimestampMs = SystemClock.elapsedRealtime();
@@ -147,4 +153,24 @@ public class TunerDebug {
         TunerDebug sTunerDebug = getInstance();
         return sTunerDebug.mVideoPtsUsRate;
     }
+
+    public static void notifySectionCacheHit() {
+        TunerDebug sTunerDebug = getInstance();
+        sTunerDebug.mSectionCacheHits.incrementAndGet();
+    }
+
+    public static void notifySectionCacheMiss() {
+        TunerDebug sTunerDebug = getInstance();
+        sTunerDebug.mSectionCacheMisses.incrementAndGet();
+    }
+
+    public static long getSectionCacheHits() {
+        TunerDebug sTunerDebug = getInstance();
+        return sTunerDebug.mSectionCacheHits.get();
+    }
+
+    public static long getSectionCacheMisses() {
+        TunerDebug sTunerDebug = getInstance();
+        return sTunerDebug.mSectionCacheMisses.get();
+    }
 }
@@ -40,8 +40,6 @@ import com.google.android.exoplayer.audio.AudioCapabilities;
 import com.android.tv.tuner.R;
 import com.android.tv.tuner.cc.CaptionLayout;
 import com.android.tv.tuner.cc.CaptionTrackRenderer;
-import com.android.tv.tuner.data.Cea708Data.CaptionEvent;
-import com.android.tv.tuner.data.nano.Track.AtscCaptionTrack;
 import com.android.tv.tuner.exoplayer.buffer.BufferManager;
 import com.android.tv.tuner.data.TunerChannel;
 import com.android.tv.tuner.util.GlobalSettingsUtils;
@@ -61,12 +59,8 @@ public class TunerSession extends TvInputService.Session implements Handler.Call
     public static final int MSG_UI_HIDE_MESSAGE = 2;
     public static final int MSG_UI_SHOW_AUDIO_UNPLAYABLE = 3;
     public static final int MSG_UI_HIDE_AUDIO_UNPLAYABLE = 4;
-    public static final int MSG_UI_PROCESS_CAPTION_TRACK = 5;
-    public static final int MSG_UI_START_CAPTION_TRACK = 6;
-    public static final int MSG_UI_STOP_CAPTION_TRACK = 7;
-    public static final int MSG_UI_RESET_CAPTION_TRACK = 8;
-    public static final int MSG_UI_SET_STATUS_TEXT = 9;
-    public static final int MSG_UI_TOAST_RESCAN_NEEDED = 10;
+    public static final int MSG_UI_SET_STATUS_TEXT = 5;
+    public static final int MSG_UI_TOAST_RESCAN_NEEDED = 6;
 
     private final Context mContext;
     private final Handler mUiHandler;
@@ -213,9 +207,18 @@ public class TunerSession extends TvInputService.Session implements Handler.Call
         }
         mReleased = true;
         mSessionWorker.release();
+        mCaptionTrackRenderer.release();
         mUiHandler.removeCallbacksAndMessages(null);
     }
 
+    /**
+     * Returns the renderer of the captions. Its methods can be called on the session worker
+     * thread, so that the caption events don't go through the UI thread.
+     */
+    public CaptionTrackRenderer getCaptionTrackRenderer() {
+        return mCaptionTrackRenderer;
+    }
+
     /**
      * Sets {@link AudioCapabilities}.
      */
@@ -282,22 +285,6 @@ public class TunerSession extends TvInputService.Session implements Handler.Call
                 mAudioStatusView.setVisibility(View.INVISIBLE);
                 return true;
             }
-            case MSG_UI_PROCESS_CAPTION_TRACK: {
-                mCaptionTrackRenderer.processCaptionEvent((CaptionEvent) msg.obj);
-                return true;
-            }
-            case MSG_UI_START_CAPTION_TRACK: {
-                mCaptionTrackRenderer.start((AtscCaptionTrack) msg.obj);
-                return true;
-            }
-            case MSG_UI_STOP_CAPTION_TRACK: {
-                mCaptionTrackRenderer.stop();
-                return true;
-            }
-            case MSG_UI_RESET_CAPTION_TRACK: {
-                mCaptionTrackRenderer.reset();
-                return true;
-            }
             case MSG_UI_SET_STATUS_TEXT: {
                 mStatusView.setText((CharSequence) msg.obj);
                 return true;
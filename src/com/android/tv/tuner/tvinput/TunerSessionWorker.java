@@ -42,7 +42,9 @@ import android.view.Surface;
 import android.view.accessibility.CaptioningManager;
 
 import com.google.android.exoplayer.audio.AudioCapabilities;
+import com.google.android.exoplayer.C;
 import com.google.android.exoplayer.ExoPlayer;
+import com.android.tv.TvApplication;
 import com.android.tv.common.SoftPreconditions;
 import com.android.tv.common.TvContentRatingCache;
 import com.android.tv.tuner.TunerPreferences;
@@ -56,10 +58,12 @@ import com.android.tv.tuner.data.nano.Track.AtscCaptionTrack;
 import com.android.tv.tuner.exoplayer.MpegTsRendererBuilder;
 import com.android.tv.tuner.exoplayer.buffer.BufferManager;
 import com.android.tv.tuner.exoplayer.buffer.DvrStorageManager;
+import com.android.tv.tuner.exoplayer.buffer.ReadAheadPolicy;
 import com.android.tv.tuner.exoplayer.MpegTsPlayer;
 import com.android.tv.tuner.source.TsDataSource;
 import com.android.tv.tuner.source.TsDataSourceManager;
 import com.android.tv.tuner.util.StatusTextUtils;
+import com.android.tv.tuner.util.ZapTracer;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -69,6 +73,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * {@link TunerSessionWorker} implements a handler thread which processes TV input jobs
@@ -156,6 +161,8 @@ public class TunerSessionWorker implements PlaybackBufferListener,
     private volatile boolean mCaptionEnabled;
     private volatile MpegTsPlayer mPlayer;
     private volatile TunerChannel mChannel;
+    // The zap of the last tune request, which is set on the main thread.
+    private volatile ZapTracer.Zap mZap;
     private volatile Long mRecordingDuration;
     private volatile long mRecordStartTimeMs;
     private volatile long mBufferStartTimeMs;
@@ -181,6 +188,8 @@ public class TunerSessionWorker implements PlaybackBufferListener,
     private long mLastLimitInBytes;
     private long mLastPositionInBytes;
     private final BufferManager mBufferManager;
+    // The read-ahead policy of the BufferManager of the current player, if any.
+    private ReadAheadPolicy mReadAheadPolicy;
     private final TvContentRatingCache mTvContentRatingCache = TvContentRatingCache.getInstance();
     private final TunerSession mSession;
     private int mPlayerState = ExoPlayer.STATE_IDLE;
@@ -220,6 +229,8 @@ public class TunerSessionWorker implements PlaybackBufferListener,
     // Public methods
     @MainThread
     public void tune(Uri channelUri) {
+        // Recordings don't go through the tuner, so only channels are traced.
+        mZap = parseChannel(channelUri) != -1 ? ZapTracer.getInstance().startZap() : null;
         mHandler.removeCallbacksAndMessages(null);
         mSourceManager.setHasPendingTune();
         sendMessage(MSG_TUNE, channelUri);
@@ -419,6 +430,7 @@ public class TunerSessionWorker implements PlaybackBufferListener,
                     (mRecordingId != null) ? 0 : System.currentTimeMillis();
             notifyVideoAvailable();
             mReportedDrawnToSurface = true;
+            ZapTracer.getInstance().sendLastZap(TvApplication.getSingletons(mContext).getTracker());
 
             // If surface is drawn successfully, it means that the playback was brought back
             // to normal and therefore, the playback recovery status will be reset through
@@ -457,7 +469,7 @@ public class TunerSessionWorker implements PlaybackBufferListener,
     // MpegTsPlayer.VideoEventListener
     @Override
     public void onEmitCaptionEvent(Cea708Data.CaptionEvent event) {
-        mSession.sendUiMessage(TunerSession.MSG_UI_PROCESS_CAPTION_TRACK, event);
+        mSession.getCaptionTrackRenderer().processCaptionEvent(event);
     }
 
     @Override
@@ -893,6 +905,7 @@ public class TunerSessionWorker implements PlaybackBufferListener,
                     mPlayer.setPlayWhenReady(true);
                     mPlayer.setAudioTrack(true);
                     mPlaybackParams.setSpeed(1.0f);
+                    notifyPlaybackSpeedChanged();
                 }
                 return true;
             }
@@ -924,7 +937,9 @@ public class TunerSessionWorker implements PlaybackBufferListener,
                                             TunerDebug.getAudioPtsUs(),
                                             TunerDebug.getAudioPtsUsRate(),
                                             TunerDebug.getVideoPtsUs(),
-                                            TunerDebug.getVideoPtsUsRate()
+                                            TunerDebug.getVideoPtsUsRate(),
+                                            TunerDebug.getSectionCacheHits(),
+                                            TunerDebug.getSectionCacheMisses()
                                     )));
                 }
                 if (DEBUG) {
@@ -1045,8 +1060,7 @@ public class TunerSessionWorker implements PlaybackBufferListener,
 
     private void startCaptionTrack() {
         if (mCaptionEnabled && mCaptionTrack != null) {
-            mSession.sendUiMessage(
-                    TunerSession.MSG_UI_START_CAPTION_TRACK, mCaptionTrack);
+            mSession.getCaptionTrackRenderer().start(mCaptionTrack);
             if (mPlayer != null) {
                 mPlayer.setCaptionServiceNumber(mCaptionTrack.serviceNumber);
             }
@@ -1057,14 +1071,14 @@ public class TunerSessionWorker implements PlaybackBufferListener,
         if (mPlayer != null) {
             mPlayer.setCaptionServiceNumber(Cea708Data.EMPTY_SERVICE_NUMBER);
         }
-        mSession.sendUiMessage(TunerSession.MSG_UI_STOP_CAPTION_TRACK);
+        mSession.getCaptionTrackRenderer().stop();
     }
 
     private void resetTvTracks() {
         mTvTracks.clear();
         mAudioTrackMap.clear();
         mCaptionTrackMap.clear();
-        mSession.sendUiMessage(TunerSession.MSG_UI_RESET_CAPTION_TRACK);
+        mSession.getCaptionTrackRenderer().reset();
         mSession.notifyTracksChanged(mTvTracks);
     }
 
@@ -1234,6 +1248,8 @@ public class TunerSessionWorker implements PlaybackBufferListener,
             mPlayer = null;
             mPlayerState = ExoPlayer.STATE_IDLE;
             mPlaybackParams.setSpeed(1.0f);
+            notifyPlaybackSpeedChanged();
+            mReadAheadPolicy = null;
             mPlayerStarted = false;
             mReportedDrawnToSurface = false;
             mPreparingStartTimeMs = INVALID_TIME;
@@ -1289,11 +1305,13 @@ public class TunerSessionWorker implements PlaybackBufferListener,
         BufferManager bufferManager = mChannel != null ? mBufferManager : new BufferManager(
                 new DvrStorageManager(new File(getRecordingPath()), false));
         MpegTsPlayer player = createPlayer(mAudioCapabilities, bufferManager);
+        mReadAheadPolicy = bufferManager != null ? bufferManager.getReadAheadPolicy() : null;
+        notifyPlaybackSpeedChanged();
         player.setCaptionServiceNumber(Cea708Data.EMPTY_SERVICE_NUMBER);
         player.setVideoEventListener(this);
         player.setCaptionServiceNumber(mCaptionTrack != null ?
                 mCaptionTrack.serviceNumber : Cea708Data.EMPTY_SERVICE_NUMBER);
-        if (!player.prepare(mContext, mChannel, this)) {
+        if (!player.prepare(mContext, mChannel, mZap, this)) {
             mSourceManager.setKeepTuneStatus(false);
             player.release();
             if (!mHandler.hasMessages(MSG_TUNE)) {
@@ -1385,25 +1403,41 @@ public class TunerSessionWorker implements PlaybackBufferListener,
             } else {
                 mPlayer.seekTo(mBufferStartTimeMs - mRecordStartTimeMs);
                 mPlaybackParams.setSpeed(1.0f);
+                notifyPlaybackSpeedChanged();
                 mPlayer.setAudioTrack(true);
                 return;
             }
         } else if (seekPositionMs > System.currentTimeMillis() - mRecordStartTimeMs) {
             mPlayer.seekTo(System.currentTimeMillis() - mRecordStartTimeMs);
             mPlaybackParams.setSpeed(1.0f);
+            notifyPlaybackSpeedChanged();
             mPlayer.setAudioTrack(true);
             return;
         }
 
         long delayForNextSeek = getTrickPlaySeekIntervalMs();
-        if (!mPlayer.isBuffering()) {
-            mPlayer.seekTo(seekPositionMs);
-        } else {
+        boolean isBuffering = mPlayer.isBuffering();
+        if (isBuffering) {
             delayForNextSeek = MIN_TRICKPLAY_SEEK_INTERVAL_MS;
         }
-        seekPositionMs += mPlaybackParams.getSpeed() * delayForNextSeek;
+        int nextSeekPositionMs = seekPositionMs;
+        nextSeekPositionMs += mPlaybackParams.getSpeed() * delayForNextSeek;
+        if (mReadAheadPolicy != null) {
+            // Lets the buffer prefetch the key frame for the next seek, before this seek.
+            mReadAheadPolicy.setNextSeekPositionUs(
+                    TimeUnit.MILLISECONDS.toMicros(nextSeekPositionMs));
+        }
+        if (!isBuffering) {
+            mPlayer.seekTo(seekPositionMs);
+        }
         mHandler.sendMessageDelayed(mHandler.obtainMessage(
-                MSG_TRICKPLAY_BY_SEEK, seekPositionMs, 0), delayForNextSeek);
+                MSG_TRICKPLAY_BY_SEEK, nextSeekPositionMs, 0), delayForNextSeek);
+    }
+
+    private void notifyPlaybackSpeedChanged() {
+        if (mReadAheadPolicy != null) {
+            mReadAheadPolicy.setPlaybackSpeed(mPlaybackParams.getSpeed());
+        }
     }
 
     private void doTimeShiftPause() {
@@ -1413,6 +1447,7 @@ public class TunerSessionWorker implements PlaybackBufferListener,
             return;
         }
         mPlaybackParams.setSpeed(1.0f);
+        notifyPlaybackSpeedChanged();
         mPlayer.setPlayWhenReady(false);
         mPlayer.setAudioTrack(true);
     }
@@ -1421,6 +1456,7 @@ public class TunerSessionWorker implements PlaybackBufferListener,
         mHandler.removeMessages(MSG_SMOOTH_TRICKPLAY_MONITOR);
         mHandler.removeMessages(MSG_TRICKPLAY_BY_SEEK);
         mPlaybackParams.setSpeed(1.0f);
+        notifyPlaybackSpeedChanged();
         mPlayer.setPlayWhenReady(true);
         mPlayer.setAudioTrack(true);
     }
@@ -1428,6 +1464,9 @@ public class TunerSessionWorker implements PlaybackBufferListener,
     private void doTimeShiftSeekTo(long timeMs) {
         mHandler.removeMessages(MSG_SMOOTH_TRICKPLAY_MONITOR);
         mHandler.removeMessages(MSG_TRICKPLAY_BY_SEEK);
+        if (mReadAheadPolicy != null) {
+            mReadAheadPolicy.setNextSeekPositionUs(C.UNKNOWN_TIME_US);
+        }
         mPlayer.seekTo((int) (timeMs - mRecordStartTimeMs));
     }
 
@@ -1436,6 +1475,7 @@ public class TunerSessionWorker implements PlaybackBufferListener,
             return;
         }
         mPlaybackParams = params;
+        notifyPlaybackSpeedChanged();
         float speed = mPlaybackParams.getSpeed();
         if (speed == 1.0f) {
             mHandler.removeMessages(MSG_SMOOTH_TRICKPLAY_MONITOR);
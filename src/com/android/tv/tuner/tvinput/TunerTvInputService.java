@@ -18,6 +18,7 @@ package com.android.tv.tuner.tvinput;
 
 import android.app.job.JobInfo;
 import android.app.job.JobScheduler;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
 import android.content.Context;
 import android.media.tv.TvContract;
@@ -28,10 +29,18 @@ import com.google.android.exoplayer.audio.AudioCapabilities;
 import com.google.android.exoplayer.audio.AudioCapabilitiesReceiver;
 import com.android.tv.TvApplication;
 import com.android.tv.common.feature.CommonFeatures;
+import com.android.tv.tuner.cc.CaptionFrameStats;
+import com.android.tv.tuner.exoplayer.SampleReaderStats;
 import com.android.tv.tuner.exoplayer.buffer.BufferManager;
+import com.android.tv.tuner.exoplayer.buffer.RecordedPlaybackStats;
+import com.android.tv.tuner.exoplayer.buffer.SamplePool;
+import com.android.tv.tuner.exoplayer.buffer.TieredStorageManager;
 import com.android.tv.tuner.exoplayer.buffer.TrickplayStorageManager;
 import com.android.tv.tuner.util.SystemPropertiesProxy;
+import com.android.tv.tuner.util.ZapTracer;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.Collections;
 import java.util.Set;
 import java.util.WeakHashMap;
@@ -48,7 +57,13 @@ public class TunerTvInputService extends TvInputService
     private static final String MAX_BUFFER_SIZE_KEY = "tv.tuner.buffersize_mbytes";
     private static final int MAX_BUFFER_SIZE_DEF = 2 * 1024;  // 2GB
     private static final int MIN_BUFFER_SIZE_DEF = 256;  // 256MB
+    // The memory tier of the time-shift buffer, which is disabled if the size is 0.
+    private static final String MEMORY_BUFFER_SIZE_KEY = "tv.tuner.membuffersize_mbytes";
+    private static final int MEMORY_BUFFER_SIZE_DEF = 32;  // 32MB
+    private static final String MEMORY_BUFFER_DURATION_KEY = "tv.tuner.membuffer_seconds";
+    private static final int MEMORY_BUFFER_DURATION_DEF = 30;  // 30 seconds
     private static final int DVR_STORAGE_CLEANUP_JOB_ID = 100;
+    private static final String WRITE_BENCHMARK_PREFS_NAME = "com.android.tv.tuner.write_benchmark";
 
     // WeakContainer for {@link TvInputSessionImpl}
     private final Set<TunerSession> mTunerSessions = Collections.newSetFromMap(new WeakHashMap<>());
@@ -56,6 +71,7 @@ public class TunerTvInputService extends TvInputService
     private AudioCapabilitiesReceiver mAudioCapabilitiesReceiver;
     private AudioCapabilities mAudioCapabilities;
     private BufferManager mBufferManager;
+    private TieredStorageManager mTieredStorageManager;
 
     @Override
     public void onCreate() {
@@ -83,6 +99,8 @@ public class TunerTvInputService extends TvInputService
             Log.i(TAG, "Trickplay is disabled");
         } else {
             Log.i(TAG, "Trickplay is enabled");
+            mBufferManager.startWriteBenchmark(
+                    getSharedPreferences(WRITE_BENCHMARK_PREFS_NAME, Context.MODE_PRIVATE));
         }
     }
 
@@ -129,10 +147,47 @@ public class TunerTvInputService extends TvInputService
         }
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        SamplePool.trimAllPools(level);
+        if (mTieredStorageManager != null
+                && level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mTieredStorageManager.trimMemory();
+        }
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        ZapTracer.getInstance().dump(writer);
+        CaptionFrameStats.getInstance().dump(writer);
+        SampleReaderStats.getInstance().dump(writer);
+        RecordedPlaybackStats.getInstance().dump(writer);
+        SamplePool.dumpAllPools(writer);
+        if (mBufferManager != null) {
+            mBufferManager.dump(writer);
+        }
+        if (mTieredStorageManager != null) {
+            mTieredStorageManager.dump(writer);
+        }
+    }
+
     private BufferManager createBufferManager() {
         int maxBufferSizeMb =
                 SystemPropertiesProxy.getInt(MAX_BUFFER_SIZE_KEY, MAX_BUFFER_SIZE_DEF);
         if (maxBufferSizeMb >= MIN_BUFFER_SIZE_DEF) {
+            int memoryBufferSizeMb =
+                    SystemPropertiesProxy.getInt(MEMORY_BUFFER_SIZE_KEY, MEMORY_BUFFER_SIZE_DEF);
+            if (memoryBufferSizeMb > 0) {
+                int memoryBufferDurationSec = SystemPropertiesProxy.getInt(
+                        MEMORY_BUFFER_DURATION_KEY, MEMORY_BUFFER_DURATION_DEF);
+                mTieredStorageManager = new TieredStorageManager(getApplicationContext(),
+                        getCacheDir(), 1024L * 1024 * maxBufferSizeMb,
+                        1024L * 1024 * memoryBufferSizeMb,
+                        TimeUnit.SECONDS.toMillis(memoryBufferDurationSec));
+                return new BufferManager(mTieredStorageManager,
+                        mTieredStorageManager.getSampleChunkCreator());
+            }
             return new BufferManager(
                     new TrickplayStorageManager(getApplicationContext(), getCacheDir(),
                             1024L * 1024 * maxBufferSizeMb));
@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.util;
+
+import android.os.SystemClock;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A ring buffer of bytes which is written by a single thread and read by any number of threads.
+ *
+ * <p>Bytes are addressed by their positions from the start of the stream, so each reader keeps
+ * its own position, e.g. a player and a recorder can read the same stream independently. The
+ * writer publishes its position with volatile stores, so no lock is taken while the requested
+ * bytes are available. A reader waits only when the bytes are not written yet, and the writer
+ * waits only when it would overwrite the bytes which are not read yet.
+ *
+ * <p>A reader pins the position which it copies from before it checks that the bytes are not
+ * overwritten, and the writer checks the pins after it reserves the space to write. Since both
+ * are volatile accesses, either the reader sees the reservation and gives up, or the writer sees
+ * the pin and yields until the copy finishes. This doesn't need a load fence after the copy,
+ * which is not available on all the supported API levels.
+ */
+public class ByteRingBuffer {
+    /** Returned by {@link #read} when the buffer is closed. */
+    public static final int RESULT_CLOSED = -1;
+    /** Returned by {@link #read} when the requested bytes were already overwritten. */
+    public static final int RESULT_OVERWRITTEN = -2;
+    /** Returned by {@link #read} when nothing was written during the timeout. */
+    public static final int RESULT_TIMED_OUT = -3;
+
+    private static final int NO_RETAINED_SIZE = -1;
+    // The number of readers which can copy at the same time. More readers wait for a free pin.
+    private static final int PIN_COUNT = 8;
+    private static final long NO_PIN = Long.MAX_VALUE;
+
+    /**
+     * Receives the bytes of the buffer in place.
+     */
+    public interface ChunkConsumer {
+        /**
+         * Called with a part of the requested bytes. The bytes are only valid during this call.
+         */
+        void onChunk(byte[] data, int offset, int length);
+    }
+
+    private final byte[] mBuffer;
+    private final int mRetainedSize;
+
+    // The end of the published bytes, and the end of the bytes which are being written. Bytes
+    // before mReservedPosition - capacity can be overwritten at any time.
+    private final AtomicLong mWritePosition = new AtomicLong();
+    private final AtomicLong mReservedPosition = new AtomicLong();
+    // The furthest end of the bytes which were read.
+    private final AtomicLong mReadPosition = new AtomicLong();
+    private volatile boolean mClosed;
+
+    // The positions which the readers are copying from, or NO_PIN.
+    private final AtomicLongArray mPins = new AtomicLongArray(PIN_COUNT);
+    // Used only to wait when the buffer is empty or full.
+    private final Object mLock = new Object();
+    private final AtomicInteger mWaitingReaderCount = new AtomicInteger();
+    private volatile boolean mWriterWaiting;
+
+    /**
+     * Creates a ring buffer whose writer overwrites the oldest bytes, like a live source which
+     * can't be paused.
+     */
+    public ByteRingBuffer(int capacity) {
+        this(capacity, NO_RETAINED_SIZE);
+    }
+
+    /**
+     * Creates a ring buffer whose writer waits for readers.
+     *
+     * @param capacity the size of the buffer
+     * @param retainedSize the number of bytes before the furthest read position which are kept
+     *            from being overwritten, so that readers can read them again
+     */
+    public ByteRingBuffer(int capacity, int retainedSize) {
+        if (capacity <= 0 || retainedSize >= capacity) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity
+                    + ", retained size: " + retainedSize);
+        }
+        mBuffer = new byte[capacity];
+        mRetainedSize = retainedSize;
+        for (int i = 0; i < PIN_COUNT; ++i) {
+            mPins.set(i, NO_PIN);
+        }
+    }
+
+    /**
+     * Clears the buffer and opens it again. This should not be called while reading or writing.
+     */
+    public void reset() {
+        mWritePosition.set(0);
+        mReservedPosition.set(0);
+        mReadPosition.set(0);
+        mClosed = false;
+    }
+
+    /**
+     * Closes the buffer. Waiting readers and the waiting writer return immediately.
+     */
+    public void close() {
+        mClosed = true;
+        synchronized (mLock) {
+            mLock.notifyAll();
+        }
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Returns the number of bytes written so far.
+     */
+    public long getWritePosition() {
+        return mWritePosition.get();
+    }
+
+    /**
+     * Writes bytes. This should be called on a single thread.
+     *
+     * @return {@code false} if the buffer was closed before the bytes are written
+     */
+    public boolean write(byte[] data, int offset, int length) {
+        long writePosition = beginWrite(length);
+        if (writePosition < 0) {
+            return false;
+        }
+        int posInBuffer = (int) (writePosition % mBuffer.length);
+        int firstLength = Math.min(length, mBuffer.length - posInBuffer);
+        System.arraycopy(data, offset, mBuffer, posInBuffer, firstLength);
+        if (firstLength < length) {
+            System.arraycopy(data, offset + firstLength, mBuffer, 0, length - firstLength);
+        }
+        endWrite(writePosition + length);
+        return true;
+    }
+
+    /**
+     * Writes the remaining bytes of the given buffer, and advances its position. This should be
+     * called on the same thread as {@link #write(byte[], int, int)}.
+     *
+     * <p>When {@code source} is a direct buffer which was filled by native code, the bytes are
+     * copied into the ring without passing through another Java array.
+     *
+     * @return {@code false} if the buffer was closed before the bytes are written
+     */
+    public boolean write(ByteBuffer source) {
+        int length = source.remaining();
+        long writePosition = beginWrite(length);
+        if (writePosition < 0) {
+            return false;
+        }
+        int posInBuffer = (int) (writePosition % mBuffer.length);
+        int firstLength = Math.min(length, mBuffer.length - posInBuffer);
+        source.get(mBuffer, posInBuffer, firstLength);
+        if (firstLength < length) {
+            source.get(mBuffer, 0, length - firstLength);
+        }
+        endWrite(writePosition + length);
+        return true;
+    }
+
+    /**
+     * Passes the bytes from the given position to the consumer in place, without copying them.
+     * The bytes are passed in at most two chunks, since they can wrap around the end of the ring.
+     *
+     * <p>This should be called on the writer thread, since the writer doesn't overwrite the bytes
+     * while it is running the consumer.
+     *
+     * @return {@code false} if the bytes are not written yet or were already overwritten
+     */
+    public boolean peek(long position, int length, ChunkConsumer consumer) {
+        if (position + length > mWritePosition.get()
+                || mWritePosition.get() - mBuffer.length > position) {
+            return false;
+        }
+        int posInBuffer = (int) (position % mBuffer.length);
+        int firstLength = Math.min(length, mBuffer.length - posInBuffer);
+        consumer.onChunk(mBuffer, posInBuffer, firstLength);
+        if (firstLength < length) {
+            consumer.onChunk(mBuffer, 0, length - firstLength);
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the space to write, and reserves it.
+     *
+     * @return the position to write at, or -1 if the buffer was closed
+     */
+    private long beginWrite(int length) {
+        if (length > mBuffer.length) {
+            throw new IllegalArgumentException("Too large to write: " + length);
+        }
+        long writePosition = mWritePosition.get();
+        long end = writePosition + length;
+        if (mRetainedSize != NO_RETAINED_SIZE && !waitForSpace(end)) {
+            return -1;
+        }
+        if (mClosed) {
+            return -1;
+        }
+        mReservedPosition.set(end);
+        waitForPinnedReaders(end - mBuffer.length);
+        return writePosition;
+    }
+
+    /**
+     * Waits until no reader copies the bytes before the given position, which are about to be
+     * overwritten. The readers which pin them afterwards see the reservation and don't copy them.
+     */
+    private void waitForPinnedReaders(long overwrittenEnd) {
+        for (int i = 0; i < PIN_COUNT; ++i) {
+            while (mPins.get(i) < overwrittenEnd) {
+                // A copy is short, so it is not worth parking.
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Publishes the bytes which were written up to the given position.
+     */
+    private void endWrite(long end) {
+        mWritePosition.set(end);
+        if (mWaitingReaderCount.get() > 0) {
+            synchronized (mLock) {
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Reads bytes from the given position. This can be called on any thread.
+     *
+     * @param position the position to read from
+     * @param buffer the buffer to read into
+     * @param offset the offset in {@code buffer}
+     * @param length the number of bytes to read
+     * @param timeoutMs how long to wait while nothing is written
+     * @return {@code length} when successful, or one of {@link #RESULT_CLOSED},
+     *         {@link #RESULT_OVERWRITTEN} and {@link #RESULT_TIMED_OUT}
+     */
+    public int read(long position, byte[] buffer, int offset, int length, long timeoutMs) {
+        if (length > mBuffer.length) {
+            throw new IllegalArgumentException("Too large to read: " + length);
+        }
+        long end = position + length;
+        if (mWritePosition.get() < end) {
+            int result = waitForData(end, timeoutMs);
+            if (result < 0) {
+                return result;
+            }
+        }
+        if (mClosed) {
+            return RESULT_CLOSED;
+        }
+        int pin = pin(position);
+        try {
+            // The writer reserves the space before it checks the pins, so the bytes which are not
+            // overwritten yet stay intact until the pin is released.
+            if (mReservedPosition.get() - mBuffer.length > position) {
+                return RESULT_OVERWRITTEN;
+            }
+            int posInBuffer = (int) (position % mBuffer.length);
+            int firstLength = Math.min(length, mBuffer.length - posInBuffer);
+            System.arraycopy(mBuffer, posInBuffer, buffer, offset, firstLength);
+            if (firstLength < length) {
+                System.arraycopy(mBuffer, 0, buffer, offset + firstLength, length - firstLength);
+            }
+        } finally {
+            mPins.set(pin, NO_PIN);
+        }
+        long readPosition;
+        while ((readPosition = mReadPosition.get()) < end
+                && !mReadPosition.compareAndSet(readPosition, end)) { }
+        if (mWriterWaiting) {
+            synchronized (mLock) {
+                mLock.notifyAll();
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Pins the given position, and returns the index of the pin.
+     */
+    private int pin(long position) {
+        while (true) {
+            for (int i = 0; i < PIN_COUNT; ++i) {
+                if (mPins.get(i) == NO_PIN && mPins.compareAndSet(i, NO_PIN, position)) {
+                    return i;
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    private int waitForData(long end, long timeoutMs) {
+        mWaitingReaderCount.incrementAndGet();
+        try {
+            synchronized (mLock) {
+                long lastWritePosition = mWritePosition.get();
+                long deadlineMs = SystemClock.elapsedRealtime() + timeoutMs;
+                while (!mClosed) {
+                    long writePosition = mWritePosition.get();
+                    if (writePosition >= end) {
+                        return 0;
+                    }
+                    if (writePosition != lastWritePosition) {
+                        // Waits again for the timeout since the writer is still writing.
+                        lastWritePosition = writePosition;
+                        deadlineMs = SystemClock.elapsedRealtime() + timeoutMs;
+                    }
+                    long remainingMs = deadlineMs - SystemClock.elapsedRealtime();
+                    if (remainingMs <= 0) {
+                        return RESULT_TIMED_OUT;
+                    }
+                    try {
+                        mLock.wait(remainingMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return RESULT_TIMED_OUT;
+                    }
+                }
+                return RESULT_CLOSED;
+            }
+        } finally {
+            mWaitingReaderCount.decrementAndGet();
+        }
+    }
+
+    private boolean waitForSpace(long end) {
+        long limit = mBuffer.length - mRetainedSize;
+        if (end - mReadPosition.get() <= limit) {
+            return true;
+        }
+        synchronized (mLock) {
+            mWriterWaiting = true;
+            try {
+                while (!mClosed && end - mReadPosition.get() > limit) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                return !mClosed;
+            } finally {
+                mWriterWaiting = false;
+            }
+        }
+    }
+}
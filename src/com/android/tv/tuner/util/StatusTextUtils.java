@@ -42,7 +42,8 @@ public class StatusTextUtils {
             int videoFrameDrop, int bytesInQueue,
             long audioPositionUs, long audioPositionUsRate,
             long audioPtsUs, long audioPtsUsRate,
-            long videoPtsUs, long videoPtsUsRate) {
+            long videoPtsUs, long videoPtsUsRate,
+            long sectionCacheHits, long sectionCacheMisses) {
         StringBuffer buffer = new StringBuffer();
 
         // audioPosition should go in rate of 1000ms.
@@ -65,6 +66,9 @@ public class StatusTextUtils {
                         audioPtsUsRate / 1000, (audioPtsUs - audioPositionUs) / 1000));
         buffer.append(String.format(Locale.US, "videoPtsMs: %d (%d, %d)<br>", videoPtsUs / 1000,
                         videoPtsUsRate / 1000, (videoPtsUs - audioPositionUs) / 1000));
+        long sectionCount = sectionCacheHits + sectionCacheMisses;
+        buffer.append(String.format(Locale.US, "sectionCache: %d/%d (%d%%)<br>", sectionCacheHits,
+                sectionCount, sectionCount > 0 ? sectionCacheHits * 100 / sectionCount : 0));
         buffer.append("</font>\n");
 
         appendStatusLine(buffer, "KbytesInQueue", bytesInQueue / 1000, 1, 10);
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.util;
+
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import com.android.tv.analytics.Tracker;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Traces how long each stage of a channel change on the tuner takes.
+ *
+ * <p>A zap starts with {@link #startZap} and ends when the first video frame is drawn. The stages
+ * are marked on the {@link Zap} which is returned, and which is handed only to the components
+ * tuning for the zapping session, so that recordings, channel scans and the other tuners don't
+ * show up in the histograms. The time of
+ * each stage is measured from the stage which was reached right before it, so a stage which is
+ * skipped, e.g. the tuner acquisition when another session already streams the channel, doesn't
+ * show up in the others. The latencies of the finished zaps are kept in fixed histograms, and the
+ * last events are kept in a preallocated ring, so tracing doesn't allocate while tuning.
+ */
+public class ZapTracer {
+    private static final String TAG = "ZapTracer";
+
+    public static final int STAGE_TUNE_REQUESTED = 0;
+    public static final int STAGE_TUNER_ACQUIRED = 1;
+    public static final int STAGE_TUNER_LOCKED = 2;
+    public static final int STAGE_PAT_PARSED = 3;
+    public static final int STAGE_PMT_PARSED = 4;
+    public static final int STAGE_PLAYER_READY = 5;
+    public static final int STAGE_FIRST_FRAME = 6;
+    private static final int STAGE_COUNT = 7;
+
+    private static final String[] STAGE_NAMES = {
+            "tune_requested", "tuner_acquired", "tuner_locked", "pat_parsed", "pmt_parsed",
+            "player_ready", "first_frame" };
+    private static final String TOTAL_NAME = "total";
+
+    // The expected latency of each stage from the previous one, in milliseconds. The first entry
+    // is used for the whole zap.
+    @VisibleForTesting
+    static final long[] STAGE_BUDGETS_MS = { 3000, 100, 1000, 500, 500, 1500, 500 };
+
+    // The upper bounds of the histogram buckets, in milliseconds. Every budget is a bound, so that
+    // a dumped percentile is within its budget whenever the latencies are.
+    @VisibleForTesting
+    static final long[] BUCKET_BOUNDS_MS = {
+            10, 20, 50, 100, 200, 500, 1000, 1500, 2000, 3000, 5000, Long.MAX_VALUE };
+
+    private static final int EVENT_CAPACITY = 256;
+    private static final long NOT_REACHED = -1;
+
+    // Tells whether a zap is being traced, so that the stages which repeat while streaming, e.g.
+    // PAT, don't take the lock.
+    private volatile boolean mZapInProgress;
+
+    // @GuardedBy("this")
+    private int mZapId;
+    private final long[] mStageTimesNs = new long[STAGE_COUNT];
+    private final long[] mLastZapLatenciesMs = new long[STAGE_COUNT];
+    private boolean mLastZapSent = true;
+    private int mFinishedZapCount;
+    private int mAbandonedZapCount;
+    // The histograms of the stage latencies. The row of STAGE_TUNE_REQUESTED is for the whole zap.
+    private final int[][] mHistograms = new int[STAGE_COUNT][BUCKET_BOUNDS_MS.length];
+    private final long[] mMaxLatenciesMs = new long[STAGE_COUNT];
+
+    // The ring of the last events.
+    private final long[] mEventTimesNs = new long[EVENT_CAPACITY];
+    private final int[] mEventStages = new int[EVENT_CAPACITY];
+    private final int[] mEventZapIds = new int[EVENT_CAPACITY];
+    private long mEventCount;
+
+    /**
+     * A zap which is being traced. The stages which are marked after the zap was finished or
+     * abandoned are ignored, so a zap can be held by the components which outlive it.
+     */
+    public static final class Zap {
+        private final ZapTracer mTracer;
+        private final int mId;
+
+        private Zap(ZapTracer tracer, int id) {
+            mTracer = tracer;
+            mId = id;
+        }
+
+        /**
+         * Marks that the zap reached the given stage. Only the first time of each stage is
+         * traced.
+         */
+        public void markStage(int stage) {
+            mTracer.markStage(mId, stage);
+        }
+    }
+
+    private static class LazyHolder {
+        private static final ZapTracer INSTANCE = new ZapTracer();
+    }
+
+    public static ZapTracer getInstance() {
+        return LazyHolder.INSTANCE;
+    }
+
+    @VisibleForTesting
+    ZapTracer() {
+        Arrays.fill(mStageTimesNs, NOT_REACHED);
+        Arrays.fill(mLastZapLatenciesMs, NOT_REACHED);
+    }
+
+    /**
+     * Starts tracing a zap. A zap which didn't reach its first frame yet is abandoned.
+     *
+     * @return the zap whose stages should be marked
+     */
+    public synchronized Zap startZap() {
+        if (mZapInProgress) {
+            ++mAbandonedZapCount;
+        }
+        ++mZapId;
+        Arrays.fill(mStageTimesNs, NOT_REACHED);
+        mZapInProgress = true;
+        recordLocked(STAGE_TUNE_REQUESTED, SystemClock.elapsedRealtimeNanos());
+        return new Zap(this, mZapId);
+    }
+
+    private void markStage(int zapId, int stage) {
+        if (!mZapInProgress) {
+            return;
+        }
+        long timeNs = SystemClock.elapsedRealtimeNanos();
+        synchronized (this) {
+            if (!mZapInProgress || mZapId != zapId || mStageTimesNs[stage] != NOT_REACHED) {
+                return;
+            }
+            recordLocked(stage, timeNs);
+            if (stage == STAGE_FIRST_FRAME) {
+                finishZapLocked();
+            }
+        }
+    }
+
+    /**
+     * Sends the stage latencies of the last zap to the given tracker, if they weren't sent yet.
+     */
+    public void sendLastZap(Tracker tracker) {
+        long[] latenciesMs;
+        synchronized (this) {
+            if (mLastZapSent) {
+                return;
+            }
+            mLastZapSent = true;
+            latenciesMs = mLastZapLatenciesMs.clone();
+        }
+        for (int stage = 0; stage < STAGE_COUNT; ++stage) {
+            if (latenciesMs[stage] != NOT_REACHED) {
+                tracker.sendTunerZapStageTime(getHistogramName(stage), latenciesMs[stage]);
+            }
+        }
+    }
+
+    /**
+     * Returns the latency of the given stage in the last zap, or {@code -1} if the stage wasn't
+     * reached. For {@link #STAGE_TUNE_REQUESTED}, the latency of the whole zap is returned.
+     */
+    public synchronized long getLastZapLatencyMs(int stage) {
+        return mLastZapLatenciesMs[stage];
+    }
+
+    /**
+     * Returns the number of zaps which reached the first frame.
+     */
+    public synchronized int getFinishedZapCount() {
+        return mFinishedZapCount;
+    }
+
+    /**
+     * Dumps the histograms and the last events.
+     */
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Zap latencies: finished=" + mFinishedZapCount + " abandoned="
+                + mAbandonedZapCount);
+        for (int stage = 0; stage < STAGE_COUNT; ++stage) {
+            int[] histogram = mHistograms[stage];
+            int count = 0;
+            for (int bucketCount : histogram) {
+                count += bucketCount;
+            }
+            StringBuilder sb = new StringBuilder("  stage=").append(getHistogramName(stage))
+                    .append(" count=").append(count)
+                    .append(" budgetMs=").append(STAGE_BUDGETS_MS[stage])
+                    .append(" p50Ms=").append(getPercentileBoundMs(histogram, count, 50))
+                    .append(" p90Ms=").append(getPercentileBoundMs(histogram, count, 90))
+                    .append(" maxMs=").append(mMaxLatenciesMs[stage])
+                    .append(" buckets=");
+            for (int i = 0; i < histogram.length; ++i) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(histogram[i]);
+            }
+            writer.println(sb);
+        }
+        writer.println("Last zap events:");
+        long first = Math.max(0, mEventCount - EVENT_CAPACITY);
+        for (long i = first; i < mEventCount; ++i) {
+            int index = (int) (i % EVENT_CAPACITY);
+            writer.println("  zap=" + mEventZapIds[index] + " "
+                    + STAGE_NAMES[mEventStages[index]] + " at "
+                    + mEventTimesNs[index] / 1000000 + "ms");
+        }
+    }
+
+    private void recordLocked(int stage, long timeNs) {
+        mStageTimesNs[stage] = timeNs;
+        int index = (int) (mEventCount % EVENT_CAPACITY);
+        mEventTimesNs[index] = timeNs;
+        mEventStages[index] = stage;
+        mEventZapIds[index] = mZapId;
+        ++mEventCount;
+    }
+
+    private void finishZapLocked() {
+        mZapInProgress = false;
+        ++mFinishedZapCount;
+        long previousNs = mStageTimesNs[STAGE_TUNE_REQUESTED];
+        for (int stage = STAGE_TUNE_REQUESTED + 1; stage < STAGE_COUNT; ++stage) {
+            long timeNs = mStageTimesNs[stage];
+            if (timeNs == NOT_REACHED) {
+                mLastZapLatenciesMs[stage] = NOT_REACHED;
+                continue;
+            }
+            // The stages which run on other threads may be reached out of order, e.g. PAT from
+            // the stored PSIP snapshot before the player is ready.
+            long latencyMs = Math.max(0, (timeNs - previousNs) / 1000000);
+            addLatencyLocked(stage, latencyMs);
+            previousNs = Math.max(previousNs, timeNs);
+        }
+        addLatencyLocked(STAGE_TUNE_REQUESTED,
+                (mStageTimesNs[STAGE_FIRST_FRAME] - mStageTimesNs[STAGE_TUNE_REQUESTED]) / 1000000);
+        mLastZapSent = false;
+        if (mLastZapLatenciesMs[STAGE_TUNE_REQUESTED] > STAGE_BUDGETS_MS[STAGE_TUNE_REQUESTED]) {
+            Log.w(TAG, "Zap " + mZapId + " took " + mLastZapLatenciesMs[STAGE_TUNE_REQUESTED]
+                    + "ms: " + Arrays.toString(mLastZapLatenciesMs));
+        }
+    }
+
+    private void addLatencyLocked(int stage, long latencyMs) {
+        mLastZapLatenciesMs[stage] = latencyMs;
+        mMaxLatenciesMs[stage] = Math.max(mMaxLatenciesMs[stage], latencyMs);
+        for (int i = 0; i < BUCKET_BOUNDS_MS.length; ++i) {
+            if (latencyMs <= BUCKET_BOUNDS_MS[i]) {
+                ++mHistograms[stage][i];
+                break;
+            }
+        }
+    }
+
+    private static long getPercentileBoundMs(int[] histogram, int count, int percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        // The upper bound of the bucket which holds the percentile.
+        int target = (count * percentile + 99) / 100;
+        int sum = 0;
+        for (int i = 0; i < histogram.length; ++i) {
+            sum += histogram[i];
+            if (sum >= target) {
+                return BUCKET_BOUNDS_MS[i];
+            }
+        }
+        return BUCKET_BOUNDS_MS[BUCKET_BOUNDS_MS.length - 1];
+    }
+
+    private static String getHistogramName(int stage) {
+        return stage == STAGE_TUNE_REQUESTED ? TOTAL_NAME : STAGE_NAMES[stage];
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.testing;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * A utility class for micro benchmarks.
+ *
+ * <p>Each benchmark runs warm-up iterations before measuring, so that the measured iterations are
+ * not affected by class loading and JIT compilation.
+ */
+public final class BenchmarkUtils {
+    private static final String TAG = "BenchmarkUtils";
+
+    private static final String RUNTIME_STAT_BYTES_ALLOCATED = "art.gc.bytes-allocated";
+
+    /**
+     * A unit of work which is measured by {@link #measure}.
+     */
+    public interface Workload {
+        /**
+         * Runs the workload once.
+         *
+         * @return the number of items which are processed, e.g. the number of TS packets
+         */
+        long run();
+    }
+
+    /**
+     * The result of a benchmark.
+     */
+    public static final class Result {
+        public final String name;
+        public final long items;
+        public final long elapsedNs;
+        public final long allocatedBytes;
+
+        private Result(String name, long items, long elapsedNs, long allocatedBytes) {
+            this.name = name;
+            this.items = items;
+            this.elapsedNs = elapsedNs;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        /**
+         * Returns the number of processed items per second.
+         */
+        public double getItemsPerSecond() {
+            return elapsedNs == 0 ? 0 : items * 1e9 / elapsedNs;
+        }
+
+        /**
+         * Returns the average number of bytes allocated per processed item.
+         */
+        public double getAllocatedBytesPerItem() {
+            return items == 0 || allocatedBytes < 0 ? 0 : (double) allocatedBytes / items;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d items in %.2f ms, %.1f items/s, %.2f bytes/item",
+                    name, items, elapsedNs / 1e6, getItemsPerSecond(),
+                    getAllocatedBytesPerItem());
+        }
+    }
+
+    /**
+     * Measures the throughput and the allocation rate of the given workload.
+     *
+     * @param name the name of the benchmark which is logged with the result
+     * @param warmUpIterations the number of iterations which are run before measuring
+     * @param iterations the number of iterations which are measured
+     * @param workload the workload to measure
+     */
+    public static Result measure(String name, int warmUpIterations, int iterations,
+            Workload workload) {
+        for (int i = 0; i < warmUpIterations; ++i) {
+            workload.run();
+        }
+        Runtime.getRuntime().gc();
+        long items = 0;
+        long startAllocatedBytes = getAllocatedBytes();
+        long startNs = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < iterations; ++i) {
+            items += workload.run();
+        }
+        long elapsedNs = SystemClock.elapsedRealtimeNanos() - startNs;
+        long allocatedBytes = getAllocatedBytes() - startAllocatedBytes;
+        Result result = new Result(name, items, elapsedNs, allocatedBytes);
+        Log.i(TAG, result.toString());
+        return result;
+    }
+
+    /**
+     * Returns the total number of bytes allocated by the runtime, or {@code -1} if the runtime
+     * does not report it.
+     */
+    public static long getAllocatedBytes() {
+        String stat = Debug.getRuntimeStat(RUNTIME_STAT_BYTES_ALLOCATED);
+        if (stat == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(stat);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private BenchmarkUtils() { }
+}
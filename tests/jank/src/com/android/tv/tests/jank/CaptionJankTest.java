@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tv.tests.jank;
+
+import android.content.res.Resources;
+import android.os.SystemClock;
+import android.support.test.filters.MediumTest;
+import android.support.test.jank.GfxMonitor;
+import android.support.test.jank.JankTest;
+import android.support.test.jank.JankTestBase;
+import android.support.test.uiautomator.UiDevice;
+
+import com.android.tv.testing.uihelper.LiveChannelsUiDeviceHelper;
+
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Jank tests for the closed captions of the built-in tuner.
+ */
+@MediumTest
+public class CaptionJankTest extends JankTestBase {
+    private static final String TAG = "CaptionJankTest";
+
+    // The prefix of the caption stages, which are dumped by CaptionFrameStats.
+    static final String CAPTION_STAGE_PREFIX = "caption_";
+
+    private static final String STARTING_CHANNEL = "13";
+
+    /**
+     * The minimum number of frames expected during each jank test.
+     * If there is less the test will fail. To be safe we loop the action in each test to create
+     * twice this many frames under normal conditions.
+     * <p>At least 100 frams should be chosen so there will be enough frame
+     * for the 90th, 95th, and 98th percentile measurements are significant.
+     *
+     * @see <a href="http://go/janktesthelper-best-practices">Jank Test Helper Best Practices</a>
+     */
+    private static final int EXPECTED_FRAMES = 100;
+    private static final int CHANNEL_ZAPPING_COUNT = 5;
+    private static final long CAPTION_WATCHING_TIME_MS = 5000;
+
+    private static final String ENABLE_CAPTIONING_COMMAND =
+            "settings put secure accessibility_captioning_enabled 1";
+    private static final String DISABLE_CAPTIONING_COMMAND =
+            "settings put secure accessibility_captioning_enabled 0";
+    private static final Pattern CAPTION_STAGE_PATTERN = Pattern.compile(
+            "stage=(" + CAPTION_STAGE_PREFIX
+                    + "\\w+) count=(\\d+) budgetMs=(\\d+) p50Ms=(\\d+) p90Ms=(\\d+)");
+
+    private UiDevice mDevice;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDevice = UiDevice.getInstance(getInstrumentation());
+        Utils.executeShellCommand(getInstrumentation(), ENABLE_CAPTIONING_COMMAND);
+        Resources targetResources = getInstrumentation().getTargetContext().getResources();
+        LiveChannelsUiDeviceHelper liveChannelsHelper = new LiveChannelsUiDeviceHelper(mDevice,
+                targetResources, getInstrumentation().getContext());
+        liveChannelsHelper.assertAppStarted();
+        Utils.pressKeysForChannelNumber(STARTING_CHANNEL, mDevice);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Utils.executeShellCommand(getInstrumentation(), DISABLE_CAPTIONING_COMMAND);
+        super.tearDown();
+    }
+
+    /**
+     * Watches the captions of a few channels while the banner is shown and closed, so the frames
+     * of the UI are drawn while the captions are updated.
+     */
+    @JankTest(expectedFrames = EXPECTED_FRAMES,
+            afterTest = "assertCaptionStageBudgets")
+    @GfxMonitor(processName = Utils.LIVE_CHANNELS_PROCESS_NAME)
+    public void testCaptionWhileZapping() {
+        for (int i = 0; i < CHANNEL_ZAPPING_COUNT; i++) {
+            mDevice.pressDPadUp();
+            mDevice.waitForIdle();
+            SystemClock.sleep(CAPTION_WATCHING_TIME_MS);
+            // Press BACK to close banner.
+            mDevice.pressBack();
+            mDevice.waitForIdle();
+        }
+    }
+
+    /**
+     * Checks that the 90th percentile time of each stage of the caption pipeline is within its
+     * budget. The stages which weren't reached, e.g. when the channels have no captions, are
+     * skipped. It's public to be used with @JankTest annotation.
+     */
+    public void assertCaptionStageBudgets() {
+        String dump;
+        try {
+            dump = Utils.executeShellCommand(getInstrumentation(),
+                    Utils.DUMP_TUNER_SERVICE_COMMAND);
+        } catch (IOException e) {
+            fail("Failed to dump the tuner service: " + e);
+            return;
+        }
+        Matcher matcher = CAPTION_STAGE_PATTERN.matcher(dump);
+        while (matcher.find()) {
+            String stage = matcher.group(1);
+            int count = Integer.parseInt(matcher.group(2));
+            long budgetMs = Long.parseLong(matcher.group(3));
+            long p90Ms = Long.parseLong(matcher.group(5));
+            if (count > 0) {
+                assertTrue("The 90th percentile of " + stage + " is " + p90Ms + "ms, over the "
+                        + "budget of " + budgetMs + "ms", p90Ms <= budgetMs);
+            }
+        }
+    }
+}
@@ -24,6 +24,10 @@ import android.support.test.uiautomator.UiDevice;
 
 import com.android.tv.testing.uihelper.LiveChannelsUiDeviceHelper;
 
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 /**
  * Jank tests for channel zapping.
  */
@@ -45,6 +49,10 @@ public class ChannelZappingJankTest extends JankTestBase {
     private static final int EXPECTED_FRAMES = 100;
     private static final int WARM_UP_CHANNEL_ZAPPING_COUNT = 2;
 
+    // A line of the zap latency histograms, which are dumped by ZapTracer.
+    private static final Pattern ZAP_STAGE_PATTERN = Pattern.compile(
+            "stage=(\\w+) count=(\\d+) budgetMs=(\\d+) p50Ms=(\\d+) p90Ms=(\\d+)");
+
     private UiDevice mDevice;
 
     @Override
@@ -59,7 +67,8 @@ public class ChannelZappingJankTest extends JankTestBase {
     }
 
     @JankTest(expectedFrames = EXPECTED_FRAMES,
-            beforeTest = "warmChannelZapping")
+            beforeTest = "warmChannelZapping",
+            afterTest = "assertZapStageBudgets")
     @GfxMonitor(processName = Utils.LIVE_CHANNELS_PROCESS_NAME)
     public void testChannelZapping() {
         int frameCountForOneChannelZapping = 40;  // measured by hand
@@ -83,4 +92,34 @@ public class ChannelZappingJankTest extends JankTestBase {
         mDevice.pressBack();
         mDevice.waitForIdle();
     }
+
+    /**
+     * Checks that the 90th percentile latency of each stage of the zaps on the built-in tuner is
+     * within its budget. The stages which weren't reached, e.g. when the channels are not from
+     * the tuner, are skipped. It's public to be used with @JankTest annotation.
+     */
+    public void assertZapStageBudgets() {
+        String dump = dumpTunerService();
+        Matcher matcher = ZAP_STAGE_PATTERN.matcher(dump);
+        while (matcher.find()) {
+            String stage = matcher.group(1);
+            int count = Integer.parseInt(matcher.group(2));
+            long budgetMs = Long.parseLong(matcher.group(3));
+            long p90Ms = Long.parseLong(matcher.group(5));
+            if (count > 0 && !stage.startsWith(CaptionJankTest.CAPTION_STAGE_PREFIX)) {
+                assertTrue("The 90th percentile of " + stage + " is " + p90Ms + "ms, over the "
+                        + "budget of " + budgetMs + "ms", p90Ms <= budgetMs);
+            }
+        }
+    }
+
+    private String dumpTunerService() {
+        try {
+            return Utils.executeShellCommand(getInstrumentation(),
+                    Utils.DUMP_TUNER_SERVICE_COMMAND);
+        } catch (IOException e) {
+            fail("Failed to dump the tuner service: " + e);
+            return null;
+        }
+    }
 }
@@ -17,12 +17,22 @@ package com.android.tv.tests.jank;
 
 import com.android.tv.testing.uihelper.UiDeviceUtils;
 
+import android.app.Instrumentation;
+import android.os.ParcelFileDescriptor;
 import android.support.test.uiautomator.UiDevice;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
 public final class Utils {
     /** Live TV process name */
     public static final String LIVE_CHANNELS_PROCESS_NAME = "com.android.tv";
 
+    /** The command which dumps the histograms of the built-in tuner. */
+    public static final String DUMP_TUNER_SERVICE_COMMAND =
+            "dumpsys activity service com.android.tv/.tuner.tvinput.TunerTvInputService";
+
     private Utils() { }
 
     /**
@@ -32,4 +42,21 @@ public final class Utils {
         UiDeviceUtils.pressKeys(uiDevice, channel);
         uiDevice.pressDPadCenter();
     }
+
+    /**
+     * Executes the shell command and returns its output.
+     */
+    public static String executeShellCommand(Instrumentation instrumentation, String command)
+            throws IOException {
+        ParcelFileDescriptor pfd = instrumentation.getUiAutomation().executeShellCommand(command);
+        StringBuilder sb = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ParcelFileDescriptor.AutoCloseInputStream(pfd)))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                sb.append(line).append('\n');
+            }
+        }
+        return sb.toString();
+    }
 }
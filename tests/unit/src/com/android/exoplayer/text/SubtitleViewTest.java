@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exoplayer.text;
+
+import android.support.test.filters.SmallTest;
+import android.test.AndroidTestCase;
+import android.text.Layout.Alignment;
+import android.text.SpannedString;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.view.View.MeasureSpec;
+
+/**
+ * Tests for the layouts which are prepared in advance for {@link SubtitleView}.
+ */
+@SmallTest
+public class SubtitleViewTest extends AndroidTestCase {
+    private static final int VIEW_WIDTH = 600;
+    private static final float TEXT_SIZE = 24;
+
+    private SubtitleView mView;
+    private int mLayoutWidth;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mView = new SubtitleView(getContext());
+        mView.setTextSize(TEXT_SIZE);
+        mView.setText("measure");
+        measure();
+        mLayoutWidth = mView.getLastMeasuredWidth();
+    }
+
+    public void testSetText_adoptsLayoutOfEqualText() {
+        // A cached layout was created from another String of the same text.
+        StaticLayout layout = createLayout(new StringBuilder("A").toString());
+        mView.setText(new StringBuilder("A").toString(), layout);
+        measure();
+        assertSame(layout, mView.getLayout());
+    }
+
+    public void testSetText_rejectsLayoutOfOtherText() {
+        StaticLayout layout = createLayout("A");
+        mView.setText("B", layout);
+        measure();
+        assertNotSame(layout, mView.getLayout());
+        assertEquals("B", mView.getLayout().getText().toString());
+    }
+
+    public void testSetText_rejectsLayoutOfOtherSpannedText() {
+        StaticLayout layout = createLayout(new SpannedString("A"));
+        mView.setText(new SpannedString("A"), layout);
+        measure();
+        assertNotSame(layout, mView.getLayout());
+    }
+
+    private StaticLayout createLayout(CharSequence text) {
+        TextPaint paint = SubtitleView.createTextPaint();
+        paint.setTextSize(TEXT_SIZE);
+        paint.setTypeface(CaptionStyleCompat.DEFAULT.typeface);
+        return SubtitleView.createLayout(text, paint, mLayoutWidth, Alignment.ALIGN_CENTER);
+    }
+
+    private void measure() {
+        mView.measure(MeasureSpec.makeMeasureSpec(VIEW_WIDTH, MeasureSpec.AT_MOST),
+                MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED));
+    }
+}
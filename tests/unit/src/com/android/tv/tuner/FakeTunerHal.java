@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner;
+
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link TunerHal} which replays TS files instead of reading a tuner device.
+ *
+ * <p>Each frequency can have its own file, and tuning to a frequency without a file fails like a
+ * frequency without a signal. Like a tuner device, only the packets of the PIDs which are added
+ * by {@link #addPidFilter} are read. The file is replayed from the start when its end is reached.
+ * All the native methods are called while the HAL is locked, so no other lock is needed.
+ */
+public class FakeTunerHal extends TunerHal {
+    private static final int TS_PACKET_SIZE = 188;
+    private static final long DEVICE_ID = 1;
+
+    private final File mDefaultFile;
+    private final SparseArray<File> mFiles;
+    private final byte[] mPacket = new byte[TS_PACKET_SIZE];
+    private final SparseBooleanArray mPids = new SparseBooleanArray();
+    private RandomAccessFile mFile;
+    private boolean mOpened = true;
+
+    /**
+     * Creates a HAL which replays the given file on every frequency.
+     */
+    public FakeTunerHal(File tsFile) {
+        super(null);
+        mDefaultFile = tsFile;
+        mFiles = null;
+    }
+
+    /**
+     * Creates a HAL which replays the file of the frequency which is tuned to.
+     *
+     * @param files the TS files keyed by their frequencies
+     */
+    public FakeTunerHal(SparseArray<File> files) {
+        super(null);
+        mDefaultFile = null;
+        mFiles = files;
+    }
+
+    @Override
+    protected boolean openFirstAvailable() {
+        return true;
+    }
+
+    @Override
+    protected boolean isDeviceOpen() {
+        return mOpened;
+    }
+
+    @Override
+    protected long getDeviceId() {
+        return DEVICE_ID;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!mOpened) {
+            return;
+        }
+        if (isStreaming()) {
+            stopTune();
+        }
+        mOpened = false;
+        closeFile();
+    }
+
+    @Override
+    protected void nativeFinalize(long deviceId) { }
+
+    @Override
+    protected boolean nativeTune(long deviceId, int frequency, String modulation,
+            int timeout_ms) {
+        closeFile();
+        File file = mFiles == null ? mDefaultFile : mFiles.get(frequency);
+        if (file == null) {
+            return false;
+        }
+        try {
+            mFile = new RandomAccessFile(file, "r");
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open the TS file", e);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    protected void nativeAddPidFilter(long deviceId, int pid, int filterType) {
+        mPids.put(pid, true);
+    }
+
+    @Override
+    protected void nativeCloseAllPidFilters(long deviceId) {
+        mPids.clear();
+    }
+
+    @Override
+    protected void nativeSetHasPendingTune(long deviceId, boolean hasPendingTune) { }
+
+    @Override
+    protected void nativeStopTune(long deviceId) { }
+
+    @Override
+    protected int nativeWriteInBuffer(long deviceId, byte[] javaBuffer, int javaBufferSize) {
+        return readPackets(ByteBuffer.wrap(javaBuffer, 0, javaBufferSize));
+    }
+
+    @Override
+    protected int nativeWriteInDirectBuffer(long deviceId, ByteBuffer buffer, int offset,
+            int size) {
+        // Writes through a duplicate, since the caller advances the position of the buffer.
+        ByteBuffer target = buffer.duplicate();
+        target.limit(offset + size);
+        target.position(offset);
+        return readPackets(target);
+    }
+
+    private int readPackets(ByteBuffer target) {
+        int bytesWritten = 0;
+        try {
+            if (mFile == null || mFile.length() < TS_PACKET_SIZE) {
+                return 0;
+            }
+            // Reads as many packets as the buffer can hold, like the stream which arrived at the
+            // device since the last read, and drops the packets which are filtered out.
+            int packetCount = target.remaining() / TS_PACKET_SIZE;
+            for (int i = 0; i < packetCount; ++i) {
+                if (mFile.length() - mFile.getFilePointer() < TS_PACKET_SIZE) {
+                    mFile.seek(0);
+                }
+                mFile.readFully(mPacket);
+                int pid = ((mPacket[1] & 0x1f) << 8) | (mPacket[2] & 0xff);
+                if (mPids.get(pid)) {
+                    target.put(mPacket);
+                    bytesWritten += TS_PACKET_SIZE;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read the TS file", e);
+            return -1;
+        }
+        return bytesWritten;
+    }
+
+    private void closeFile() {
+        if (mFile == null) {
+            return;
+        }
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close the TS file", e);
+        }
+        mFile = null;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.cc;
+
+import android.graphics.Typeface;
+import android.support.test.filters.SmallTest;
+import android.text.Layout.Alignment;
+import android.text.Spanned;
+import android.text.StaticLayout;
+
+import com.android.tv.tuner.data.Cea708Data.CaptionPenAttr;
+import com.android.tv.tuner.data.Cea708Data.CaptionWindow;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Tests for {@link CaptionWindowModel} and {@link CaptionLayoutCache}.
+ */
+@SmallTest
+public class CaptionWindowModelTest extends TestCase {
+    private static final int WINDOW_ID = 1;
+    private static final int LAYOUT_WIDTH = 600;
+    private static final float TEXT_SIZE = 24;
+
+    private CaptionWindowModel mWindow;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mWindow = new CaptionWindowModel(WINDOW_ID);
+        mWindow.define(createWindow(2, true));
+    }
+
+    public void testDefine() {
+        assertTrue(mWindow.hasChanges());
+        CaptionWindowModel.Snapshot snapshot = mWindow.takeSnapshot();
+        assertEquals(WINDOW_ID, snapshot.windowId);
+        assertNotNull(snapshot.window);
+        assertNull(snapshot.text);
+        assertTrue(snapshot.visible);
+        assertFalse(mWindow.hasChanges());
+    }
+
+    public void testTakeSnapshot_onlyChanges() {
+        mWindow.takeSnapshot();
+        mWindow.appendText("A");
+        CaptionWindowModel.Snapshot snapshot = mWindow.takeSnapshot();
+        assertNull(snapshot.window);
+        assertEquals("A", snapshot.text.toString());
+
+        mWindow.setVisible(false);
+        snapshot = mWindow.takeSnapshot();
+        assertNull(snapshot.text);
+        assertFalse(snapshot.visible);
+    }
+
+    public void testAppendText_rowLimit() {
+        // The window has three rows, [0, 2].
+        mWindow.appendText("1\n2\n3\n4");
+        assertEquals("2\n3\n4", mWindow.takeSnapshot().text.toString());
+    }
+
+    public void testAppendText_trimmed() {
+        mWindow.appendText("\n  A\n B  ");
+        CaptionWindowModel.Snapshot snapshot = mWindow.takeSnapshot();
+        assertEquals("  A\n B", snapshot.text);
+        assertEquals(Arrays.asList(2, 1), snapshot.prefixSpaces);
+    }
+
+    public void testSetPenLocation() {
+        mWindow.appendText("A");
+        mWindow.setPenLocation(1, 2);
+        mWindow.appendText("B");
+        assertEquals("A\n  B", mWindow.takeSnapshot().text);
+    }
+
+    public void testPenAttr_spannedText() {
+        mWindow.appendText("A");
+        assertTrue(mWindow.takeSnapshot().text instanceof String);
+
+        mWindow.setPenAttr(new CaptionPenAttr(CaptionPenAttr.PEN_SIZE_STANDARD,
+                CaptionPenAttr.OFFSET_NORMAL, 0, 0, 0, true, false));
+        mWindow.appendText("B");
+        CaptionWindowModel.Snapshot snapshot = mWindow.takeSnapshot();
+        assertTrue(snapshot.text instanceof Spanned);
+        assertEquals("AB", snapshot.text.toString());
+    }
+
+    public void testClear() {
+        mWindow.appendText("A");
+        mWindow.takeSnapshot();
+        mWindow.clear();
+        CaptionWindowModel.Snapshot snapshot = mWindow.takeSnapshot();
+        assertEquals("", snapshot.text);
+        assertFalse(snapshot.visible);
+    }
+
+    public void testLayoutCache_plainText() {
+        CaptionLayoutCache cache = new CaptionLayoutCache();
+        StaticLayout layout = cache.getLayout("A", LAYOUT_WIDTH, TEXT_SIZE, Typeface.DEFAULT,
+                Alignment.ALIGN_NORMAL);
+        assertEquals(LAYOUT_WIDTH, layout.getWidth());
+        assertEquals(TEXT_SIZE, layout.getPaint().getTextSize(), 0f);
+        assertSame(layout, cache.getLayout(new StringBuilder("A"), LAYOUT_WIDTH, TEXT_SIZE,
+                Typeface.DEFAULT, Alignment.ALIGN_NORMAL));
+        assertEquals(1, cache.getHitCount());
+
+        assertNotSame(layout, cache.getLayout("A", LAYOUT_WIDTH + 1, TEXT_SIZE, Typeface.DEFAULT,
+                Alignment.ALIGN_NORMAL));
+        assertNotSame(layout, cache.getLayout("A", LAYOUT_WIDTH, TEXT_SIZE,
+                Typeface.DEFAULT, Alignment.ALIGN_CENTER));
+        assertEquals(3, cache.getMissCount());
+    }
+
+    public void testLayoutCache_spannedTextNotCached() {
+        mWindow.setPenAttr(new CaptionPenAttr(CaptionPenAttr.PEN_SIZE_LARGE,
+                CaptionPenAttr.OFFSET_NORMAL, 0, 0, 0, false, true));
+        mWindow.appendText("A");
+        CharSequence text = mWindow.takeSnapshot().text;
+        CaptionLayoutCache cache = new CaptionLayoutCache();
+        StaticLayout layout = cache.getLayout(text, LAYOUT_WIDTH, TEXT_SIZE, Typeface.DEFAULT,
+                Alignment.ALIGN_NORMAL);
+        assertSame(text, layout.getText());
+        assertNotSame(layout, cache.getLayout(text, LAYOUT_WIDTH, TEXT_SIZE, Typeface.DEFAULT,
+                Alignment.ALIGN_NORMAL));
+        assertEquals(0, cache.getHitCount());
+    }
+
+    private static CaptionWindow createWindow(int rowCount, boolean visible) {
+        return new CaptionWindow(WINDOW_ID, visible, false, false, 0, false, 0, 0, 0, rowCount,
+                31, 0, 0);
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.cc;
+
+import android.support.test.filters.LargeTest;
+import android.support.test.filters.SmallTest;
+
+import com.android.tv.testing.BenchmarkUtils;
+import com.android.tv.tuner.data.Cea708Data;
+import com.android.tv.tuner.data.Cea708Data.CaptionEvent;
+import com.android.tv.tuner.data.Cea708Data.CaptionPenColor;
+import com.android.tv.tuner.data.Cea708Data.CaptionPenLocation;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link Cea708Parser}.
+ */
+public class Cea708ParserTest extends TestCase {
+    private static final int SERVICE_NUMBER = 1;
+    private static final long FRAME_DURATION_US = 33367;
+    private static final int BENCHMARK_FRAME_COUNT = 30 * 60;
+
+    private final List<CaptionEvent> mEvents = new ArrayList<>();
+    private final Cea708Parser.OnCea708ParserListener mListener =
+            new Cea708Parser.OnCea708ParserListener() {
+                @Override
+                public void emitEvent(CaptionEvent event) {
+                    mEvents.add(event);
+                }
+
+                @Override
+                public void discoverServiceNumber(int serviceNumber) { }
+            };
+
+    private Cea708Parser mParser;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mParser = new Cea708Parser();
+        mParser.setListener(mListener);
+        mParser.setListenServiceNumber(SERVICE_NUMBER);
+    }
+
+    @SmallTest
+    public void testProcessClosedCaptions_inDisplayOrder() {
+        // B-frames are decoded before the frames which are displayed earlier.
+        mParser.parseClosedCaption(createCcData(text("C")), 3 * FRAME_DURATION_US);
+        mParser.parseClosedCaption(createCcData(text("A")), FRAME_DURATION_US);
+        mParser.parseClosedCaption(createCcData(text("B")), 2 * FRAME_DURATION_US);
+
+        assertFalse(mParser.processClosedCaptions(FRAME_DURATION_US));
+        assertTrue(mEvents.isEmpty());
+        assertTrue(mParser.processClosedCaptions(3 * FRAME_DURATION_US));
+        assertEquals(2, mEvents.size());
+        assertEquals("A", mEvents.get(0).obj);
+        assertEquals("B", mEvents.get(1).obj);
+        assertTrue(mParser.processClosedCaptions(4 * FRAME_DURATION_US));
+        assertEquals("C", mEvents.get(2).obj);
+    }
+
+    @SmallTest
+    public void testParseClosedCaption_samePtsDropped() {
+        mParser.parseClosedCaption(createCcData(text("A")), FRAME_DURATION_US);
+        mParser.parseClosedCaption(createCcData(text("B")), FRAME_DURATION_US);
+        mParser.processClosedCaptions(2 * FRAME_DURATION_US);
+        assertEquals(1, mEvents.size());
+        assertEquals("A", mEvents.get(0).obj);
+    }
+
+    @SmallTest
+    public void testParseClosedCaption_manyPendingFrames() {
+        // More frames than the initial capacity of the packet queue.
+        for (int i = 100; i > 0; --i) {
+            mParser.parseClosedCaption(createCcData(text(Integer.toString(i))),
+                    i * FRAME_DURATION_US);
+        }
+        mParser.processClosedCaptions(101 * FRAME_DURATION_US);
+        assertEquals(100, mEvents.size());
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(Integer.toString(i + 1), mEvents.get(i).obj);
+        }
+    }
+
+    @SmallTest
+    public void testCommands_eventsReused() {
+        byte[] commands = concat(setPenColor(0x3f, 0x00, 0x15), setPenLocation(2, 5), text("A"),
+                new byte[] {Cea708Data.CODE_C0_ETX});
+        mParser.parseClosedCaption(createCcData(commands), FRAME_DURATION_US);
+        mParser.parseClosedCaption(createCcData(commands), 2 * FRAME_DURATION_US);
+        mParser.processClosedCaptions(3 * FRAME_DURATION_US);
+
+        assertEquals(8, mEvents.size());
+        CaptionEvent penColorEvent = mEvents.get(0);
+        assertEquals(Cea708Parser.CAPTION_EMIT_TYPE_COMMAND_SPC, penColorEvent.type);
+        CaptionPenColor penColor = (CaptionPenColor) penColorEvent.obj;
+        assertEquals(0, penColor.foregroundColor.opacity);
+        assertEquals(3, penColor.foregroundColor.red);
+        assertEquals(3, penColor.foregroundColor.blue);
+        assertEquals(1, penColor.edgeColor.red);
+        CaptionEvent penLocationEvent = mEvents.get(1);
+        assertEquals(2, ((CaptionPenLocation) penLocationEvent.obj).row);
+        assertEquals(5, ((CaptionPenLocation) penLocationEvent.obj).column);
+        assertEquals("A", mEvents.get(2).obj);
+        assertEquals(Cea708Parser.CAPTION_EMIT_TYPE_CONTROL, mEvents.get(3).type);
+        assertEquals((char) Cea708Data.CODE_C0_ETX, mEvents.get(3).obj);
+
+        assertSame(penColorEvent, mEvents.get(4));
+        assertSame(penLocationEvent, mEvents.get(5));
+        assertSame(mEvents.get(3), mEvents.get(7));
+    }
+
+    @SmallTest
+    public void testCommands_differentValues() {
+        mParser.parseClosedCaption(createCcData(concat(setPenLocation(2, 5),
+                setPenLocation(3, 5))), FRAME_DURATION_US);
+        mParser.processClosedCaptions(2 * FRAME_DURATION_US);
+        assertEquals(2, mEvents.size());
+        assertEquals(2, ((CaptionPenLocation) mEvents.get(0).obj).row);
+        assertEquals(3, ((CaptionPenLocation) mEvents.get(1).obj).row);
+    }
+
+    /**
+     * Replays a minute of a caption-heavy stream, which has captions on every frame, and reports
+     * the allocation per frame.
+     */
+    @LargeTest
+    public void testParse_benchmark() {
+        final ByteBuffer[] frames = new ByteBuffer[BENCHMARK_FRAME_COUNT];
+        for (int i = 0; i < frames.length; ++i) {
+            frames[i] = createCcData(concat(setPenColor(0x3f, 0x00, 0x00),
+                    setPenLocation(i % 15, 0), text("CAPTION"),
+                    new byte[] {Cea708Data.CODE_C0_ETX}));
+        }
+        final Cea708Parser parser = new Cea708Parser();
+        parser.setListenServiceNumber(SERVICE_NUMBER);
+        final long[] ptsOffsetUs = new long[1];
+        BenchmarkUtils.Result result = BenchmarkUtils.measure("Cea708Parser", 1, 5,
+                new BenchmarkUtils.Workload() {
+                    @Override
+                    public long run() {
+                        long startUs = ptsOffsetUs[0];
+                        for (int i = 0; i < frames.length; i += 2) {
+                            // Decoding order of IBP streams.
+                            long ptsUs = startUs + i * FRAME_DURATION_US;
+                            parser.parseClosedCaption(frames[i + 1], ptsUs + FRAME_DURATION_US);
+                            parser.parseClosedCaption(frames[i], ptsUs);
+                            parser.processClosedCaptions(ptsUs);
+                            parser.processClosedCaptions(ptsUs + FRAME_DURATION_US);
+                        }
+                        ptsOffsetUs[0] = startUs + frames.length * FRAME_DURATION_US;
+                        parser.processClosedCaptions(ptsOffsetUs[0]);
+                        return frames.length;
+                    }
+                });
+        assertEquals(5 * BENCHMARK_FRAME_COUNT, result.items);
+    }
+
+    private static byte[] text(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] setPenColor(int foreground, int background, int edge) {
+        return new byte[] {(byte) Cea708Data.CODE_C1_SPC, (byte) foreground, (byte) background,
+                (byte) edge};
+    }
+
+    private static byte[] setPenLocation(int row, int column) {
+        return new byte[] {(byte) Cea708Data.CODE_C1_SPL, (byte) row, (byte) column};
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            out.write(array, 0, array.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Creates the cc_data of a frame, which carries a DTVCC packet with a service block.
+     */
+    private static ByteBuffer createCcData(byte[] serviceBlockData) {
+        // The DTVCC packet header, the service block header and the data, padded to be even.
+        int packetSize = (2 + serviceBlockData.length + 1) / 2 * 2;
+        byte[] packet = new byte[packetSize];
+        packet[0] = (byte) (packetSize / 2);
+        packet[1] = (byte) (SERVICE_NUMBER << 5 | serviceBlockData.length);
+        System.arraycopy(serviceBlockData, 0, packet, 2, serviceBlockData.length);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < packetSize; i += 2) {
+            // DTVCC_PACKET_START and then DTVCC_PACKET_DATA, which are valid.
+            out.write(i == 0 ? 0xff : 0xfe);
+            out.write(packet[i]);
+            out.write(packet[i + 1]);
+        }
+        // An invalid DTVCC_PACKET_DATA completes the packet.
+        out.write(0xfa);
+        out.write(0);
+        out.write(0);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+}
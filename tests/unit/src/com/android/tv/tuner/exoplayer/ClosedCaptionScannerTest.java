@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer;
+
+import android.media.MediaFormat;
+import android.support.test.filters.LargeTest;
+import android.support.test.filters.SmallTest;
+
+import com.android.tv.testing.BenchmarkUtils;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for {@link ClosedCaptionScanner}, which are verified against the byte-by-byte scanner
+ * that was used before.
+ */
+public class ClosedCaptionScannerTest extends TestCase {
+    private static final long FRAME_DURATION_US = 33367;
+    private static final int FRAME_COUNT = 300;
+    private static final int MAX_SLICE_SIZE = 20000;
+
+    @SmallTest
+    public void testFindStartCode() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] {
+                1, 2, 3, 4, 5, 6, 7, 8, 9, 0, 1, 0, 0, 1, 0x65, 0, 0, 1});
+        buffer.position(buffer.capacity());
+        assertEquals(11, ClosedCaptionScanner.findStartCode(buffer, 0, buffer.position()));
+        assertEquals(15, ClosedCaptionScanner.findStartCode(buffer, 12, buffer.position()));
+        assertEquals(-1, ClosedCaptionScanner.findStartCode(buffer, 16, buffer.position()));
+        // The start code must be within the limit.
+        assertEquals(-1, ClosedCaptionScanner.findStartCode(buffer, 12, 17));
+    }
+
+    @SmallTest
+    public void testScan_mpeg2SameAsReference() {
+        List<ByteBuffer> frames = createMpeg2Frames(new Random(1));
+        assertEquals(scanByReference(frames, false),
+                scan(MediaFormat.MIMETYPE_VIDEO_MPEG2, frames));
+    }
+
+    @SmallTest
+    public void testScan_h264SameAsReference() {
+        List<ByteBuffer> frames = createH264Frames(new Random(2), false);
+        List<String> expected = scanByReference(frames, true);
+        assertEquals(FRAME_COUNT, expected.size());
+        assertEquals(expected, scan(MediaFormat.MIMETYPE_VIDEO_AVC, frames));
+    }
+
+    @SmallTest
+    public void testScan_h264SeiAfterAud() {
+        // The reference scanner skipped 7 bytes after every start code, which missed the SEI
+        // right after an AUD.
+        List<ByteBuffer> frames = createH264Frames(new Random(3), true);
+        assertTrue(scanByReference(frames, true).isEmpty());
+        assertEquals(FRAME_COUNT, scan(MediaFormat.MIMETYPE_VIDEO_AVC, frames).size());
+    }
+
+    @SmallTest
+    public void testScan_positionUnchanged() {
+        ByteBuffer frame = createMpeg2Frames(new Random(4)).get(0);
+        int position = frame.position();
+        CcDataQueue queue = new CcDataQueue();
+        ClosedCaptionScanner.create(MediaFormat.MIMETYPE_VIDEO_MPEG2, queue).scan(frame, 0);
+        assertEquals(position, frame.position());
+        assertEquals(1, queue.size());
+    }
+
+    @SmallTest
+    public void testCcDataQueue_grows() {
+        CcDataQueue queue = new CcDataQueue();
+        ByteBuffer data = ByteBuffer.wrap(new byte[] {(byte) 0xfc, 0x41, 0x42});
+        for (int i = 0; i < 100; ++i) {
+            queue.add(data, 0, 3, i);
+            if (i % 3 == 0) {
+                // Moves the head to wrap the ring.
+                ByteBuffer out = ByteBuffer.allocate(CcDataQueue.MAX_CC_DATA_SIZE);
+                assertEquals(i / 3, queue.poll(out));
+            }
+        }
+        assertEquals(66, queue.size());
+        ByteBuffer out = ByteBuffer.allocate(CcDataQueue.MAX_CC_DATA_SIZE);
+        assertEquals(34, queue.poll(out));
+        assertEquals(3, out.position());
+        assertEquals(0x41, out.get(1));
+    }
+
+    /**
+     * Measures the scan of the H.264 frames by the byte-by-byte scanner and by the word scanner.
+     */
+    @LargeTest
+    public void testScan_benchmark() {
+        final List<ByteBuffer> frames = createH264Frames(new Random(5), false);
+        BenchmarkUtils.Result referenceResult = BenchmarkUtils.measure("Reference CC scan", 3,
+                20, new BenchmarkUtils.Workload() {
+                    @Override
+                    public long run() {
+                        scanByReference(frames, true);
+                        return getTotalSize(frames);
+                    }
+                });
+        final CcDataQueue queue = new CcDataQueue();
+        final ClosedCaptionScanner scanner =
+                ClosedCaptionScanner.create(MediaFormat.MIMETYPE_VIDEO_AVC, queue);
+        BenchmarkUtils.Result result = BenchmarkUtils.measure("CC scan", 3, 20,
+                new BenchmarkUtils.Workload() {
+                    @Override
+                    public long run() {
+                        ByteBuffer out = ByteBuffer.allocate(CcDataQueue.MAX_CC_DATA_SIZE);
+                        for (ByteBuffer frame : frames) {
+                            scanner.scan(frame, 0);
+                            while (!queue.isEmpty()) {
+                                out.clear();
+                                queue.poll(out);
+                            }
+                        }
+                        return getTotalSize(frames);
+                    }
+                });
+        assertEquals(referenceResult.items, result.items);
+    }
+
+    private static long getTotalSize(List<ByteBuffer> frames) {
+        long size = 0;
+        for (ByteBuffer frame : frames) {
+            size += frame.position();
+        }
+        return size;
+    }
+
+    private static List<String> scan(String mimeType, List<ByteBuffer> frames) {
+        CcDataQueue queue = new CcDataQueue();
+        ClosedCaptionScanner scanner = ClosedCaptionScanner.create(mimeType, queue);
+        List<String> results = new ArrayList<>();
+        long timeUs = 0;
+        for (ByteBuffer frame : frames) {
+            scanner.scan(frame, timeUs);
+            timeUs += FRAME_DURATION_US;
+        }
+        while (!queue.isEmpty()) {
+            ByteBuffer out = ByteBuffer.allocate(CcDataQueue.MAX_CC_DATA_SIZE);
+            long ccTimeUs = queue.poll(out);
+            results.add(ccTimeUs + ":" + Arrays.toString(Arrays.copyOf(out.array(),
+                    out.position())));
+        }
+        return results;
+    }
+
+    /**
+     * Scans the frames as the CcParser of {@link MpegTsSampleExtractor} did byte by byte.
+     */
+    private static List<String> scanByReference(List<ByteBuffer> frames, boolean isH264) {
+        int patternLength = isH264 ? 14 : 9;
+        byte[] chunk = new byte[1024];
+        List<String> results = new ArrayList<>();
+        long timeUs = 0;
+        for (ByteBuffer buffer : frames) {
+            int totalSize = buffer.position();
+            for (int i = 0; i < totalSize; i += chunk.length - patternLength) {
+                buffer.position(i);
+                int size = Math.min(totalSize - i, chunk.length);
+                buffer.get(chunk, 0, size);
+                int j = 0;
+                while (j < size - patternLength) {
+                    if (chunk[j] == 0 && chunk[j + 1] == 0 && chunk[j + 2] == 1) {
+                        boolean matched;
+                        if (isH264) {
+                            matched = (chunk[j + 3] & 0x1f) == 6 && (chunk[j + 4] & 0xff) == 4
+                                    && chunk[j + 9] == 'G' && chunk[j + 10] == 'A'
+                                    && chunk[j + 11] == '9' && chunk[j + 12] == '4';
+                        } else {
+                            matched = (chunk[j + 3] & 0xff) == 0xb2 && chunk[j + 4] == 'G'
+                                    && chunk[j + 5] == 'A' && chunk[j + 6] == '9'
+                                    && chunk[j + 7] == '4' && chunk[j + 8] == 3;
+                        }
+                        if (matched) {
+                            j = parseByReference(buffer, i + j + patternLength, totalSize,
+                                    timeUs, results) - i;
+                        } else if (isH264) {
+                            j += 7;
+                        } else if ((chunk[j + 3] & 0xff) == 0xb2) {
+                            j += patternLength;
+                        } else {
+                            ++j;
+                        }
+                    } else {
+                        ++j;
+                    }
+                }
+            }
+            buffer.position(totalSize);
+            timeUs += FRAME_DURATION_US;
+        }
+        return results;
+    }
+
+    private static int parseByReference(ByteBuffer buffer, int offset, int limit, long timeUs,
+            List<String> results) {
+        int pos = offset;
+        if (pos + 2 >= limit) {
+            return offset;
+        }
+        boolean processCcDataFlag = (buffer.get(pos) & 64) != 0;
+        int ccCount = buffer.get(pos) & 0x1f;
+        pos += 2;
+        if (!processCcDataFlag || pos + 3 * ccCount >= limit || ccCount == 0) {
+            return offset;
+        }
+        byte[] data = new byte[3 * ccCount];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = buffer.get(pos++);
+        }
+        results.add(timeUs + ":" + Arrays.toString(data));
+        return pos;
+    }
+
+    private static List<ByteBuffer> createMpeg2Frames(Random random) {
+        List<ByteBuffer> frames = new ArrayList<>();
+        for (int i = 0; i < FRAME_COUNT; ++i) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (i % 15 == 0) {
+                // Sequence header.
+                writeUnit(out, 0xb3, random, 8);
+            }
+            // Picture header, and the user data of the closed caption.
+            writeUnit(out, 0x00, random, 4);
+            writeStartCode(out, 0xb2);
+            out.write('G');
+            out.write('A');
+            out.write('9');
+            out.write('4');
+            out.write(3);
+            writeCcData(out, random);
+            // Slices.
+            for (int slice = 1; slice <= 4; ++slice) {
+                writeUnit(out, slice, random, random.nextInt(MAX_SLICE_SIZE));
+            }
+            frames.add(toSampleBuffer(out));
+        }
+        return frames;
+    }
+
+    private static List<ByteBuffer> createH264Frames(Random random, boolean seiAfterAud) {
+        List<ByteBuffer> frames = new ArrayList<>();
+        for (int i = 0; i < FRAME_COUNT; ++i) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            // AUD.
+            out.write(0);
+            writeUnit(out, 0x09, random, 0);
+            if (!seiAfterAud) {
+                // SPS and PPS.
+                writeUnit(out, 0x67, random, 16);
+                writeUnit(out, 0x68, random, 4);
+            }
+            // SEI of user_data_registered_itu_t_t35 with the ATSC identifier.
+            if (!seiAfterAud) {
+                out.write(0);
+            }
+            writeStartCode(out, 0x06);
+            out.write(4);
+            out.write(0x47);
+            out.write(0xb5);
+            out.write(0x00);
+            out.write(0x31);
+            out.write('G');
+            out.write('A');
+            out.write('9');
+            out.write('4');
+            out.write(3);
+            writeCcData(out, random);
+            // Slices.
+            writeUnit(out, i % 30 == 0 ? 0x65 : 0x41, random,
+                    random.nextInt(MAX_SLICE_SIZE));
+            frames.add(toSampleBuffer(out));
+        }
+        return frames;
+    }
+
+    private static void writeStartCode(ByteArrayOutputStream out, int code) {
+        out.write(0);
+        out.write(0);
+        out.write(1);
+        out.write(code);
+    }
+
+    private static void writeUnit(ByteArrayOutputStream out, int code, Random random,
+            int payloadSize) {
+        writeStartCode(out, code);
+        // The payload has zero bytes, but no start code emulation.
+        int previous = code;
+        for (int i = 0; i < payloadSize; ++i) {
+            int value = random.nextInt(256);
+            if (value == 0 && previous == 0) {
+                value = 0x80;
+            }
+            out.write(value);
+            previous = value;
+        }
+        // The payload does not end with a zero byte, which would be a part of the next start code.
+        out.write(0x80);
+    }
+
+    private static void writeCcData(ByteArrayOutputStream out, Random random) {
+        int ccCount = 1 + random.nextInt(10);
+        // process_cc_data_flag and cc_count, and em_data.
+        out.write(0x40 | ccCount);
+        out.write(0xff);
+        for (int i = 0; i < ccCount; ++i) {
+            out.write(0xfc);
+            out.write(0x20 + random.nextInt(0x60));
+            out.write(0x20 + random.nextInt(0x60));
+        }
+        // marker_bits.
+        out.write(0xff);
+    }
+
+    private static ByteBuffer toSampleBuffer(ByteArrayOutputStream out) {
+        // The sample data ends at the position, as in a SampleHolder.
+        byte[] data = out.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(data.length + 1024);
+        buffer.put(data);
+        return buffer;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.support.test.filters.SmallTest;
+import android.test.AndroidTestCase;
+
+import com.google.android.exoplayer.SampleHolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Tests for the chunk eviction of {@link BufferManager}.
+ */
+@SmallTest
+public class BufferManagerTest extends AndroidTestCase {
+    private static final String ID = "video";
+    private static final int SAMPLE_SIZE = 100 * 1024;
+    private static final long CHUNK_SIZE = SampleChunk.SAMPLE_HEADER_LENGTH + SAMPLE_SIZE;
+    private static final long CHUNK_DURATION_US = RecordingSampleBuffer.CHUNK_DURATION_US;
+    // Ten chunks fit in the buffer.
+    private static final long MAX_BUFFER_SIZE = 10 * CHUNK_SIZE + CHUNK_SIZE / 2;
+
+    private final SamplePool mSamplePool = new SamplePool();
+    private File mDir;
+    private TrickplayStorageManager mStorageManager;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "BufferManagerTest");
+        mStorageManager = new TrickplayStorageManager(getContext(), mDir, MAX_BUFFER_SIZE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mStorageManager.getBufferDir().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mStorageManager.getBufferDir().delete();
+        mDir.delete();
+        super.tearDown();
+    }
+
+    public void testEviction_untilLowWatermark() throws IOException {
+        BufferManager bufferManager = new BufferManager(mStorageManager);
+        bufferManager.setEvictionHeadroomBytes(3 * CHUNK_SIZE);
+        SampleChunk.IoState state = new SampleChunk.IoState();
+        state.openWrite(bufferManager.createNewWriteFile(ID, 0, mSamplePool));
+        writeSample(state, null);
+        // A chunk is counted when the next chunk is started.
+        for (int i = 1; i <= 11; ++i) {
+            writeSample(state, bufferManager.createNewWriteFile(ID, i * CHUNK_DURATION_US,
+                    mSamplePool));
+        }
+        assertEquals(0, bufferManager.getStartPositionUs(ID));
+
+        // Exceeds the buffer by a chunk, which evicts three more chunks below the limit.
+        writeSample(state, bufferManager.createNewWriteFile(ID, 12 * CHUNK_DURATION_US,
+                mSamplePool));
+        assertEquals(4 * CHUNK_DURATION_US, bufferManager.getStartPositionUs(ID));
+        File firstFile = bufferManager.getReadFile(ID, 4 * CHUNK_DURATION_US).getFile();
+        assertTrue(firstFile.exists());
+
+        // The next chunk does not evict anything.
+        writeSample(state, bufferManager.createNewWriteFile(ID, 13 * CHUNK_DURATION_US,
+                mSamplePool));
+        assertEquals(4 * CHUNK_DURATION_US, bufferManager.getStartPositionUs(ID));
+
+        bufferManager.evictChunks(ID, 4 * CHUNK_DURATION_US);
+        state.closeWrite();
+        bufferManager.release();
+        assertEquals(4 * CHUNK_SIZE, bufferManager.getReclaimedBytes());
+    }
+
+    public void testEvictionDaemon_countsPendingBytes() throws IOException {
+        final SampleChunk[] chunks = new SampleChunk[2];
+        SampleChunk.IoState state = new SampleChunk.IoState();
+        SampleChunk.SampleChunkCreator creator = new SampleChunk.SampleChunkCreator();
+        for (int i = 0; i < chunks.length; ++i) {
+            chunks[i] = creator.createSampleChunk(mSamplePool,
+                    new File(mStorageManager.getBufferDir(), "chunk_" + i), i * CHUNK_DURATION_US,
+                    new SampleChunk.ChunkCallback() {});
+            if (i == 0) {
+                state.openWrite(chunks[i]);
+                writeSample(state, null);
+            } else {
+                writeSample(state, chunks[i]);
+            }
+        }
+        state.closeWrite();
+
+        final Runnable[] pending = new Runnable[1];
+        ChunkEvictionDaemon daemon = new ChunkEvictionDaemon(runnable -> pending[0] = runnable);
+        daemon.evict(Arrays.asList(chunks));
+        assertEquals(2 * CHUNK_SIZE, daemon.getPendingBytes());
+        assertTrue(chunks[0].getFile().exists());
+
+        pending[0].run();
+        assertEquals(0, daemon.getPendingBytes());
+        assertEquals(2 * CHUNK_SIZE, daemon.getReclaimedBytes());
+        assertFalse(chunks[0].getFile().exists());
+        assertFalse(chunks[1].getFile().exists());
+    }
+
+    private void writeSample(SampleChunk.IoState state, SampleChunk nextChunk)
+            throws IOException {
+        SampleHolder sample = mSamplePool.acquireSample(SAMPLE_SIZE);
+        sample.clearData();
+        sample.data.put(new byte[SAMPLE_SIZE]);
+        sample.size = SAMPLE_SIZE;
+        sample.timeUs = nextChunk == null ? 0 : nextChunk.getStartPositionUs();
+        sample.flags = 0;
+        state.write(sample, nextChunk);
+        mSamplePool.releaseSample(sample);
+    }
+}
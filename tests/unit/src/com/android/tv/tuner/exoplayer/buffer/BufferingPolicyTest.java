@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.support.test.filters.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link BufferingPolicy}.
+ */
+@SmallTest
+public class BufferingPolicyTest extends TestCase {
+    private static final float FAST_MBPS = 20.0f;
+    private static final float SLOW_MBPS = 2.0f;
+    private static final float INGEST_MBPS = 1.0f;
+    private static final long LATENCY_US = 10000;
+
+    private final BufferingPolicy mPolicy = new BufferingPolicy();
+
+    public void testEvaluate_degradesStepByStep() {
+        assertEquals(BufferingPolicy.LEVEL_NORMAL, mPolicy.getLevel());
+        assertEquals(256 * 1024, mPolicy.getFlushSizeBytes());
+        assertTrue(mPolicy.evaluate(SLOW_MBPS, INGEST_MBPS, LATENCY_US));
+        assertEquals(BufferingPolicy.LEVEL_LARGE_BATCHES, mPolicy.getLevel());
+        assertEquals(1024 * 1024, mPolicy.getFlushSizeBytes());
+        assertFalse(mPolicy.isCaptionTrackDropped());
+        assertTrue(mPolicy.evaluate(SLOW_MBPS, INGEST_MBPS, LATENCY_US));
+        assertTrue(mPolicy.isCaptionTrackDropped());
+        assertEquals(0, mPolicy.getTimeShiftWindowMs());
+        assertTrue(mPolicy.evaluate(SLOW_MBPS, INGEST_MBPS, LATENCY_US));
+        assertTrue(mPolicy.getTimeShiftWindowMs() > 0);
+
+        // The storage keeps up with the stream, so the buffer is not disabled.
+        assertFalse(mPolicy.evaluate(SLOW_MBPS, INGEST_MBPS, LATENCY_US));
+        assertEquals(BufferingPolicy.LEVEL_REDUCED_WINDOW, mPolicy.getLevel());
+        assertFalse(mPolicy.isDisabled());
+    }
+
+    public void testEvaluate_disablesWhenNotKeepingUp() {
+        for (int i = 0; i < 3; ++i) {
+            mPolicy.evaluate(SLOW_MBPS, SLOW_MBPS, LATENCY_US);
+        }
+        assertFalse(mPolicy.isDisabled());
+        assertTrue(mPolicy.evaluate(SLOW_MBPS, SLOW_MBPS, LATENCY_US));
+        assertTrue(mPolicy.isDisabled());
+        // The buffer stays disabled.
+        assertFalse(mPolicy.evaluate(FAST_MBPS, INGEST_MBPS, LATENCY_US));
+    }
+
+    public void testEvaluate_degradesOnHighLatency() {
+        assertTrue(mPolicy.evaluate(FAST_MBPS, INGEST_MBPS, 500000));
+        assertEquals(BufferingPolicy.LEVEL_LARGE_BATCHES, mPolicy.getLevel());
+        // Larger batches are allowed to take longer.
+        assertFalse(mPolicy.evaluate(FAST_MBPS, INGEST_MBPS, 500000));
+    }
+
+    public void testEvaluate_recoversAfterHealthyEvaluations() {
+        mPolicy.evaluate(SLOW_MBPS, INGEST_MBPS, LATENCY_US);
+        mPolicy.evaluate(SLOW_MBPS, INGEST_MBPS, LATENCY_US);
+        for (int i = 0; i < 3; ++i) {
+            assertFalse(mPolicy.evaluate(FAST_MBPS, INGEST_MBPS, LATENCY_US));
+        }
+        assertTrue(mPolicy.evaluate(FAST_MBPS, INGEST_MBPS, LATENCY_US));
+        assertEquals(BufferingPolicy.LEVEL_LARGE_BATCHES, mPolicy.getLevel());
+    }
+
+    public void testOnWrite_evaluatesPeriodically() {
+        WriteLatencyProfiler profiler = new WriteLatencyProfiler();
+        long timeNs = 0;
+        // 100KB per 100ms, which takes 100ms to write.
+        for (int i = 0; i < 31; ++i) {
+            timeNs += 100000000;
+            profiler.addWrite(100 * 1024, 100000000, timeNs);
+            assertFalse(mPolicy.onWrite(profiler));
+        }
+        profiler.addWrite(100 * 1024, 100000000, timeNs + 100000000);
+        assertTrue(mPolicy.onWrite(profiler));
+        assertEquals(BufferingPolicy.LEVEL_LARGE_BATCHES, mPolicy.getLevel());
+    }
+}
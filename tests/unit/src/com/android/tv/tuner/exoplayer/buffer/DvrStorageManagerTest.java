@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.media.MediaFormat;
+import android.support.test.filters.LargeTest;
+import android.support.test.filters.SmallTest;
+import android.test.AndroidTestCase;
+import android.util.Pair;
+
+import com.android.tv.testing.BenchmarkUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Tests for the track information and the index files of {@link DvrStorageManager}.
+ */
+public class DvrStorageManagerTest extends AndroidTestCase {
+    private static final String VIDEO = "video";
+    private static final String AUDIO = "audio";
+    private static final byte[] CSD = new byte[] {0, 0, 1, 0x67, 0x42};
+    // A 4-hour recording has a chunk for every 500ms.
+    private static final int BENCHMARK_CHUNK_COUNT = 4 * 60 * 60 * 2;
+
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "DvrStorageManagerTest");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testTrackInfo_writeAndRead() throws IOException {
+        DvrStorageManager storageManager = new DvrStorageManager(mDir, true);
+        storageManager.writeTrackInfoFile(VIDEO, createVideoFormat(), false);
+        assertVideoFormat(storageManager.readTrackInfoFile(false));
+        try {
+            storageManager.readTrackInfoFile(true);
+            fail();
+        } catch (FileNotFoundException e) {
+            // Expected for a video-only recording.
+        }
+    }
+
+    @SmallTest
+    public void testIndex_writeAndRead() throws IOException {
+        DvrStorageManager storageManager = new DvrStorageManager(mDir, true);
+        storageManager.writeIndexFile(VIDEO, createIndex(10));
+        assertIndex(storageManager.readIndexFile(VIDEO), 10);
+        storageManager.writeIndexFile(AUDIO, createIndex(0));
+        assertIndex(storageManager.readIndexFile(AUDIO), 0);
+    }
+
+    @SmallTest
+    public void testLegacyFiles_migratedOnReplay() throws IOException {
+        writeLegacyTrackInfoFile(VIDEO, false);
+        writeLegacyIndexFile(VIDEO, 10, 10);
+
+        // The recording is not migrated while it is being recorded.
+        DvrStorageManager recordingManager = new DvrStorageManager(mDir, true);
+        assertVideoFormat(recordingManager.readTrackInfoFile(false));
+        assertIndex(recordingManager.readIndexFile(VIDEO), 10);
+        assertFalse(new File(mDir, VIDEO + ".trackinfo").exists());
+        assertFalse(new File(mDir, VIDEO + ".chunks").exists());
+
+        DvrStorageManager storageManager = new DvrStorageManager(mDir, false);
+        assertVideoFormat(storageManager.readTrackInfoFile(false));
+        assertIndex(storageManager.readIndexFile(VIDEO), 10);
+        assertTrue(new File(mDir, VIDEO + ".trackinfo").exists());
+        assertTrue(new File(mDir, VIDEO + ".chunks").exists());
+
+        // The migrated files are used afterwards.
+        new File(mDir, VIDEO + ".meta").delete();
+        new File(mDir, VIDEO + ".idx").delete();
+        assertVideoFormat(storageManager.readTrackInfoFile(false));
+        assertIndex(storageManager.readIndexFile(VIDEO), 10);
+    }
+
+    @SmallTest
+    public void testLegacyIndex_truncated() throws IOException {
+        // The count is written before the recording is finished.
+        writeLegacyIndexFile(VIDEO, 10, 7);
+        assertIndex(new DvrStorageManager(mDir, true).readIndexFile(VIDEO), 7);
+    }
+
+    /**
+     * Measures the time to open a 4-hour recording, which reads the track information and the
+     * indexes of both tracks, in the legacy format and in the current format.
+     */
+    @LargeTest
+    public void testLoad_benchmark() throws IOException {
+        writeLegacyTrackInfoFile(VIDEO, false);
+        writeLegacyTrackInfoFile(AUDIO, true);
+        writeLegacyIndexFile(VIDEO, BENCHMARK_CHUNK_COUNT, BENCHMARK_CHUNK_COUNT);
+        writeLegacyIndexFile(AUDIO, BENCHMARK_CHUNK_COUNT, BENCHMARK_CHUNK_COUNT);
+        // The recording manager reads the legacy files without migrating them.
+        BenchmarkUtils.Result legacyResult = BenchmarkUtils.measure("Legacy 4-hour load", 1, 5,
+                createLoadWorkload(new DvrStorageManager(mDir, true)));
+
+        DvrStorageManager storageManager = new DvrStorageManager(mDir, true);
+        storageManager.writeTrackInfoFile(VIDEO, createVideoFormat(), false);
+        storageManager.writeTrackInfoFile(AUDIO, createVideoFormat(), true);
+        storageManager.writeIndexFile(VIDEO, createIndex(BENCHMARK_CHUNK_COUNT));
+        storageManager.writeIndexFile(AUDIO, createIndex(BENCHMARK_CHUNK_COUNT));
+        BenchmarkUtils.Result result = BenchmarkUtils.measure("4-hour load", 1, 5,
+                createLoadWorkload(storageManager));
+
+        assertEquals(legacyResult.items, result.items);
+        assertTrue(result.getItemsPerSecond() > 0);
+    }
+
+    private static BenchmarkUtils.Workload createLoadWorkload(
+            final DvrStorageManager storageManager) {
+        return new BenchmarkUtils.Workload() {
+            @Override
+            public long run() {
+                long count = 0;
+                try {
+                    storageManager.readTrackInfoFile(false);
+                    storageManager.readTrackInfoFile(true);
+                    for (String trackId : new String[] {VIDEO, AUDIO}) {
+                        LongBuffer indices = storageManager.readIndexFile(trackId);
+                        for (int i = 0; i < indices.remaining(); ++i) {
+                            // Touches every entry as BufferManager does.
+                            count += indices.get(i) >= 0 ? 1 : 0;
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                return count;
+            }
+        };
+    }
+
+    private static MediaFormat createVideoFormat() {
+        MediaFormat format = MediaFormat.createVideoFormat("video/avc", 1920, 1080);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 1024 * 1024);
+        format.setFloat("com.google.android.videos.pixelWidthHeightRatio", 1.5f);
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(CSD));
+        format.setLong(MediaFormat.KEY_DURATION, 1000000L);
+        return format;
+    }
+
+    private static void assertVideoFormat(Pair<String, MediaFormat> trackInfo) {
+        assertEquals(VIDEO, trackInfo.first);
+        MediaFormat format = trackInfo.second;
+        assertEquals("video/avc", format.getString(MediaFormat.KEY_MIME));
+        assertEquals(1920, format.getInteger(MediaFormat.KEY_WIDTH));
+        assertEquals(1080, format.getInteger(MediaFormat.KEY_HEIGHT));
+        assertEquals(1024 * 1024, format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+        assertEquals(1.5f, format.getFloat("com.google.android.videos.pixelWidthHeightRatio"));
+        assertEquals(ByteBuffer.wrap(CSD), format.getByteBuffer("csd-0"));
+        assertFalse(format.containsKey("csd-1"));
+        assertFalse(format.containsKey(MediaFormat.KEY_SAMPLE_RATE));
+        assertEquals(1000000L, format.getLong(MediaFormat.KEY_DURATION));
+    }
+
+    private static SortedMap<Long, SampleChunk> createIndex(int count) {
+        SortedMap<Long, SampleChunk> index = new TreeMap<>();
+        for (int i = 0; i < count; ++i) {
+            index.put(i * RecordingSampleBuffer.CHUNK_DURATION_US, null);
+        }
+        return index;
+    }
+
+    private static void assertIndex(LongBuffer indices, int count) {
+        assertEquals(count, indices.remaining());
+        for (int i = 0; i < count; ++i) {
+            assertEquals(i * RecordingSampleBuffer.CHUNK_DURATION_US, indices.get(i));
+        }
+    }
+
+    private void writeLegacyTrackInfoFile(String trackId, boolean isAudio) throws IOException {
+        mDir.mkdirs();
+        File file = new File(mDir, (isAudio ? "audio" : "video") + ".meta");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            writeLegacyString(out, trackId);
+            writeLegacyString(out, "video/avc");
+            out.writeInt(1024 * 1024);
+            out.writeInt(1920);
+            out.writeInt(1080);
+            // No channel count and sample rate.
+            out.writeInt(-1);
+            out.writeInt(-1);
+            out.writeFloat(1.5f);
+            out.writeInt(CSD.length);
+            out.write(CSD);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeLong(1000000L);
+        }
+    }
+
+    private static void writeLegacyString(DataOutputStream out, String str) throws IOException {
+        byte[] data = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private void writeLegacyIndexFile(String trackId, int count, int writtenCount)
+            throws IOException {
+        mDir.mkdirs();
+        File file = new File(mDir, trackId + ".idx");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeLong(count);
+            for (int i = 0; i < writtenCount; ++i) {
+                out.writeLong(i * RecordingSampleBuffer.CHUNK_DURATION_US);
+            }
+        }
+    }
+}
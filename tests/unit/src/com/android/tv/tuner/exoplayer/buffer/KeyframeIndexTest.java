@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.media.MediaCodec;
+import android.support.test.filters.SmallTest;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests for {@link KeyframeIndex}.
+ */
+@SmallTest
+public class KeyframeIndexTest extends AndroidTestCase {
+    private static final int KEY_FRAME = MediaCodec.BUFFER_FLAG_KEY_FRAME;
+    // Each chunk has 4 key frames at every 100ms, 1000 bytes apart.
+    private static final long CHUNK_DURATION_US = 400000;
+    private static final long KEY_FRAME_INTERVAL_US = 100000;
+    private static final int KEY_FRAME_DISTANCE = 1000;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(),
+                "KeyframeIndexTest" + KeyframeIndex.FILE_SUFFIX);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testFindOffset() {
+        KeyframeIndex index = KeyframeIndex.createInMemory();
+        addKeyFrames(index, 3);
+        assertEquals(0, index.findOffset(0, 0));
+        assertEquals(0, index.findOffset(0, 99999));
+        assertEquals(KEY_FRAME_DISTANCE, index.findOffset(0, 100000));
+        assertEquals(3 * KEY_FRAME_DISTANCE, index.findOffset(0, 399999));
+        assertEquals(2 * KEY_FRAME_DISTANCE, index.findOffset(CHUNK_DURATION_US, 650000));
+        // The position is before the first key frame of the chunk.
+        assertEquals(0, index.findOffset(CHUNK_DURATION_US, 350000));
+        // The position is after the last key frame of the last chunk.
+        assertEquals(3 * KEY_FRAME_DISTANCE, index.findOffset(2 * CHUNK_DURATION_US, 5000000));
+    }
+
+    public void testAdd_ignoresKeyFramesOutOfOrder() {
+        KeyframeIndex index = KeyframeIndex.createInMemory();
+        index.add(100000, 0, 1000, KEY_FRAME);
+        index.add(50000, 0, 2000, KEY_FRAME);
+        index.add(100000, 0, 3000, KEY_FRAME);
+        assertEquals(1, index.size());
+        assertEquals(1000, index.findOffset(0, 200000));
+    }
+
+    public void testAdd_grows() {
+        KeyframeIndex index = KeyframeIndex.createInMemory();
+        addKeyFrames(index, 1000);
+        assertEquals(4000, index.size());
+        assertEquals(2 * KEY_FRAME_DISTANCE,
+                index.findOffset(999 * CHUNK_DURATION_US, 999 * CHUNK_DURATION_US + 250000));
+    }
+
+    public void testRemoveChunksUntil() {
+        KeyframeIndex index = KeyframeIndex.createInMemory();
+        addKeyFrames(index, 3);
+        index.removeChunksUntil(CHUNK_DURATION_US);
+        assertEquals(4, index.size());
+        assertEquals(0, index.findOffset(CHUNK_DURATION_US, 650000));
+        assertEquals(KEY_FRAME_DISTANCE, index.findOffset(2 * CHUNK_DURATION_US, 900000));
+        // Removed entries are dropped when the index grows.
+        addKeyFrames(index, 3, 200);
+        assertEquals(4 + 200 * 4, index.size());
+    }
+
+    public void testCreateAndLoad() throws IOException {
+        KeyframeIndex index = KeyframeIndex.create(mFile);
+        addKeyFrames(index, 2);
+        index.flush();
+        addKeyFrames(index, 2, 1);
+        index.close();
+
+        KeyframeIndex loaded = KeyframeIndex.load(mFile);
+        assertNotNull(loaded);
+        assertEquals(12, loaded.size());
+        assertEquals(2 * KEY_FRAME_DISTANCE, loaded.findOffset(2 * CHUNK_DURATION_US, 1050000));
+        try {
+            loaded.add(5000000, 0, 0, KEY_FRAME);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    public void testLoad_ignoresPartialEntry() throws IOException {
+        KeyframeIndex index = KeyframeIndex.create(mFile);
+        addKeyFrames(index, 1);
+        index.close();
+        try (FileOutputStream out = new FileOutputStream(mFile, true)) {
+            out.write(new byte[10]);
+        }
+        KeyframeIndex loaded = KeyframeIndex.load(mFile);
+        assertNotNull(loaded);
+        assertEquals(4, loaded.size());
+    }
+
+    public void testLoad_withoutIndexFile() throws IOException {
+        assertNull(KeyframeIndex.load(mFile));
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            out.write(new byte[32]);
+        }
+        assertNull(KeyframeIndex.load(mFile));
+    }
+
+    private static void addKeyFrames(KeyframeIndex index, int chunkCount) {
+        addKeyFrames(index, 0, chunkCount);
+    }
+
+    private static void addKeyFrames(KeyframeIndex index, int firstChunk, int chunkCount) {
+        for (int chunk = firstChunk; chunk < firstChunk + chunkCount; ++chunk) {
+            long chunkPositionUs = chunk * CHUNK_DURATION_US;
+            for (int i = 0; i < 4; ++i) {
+                index.add(chunkPositionUs + i * KEY_FRAME_INTERVAL_US, chunkPositionUs,
+                        i * KEY_FRAME_DISTANCE, KEY_FRAME);
+            }
+        }
+    }
+}
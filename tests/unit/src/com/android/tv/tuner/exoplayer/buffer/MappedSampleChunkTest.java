@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.media.MediaCodec;
+import android.support.test.filters.LargeTest;
+import android.support.test.filters.SmallTest;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.google.android.exoplayer.SampleHolder;
+import com.android.tv.testing.BenchmarkUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link MappedSampleChunk}.
+ */
+public class MappedSampleChunkTest extends AndroidTestCase {
+    private static final String TAG = "MappedSampleChunkTest";
+
+    private static final int KB = 1024;
+    private static final long FRAME_DURATION_US = 33366;
+    // Every 15th sample is a key frame, as in a typical broadcast GOP.
+    private static final int GOP_SIZE = 15;
+    private static final int BENCHMARK_CHUNK_COUNT = 40;
+    private static final int BENCHMARK_SAMPLES_PER_CHUNK = 2 * GOP_SIZE;
+    // tmpfs is not available to apps on every device, so the benchmark skips it if so.
+    private static final String TMPFS_DIR = "/dev/shm";
+
+    private final SamplePool mSamplePool = new SamplePool();
+    private final SampleChunk.ChunkCallback mChunkCallback = new SampleChunk.ChunkCallback() {};
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), TAG);
+        mDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteFiles(mDir);
+        mDir.delete();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testWriteAndRead() throws IOException {
+        SampleChunk chunk = writeChunk(new MappedSampleChunk.MappedSampleChunkCreator(), mDir,
+                "chunk", 0, 20, 0);
+        assertReadSamples(loadChunk(new MappedSampleChunk.MappedSampleChunkCreator(), mDir,
+                "chunk"), 20);
+        assertEquals(chunk.getSize(), new File(mDir, "chunk").length());
+    }
+
+    @SmallTest
+    public void testWrite_growsMapping() throws IOException {
+        // The expected size is much smaller than the samples to write, which are about 400KB.
+        SampleChunk chunk = writeChunk(new MappedSampleChunk.MappedSampleChunkCreator(), mDir,
+                "chunk", 0, 50, 1);
+        assertEquals(chunk.getSize(), new File(mDir, "chunk").length());
+        assertReadSamples(loadChunk(new MappedSampleChunk.MappedSampleChunkCreator(), mDir,
+                "chunk"), 50);
+    }
+
+    @SmallTest
+    public void testReadWhileWriting() throws IOException {
+        SampleChunk chunk = new MappedSampleChunk.MappedSampleChunkCreator().createSampleChunk(
+                mSamplePool, new File(mDir, "chunk"), 0, mChunkCallback, 0);
+        SampleChunk.IoState writeState = new SampleChunk.IoState();
+        SampleChunk.IoState readState = new SampleChunk.IoState();
+        writeState.openWrite(chunk);
+        readState.openRead(chunk);
+        for (int i = 0; i < 10; ++i) {
+            assertNull(readState.read());
+            writeState.write(createSample(i), null);
+            assertSample(readState.read(), i);
+        }
+        writeState.closeWrite();
+        assertNull(readState.read());
+        assertTrue(readState.isReadFinished());
+    }
+
+    @SmallTest
+    public void testFileFormat_compatibleWithSampleChunk() throws IOException {
+        writeChunk(new SampleChunk.SampleChunkCreator(), mDir, "plain", 0, 20, 0);
+        assertReadSamples(loadChunk(new MappedSampleChunk.MappedSampleChunkCreator(), mDir,
+                "plain"), 20);
+        writeChunk(new MappedSampleChunk.MappedSampleChunkCreator(), mDir, "mapped", 0, 20, 0);
+        assertReadSamples(loadChunk(new SampleChunk.SampleChunkCreator(), mDir, "mapped"), 20);
+    }
+
+    /**
+     * Measures samples/s of sequential reads and of trickplay seeks, which read the first key
+     * frame of every chunk, for both {@link SampleChunk} and {@link MappedSampleChunk} on the
+     * internal storage (ext4) and on tmpfs.
+     */
+    @LargeTest
+    public void testReadAndSeek_benchmark() throws IOException {
+        List<File> dirs = new ArrayList<>();
+        dirs.add(mDir);
+        File tmpfsDir = new File(TMPFS_DIR, TAG);
+        if (tmpfsDir.mkdirs() || tmpfsDir.canWrite()) {
+            dirs.add(tmpfsDir);
+        } else {
+            Log.i(TAG, "Skipping tmpfs since " + TMPFS_DIR + " is not writable");
+        }
+        try {
+            for (File dir : dirs) {
+                benchmark("SampleChunk", new SampleChunk.SampleChunkCreator(), dir);
+                benchmark("MappedSampleChunk", new MappedSampleChunk.MappedSampleChunkCreator(),
+                        dir);
+            }
+        } finally {
+            deleteFiles(tmpfsDir);
+            tmpfsDir.delete();
+        }
+    }
+
+    private void benchmark(String name, final SampleChunk.SampleChunkCreator creator,
+            final File dir) throws IOException {
+        final String[] filenames = new String[BENCHMARK_CHUNK_COUNT];
+        for (int i = 0; i < BENCHMARK_CHUNK_COUNT; ++i) {
+            filenames[i] = name + "_" + i;
+            writeChunk(creator, dir, filenames[i], i, BENCHMARK_SAMPLES_PER_CHUNK, 0);
+        }
+        BenchmarkUtils.Result readResult = BenchmarkUtils.measure(
+                name + " read on " + dir, 1, 5, new BenchmarkUtils.Workload() {
+                    @Override
+                    public long run() {
+                        long count = 0;
+                        for (String filename : filenames) {
+                            count += readChunk(creator, dir, filename, Integer.MAX_VALUE);
+                        }
+                        return count;
+                    }
+                });
+        BenchmarkUtils.Result seekResult = BenchmarkUtils.measure(
+                name + " trickplay seek on " + dir, 1, 20, new BenchmarkUtils.Workload() {
+                    @Override
+                    public long run() {
+                        long count = 0;
+                        for (int i = filenames.length - 1; i >= 0; --i) {
+                            count += readChunk(creator, dir, filenames[i], 1);
+                        }
+                        return count;
+                    }
+                });
+        assertTrue(readResult.getItemsPerSecond() > 0);
+        assertTrue(seekResult.getItemsPerSecond() > 0);
+    }
+
+    private SampleChunk writeChunk(SampleChunk.SampleChunkCreator creator, File dir,
+            String filename, int chunkIndex, int sampleCount, long expectedSize)
+            throws IOException {
+        SampleChunk chunk = creator.createSampleChunk(mSamplePool, new File(dir, filename),
+                chunkIndex * sampleCount * FRAME_DURATION_US, mChunkCallback, expectedSize);
+        SampleChunk.IoState state = new SampleChunk.IoState();
+        state.openWrite(chunk);
+        for (int i = 0; i < sampleCount; ++i) {
+            SampleHolder sample = createSample(i);
+            state.write(sample, null);
+            mSamplePool.releaseSample(sample);
+        }
+        state.closeWrite();
+        SampleChunk.IoState.release(chunk, false);
+        return chunk;
+    }
+
+    private SampleChunk loadChunk(SampleChunk.SampleChunkCreator creator, File dir,
+            String filename) throws IOException {
+        return creator.loadSampleChunkFromFile(mSamplePool, dir, filename, 0, mChunkCallback,
+                null);
+    }
+
+    /**
+     * Reads up to {@code maxCount} samples from the start of a chunk, and returns the number of
+     * samples read.
+     */
+    private int readChunk(SampleChunk.SampleChunkCreator creator, File dir, String filename,
+            int maxCount) {
+        try {
+            SampleChunk chunk = loadChunk(creator, dir, filename);
+            SampleChunk.IoState state = new SampleChunk.IoState();
+            state.openRead(chunk);
+            int count = 0;
+            SampleHolder sample;
+            while (count < maxCount && (sample = state.read()) != null) {
+                mSamplePool.releaseSample(sample);
+                ++count;
+            }
+            SampleChunk.IoState.release(chunk, false);
+            return count;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void assertReadSamples(SampleChunk chunk, int sampleCount) throws IOException {
+        SampleChunk.IoState state = new SampleChunk.IoState();
+        state.openRead(chunk);
+        for (int i = 0; i < sampleCount; ++i) {
+            assertSample(state.read(), i);
+        }
+        assertNull(state.read());
+        assertTrue(state.isReadFinished());
+    }
+
+    private SampleHolder createSample(int index) {
+        // Key frames are larger than the other frames.
+        int size = index % GOP_SIZE == 0 ? 60 * KB : 4 * KB + index;
+        SampleHolder sample = mSamplePool.acquireSample(size);
+        sample.clearData();
+        for (int i = 0; i < size; ++i) {
+            sample.data.put((byte) (index + i));
+        }
+        sample.size = size;
+        sample.timeUs = index * FRAME_DURATION_US;
+        sample.flags = index % GOP_SIZE == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+        return sample;
+    }
+
+    private static void assertSample(SampleHolder sample, int index) {
+        assertNotNull(sample);
+        assertEquals(index * FRAME_DURATION_US, sample.timeUs);
+        assertEquals(index % GOP_SIZE == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0, sample.flags);
+        assertEquals(sample.size, sample.data.position());
+        for (int i = 0; i < sample.size; ++i) {
+            assertEquals((byte) (index + i), sample.data.get(i));
+        }
+    }
+
+    private static void deleteFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
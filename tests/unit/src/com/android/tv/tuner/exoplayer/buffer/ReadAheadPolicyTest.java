@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.support.test.filters.SmallTest;
+
+import com.google.android.exoplayer.C;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ReadAheadPolicy}.
+ */
+@SmallTest
+public class ReadAheadPolicyTest extends TestCase {
+    private static final long BASE_READ_AHEAD_US = 100000;
+
+    private final ReadAheadPolicy mPolicy = new ReadAheadPolicy();
+
+    public void testGetReadAheadDurationUs_scalesWithSpeed() {
+        assertEquals(BASE_READ_AHEAD_US, mPolicy.getReadAheadDurationUs(-1));
+        mPolicy.setPlaybackSpeed(0.5f);
+        assertEquals(BASE_READ_AHEAD_US, mPolicy.getReadAheadDurationUs(-1));
+        mPolicy.setPlaybackSpeed(4.0f);
+        assertEquals(4 * BASE_READ_AHEAD_US, mPolicy.getReadAheadDurationUs(-1));
+        mPolicy.setPlaybackSpeed(-8.0f);
+        assertEquals(8 * BASE_READ_AHEAD_US, mPolicy.getReadAheadDurationUs(-1));
+        mPolicy.setPlaybackSpeed(64.0f);
+        assertEquals(2000000, mPolicy.getReadAheadDurationUs(-1));
+    }
+
+    public void testGetReadAheadDurationUs_growsOnSlowDisk() {
+        assertEquals(BASE_READ_AHEAD_US, mPolicy.getReadAheadDurationUs(20.0f));
+        assertEquals(2 * BASE_READ_AHEAD_US, mPolicy.getReadAheadDurationUs(5.0f));
+        assertEquals(4 * BASE_READ_AHEAD_US, mPolicy.getReadAheadDurationUs(0.1f));
+    }
+
+    public void testGetReadAheadDurationUs_trickplayBySeek() {
+        mPolicy.setPlaybackSpeed(16.0f);
+        mPolicy.setNextSeekPositionUs(5000000);
+        assertEquals(BASE_READ_AHEAD_US, mPolicy.getReadAheadDurationUs(1.0f));
+    }
+
+    public void testSetPlaybackSpeed_clearsNextSeekPosition() {
+        mPolicy.setNextSeekPositionUs(5000000);
+        assertEquals(5000000, mPolicy.getNextSeekPositionUs());
+        mPolicy.setPlaybackSpeed(2.0f);
+        assertEquals(C.UNKNOWN_TIME_US, mPolicy.getNextSeekPositionUs());
+    }
+
+    public void testGetReadReschedulingDelayMs() {
+        assertEquals(10, mPolicy.getReadReschedulingDelayMs());
+        mPolicy.setPlaybackSpeed(4.0f);
+        assertEquals(2, mPolicy.getReadReschedulingDelayMs());
+        mPolicy.setPlaybackSpeed(32.0f);
+        assertEquals(2, mPolicy.getReadReschedulingDelayMs());
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.support.test.filters.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ReadLaneScheduler}.
+ */
+@SmallTest
+public class ReadLaneSchedulerTest extends TestCase {
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+    private static final long NOW_MS = 10000;
+
+    private ReadLaneScheduler mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mScheduler = new ReadLaneScheduler(2);
+        mScheduler.onOpen(VIDEO, 0);
+        mScheduler.onOpen(AUDIO, 0);
+    }
+
+    public void testShouldYield_aheadOfWaitingLane() {
+        mScheduler.onSampleRead(VIDEO, 1000000);
+        mScheduler.onRequest(AUDIO, true, NOW_MS);
+        assertTrue(mScheduler.shouldYield(VIDEO, NOW_MS));
+        assertFalse(mScheduler.shouldYield(AUDIO, NOW_MS));
+
+        // The audio caught up.
+        mScheduler.onSampleRead(AUDIO, 900000);
+        assertFalse(mScheduler.shouldYield(VIDEO, NOW_MS));
+    }
+
+    public void testShouldYield_withinLead() {
+        mScheduler.onSampleRead(VIDEO, 400000);
+        mScheduler.onRequest(AUDIO, true, NOW_MS);
+        assertFalse(mScheduler.shouldYield(VIDEO, NOW_MS));
+    }
+
+    public void testShouldYield_notToFullLane() {
+        mScheduler.onSampleRead(VIDEO, 1000000);
+        mScheduler.onRequest(AUDIO, false, NOW_MS);
+        assertFalse(mScheduler.shouldYield(VIDEO, NOW_MS));
+    }
+
+    public void testShouldYield_notToLaneWhichIsNotConsumed() {
+        mScheduler.onSampleRead(VIDEO, 1000000);
+        mScheduler.onRequest(AUDIO, true, NOW_MS);
+        assertFalse(mScheduler.shouldYield(VIDEO, NOW_MS + 1000));
+    }
+
+    public void testShouldYield_limitedTime() {
+        mScheduler.onSampleRead(VIDEO, 1000000);
+        mScheduler.onRequest(AUDIO, true, NOW_MS);
+        assertTrue(mScheduler.shouldYield(VIDEO, NOW_MS));
+        mScheduler.onRequest(AUDIO, true, NOW_MS + 300);
+        assertFalse(mScheduler.shouldYield(VIDEO, NOW_MS + 300));
+    }
+
+    public void testOnReadFinished() {
+        assertFalse(mScheduler.onReadFinished(VIDEO));
+        assertTrue(mScheduler.onReadFinished(AUDIO));
+
+        // A seek opens the lane again.
+        mScheduler.onOpen(AUDIO, 0);
+        assertFalse(mScheduler.onReadFinished(VIDEO));
+    }
+
+    public void testOnReadFinished_laneNotOpened() {
+        ReadLaneScheduler scheduler = new ReadLaneScheduler(3);
+        scheduler.onOpen(VIDEO, 0);
+        assertTrue(scheduler.onReadFinished(VIDEO));
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.media.MediaCodec;
+import android.os.ConditionVariable;
+import android.os.SystemClock;
+import android.support.test.filters.MediumTest;
+import android.test.AndroidTestCase;
+
+import com.google.android.exoplayer.MediaFormat;
+import com.google.android.exoplayer.SampleHolder;
+import com.google.android.exoplayer.SampleSource;
+import com.google.android.exoplayer.util.MimeTypes;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link SampleChunkIoHelper}.
+ */
+public class SampleChunkIoHelperTest extends AndroidTestCase {
+    private static final String TAG = "SampleChunkIoHelperTest";
+
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+    private static final long VIDEO_FRAME_DURATION_US = 33366;
+    private static final long AUDIO_FRAME_DURATION_US = 32000;
+    private static final int GOP_SIZE = 15;
+    private static final long DURATION_US = 3000000;
+    private static final long READ_TIMEOUT_MS = 5000;
+
+    private final List<String> mIds = Arrays.asList("video", "audio");
+    private final List<MediaFormat> mFormats = Arrays.asList(
+            MediaFormat.createVideoFormat("video", MimeTypes.VIDEO_MPEG2, MediaFormat.NO_VALUE,
+                    MediaFormat.NO_VALUE, DURATION_US, 1920, 1080, null),
+            MediaFormat.createAudioFormat("audio", MimeTypes.AUDIO_AC3, MediaFormat.NO_VALUE,
+                    MediaFormat.NO_VALUE, DURATION_US, 2, 48000, null, null));
+    private final SamplePool mSamplePool = new SamplePool();
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), TAG);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+        // The test instances are kept until the whole run finishes, so their pools shouldn't take
+        // up the total cap of the process.
+        mSamplePool.trimTo(0);
+        super.tearDown();
+    }
+
+    @MediumTest
+    public void testWriteSample_recordAndPlay() throws IOException {
+        int[] counts = record();
+
+        DvrStorageManager storageManager = new DvrStorageManager(mDir, false);
+        // A chunk is created for every CHUNK_DURATION_US.
+        int expectedChunkCount =
+                (int) (DURATION_US / RecordingSampleBuffer.CHUNK_DURATION_US);
+        assertEquals(expectedChunkCount, storageManager.readIndexFile("video").remaining());
+
+        SampleChunkIoHelper player = new SampleChunkIoHelper(mIds, mFormats,
+                RecordingSampleBuffer.BUFFER_REASON_RECORDED_PLAYBACK,
+                new BufferManager(storageManager), mSamplePool,
+                new SampleChunkIoHelper.IoCallback() {});
+        player.init();
+        player.openRead(VIDEO, 0);
+        player.openRead(AUDIO, 0);
+        assertReadSamples(player, VIDEO, 0, counts[VIDEO]);
+        assertReadSamples(player, AUDIO, 0, counts[AUDIO]);
+        player.release();
+    }
+
+    @MediumTest
+    public void testReadSample_parallelRead() throws IOException {
+        int[] counts = record();
+        final ConditionVariable eos = new ConditionVariable();
+        SampleChunkIoHelper player = new SampleChunkIoHelper(mIds, mFormats,
+                RecordingSampleBuffer.BUFFER_REASON_RECORDED_PLAYBACK,
+                new BufferManager(new DvrStorageManager(mDir, false)), mSamplePool,
+                new SampleChunkIoHelper.IoCallback() {
+                    @Override
+                    public void onIoReachedEos() {
+                        eos.open();
+                    }
+                }, true);
+        player.init();
+        player.openRead(VIDEO, 0);
+        player.openRead(AUDIO, 0);
+        // Each track is read on its own lane, even if the other track is not consumed.
+        assertReadSamples(player, AUDIO, 0, counts[AUDIO]);
+        assertReadSamples(player, VIDEO, 0, counts[VIDEO]);
+        long deadlineMs = SystemClock.elapsedRealtime() + READ_TIMEOUT_MS;
+        // The reads after the last samples drive the lanes to the end of the stream.
+        while (!eos.block(1)) {
+            assertTrue(SystemClock.elapsedRealtime() < deadlineMs);
+            assertNull(player.readSample(VIDEO));
+            assertNull(player.readSample(AUDIO));
+        }
+        player.release();
+    }
+
+    @MediumTest
+    public void testOpenRead_usesPrefetchedKeyFrame() throws IOException {
+        int[] counts = record();
+        BufferManager bufferManager = new BufferManager(new DvrStorageManager(mDir, false));
+        SampleChunkIoHelper player = new SampleChunkIoHelper(mIds, mFormats,
+                RecordingSampleBuffer.BUFFER_REASON_RECORDED_PLAYBACK, bufferManager,
+                mSamplePool, new SampleChunkIoHelper.IoCallback() {});
+        player.init();
+        ReadAheadPolicy policy = bufferManager.getReadAheadPolicy();
+        policy.setPlaybackSpeed(8.0f);
+        // The chunk at 2s starts with the 5th key frame, which is at about 2.002s.
+        int keyFrameIndex = 4 * GOP_SIZE;
+        policy.setNextSeekPositionUs(2000000);
+        player.openRead(VIDEO, 0);
+        long deadlineMs = SystemClock.elapsedRealtime() + READ_TIMEOUT_MS;
+        while (player.getPrefetchCount() == 0 && SystemClock.elapsedRealtime() < deadlineMs) {
+            SystemClock.sleep(1);
+        }
+        assertEquals(1, player.getPrefetchCount());
+
+        player.openRead(VIDEO, 2000000);
+        assertReadSamples(player, VIDEO, keyFrameIndex, counts[VIDEO] - keyFrameIndex);
+        assertEquals(1.0f, player.getPrefetchHitRate());
+        player.release();
+    }
+
+    @MediumTest
+    public void testOpenRead_seeksToIndexedKeyFrame() throws IOException {
+        record();
+        // Every audio sample is a key frame, and they are indexed at every 100ms at least.
+        long positionUs = 1400000;
+        long timeUs = readFirstSampleTimeUs(AUDIO, positionUs);
+        assertTrue(timeUs <= positionUs);
+        assertTrue(timeUs > positionUs - 100000 - AUDIO_FRAME_DURATION_US);
+
+        // The recordings without the index are read from the start of the chunk.
+        assertTrue(new File(mDir, "audio" + KeyframeIndex.FILE_SUFFIX).delete());
+        long chunkPositionUs = positionUs / RecordingSampleBuffer.CHUNK_DURATION_US
+                * RecordingSampleBuffer.CHUNK_DURATION_US;
+        long firstKeyFrameIndex = (chunkPositionUs + AUDIO_FRAME_DURATION_US - 1)
+                / AUDIO_FRAME_DURATION_US;
+        assertEquals(getTimeUs(AUDIO, (int) firstKeyFrameIndex),
+                readFirstSampleTimeUs(AUDIO, positionUs));
+    }
+
+    @MediumTest
+    public void testSeekTo_recordsSeekToFirstFrame() throws IOException {
+        record();
+        RecordedPlaybackStats stats = RecordedPlaybackStats.getInstance();
+        int seekCount = stats.getSeekCount(RecordedPlaybackStats.MODE_PARALLEL);
+        int underrunCount = stats.getAudioUnderrunCount(RecordedPlaybackStats.MODE_PARALLEL);
+        RecordingSampleBuffer buffer = new RecordingSampleBuffer(
+                new BufferManager(new DvrStorageManager(mDir, false)), null, false,
+                RecordingSampleBuffer.BUFFER_REASON_RECORDED_PLAYBACK, true);
+        buffer.init(mIds, mFormats);
+        buffer.selectTrack(VIDEO);
+        buffer.selectTrack(AUDIO);
+        buffer.seekTo(1000000);
+        // The seek is recorded once, when the first video sample is read after it.
+        SampleHolder sample = new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
+        sample.ensureSpaceForWrite(getSize(VIDEO, 0));
+        readSample(buffer, VIDEO, sample);
+        readSample(buffer, VIDEO, sample);
+        assertEquals(seekCount + 1, stats.getSeekCount(RecordedPlaybackStats.MODE_PARALLEL));
+
+        // Asking for audio samples which are not read yet is not an underrun of the player.
+        for (int i = 0; i < 10; ++i) {
+            buffer.readSample(AUDIO, sample);
+        }
+        assertEquals(underrunCount,
+                stats.getAudioUnderrunCount(RecordedPlaybackStats.MODE_PARALLEL));
+        buffer.release();
+    }
+
+    private static void readSample(RecordingSampleBuffer buffer, int index, SampleHolder sample) {
+        long deadlineMs = SystemClock.elapsedRealtime() + READ_TIMEOUT_MS;
+        while (buffer.readSample(index, sample) != SampleSource.SAMPLE_READ) {
+            assertTrue(SystemClock.elapsedRealtime() < deadlineMs);
+            SystemClock.sleep(1);
+        }
+    }
+
+    private long readFirstSampleTimeUs(int index, long positionUs) throws IOException {
+        SampleChunkIoHelper player = new SampleChunkIoHelper(mIds, mFormats,
+                RecordingSampleBuffer.BUFFER_REASON_RECORDED_PLAYBACK,
+                new BufferManager(new DvrStorageManager(mDir, false)), mSamplePool,
+                new SampleChunkIoHelper.IoCallback() {});
+        player.init();
+        try {
+            player.openRead(index, positionUs);
+            long deadlineMs = SystemClock.elapsedRealtime() + READ_TIMEOUT_MS;
+            while (SystemClock.elapsedRealtime() < deadlineMs) {
+                SampleHolder sample = player.readSample(index);
+                if (sample != null) {
+                    return sample.timeUs;
+                }
+                SystemClock.sleep(1);
+            }
+            fail("No sample was read");
+            return 0;
+        } finally {
+            player.release();
+        }
+    }
+
+    /**
+     * Records {@link #DURATION_US} of video and audio, and returns the number of samples of each
+     * track.
+     */
+    private int[] record() throws IOException {
+        BufferManager recordingManager = new BufferManager(new DvrStorageManager(mDir, true));
+        SampleChunkIoHelper recorder = new SampleChunkIoHelper(mIds, mFormats,
+                RecordingSampleBuffer.BUFFER_REASON_RECORDING, recordingManager, mSamplePool,
+                new SampleChunkIoHelper.IoCallback() {});
+        recorder.init();
+        // The writer reuses a single sample, as ExoPlayerSampleExtractor does.
+        SampleHolder sample = new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
+        int videoCount = 0;
+        int audioCount = 0;
+        while (videoCount * VIDEO_FRAME_DURATION_US < DURATION_US) {
+            fillSample(sample, VIDEO, videoCount++);
+            waitUntilWritable(recorder);
+            recorder.writeSample(VIDEO, sample);
+            while (audioCount * AUDIO_FRAME_DURATION_US < sample.timeUs) {
+                fillSample(sample, AUDIO, audioCount++);
+                waitUntilWritable(recorder);
+                recorder.writeSample(AUDIO, sample);
+            }
+        }
+        recorder.closeWrite();
+        recorder.release();
+        return new int[] {videoCount, audioCount};
+    }
+
+    private static void waitUntilWritable(SampleChunkIoHelper helper) {
+        long deadlineMs = SystemClock.elapsedRealtime() + READ_TIMEOUT_MS;
+        while (!helper.canWriteSample()) {
+            assertTrue(SystemClock.elapsedRealtime() < deadlineMs);
+            SystemClock.sleep(1);
+        }
+    }
+
+    private void assertReadSamples(SampleChunkIoHelper helper, int index, int firstSampleIndex,
+            int count) {
+        List<SampleHolder> samples = new ArrayList<>();
+        long deadlineMs = SystemClock.elapsedRealtime() + READ_TIMEOUT_MS;
+        while (samples.size() < count && SystemClock.elapsedRealtime() < deadlineMs) {
+            SampleHolder sample = helper.readSample(index);
+            if (sample != null) {
+                samples.add(sample);
+            } else {
+                SystemClock.sleep(1);
+            }
+        }
+        assertEquals(count, samples.size());
+        for (int i = 0; i < count; ++i) {
+            SampleHolder sample = samples.get(i);
+            int sampleIndex = firstSampleIndex + i;
+            assertEquals(getTimeUs(index, sampleIndex), sample.timeUs);
+            assertEquals(getSize(index, sampleIndex), sample.size);
+            for (int j = 0; j < sample.size; ++j) {
+                assertEquals((byte) (sampleIndex + j), sample.data.get(j));
+            }
+        }
+    }
+
+    private static void fillSample(SampleHolder sample, int index, int sampleIndex) {
+        int size = getSize(index, sampleIndex);
+        sample.clearData();
+        sample.ensureSpaceForWrite(size);
+        for (int i = 0; i < size; ++i) {
+            sample.data.put((byte) (sampleIndex + i));
+        }
+        sample.size = size;
+        sample.timeUs = getTimeUs(index, sampleIndex);
+        sample.flags = index == AUDIO || sampleIndex % GOP_SIZE == 0
+                ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+    }
+
+    private static int getSize(int index, int sampleIndex) {
+        if (index == AUDIO) {
+            return 1536;
+        }
+        return sampleIndex % GOP_SIZE == 0 ? 100 * 1024 : 10 * 1024 + sampleIndex;
+    }
+
+    private static long getTimeUs(int index, int sampleIndex) {
+        return sampleIndex * (index == AUDIO ? AUDIO_FRAME_DURATION_US : VIDEO_FRAME_DURATION_US);
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.content.ComponentCallbacks2;
+import android.support.test.filters.LargeTest;
+import android.support.test.filters.SmallTest;
+import android.util.Log;
+
+import com.google.android.exoplayer.SampleHolder;
+import com.android.tv.testing.BenchmarkUtils;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.LinkedList;
+import java.util.Random;
+
+/**
+ * Tests for {@link SamplePool}.
+ */
+public class SamplePoolTest extends TestCase {
+    private static final String TAG = "SamplePoolTest";
+
+    private static final int KB = 1024;
+    // The number of samples which are held at once, e.g. in the sample queues of the tracks.
+    private static final int SAMPLES_IN_FLIGHT = 32;
+    private static final int SAMPLE_COUNT = 10000;
+
+    @SmallTest
+    public void testAcquireSample_allocatesSizeClass() {
+        SamplePool pool = new SamplePool();
+        SampleHolder sample = pool.acquireSample(1000);
+        assertEquals(1024, sample.data.capacity());
+        assertEquals(1, pool.getAllocationCount());
+        assertEquals(0f, pool.getHitRate());
+    }
+
+    @SmallTest
+    public void testReleaseSample_reusedForSameSizeClass() {
+        SamplePool pool = new SamplePool();
+        SampleHolder sample = pool.acquireSample(100 * KB);
+        pool.releaseSample(sample);
+        assertEquals(128 * KB, pool.getPooledBytes());
+
+        assertSame(sample, pool.acquireSample(65 * KB));
+        assertEquals(0, pool.getPooledBytes());
+        assertEquals(0.5f, pool.getHitRate());
+    }
+
+    @SmallTest
+    public void testReleaseSample_largerBufferServesSmallerClass() {
+        SamplePool pool = new SamplePool();
+        SampleHolder sample = pool.acquireSample(300 * KB);
+        pool.releaseSample(sample);
+        // A buffer of a larger class is not used for a smaller class.
+        assertNotSame(sample, pool.acquireSample(10 * KB));
+        assertSame(sample, pool.acquireSample(300 * KB));
+    }
+
+    @SmallTest
+    public void testReleaseSample_dropsOverMaxPooledBytes() {
+        SamplePool pool = new SamplePool(256 * KB);
+        SampleHolder first = pool.acquireSample(100 * KB);
+        SampleHolder second = pool.acquireSample(100 * KB);
+        SampleHolder third = pool.acquireSample(100 * KB);
+        pool.releaseSample(first);
+        pool.releaseSample(second);
+        pool.releaseSample(third);
+        assertEquals(256 * KB, pool.getPooledBytes());
+        assertEquals(1, pool.getDropCount());
+    }
+
+    @SmallTest
+    public void testReleaseSample_dropsOverMaxTotalPooledBytes() {
+        SamplePool otherPool = new SamplePool();
+        otherPool.releaseSample(otherPool.acquireSample(200 * KB));
+        // The buffers of the other pools count towards the total.
+        SamplePool pool = new SamplePool(SamplePool.DEFAULT_MAX_POOLED_BYTES,
+                SamplePool.getTotalPooledBytes() + 256 * KB);
+        SampleHolder first = pool.acquireSample(200 * KB);
+        SampleHolder second = pool.acquireSample(200 * KB);
+        pool.releaseSample(first);
+        pool.releaseSample(second);
+        assertEquals(256 * KB, pool.getPooledBytes());
+        assertEquals(1, pool.getDropCount());
+
+        otherPool.trimTo(0);
+        pool.releaseSample(second);
+        assertEquals(2 * 256 * KB, pool.getPooledBytes());
+        pool.trimTo(0);
+    }
+
+    @SmallTest
+    public void testTrimAllPools() {
+        SamplePool pool = new SamplePool();
+        pool.releaseSample(pool.acquireSample(100 * KB));
+        assertTrue(SamplePool.getTotalPooledBytes() >= 128 * KB);
+
+        SamplePool.trimAllPools(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertEquals(128 * KB, pool.getPooledBytes());
+        SamplePool.trimAllPools(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @SmallTest
+    public void testPerformTrimMemory() {
+        SamplePool pool = new SamplePool(4 * 256 * KB);
+        SampleHolder[] samples = new SampleHolder[4];
+        for (int i = 0; i < samples.length; ++i) {
+            samples[i] = pool.acquireSample(200 * KB);
+        }
+        for (SampleHolder sample : samples) {
+            pool.releaseSample(sample);
+        }
+        assertEquals(4 * 256 * KB, pool.getPooledBytes());
+
+        pool.performTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertEquals(4 * 256 * KB, pool.getPooledBytes());
+        pool.performTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(2 * 256 * KB, pool.getPooledBytes());
+        pool.performTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @SmallTest
+    public void testDumpAllPools() {
+        SamplePool pool = new SamplePool();
+        pool.releaseSample(pool.acquireSample(100 * KB));
+        StringWriter writer = new StringWriter();
+        SamplePool.dumpAllPools(new PrintWriter(writer));
+        String dump = writer.toString();
+        assertTrue(dump, dump.startsWith("Sample pools: pools="));
+        assertTrue(dump, dump.contains(" allocations="));
+        pool.trimTo(0);
+    }
+
+    /**
+     * Compares the pool with a pool which keeps the samples in a single list, under samples of
+     * 1 to 300 KB.
+     */
+    @LargeTest
+    public void testAcquireSample_benchmark() {
+        final int[] sizes = new int[SAMPLE_COUNT];
+        Random random = new Random(0);
+        for (int i = 0; i < sizes.length; ++i) {
+            // Mostly small audio and B/P-frame samples, and a few large I-frames.
+            sizes[i] = random.nextInt(10) == 0 ? 100 * KB + random.nextInt(200 * KB)
+                    : 1 * KB + random.nextInt(30 * KB);
+        }
+        final LinkedListSamplePool listPool = new LinkedListSamplePool();
+        BenchmarkUtils.Result listResult = BenchmarkUtils.measure("LinkedListSamplePool", 2, 10,
+                new BenchmarkUtils.Workload() {
+                    @Override
+                    public long run() {
+                        ArrayDeque<SampleHolder> inFlight = new ArrayDeque<>();
+                        for (int size : sizes) {
+                            inFlight.add(listPool.acquireSample(size));
+                            if (inFlight.size() > SAMPLES_IN_FLIGHT) {
+                                listPool.releaseSample(inFlight.poll());
+                            }
+                        }
+                        while (!inFlight.isEmpty()) {
+                            listPool.releaseSample(inFlight.poll());
+                        }
+                        return sizes.length;
+                    }
+                });
+        final SamplePool pool = new SamplePool();
+        BenchmarkUtils.Result result = BenchmarkUtils.measure("SamplePool", 2, 10,
+                new BenchmarkUtils.Workload() {
+                    @Override
+                    public long run() {
+                        ArrayDeque<SampleHolder> inFlight = new ArrayDeque<>();
+                        for (int size : sizes) {
+                            inFlight.add(pool.acquireSample(size));
+                            if (inFlight.size() > SAMPLES_IN_FLIGHT) {
+                                pool.releaseSample(inFlight.poll());
+                            }
+                        }
+                        while (!inFlight.isEmpty()) {
+                            pool.releaseSample(inFlight.poll());
+                        }
+                        return sizes.length;
+                    }
+                });
+        Log.i(TAG, "Hit rate " + pool.getHitRate() + ", pooled " + pool.getPooledBytes()
+                + " bytes, " + pool.getAllocationCount() + " allocations, "
+                + pool.getDropCount() + " drops");
+        assertTrue(result.getItemsPerSecond() > 0);
+        assertTrue(listResult.getItemsPerSecond() > 0);
+        assertTrue(pool.getHitRate() > 0.5f);
+    }
+
+    /**
+     * The pool which was used before the size classes, for the benchmark.
+     */
+    private static class LinkedListSamplePool {
+        private final LinkedList<SampleHolder> mSamplePool = new LinkedList<>();
+
+        public synchronized SampleHolder acquireSample(int size) {
+            if (mSamplePool.isEmpty()) {
+                SampleHolder sample =
+                        new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
+                sample.ensureSpaceForWrite(size);
+                return sample;
+            }
+            SampleHolder smallestSufficientSample = null;
+            SampleHolder maxSample = mSamplePool.getFirst();
+            for (SampleHolder sample : mSamplePool) {
+                if (sample.data.capacity() >= size && (smallestSufficientSample == null
+                        || smallestSufficientSample.data.capacity() > sample.data.capacity())) {
+                    smallestSufficientSample = sample;
+                }
+                if (maxSample.data.capacity() < sample.data.capacity()) {
+                    maxSample = sample;
+                }
+            }
+            SampleHolder sampleFromPool = smallestSufficientSample;
+            if (sampleFromPool == null) {
+                sampleFromPool = maxSample;
+                sampleFromPool.ensureSpaceForWrite(size);
+            }
+            mSamplePool.remove(sampleFromPool);
+            return sampleFromPool;
+        }
+
+        public synchronized void releaseSample(SampleHolder sample) {
+            sample.clearData();
+            mSamplePool.offerLast(sample);
+        }
+    }
+}
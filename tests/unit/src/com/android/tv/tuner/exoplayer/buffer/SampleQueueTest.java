@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.support.test.filters.LargeTest;
+import android.support.test.filters.SmallTest;
+import android.util.Log;
+
+import com.google.android.exoplayer.SampleHolder;
+import com.google.android.exoplayer.SampleSource;
+import com.android.tv.testing.BenchmarkUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link SampleQueue}.
+ */
+public class SampleQueueTest extends TestCase {
+    private static final String TAG = "SampleQueueTest";
+
+    private static final int SAMPLE_SIZE = 100;
+
+    private SamplePool mSamplePool;
+    private SampleQueue mQueue;
+    private SampleHolder mOutSample;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSamplePool = new SamplePool();
+        mQueue = new SampleQueue(mSamplePool);
+        mOutSample = new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
+        mOutSample.ensureSpaceForWrite(SAMPLE_SIZE);
+    }
+
+    @SmallTest
+    public void testGetLastQueuedPositionUs() {
+        assertEquals(SampleQueue.NO_POSITION_US, mQueue.getLastQueuedPositionUs());
+        mQueue.queueSample(createSample(1000));
+        mQueue.queueSample(createSample(2000));
+        assertEquals(2000, mQueue.getLastQueuedPositionUs());
+        // The last queued position is kept after the samples are dequeued.
+        assertEquals(SampleSource.SAMPLE_READ, mQueue.dequeueSample(mOutSample));
+        assertEquals(SampleSource.SAMPLE_READ, mQueue.dequeueSample(mOutSample));
+        assertEquals(SampleSource.NOTHING_READ, mQueue.dequeueSample(mOutSample));
+        assertEquals(2000, mQueue.getLastQueuedPositionUs());
+        mQueue.clear();
+        assertEquals(SampleQueue.NO_POSITION_US, mQueue.getLastQueuedPositionUs());
+    }
+
+    @SmallTest
+    public void testDequeueSample_keepsOrderWhileWrappingAndGrowing() {
+        long queuedUs = 0;
+        long dequeuedUs = 0;
+        // Keeps the head moving around the ring while the queue grows past its initial capacity.
+        for (int round = 0; round < 10; ++round) {
+            for (int i = 0; i < 5 + round * 3; ++i) {
+                mQueue.queueSample(createSample(queuedUs++));
+            }
+            for (int i = 0; i < 4; ++i) {
+                assertEquals(SampleSource.SAMPLE_READ, mQueue.dequeueSample(mOutSample));
+                assertEquals(dequeuedUs++, mOutSample.timeUs);
+                assertEquals(SAMPLE_SIZE, mOutSample.size);
+            }
+        }
+        while (!mQueue.isEmpty()) {
+            assertEquals(SampleSource.SAMPLE_READ, mQueue.dequeueSample(mOutSample));
+            assertEquals(dequeuedUs++, mOutSample.timeUs);
+        }
+        assertEquals(queuedUs, dequeuedUs);
+    }
+
+    @SmallTest
+    public void testIsDurationGreaterThan() {
+        assertFalse(mQueue.isDurationGreaterThan(0));
+        mQueue.queueSample(createSample(1000));
+        mQueue.queueSample(createSample(1500));
+        mQueue.queueSample(createSample(3000));
+        assertTrue(mQueue.isDurationGreaterThan(1999));
+        assertFalse(mQueue.isDurationGreaterThan(2000));
+        mQueue.dequeueSample(mOutSample);
+        assertTrue(mQueue.isDurationGreaterThan(1499));
+        assertFalse(mQueue.isDurationGreaterThan(1500));
+    }
+
+    @SmallTest
+    public void testClear_releasesSamplesToPool() {
+        mQueue.queueSample(createSample(1000));
+        mQueue.queueSample(createSample(2000));
+        mQueue.clear();
+        assertTrue(mQueue.isEmpty());
+        // Each sample has a buffer of the smallest size class, 256 bytes.
+        assertEquals(2 * 256, mSamplePool.getPooledBytes());
+    }
+
+    /**
+     * Queues and dequeues samples in the steady state, and reports the bytes allocated per sample.
+     */
+    @LargeTest
+    public void testQueueSample_benchmark() {
+        final SampleHolder[] samples = new SampleHolder[64];
+        for (int i = 0; i < samples.length; ++i) {
+            samples[i] = mSamplePool.acquireSample(SAMPLE_SIZE);
+            samples[i].size = SAMPLE_SIZE;
+        }
+        // The samples are queued again after they are dequeued, so the pool doesn't keep them.
+        final SampleQueue queue = new SampleQueue(new SamplePool(0));
+        BenchmarkUtils.Result result = BenchmarkUtils.measure("SampleQueue", 3, 20,
+                new BenchmarkUtils.Workload() {
+                    private long mTimeUs;
+
+                    @Override
+                    public long run() {
+                        for (int i = 0; i < 100; ++i) {
+                            for (SampleHolder sample : samples) {
+                                sample.timeUs = mTimeUs++;
+                                queue.queueSample(sample);
+                            }
+                            while (!queue.isEmpty()) {
+                                queue.dequeueSample(mOutSample);
+                            }
+                        }
+                        return 100 * samples.length;
+                    }
+                });
+        Log.i(TAG, result.getAllocatedBytesPerItem() + " bytes allocated per sample");
+        assertTrue(result.getItemsPerSecond() > 0);
+    }
+
+    private SampleHolder createSample(long timeUs) {
+        SampleHolder sample = mSamplePool.acquireSample(SAMPLE_SIZE);
+        sample.size = SAMPLE_SIZE;
+        sample.timeUs = timeUs;
+        return sample;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.support.test.filters.MediumTest;
+import android.support.test.filters.SmallTest;
+
+import com.google.android.exoplayer.SampleHolder;
+import com.google.android.exoplayer.SampleSource;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link SpscSampleQueue}.
+ */
+public class SpscSampleQueueTest extends TestCase {
+    private static final int SAMPLE_SIZE = 100;
+    private static final int CAPACITY = 8;
+
+    private SamplePool mSamplePool;
+    private SpscSampleQueue mQueue;
+    private SampleHolder mInSample;
+    private SampleHolder mOutSample;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSamplePool = new SamplePool();
+        mQueue = new SpscSampleQueue(mSamplePool, CAPACITY);
+        mQueue.reset(true);
+        mInSample = createSampleHolder();
+        mOutSample = createSampleHolder();
+    }
+
+    @SmallTest
+    public void testConstructor_capacityNotPowerOfTwo() {
+        try {
+            new SpscSampleQueue(mSamplePool, 6);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @SmallTest
+    public void testPoll_keepsOrderWhileWrapping() {
+        long queuedUs = 0;
+        long polledUs = 0;
+        for (int round = 0; round < 10; ++round) {
+            for (int i = 0; i < 5; ++i) {
+                assertTrue(offer(queuedUs++));
+            }
+            for (int i = 0; i < 5; ++i) {
+                assertEquals(SampleSource.SAMPLE_READ, mQueue.poll(mOutSample));
+                assertEquals(polledUs++, mOutSample.timeUs);
+                assertEquals(SAMPLE_SIZE, mOutSample.size);
+            }
+        }
+        assertEquals(SampleSource.NOTHING_READ, mQueue.poll(mOutSample));
+    }
+
+    @SmallTest
+    public void testOffer_full() {
+        for (int i = 0; i < CAPACITY; ++i) {
+            assertTrue(offer(i));
+        }
+        assertTrue(mQueue.isFull());
+        assertFalse(offer(CAPACITY));
+        mQueue.poll(mOutSample);
+        assertFalse(mQueue.isFull());
+        assertTrue(offer(CAPACITY));
+    }
+
+    @SmallTest
+    public void testOffer_disabledDropsSample() {
+        mQueue.reset(false);
+        assertTrue(offer(1000));
+        assertEquals(SampleQueue.NO_POSITION_US, mQueue.getLastQueuedPositionUs());
+        assertEquals(SampleSource.NOTHING_READ, mQueue.poll(mOutSample));
+    }
+
+    @SmallTest
+    public void testGetQueuedDurationUs() {
+        assertEquals(0, mQueue.getQueuedDurationUs());
+        offer(1000);
+        offer(1500);
+        offer(3000);
+        assertEquals(2000, mQueue.getQueuedDurationUs());
+        mQueue.poll(mOutSample);
+        assertEquals(1500, mQueue.getQueuedDurationUs());
+    }
+
+    @SmallTest
+    public void testGetLastQueuedPositionUs() {
+        assertEquals(SampleQueue.NO_POSITION_US, mQueue.getLastQueuedPositionUs());
+        offer(1000);
+        offer(2000);
+        // The last queued position is kept after the samples are polled.
+        mQueue.poll(mOutSample);
+        mQueue.poll(mOutSample);
+        assertEquals(2000, mQueue.getLastQueuedPositionUs());
+        mQueue.reset(true);
+        assertEquals(SampleQueue.NO_POSITION_US, mQueue.getLastQueuedPositionUs());
+    }
+
+    @SmallTest
+    public void testReset_releasesSamplesToPool() {
+        offer(1000);
+        offer(2000);
+        mQueue.reset(true);
+        assertEquals(SampleSource.NOTHING_READ, mQueue.poll(mOutSample));
+        // Each sample has a buffer of the smallest size class, 256 bytes.
+        assertEquals(2 * 256, mSamplePool.getPooledBytes());
+    }
+
+    @MediumTest
+    public void testPoll_concurrentWriter() throws InterruptedException {
+        final int sampleCount = 100000;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SampleHolder sample = createSampleHolder();
+                sample.size = SAMPLE_SIZE;
+                for (int i = 0; i < sampleCount; ) {
+                    sample.timeUs = i;
+                    if (mQueue.offer(sample)) {
+                        ++i;
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        writer.start();
+        long expectedUs = 0;
+        while (expectedUs < sampleCount) {
+            if (mQueue.poll(mOutSample) == SampleSource.SAMPLE_READ) {
+                assertEquals(expectedUs++, mOutSample.timeUs);
+            } else {
+                Thread.yield();
+            }
+        }
+        writer.join();
+        assertEquals(sampleCount - 1, mQueue.getLastQueuedPositionUs());
+    }
+
+    private boolean offer(long timeUs) {
+        mInSample.size = SAMPLE_SIZE;
+        mInSample.timeUs = timeUs;
+        return mQueue.offer(mInSample);
+    }
+
+    private static SampleHolder createSampleHolder() {
+        SampleHolder sample = new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
+        sample.ensureSpaceForWrite(SAMPLE_SIZE);
+        return sample;
+    }
+}
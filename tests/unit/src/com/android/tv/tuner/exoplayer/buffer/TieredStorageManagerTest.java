@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.support.test.filters.SmallTest;
+import android.test.AndroidTestCase;
+
+import com.google.android.exoplayer.SampleHolder;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tests for {@link TieredStorageManager} and {@link MemorySampleChunk}.
+ */
+@SmallTest
+public class TieredStorageManagerTest extends AndroidTestCase {
+    private static final long MAX_BUFFER_SIZE = 64L * 1024 * 1024;
+    private static final int SAMPLE_SIZE = 10 * 1024;
+    private static final int SAMPLE_COUNT = 10;
+
+    private final SamplePool mSamplePool = new SamplePool();
+    private final SampleChunk.ChunkCallback mChunkCallback = new SampleChunk.ChunkCallback() {};
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "TieredStorageManagerTest");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File bufferDir = new File(mDir, "timeshift");
+        File[] files = bufferDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        bufferDir.delete();
+        mDir.delete();
+        super.tearDown();
+    }
+
+    public void testRead_fromMemory() throws IOException {
+        TieredStorageManager storageManager = createStorageManager(MAX_BUFFER_SIZE, 60000);
+        MemorySampleChunk chunk = writeChunk(storageManager, 0, 0);
+        assertReadSamples(chunk);
+        assertFalse(chunk.getFile().exists());
+        assertEquals(1, storageManager.getMemoryHitCount());
+        assertEquals(0, storageManager.getMemoryMissCount());
+        assertTrue(storageManager.getMemoryUsageBytes() >= chunk.getSize());
+    }
+
+    public void testDemote_overMemoryBudget() throws IOException {
+        // The memory tier cannot hold a chunk, so every chunk is demoted once it is written.
+        TieredStorageManager storageManager = createStorageManager(1, 60000);
+        MemorySampleChunk chunk = writeChunk(storageManager, 0, 0);
+        assertEquals(chunk.getSize(), chunk.getFile().length());
+        assertEquals(0, storageManager.getMemoryUsageBytes());
+        assertEquals(chunk.getSize(), storageManager.getDemotedBytes());
+        assertReadSamples(chunk);
+        assertEquals(0, storageManager.getMemoryHitCount());
+        assertEquals(1, storageManager.getMemoryMissCount());
+    }
+
+    public void testDemote_overMemoryDuration() throws IOException {
+        TieredStorageManager storageManager = createStorageManager(MAX_BUFFER_SIZE, 1500);
+        MemorySampleChunk first = writeChunk(storageManager, 0, 0);
+        MemorySampleChunk second = writeChunk(storageManager, 500000, 1000);
+        assertFalse(first.getFile().exists());
+        MemorySampleChunk third = writeChunk(storageManager, 1000000, 2000);
+        // Only the oldest chunk is out of the duration of the memory tier.
+        assertTrue(first.getFile().exists());
+        assertFalse(second.getFile().exists());
+        assertFalse(third.getFile().exists());
+        assertReadSamples(first);
+        assertReadSamples(second);
+        assertEquals(0.5f, storageManager.getMemoryHitRate());
+    }
+
+    public void testDemote_whileReading() throws IOException {
+        TieredStorageManager storageManager = createStorageManager(MAX_BUFFER_SIZE, 60000);
+        MemorySampleChunk chunk = writeChunk(storageManager, 0, 0);
+        SampleChunk.IoState state = new SampleChunk.IoState();
+        state.openRead(chunk);
+        assertSample(state.read(), 0);
+        storageManager.trimMemory();
+        // The reader keeps reading from memory until it finishes.
+        assertTrue(storageManager.getMemoryUsageBytes() > 0);
+        for (int i = 1; i < SAMPLE_COUNT; ++i) {
+            assertSample(state.read(), i);
+        }
+        assertNull(state.read());
+        assertEquals(0, storageManager.getMemoryUsageBytes());
+        assertReadSamples(chunk);
+        assertEquals(1, storageManager.getMemoryMissCount());
+    }
+
+    public void testRelease_beforeDemotion() throws IOException {
+        TieredStorageManager storageManager = createStorageManager(MAX_BUFFER_SIZE, 60000);
+        MemorySampleChunk chunk = writeChunk(storageManager, 0, 0);
+        SampleChunk.IoState.release(chunk, true);
+        storageManager.trimMemory();
+        assertFalse(chunk.getFile().exists());
+        assertEquals(0, storageManager.getMemoryUsageBytes());
+        assertEquals(0, storageManager.getDemotedBytes());
+    }
+
+    private TieredStorageManager createStorageManager(long maxMemoryBytes,
+            long maxMemoryDurationMs) {
+        // Demotes chunks synchronously.
+        return new TieredStorageManager(getContext(), mDir, MAX_BUFFER_SIZE, maxMemoryBytes,
+                maxMemoryDurationMs, Runnable::run);
+    }
+
+    private MemorySampleChunk writeChunk(TieredStorageManager storageManager,
+            long startPositionUs, long createdTimeMs) throws IOException {
+        File file = new File(storageManager.getBufferDir(), "chunk_" + startPositionUs);
+        MemorySampleChunk chunk = new MemorySampleChunk(mSamplePool, file, startPositionUs,
+                createdTimeMs, mChunkCallback, storageManager, SAMPLE_SIZE);
+        SampleChunk.IoState state = new SampleChunk.IoState();
+        state.openWrite(chunk);
+        // The buffer grows, since the expected size is smaller than the samples.
+        for (int i = 0; i < SAMPLE_COUNT; ++i) {
+            SampleHolder sample = mSamplePool.acquireSample(SAMPLE_SIZE);
+            sample.clearData();
+            for (int j = 0; j < SAMPLE_SIZE; ++j) {
+                sample.data.put((byte) (i + j));
+            }
+            sample.size = SAMPLE_SIZE;
+            sample.timeUs = startPositionUs + i;
+            sample.flags = 0;
+            state.write(sample, null);
+            mSamplePool.releaseSample(sample);
+        }
+        state.closeWrite();
+        return chunk;
+    }
+
+    private static void assertReadSamples(SampleChunk chunk) throws IOException {
+        SampleChunk.IoState state = new SampleChunk.IoState();
+        state.openRead(chunk);
+        for (int i = 0; i < SAMPLE_COUNT; ++i) {
+            assertSample(state.read(), i);
+        }
+        assertNull(state.read());
+        assertTrue(state.isReadFinished());
+    }
+
+    private static void assertSample(SampleHolder sample, int index) {
+        assertNotNull(sample);
+        assertEquals(SAMPLE_SIZE, sample.size);
+        assertEquals(index, sample.timeUs % 500000);
+        for (int j = 0; j < SAMPLE_SIZE; ++j) {
+            assertEquals((byte) (index + j), sample.data.get(j));
+        }
+    }
+}
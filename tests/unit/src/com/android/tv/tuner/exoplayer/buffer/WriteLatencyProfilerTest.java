@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.support.test.filters.SmallTest;
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+
+/**
+ * Tests for {@link WriteLatencyProfiler}.
+ */
+@SmallTest
+public class WriteLatencyProfilerTest extends AndroidTestCase {
+    private static final long MILLIS_IN_NANOS = 1000000;
+
+    public void testPercentiles_slidingWindow() {
+        WriteLatencyProfiler profiler = new WriteLatencyProfiler(10);
+        assertEquals(-1, profiler.getLatencyPercentileUs(50));
+        for (int i = 1; i <= 10; ++i) {
+            profiler.addWrite(1000, i * MILLIS_IN_NANOS, i * 100 * MILLIS_IN_NANOS);
+        }
+        assertEquals(5000, profiler.getLatencyPercentileUs(50));
+        assertEquals(10000, profiler.getLatencyPercentileUs(95));
+        assertEquals(1000, profiler.getLatencyPercentileUs(1));
+
+        // The oldest writes are pushed out of the window.
+        for (int i = 0; i < 5; ++i) {
+            profiler.addWrite(1000, MILLIS_IN_NANOS / 2, (11 + i) * 100 * MILLIS_IN_NANOS);
+        }
+        assertEquals(500, profiler.getLatencyPercentileUs(50));
+        assertEquals(6000, profiler.getLatencyPercentileUs(60));
+        assertEquals(10000, profiler.getLatencyPercentileUs(95));
+        assertEquals(15, profiler.getTotalWriteCount());
+    }
+
+    public void testBandwidthAndIngestRate() {
+        WriteLatencyProfiler profiler = new WriteLatencyProfiler(10);
+        for (int i = 1; i <= 10; ++i) {
+            // 1MB written in 100ms, every second.
+            profiler.addWrite(1000000, 100 * MILLIS_IN_NANOS, i * 1000 * MILLIS_IN_NANOS);
+        }
+        assertEquals(10.0f, profiler.getBandwidthMbps(), 0.01f);
+        assertEquals(1.0f, profiler.getIngestRateMbps(), 0.01f);
+        profiler.reset();
+        assertEquals(-1.0f, profiler.getBandwidthMbps());
+        assertEquals(-1.0f, profiler.getIngestRateMbps());
+    }
+
+    public void testRunBenchmark_seedsUntilEnoughWrites() throws IOException {
+        WriteLatencyProfiler profiler = new WriteLatencyProfiler(10);
+        profiler.runBenchmark(getContext().getCacheDir());
+        assertTrue(profiler.getBandwidthMbps() > 0);
+        assertTrue(profiler.getLatencyPercentileUs(95) >= 0);
+        assertEquals(0, profiler.getTotalWriteCount());
+        for (int i = 1; i <= 10; ++i) {
+            profiler.addWrite(1000000, 100 * MILLIS_IN_NANOS, i * 1000 * MILLIS_IN_NANOS);
+        }
+        assertEquals(10.0f, profiler.getBandwidthMbps(), 0.01f);
+    }
+
+    public void testSetBenchmarkResult() {
+        WriteLatencyProfiler profiler = new WriteLatencyProfiler(10);
+        assertEquals(-1.0f, profiler.getBenchmarkBandwidthMbps());
+        profiler.setBenchmarkResult(20.0f, 5000);
+        assertEquals(20.0f, profiler.getBandwidthMbps());
+        assertEquals(5000, profiler.getLatencyPercentileUs(95));
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.setup;
+
+import android.os.SystemClock;
+import android.support.test.filters.LargeTest;
+import android.support.test.filters.MediumTest;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.android.tv.common.AutoCloseableUtils;
+import com.android.tv.tuner.ChannelScanFileParser.ScanChannel;
+import com.android.tv.tuner.FakeTunerHal;
+import com.android.tv.tuner.TunerHal;
+import com.android.tv.tuner.data.PsipData;
+import com.android.tv.tuner.data.TunerChannel;
+import com.android.tv.tuner.data.nano.Channel;
+import com.android.tv.tuner.source.TsStreamer;
+import com.android.tv.tuner.source.TunerTsStreamer;
+import com.android.tv.tuner.ts.TsStreamGenerator;
+import com.android.tv.tuner.tvinput.EventDetector;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link ChannelScanScheduler}, which scan TS files through {@link FakeTunerHal}s.
+ */
+public class ChannelScanSchedulerTest extends TestCase {
+    private static final String TAG = "ChannelScanSchedulerTest";
+
+    private static final int FREQUENCY_BASE = 57000000;
+    private static final int FREQUENCY_STEP = 6000000;
+    // Half of the frequencies carry a multiplex, and the other half carry no PSIP at all.
+    private static final int FREQUENCY_COUNT = 8;
+    private static final long SCAN_PERIOD_MS = 4000;
+    private static final long NO_SIGNAL_TIMEOUT_MS = 300;
+
+    private final List<File> mTsFiles = new ArrayList<>();
+    private final SparseArray<File> mFiles = new SparseArray<>();
+    private final List<ScanChannel> mScanChannels = new ArrayList<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        byte[] multiplex = TsStreamGenerator.generateMultiplex(4, 4, 3, 0);
+        byte[] noSignal = new byte[TsStreamGenerator.TS_PACKET_SIZE * 100];
+        for (int i = 0; i < noSignal.length; i += TsStreamGenerator.TS_PACKET_SIZE) {
+            // Null packets, which are never passed through the PID filters.
+            Arrays.fill(noSignal, i, i + TsStreamGenerator.TS_PACKET_SIZE, (byte) 0xff);
+            noSignal[i] = 0x47;
+            noSignal[i + 1] = 0x1f;
+            noSignal[i + 3] = 0x10;
+        }
+        for (int i = 0; i < FREQUENCY_COUNT; ++i) {
+            int frequency = FREQUENCY_BASE + FREQUENCY_STEP * i;
+            mFiles.put(frequency, createTsFile(i % 2 == 0 ? multiplex : noSignal));
+            mScanChannels.add(ScanChannel.forTuner(frequency, TunerHal.MODULATION_8VSB, null));
+        }
+        // A frequency on which no tuner can lock.
+        mScanChannels.add(ScanChannel.forTuner(FREQUENCY_BASE - FREQUENCY_STEP,
+                TunerHal.MODULATION_8VSB, null));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : mTsFiles) {
+            file.delete();
+        }
+        super.tearDown();
+    }
+
+    @MediumTest
+    public void testScan_scansEachFrequencyOnce() {
+        ScanResult result = scan(2);
+        assertEquals(FREQUENCY_COUNT, result.scannedFrequencies.size());
+        for (int i = 0; i < result.scannedFrequencies.size(); ++i) {
+            assertEquals(1, result.scannedFrequencies.valueAt(i));
+        }
+        assertEquals(FREQUENCY_COUNT / 2, result.detectedFrequencies.size());
+        for (int i = 0; i < FREQUENCY_COUNT; i += 2) {
+            assertTrue(result.detectedFrequencies.get(FREQUENCY_BASE + FREQUENCY_STEP * i) > 0);
+        }
+        assertEquals(mScanChannels.size(), result.lastScannedCount);
+    }
+
+    @MediumTest
+    public void testCancel_stopsScan() throws InterruptedException {
+        ScanResult result = new ScanResult();
+        final ChannelScanScheduler scheduler = new ChannelScanScheduler(result, SCAN_PERIOD_MS,
+                SCAN_PERIOD_MS);
+        List<TunerHal> hals = addTuners(scheduler, 1);
+        Thread scanThread = new Thread() {
+            @Override
+            public void run() {
+                scheduler.scan(mScanChannels);
+            }
+        };
+        scanThread.start();
+        SystemClock.sleep(NO_SIGNAL_TIMEOUT_MS);
+        scheduler.cancel();
+        scanThread.join(SCAN_PERIOD_MS);
+        assertFalse(scanThread.isAlive());
+        synchronized (result) {
+            assertTrue(result.lastScannedCount < mScanChannels.size());
+        }
+        closeAll(hals);
+    }
+
+    /**
+     * Scans the same frequencies with one tuner and with several tuners, and reports the
+     * wall-clock time of each scan.
+     */
+    @LargeTest
+    public void testScan_parallelSpeedup() {
+        long sequentialMs = scan(1).elapsedMs;
+        long parallelMs = scan(4).elapsedMs;
+        Log.i(TAG, "Scanned " + mScanChannels.size() + " frequencies in " + sequentialMs
+                + "ms with 1 tuner, and in " + parallelMs + "ms with 4 tuners");
+        assertTrue(parallelMs < sequentialMs);
+    }
+
+    private ScanResult scan(int tunerCount) {
+        ScanResult result = new ScanResult();
+        ChannelScanScheduler scheduler = new ChannelScanScheduler(result, SCAN_PERIOD_MS,
+                NO_SIGNAL_TIMEOUT_MS);
+        List<TunerHal> hals = addTuners(scheduler, tunerCount);
+        long startMs = SystemClock.elapsedRealtime();
+        scheduler.scan(mScanChannels);
+        result.elapsedMs = SystemClock.elapsedRealtime() - startMs;
+        closeAll(hals);
+        return result;
+    }
+
+    private List<TunerHal> addTuners(ChannelScanScheduler scheduler, int tunerCount) {
+        List<TunerHal> hals = new ArrayList<>();
+        for (int i = 0; i < tunerCount; ++i) {
+            final TunerHal hal = new FakeTunerHal(mFiles);
+            hals.add(hal);
+            scheduler.addTuner(Channel.TYPE_TUNER, new ChannelScanScheduler.StreamerFactory() {
+                @Override
+                public TsStreamer createStreamer(EventDetector.EventListener listener) {
+                    return new TunerTsStreamer(hal, listener,
+                            TunerTsStreamer.SCAN_CIRCULAR_BUFFER_SIZE);
+                }
+            });
+        }
+        return hals;
+    }
+
+    private static void closeAll(List<TunerHal> hals) {
+        for (TunerHal hal : hals) {
+            AutoCloseableUtils.closeQuietly(hal);
+        }
+    }
+
+    private File createTsFile(byte[] data) throws IOException {
+        File file = File.createTempFile(TAG, ".ts");
+        mTsFiles.add(file);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static class ScanResult implements ChannelScanScheduler.ScanListener {
+        final SparseIntArray scannedFrequencies = new SparseIntArray();
+        final SparseIntArray detectedFrequencies = new SparseIntArray();
+        int lastScannedCount;
+        long elapsedMs;
+
+        @Override
+        public synchronized void onChannelDetected(TunerChannel channel,
+                boolean channelArrivedAtFirstTime) {
+            int frequency = channel.getFrequency();
+            detectedFrequencies.put(frequency, detectedFrequencies.get(frequency) + 1);
+        }
+
+        @Override
+        public void onEventDetected(TunerChannel channel, List<PsipData.EitItem> items) { }
+
+        @Override
+        public synchronized void onFrequencyScanned(ScanChannel channel, TsStreamer streamer) {
+            scannedFrequencies.put(channel.frequency,
+                    scannedFrequencies.get(channel.frequency) + 1);
+        }
+
+        @Override
+        public synchronized void onProgress(int scannedCount, int totalCount) {
+            lastScannedCount = Math.max(lastScannedCount, scannedCount);
+        }
+    }
+}
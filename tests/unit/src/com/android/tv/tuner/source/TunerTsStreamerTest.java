@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.source;
+
+import android.support.test.filters.SmallTest;
+
+import com.android.tv.tuner.ChannelScanFileParser.ScanChannel;
+import com.android.tv.tuner.FakeTunerHal;
+import com.android.tv.tuner.TunerHal;
+import com.android.tv.tuner.data.PsipData.EitItem;
+import com.android.tv.tuner.data.TunerChannel;
+import com.android.tv.tuner.ts.TsStreamGenerator;
+import com.android.tv.tuner.tvinput.EventDetector;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link TunerTsStreamer} on a {@link FakeTunerHal}.
+ */
+@SmallTest
+public class TunerTsStreamerTest extends TestCase {
+    private static final int FREQUENCY = 557000000;
+    private static final int PACKET_SIZE = TsStreamGenerator.TS_PACKET_SIZE;
+    private static final long DETECT_TIMEOUT_MS = 5000;
+
+    private File mTsFile;
+    private FakeTunerHal mTunerHal;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTsFile = File.createTempFile("TunerTsStreamerTest", ".ts");
+        FileOutputStream out = new FileOutputStream(mTsFile);
+        try {
+            out.write(TsStreamGenerator.generateMultiplex(4, 4, 3, 0));
+        } finally {
+            out.close();
+        }
+        mTunerHal = new FakeTunerHal(mTsFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mTunerHal.close();
+        mTsFile.delete();
+        super.tearDown();
+    }
+
+    public void testReadTsStream_directBuffer() {
+        assertTrue(mTunerHal.tune(FREQUENCY, TunerHal.MODULATION_8VSB));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(PACKET_SIZE * 10 + 1);
+        buffer.position(1);
+        int bytesWritten = mTunerHal.readTsStream(buffer);
+        assertTrue(bytesWritten > 0);
+        assertEquals(0, bytesWritten % PACKET_SIZE);
+        assertEquals(1 + bytesWritten, buffer.position());
+        assertEquals(0x47, buffer.get(1) & 0xff);
+    }
+
+    public void testReadTsStream_heapBuffer() {
+        assertTrue(mTunerHal.tune(FREQUENCY, TunerHal.MODULATION_8VSB));
+        try {
+            mTunerHal.readTsStream(ByteBuffer.allocate(PACKET_SIZE));
+            fail("A heap buffer should not be accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testStartStream_detectsChannelAndStreams() throws InterruptedException,
+            IOException {
+        final CountDownLatch channelDetected = new CountDownLatch(1);
+        TunerTsStreamer streamer = new TunerTsStreamer(mTunerHal,
+                new EventDetector.EventListener() {
+                    @Override
+                    public void onChannelDetected(TunerChannel channel,
+                            boolean channelArrivedAtFirstTime) {
+                        channelDetected.countDown();
+                    }
+
+                    @Override
+                    public void onEventDetected(TunerChannel channel, List<EitItem> items) { }
+
+                    @Override
+                    public void onChannelScanDone() { }
+                });
+        assertTrue(streamer.startStream(
+                ScanChannel.forTuner(FREQUENCY, TunerHal.MODULATION_8VSB, null)));
+        try {
+            // The PSIP tables are parsed from the circular buffer in place.
+            assertTrue(channelDetected.await(DETECT_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            TsDataSource dataSource = streamer.createDataSource();
+            byte[] packets = new byte[PACKET_SIZE * 4];
+            assertEquals(packets.length, dataSource.read(packets, 0, packets.length));
+            for (int i = 0; i < packets.length; i += PACKET_SIZE) {
+                assertEquals(0x47, packets[i] & 0xff);
+            }
+        } finally {
+            streamer.stopStream();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.ts;
+
+import android.support.test.filters.LargeTest;
+import android.support.test.filters.SmallTest;
+
+import com.android.tv.testing.BenchmarkUtils;
+
+import junit.framework.TestCase;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Conformance tests and benchmarks for the {@link CrcEngine} implementations.
+ */
+public class CrcEngineTest extends TestCase {
+    // The check value of CRC-32/MPEG-2 for "123456789".
+    private static final int CHECK_VALUE = 0x0376e6e7;
+    private static final int MAX_SECTION_SIZE = 4096;
+
+    private final CrcEngine mReference = new TableCrcEngine();
+
+    @SmallTest
+    public void testCheckValue() {
+        byte[] data = "123456789".getBytes(Charset.forName("US-ASCII"));
+        for (CrcEngine engine : getEngines()) {
+            assertEquals(engine.getClass().getSimpleName(), CHECK_VALUE,
+                    engine.compute(data, 0, data.length));
+        }
+    }
+
+    @SmallTest
+    public void testConformsToReference() {
+        Random random = new Random(0);
+        byte[] data = new byte[MAX_SECTION_SIZE + 16];
+        random.nextBytes(data);
+        for (CrcEngine engine : getEngines()) {
+            for (int offset = 0; offset < 16; ++offset) {
+                for (int length = 0; length < 300; ++length) {
+                    assertEquals(engine.getClass().getSimpleName() + " offset=" + offset
+                            + " length=" + length, mReference.compute(data, offset, length),
+                            engine.compute(data, offset, length));
+                }
+            }
+            assertEquals(mReference.compute(data, 3, MAX_SECTION_SIZE),
+                    engine.compute(data, 3, MAX_SECTION_SIZE));
+        }
+    }
+
+    @SmallTest
+    public void testValidSectionResultsInZero() {
+        byte[] section = TsStreamGenerator.buildEit(0, 8);
+        for (CrcEngine engine : getEngines()) {
+            assertEquals(0, engine.compute(section, 0, section.length));
+            section[10] ^= 0x01;
+            assertTrue(engine.compute(section, 0, section.length) != 0);
+            section[10] ^= 0x01;
+        }
+    }
+
+    /**
+     * Reports the throughput of each engine for typical PSIP section sizes in bytes/s.
+     */
+    @LargeTest
+    public void testThroughputBenchmark() {
+        final byte[] data = new byte[MAX_SECTION_SIZE];
+        new Random(0).nextBytes(data);
+        final int[] sectionSizes = {32, 188, 1024, MAX_SECTION_SIZE};
+        for (final CrcEngine engine : getEngines()) {
+            BenchmarkUtils.measure(engine.getClass().getSimpleName(), 100, 10000,
+                    new BenchmarkUtils.Workload() {
+                        @Override
+                        public long run() {
+                            long bytes = 0;
+                            for (int size : sectionSizes) {
+                                engine.compute(data, 0, size);
+                                bytes += size;
+                            }
+                            return bytes;
+                        }
+                    });
+        }
+    }
+
+    private static List<CrcEngine> getEngines() {
+        List<CrcEngine> engines = new ArrayList<>();
+        engines.add(new TableCrcEngine());
+        engines.add(new SlicingBy8CrcEngine());
+        if (NativeCrcEngine.isSupported()) {
+            engines.add(new NativeCrcEngine());
+        }
+        return engines;
+    }
+}
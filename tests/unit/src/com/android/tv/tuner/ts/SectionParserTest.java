@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.ts;
+
+import android.support.test.filters.LargeTest;
+import android.support.test.filters.SmallTest;
+
+import com.android.tv.testing.BenchmarkUtils;
+import com.android.tv.tuner.data.PsiData.PatItem;
+import com.android.tv.tuner.data.PsiData.PmtItem;
+import com.android.tv.tuner.data.PsipData.EitItem;
+import com.android.tv.tuner.data.PsipData.EttItem;
+import com.android.tv.tuner.data.PsipData.MgtItem;
+import com.android.tv.tuner.data.PsipData.VctItem;
+import com.android.tv.tuner.util.ByteArrayBuffer;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests for {@link SectionParser}.
+ */
+public class SectionParserTest extends TestCase {
+    private static final int EVENT_COUNT = 8;
+
+    private int mPatCount;
+    private int mEitCount;
+    private int mEttCount;
+    private List<EitItem> mEitItems;
+
+    private final SectionParser.OutputListener mListener = new SectionParser.OutputListener() {
+        @Override
+        public void onPatParsed(List<PatItem> items) {
+            ++mPatCount;
+        }
+
+        @Override
+        public void onPmtParsed(int programNumber, List<PmtItem> items) { }
+
+        @Override
+        public void onMgtParsed(List<MgtItem> items) { }
+
+        @Override
+        public void onVctParsed(List<VctItem> items, int sectionNumber, int lastSectionNumber) { }
+
+        @Override
+        public void onEitParsed(int sourceId, List<EitItem> items) {
+            ++mEitCount;
+            mEitItems = items;
+        }
+
+        @Override
+        public void onEttParsed(int sourceId, List<EttItem> descriptions) {
+            mEttCount += descriptions.size();
+        }
+    };
+
+    @SmallTest
+    public void testParseSections_skipsUnchangedVersion() {
+        SectionParser parser = new SectionParser(mListener);
+        ByteArrayBuffer buffer = new ByteArrayBuffer(1024);
+        feedSection(parser, buffer, TsStreamGenerator.buildPat(0));
+        feedSection(parser, buffer, TsStreamGenerator.buildPat(0));
+        assertEquals(1, mPatCount);
+        feedSection(parser, buffer, TsStreamGenerator.buildPat(1));
+        assertEquals(2, mPatCount);
+    }
+
+    @SmallTest
+    public void testParseSections_multipleSectionsInBuffer() {
+        SectionParser parser = new SectionParser(mListener);
+        ByteArrayBuffer buffer = new ByteArrayBuffer(1024);
+        byte[] eit = TsStreamGenerator.buildEit(0, EVENT_COUNT);
+        byte[] ett = TsStreamGenerator.buildEtt(0, 1);
+        buffer.append(eit, 0, eit.length);
+        buffer.append(ett, 0, ett.length);
+        buffer.append(0xff);
+        parser.parseSections(buffer);
+        assertEquals(1, mEitCount);
+        assertEquals(EVENT_COUNT, mEitItems.size());
+        assertEquals("Program 1", mEitItems.get(0).getTitleText());
+        assertEquals(1, mEttCount);
+        assertEquals(0, buffer.length());
+    }
+
+    @SmallTest
+    public void testParseSections_badCrc() {
+        SectionParser parser = new SectionParser(mListener);
+        ByteArrayBuffer buffer = new ByteArrayBuffer(1024);
+        byte[] pat = TsStreamGenerator.buildPat(0);
+        pat[pat.length - 1] ^= 0x01;
+        feedSection(parser, buffer, pat);
+        assertEquals(0, mPatCount);
+    }
+
+    @SmallTest
+    public void testParseSections_repeatedSectionSkipsCrc() {
+        final int[] crcCount = new int[1];
+        SectionParser parser = new SectionParser(mListener, new CrcEngine() {
+            @Override
+            public int compute(byte[] data, int offset, int length) {
+                ++crcCount[0];
+                return new TableCrcEngine().compute(data, offset, length);
+            }
+        });
+        ByteArrayBuffer buffer = new ByteArrayBuffer(1024);
+        feedSection(parser, buffer, TsStreamGenerator.buildPat(0));
+        feedSection(parser, buffer, TsStreamGenerator.buildPat(0));
+        assertEquals(1, crcCount[0]);
+        feedSection(parser, buffer, TsStreamGenerator.buildPat(1));
+        assertEquals(2, crcCount[0]);
+        assertEquals(2, mPatCount);
+    }
+
+    @SmallTest
+    public void testSkipKnownSections() {
+        SectionParser parser = new SectionParser(mListener, new SectionVersionTable(), 0);
+        ByteArrayBuffer buffer = new ByteArrayBuffer(1024);
+        byte[] pat = TsStreamGenerator.buildPat(0);
+        assertEquals(0, parser.skipKnownSections(pat, 0, pat.length));
+        feedSection(parser, buffer, pat);
+        assertEquals(pat.length, parser.skipKnownSections(pat, 0, pat.length));
+        byte[] newPat = TsStreamGenerator.buildPat(1);
+        assertEquals(0, parser.skipKnownSections(newPat, 0, newPat.length));
+    }
+
+    @SmallTest
+    public void testParseSections_retriesBrokenTable() {
+        SectionParser parser = new SectionParser(mListener, new SectionVersionTable(), 0);
+        assertBrokenTableRetried(parser);
+    }
+
+    @SmallTest
+    public void testParseSections_retriesBrokenTableOnWorker() {
+        SectionParser parser = new SectionParser(mListener, new SectionVersionTable(), 0,
+                new SectionPipeline(new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        command.run();
+                    }
+                }));
+        assertBrokenTableRetried(parser);
+    }
+
+    private static void assertBrokenTableRetried(SectionParser parser) {
+        ByteArrayBuffer buffer = new ByteArrayBuffer(1024);
+        // A PAT whose program loop is cut short has a valid CRC, but fails to be parsed.
+        byte[] pat = TsStreamGenerator.buildSection(0x00, TsStreamGenerator.TRANSPORT_STREAM_ID,
+                0, 0, 0, new byte[2]);
+        feedSection(parser, buffer, pat);
+        assertEquals(0, parser.skipKnownSections(pat, 0, pat.length));
+    }
+
+    /**
+     * Replays PSIP carousels whose versions rarely change, and reports the number of sections
+     * parsed per second and the bytes allocated per section.
+     */
+    @LargeTest
+    public void testParseSections_carouselBenchmark() {
+        final List<byte[]> carousel = new ArrayList<>();
+        carousel.add(TsStreamGenerator.buildPat(0));
+        carousel.add(TsStreamGenerator.buildPmt(0));
+        carousel.add(TsStreamGenerator.buildMgt(0));
+        carousel.add(TsStreamGenerator.buildTvct(0));
+        carousel.add(TsStreamGenerator.buildEit(0, EVENT_COUNT));
+        for (int eventId = 1; eventId <= EVENT_COUNT; ++eventId) {
+            carousel.add(TsStreamGenerator.buildEtt(0, eventId));
+        }
+        final SectionParser parser = new SectionParser(mListener);
+        final ByteArrayBuffer buffer = new ByteArrayBuffer(4096);
+        BenchmarkUtils.measure("SectionParser.parseSections", 10, 1000,
+                new BenchmarkUtils.Workload() {
+                    @Override
+                    public long run() {
+                        for (byte[] section : carousel) {
+                            feedSection(parser, buffer, section);
+                        }
+                        return carousel.size();
+                    }
+                });
+        assertEquals(1, mPatCount);
+        assertEquals(1, mEitCount);
+    }
+
+    private static void feedSection(SectionParser parser, ByteArrayBuffer buffer,
+            byte[] section) {
+        buffer.append(section, 0, section.length);
+        // Stuffing bytes follow the last section of a TS packet.
+        buffer.append(0xff);
+        parser.parseSections(buffer);
+    }
+}
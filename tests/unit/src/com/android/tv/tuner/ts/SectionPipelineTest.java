@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.ts;
+
+import android.support.test.filters.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests for {@link SectionPipeline}.
+ */
+@SmallTest
+public class SectionPipelineTest extends TestCase {
+    private final List<Runnable> mScheduledTasks = new ArrayList<>();
+    private final List<Integer> mHandledSections = new ArrayList<>();
+    private int mHandledBatchCount;
+
+    private final SectionPipeline mPipeline = new SectionPipeline(new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mScheduledTasks.add(command);
+        }
+    });
+
+    private final SectionPipeline.SectionHandler mHandler = new SectionPipeline.SectionHandler() {
+        @Override
+        public void handleSection(byte[] data, int offset, int length) {
+            assertEquals(1, length);
+            mHandledSections.add((int) data[offset]);
+        }
+
+        @Override
+        public void onSectionsHandled() {
+            ++mHandledBatchCount;
+        }
+    };
+
+    public void testOffer_handledInOrder() {
+        SectionPipeline.Lane lane = mPipeline.createLane(mHandler);
+        assertTrue(offer(lane, 1, 100));
+        assertTrue(offer(lane, 2, 200));
+        assertTrue(offer(lane, 3, 300));
+        assertEquals(1, mScheduledTasks.size());
+        runScheduledTasks();
+        assertEquals(3, mHandledSections.size());
+        assertEquals(1, (int) mHandledSections.get(0));
+        assertEquals(2, (int) mHandledSections.get(1));
+        assertEquals(3, (int) mHandledSections.get(2));
+        assertEquals(1, mHandledBatchCount);
+
+        // The lane is scheduled again for a new section.
+        assertTrue(offer(lane, 4, 100));
+        assertEquals(1, mScheduledTasks.size());
+        runScheduledTasks();
+        assertEquals(4, (int) mHandledSections.get(3));
+    }
+
+    public void testOffer_skipsSupersededSection() {
+        SectionPipeline.Lane lane = mPipeline.createLane(mHandler);
+        offer(lane, 1, 100);
+        offer(lane, 2, 200);
+        offer(lane, 3, 100);
+        runScheduledTasks();
+        assertEquals(2, mHandledSections.size());
+        assertEquals(2, (int) mHandledSections.get(0));
+        assertEquals(3, (int) mHandledSections.get(1));
+    }
+
+    public void testOffer_dropsWhenFull() {
+        SectionPipeline.Lane lane = mPipeline.createLane(mHandler);
+        int offered = 0;
+        while (offer(lane, offered, offered)) {
+            ++offered;
+        }
+        assertTrue(offered > 0);
+        runScheduledTasks();
+        assertEquals(offered, mHandledSections.size());
+        assertTrue(offer(lane, 0, 0));
+    }
+
+    public void testOffer_replacesQueuedVersionWhenFull() {
+        SectionPipeline.Lane lane = mPipeline.createLane(mHandler);
+        int offered = 0;
+        while (offer(lane, offered, offered)) {
+            ++offered;
+        }
+        // A new version of a queued section replaces it.
+        assertTrue(offer(lane, 100, 1));
+        runScheduledTasks();
+        assertEquals(offered, mHandledSections.size());
+        assertEquals(0, (int) mHandledSections.get(0));
+        assertEquals(100, (int) mHandledSections.get(1));
+        assertEquals(2, (int) mHandledSections.get(2));
+    }
+
+    public void testOffer_takesSupersededSlotWhenFull() {
+        SectionPipeline.Lane lane = mPipeline.createLane(mHandler);
+        offer(lane, 1, 100);
+        offer(lane, 2, 100);
+        int offered = 2;
+        while (offer(lane, offered + 1, offered)) {
+            ++offered;
+        }
+        // The first section is superseded by the second one, so a new section takes its slot.
+        assertTrue(offer(lane, 0, 0));
+        assertFalse(offer(lane, 0, 1000));
+        runScheduledTasks();
+        assertEquals(offered, mHandledSections.size());
+        assertEquals(0, (int) mHandledSections.get(0));
+        assertEquals(2, (int) mHandledSections.get(1));
+    }
+
+    public void testClose_discardsQueuedSections() {
+        SectionPipeline.Lane lane = mPipeline.createLane(mHandler);
+        offer(lane, 1, 100);
+        lane.close();
+        assertFalse(offer(lane, 2, 200));
+        runScheduledTasks();
+        assertTrue(mHandledSections.isEmpty());
+        assertEquals(0, mHandledBatchCount);
+    }
+
+    private static boolean offer(SectionPipeline.Lane lane, int value, long key) {
+        byte[] data = new byte[] { 0, (byte) value };
+        return lane.offer(data, 1, 1, key);
+    }
+
+    private void runScheduledTasks() {
+        while (!mScheduledTasks.isEmpty()) {
+            mScheduledTasks.remove(0).run();
+        }
+    }
+}
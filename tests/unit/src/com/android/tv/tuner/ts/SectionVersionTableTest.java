@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.ts;
+
+import android.support.test.filters.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link SectionVersionTable}.
+ */
+@SmallTest
+public class SectionVersionTableTest extends TestCase {
+    public void testMakeKey_distinctFields() {
+        long key = SectionVersionTable.makeKey(0x1fff, 0xcb, 0xffff, 0xff);
+        assertTrue(key >= 0);
+        assertEquals(0x1fff, SectionVersionTable.getPid(key));
+        assertFalse(key == SectionVersionTable.makeKey(0x1fff, 0xcb, 0xffff, 0xfe));
+        assertFalse(key == SectionVersionTable.makeKey(0x1fff, 0xcc, 0xffff, 0xff));
+        assertFalse(key == SectionVersionTable.makeKey(0x1ffe, 0xcb, 0xffff, 0xff));
+    }
+
+    public void testPut_replacesVersion() {
+        SectionVersionTable table = new SectionVersionTable();
+        long key = SectionVersionTable.makeKey(0x1d00, 0xcb, 3, 0);
+        assertTrue(table.indexOfKey(key) < 0);
+        table.put(key, 1, 0x12345678);
+        int index = table.indexOfKey(key);
+        assertTrue(index >= 0);
+        assertEquals(1, table.versionAt(index));
+        assertEquals(0x12345678, table.crcAt(index));
+        table.put(key, 2, 0x9abcdef0);
+        index = table.indexOfKey(key);
+        assertEquals(2, table.versionAt(index));
+        assertEquals(0x9abcdef0, table.crcAt(index));
+        assertEquals(1, table.size());
+    }
+
+    public void testPut_grows() {
+        SectionVersionTable table = new SectionVersionTable();
+        for (int i = 0; i < 1000; ++i) {
+            table.put(SectionVersionTable.makeKey(0x1e00, 0xcc, i, 0), i & 0x1f, i);
+        }
+        assertEquals(1000, table.size());
+        for (int i = 0; i < 1000; ++i) {
+            int index = table.indexOfKey(SectionVersionTable.makeKey(0x1e00, 0xcc, i, 0));
+            assertTrue(index >= 0);
+            assertEquals(i & 0x1f, table.versionAt(index));
+            assertEquals(i, table.crcAt(index));
+        }
+    }
+
+    public void testRemoveAll() {
+        SectionVersionTable table = new SectionVersionTable();
+        for (int i = 0; i < 100; ++i) {
+            table.put(SectionVersionTable.makeKey(0x1d00, 0xcb, i, 0), 0, 0);
+            table.put(SectionVersionTable.makeKey(0x1e00, 0xcc, i, 0), 0, 0);
+        }
+        table.removeAll(0x1d00);
+        assertEquals(100, table.size());
+        for (int i = 0; i < 100; ++i) {
+            assertTrue(table.indexOfKey(SectionVersionTable.makeKey(0x1d00, 0xcb, i, 0)) < 0);
+            assertTrue(table.indexOfKey(SectionVersionTable.makeKey(0x1e00, 0xcc, i, 0)) >= 0);
+        }
+        table.clear();
+        assertEquals(0, table.size());
+    }
+}
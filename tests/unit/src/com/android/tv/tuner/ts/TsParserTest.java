@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.ts;
+
+import android.support.test.filters.LargeTest;
+import android.support.test.filters.SmallTest;
+
+import com.android.tv.testing.BenchmarkUtils;
+import com.android.tv.tuner.data.PsiData.PatItem;
+import com.android.tv.tuner.data.PsiData.PmtItem;
+import com.android.tv.tuner.data.PsipData.EitItem;
+import com.android.tv.tuner.data.PsipData.VctItem;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link TsParser}.
+ */
+public class TsParserTest extends TestCase {
+    // The size of the buffer which TsStreamer hands over to the event detector at once.
+    private static final int FEED_SIZE = TsStreamGenerator.TS_PACKET_SIZE * 100;
+
+    private final List<VctItem> mVctItems = new ArrayList<>();
+    private final List<EitItem> mEitItems = new ArrayList<>();
+    private boolean mAllVctItemsParsed;
+
+    private final TsParser.TsOutputListener mListener = new TsParser.TsOutputListener() {
+        @Override
+        public void onPatDetected(List<PatItem> items) { }
+
+        @Override
+        public void onEitPidDetected(int pid) { }
+
+        @Override
+        public void onVctItemParsed(VctItem channel, List<PmtItem> pmtItems) {
+            mVctItems.add(channel);
+        }
+
+        @Override
+        public void onEitItemParsed(VctItem channel, List<EitItem> items) {
+            mEitItems.clear();
+            mEitItems.addAll(items);
+        }
+
+        @Override
+        public void onEttPidDetected(int pid) { }
+
+        @Override
+        public void onAllVctItemsParsed() {
+            mAllVctItemsParsed = true;
+        }
+    };
+
+    @SmallTest
+    public void testFeedTsData_detectsChannelAndEvents() {
+        byte[] multiplex = TsStreamGenerator.generateMultiplex(2, 4, 3, 0);
+        feed(new TsParser(mListener), multiplex);
+        assertTrue(mAllVctItemsParsed);
+        assertFalse(mVctItems.isEmpty());
+        VctItem channel = mVctItems.get(0);
+        assertEquals(TsStreamGenerator.PROGRAM_NUMBER, channel.getProgramNumber());
+        assertEquals(TsStreamGenerator.SOURCE_ID, channel.getSourceId());
+        assertEquals(4, mEitItems.size());
+        for (EitItem item : mEitItems) {
+            assertNotNull(item.getDescription());
+        }
+    }
+
+    @SmallTest
+    public void testFeedTsData_packetsSplitAcrossFeeds() {
+        byte[] multiplex = TsStreamGenerator.generateMultiplex(1, 4, 0, 0);
+        TsParser parser = new TsParser(mListener);
+        // Feeds with offsets which are not aligned to the start of the buffer.
+        int pos = 0;
+        while (pos < multiplex.length) {
+            int length = Math.min(TsStreamGenerator.TS_PACKET_SIZE * 3, multiplex.length - pos);
+            byte[] chunk = new byte[length + 7];
+            System.arraycopy(multiplex, pos, chunk, 7, length);
+            parser.feedTSData(chunk, 7, chunk.length);
+            pos += length;
+        }
+        assertTrue(mAllVctItemsParsed);
+        assertEquals(4, mEitItems.size());
+    }
+
+    @SmallTest
+    public void testFeedTsData_parsesOnPipeline() throws InterruptedException {
+        // PIDs which are found on the worker threads are listened to from the following packets,
+        // so a few more carousels are needed than parsing in place.
+        byte[] multiplex = TsStreamGenerator.generateMultiplex(4, 4, 3, 0);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        feed(new TsParser(mListener, new SectionPipeline(executor)), multiplex);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertTrue(mAllVctItemsParsed);
+        assertEquals(TsStreamGenerator.SOURCE_ID, mVctItems.get(0).getSourceId());
+        assertEquals(4, mEitItems.size());
+    }
+
+    @SmallTest
+    public void testRelease_stopsCallbacks() throws InterruptedException {
+        byte[] multiplex = TsStreamGenerator.generateMultiplex(2, 4, 3, 0);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        TsParser parser = new TsParser(mListener, new SectionPipeline(executor));
+        parser.release();
+        feed(parser, multiplex);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertTrue(mVctItems.isEmpty());
+        assertFalse(mAllVctItemsParsed);
+    }
+
+    /**
+     * Feeds a PSIP-heavy multiplex and reports packets/s and bytes allocated per packet.
+     */
+    @LargeTest
+    public void testFeedTsData_benchmark() {
+        final byte[] multiplex = TsStreamGenerator.generateMultiplex(100, 8, 2, 0);
+        final int packetCount = TsStreamGenerator.getPacketCount(multiplex);
+        final TsParser parser = new TsParser(mListener);
+        BenchmarkUtils.Result result = BenchmarkUtils.measure("TsParser.feedTSData", 3, 20,
+                new BenchmarkUtils.Workload() {
+                    @Override
+                    public long run() {
+                        feed(parser, multiplex);
+                        return packetCount;
+                    }
+                });
+        assertTrue(result.getItemsPerSecond() > 0);
+    }
+
+    private static void feed(TsParser parser, byte[] multiplex) {
+        for (int pos = 0; pos < multiplex.length; pos += FEED_SIZE) {
+            int length = Math.min(FEED_SIZE, multiplex.length - pos);
+            parser.feedTSData(multiplex, pos, pos + length);
+        }
+    }
+}
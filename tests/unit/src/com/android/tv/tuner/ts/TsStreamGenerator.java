@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.ts;
+
+import android.util.SparseIntArray;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Generates ATSC MPEG-2 TS multiplexes which carry PSIP carousels for tests and benchmarks.
+ *
+ * <p>The generated stream has the same shape as a recorded ATSC multiplex: PAT, PMT, MGT, TVCT,
+ * EIT-0 and ETT-0 sections are repeated as carousels, and each section is followed by filler
+ * packets on a video PID which the PSIP parser is not interested in.
+ */
+public class TsStreamGenerator {
+    public static final int TS_PACKET_SIZE = 188;
+
+    public static final int PMT_PID = 0x0030;
+    public static final int VIDEO_PID = 0x0031;
+    public static final int AUDIO_PID = 0x0034;
+    public static final int EIT_PID = 0x1d00;
+    public static final int ETT_PID = 0x1e00;
+    public static final int TRANSPORT_STREAM_ID = 0x0841;
+    public static final int PROGRAM_NUMBER = 3;
+    public static final int SOURCE_ID = 3;
+
+    private static final int TABLE_ID_PAT = 0x00;
+    private static final int TABLE_ID_PMT = 0x02;
+    private static final int TABLE_ID_MGT = 0xc7;
+    private static final int TABLE_ID_TVCT = 0xc8;
+    private static final int TABLE_ID_EIT = 0xcb;
+    private static final int TABLE_ID_ETT = 0xcc;
+
+    private static final int TABLE_TYPE_EIT_0 = 0x0100;
+    private static final int TABLE_TYPE_ETT_0 = 0x0200;
+    private static final int STREAM_TYPE_MPEG2_VIDEO = 0x02;
+    private static final int STREAM_TYPE_AC3_AUDIO = 0x81;
+    private static final int SERVICE_TYPE_ATSC_DIGITAL_TELEVISION = 0x02;
+
+    private final SparseIntArray mContinuityCounters = new SparseIntArray();
+    private final ByteArrayOutputStream mOutput = new ByteArrayOutputStream();
+
+    /**
+     * Generates a multiplex which repeats the PSIP carousel {@code carouselCount} times.
+     *
+     * @param carouselCount the number of times the whole set of PSIP sections is sent
+     * @param eventCount the number of EIT events and ETT descriptions in a carousel
+     * @param fillerPacketsPerSection the number of video packets inserted after each section
+     * @param versionChangeInterval if positive, the EIT/ETT version numbers are bumped every
+     *        {@code versionChangeInterval} carousels
+     */
+    public static byte[] generateMultiplex(int carouselCount, int eventCount,
+            int fillerPacketsPerSection, int versionChangeInterval) {
+        TsStreamGenerator generator = new TsStreamGenerator();
+        for (int i = 0; i < carouselCount; ++i) {
+            int eventVersion = versionChangeInterval > 0 ? (i / versionChangeInterval) & 0x1f : 0;
+            generator.addSection(TsParser.PAT_PID, buildPat(0), fillerPacketsPerSection);
+            generator.addSection(PMT_PID, buildPmt(0), fillerPacketsPerSection);
+            generator.addSection(TsParser.ATSC_SI_BASE_PID, buildMgt(0), fillerPacketsPerSection);
+            generator.addSection(TsParser.ATSC_SI_BASE_PID, buildTvct(0),
+                    fillerPacketsPerSection);
+            generator.addSection(EIT_PID, buildEit(eventVersion, eventCount),
+                    fillerPacketsPerSection);
+            for (int eventId = 1; eventId <= eventCount; ++eventId) {
+                generator.addSection(ETT_PID, buildEtt(eventVersion, eventId),
+                        fillerPacketsPerSection);
+            }
+        }
+        return generator.toByteArray();
+    }
+
+    /**
+     * Returns the number of TS packets in the given multiplex.
+     */
+    public static int getPacketCount(byte[] multiplex) {
+        return multiplex.length / TS_PACKET_SIZE;
+    }
+
+    public static byte[] buildPat(int version) {
+        byte[] body = new byte[4];
+        writeShort(body, 0, PROGRAM_NUMBER);
+        writeShort(body, 2, 0xe000 | PMT_PID);
+        return buildSection(TABLE_ID_PAT, TRANSPORT_STREAM_ID, version, 0, 0, body);
+    }
+
+    public static byte[] buildPmt(int version) {
+        byte[] body = new byte[4 + 5 * 2];
+        writeShort(body, 0, 0xe000 | VIDEO_PID);
+        writeShort(body, 2, 0xf000);
+        body[4] = (byte) STREAM_TYPE_MPEG2_VIDEO;
+        writeShort(body, 5, 0xe000 | VIDEO_PID);
+        writeShort(body, 7, 0xf000);
+        body[9] = (byte) STREAM_TYPE_AC3_AUDIO;
+        writeShort(body, 10, 0xe000 | AUDIO_PID);
+        writeShort(body, 12, 0xf000);
+        return buildSection(TABLE_ID_PMT, PROGRAM_NUMBER, version, 0, 0, body);
+    }
+
+    public static byte[] buildMgt(int version) {
+        byte[] body = new byte[3 + 11 * 2 + 2];
+        body[0] = 0; // protocol_version
+        writeShort(body, 1, 2);
+        writeMgtTable(body, 3, TABLE_TYPE_EIT_0, EIT_PID);
+        writeMgtTable(body, 14, TABLE_TYPE_ETT_0, ETT_PID);
+        writeShort(body, 25, 0xf000);
+        return buildSection(TABLE_ID_MGT, 0, version, 0, 0, body);
+    }
+
+    public static byte[] buildTvct(int version) {
+        byte[] body = new byte[2 + 32 + 2];
+        body[0] = 0; // protocol_version
+        body[1] = 1; // num_channels_in_section
+        int pos = 2;
+        byte[] shortName = "KQED".getBytes(Charset.forName("UTF-16BE"));
+        System.arraycopy(shortName, 0, body, pos, shortName.length);
+        int majorNumber = 9;
+        int minorNumber = 1;
+        body[pos + 14] = (byte) (0xf0 | (majorNumber >> 6));
+        body[pos + 15] = (byte) (((majorNumber & 0x3f) << 2) | (minorNumber >> 8));
+        body[pos + 16] = (byte) minorNumber;
+        body[pos + 17] = 0x04; // modulation_mode: 8VSB
+        writeShort(body, pos + 22, TRANSPORT_STREAM_ID);
+        writeShort(body, pos + 24, PROGRAM_NUMBER);
+        body[pos + 26] = 0x0d;
+        body[pos + 27] = (byte) (0xc0 | SERVICE_TYPE_ATSC_DIGITAL_TELEVISION);
+        writeShort(body, pos + 28, SOURCE_ID);
+        writeShort(body, pos + 30, 0xfc00);
+        writeShort(body, pos + 32, 0xfc00);
+        return buildSection(TABLE_ID_TVCT, TRANSPORT_STREAM_ID, version, 0, 0, body);
+    }
+
+    public static byte[] buildEit(int version, int eventCount) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(0); // protocol_version
+        body.write(eventCount);
+        long startTime = 1000000000L;
+        for (int eventId = 1; eventId <= eventCount; ++eventId) {
+            byte[] title = buildMultipleString("Program " + eventId);
+            byte[] event = new byte[10 + title.length + 2];
+            writeShort(event, 0, 0xc000 | eventId);
+            long eventStartTime = startTime + eventId * 1800L;
+            event[2] = (byte) (eventStartTime >> 24);
+            event[3] = (byte) (eventStartTime >> 16);
+            event[4] = (byte) (eventStartTime >> 8);
+            event[5] = (byte) eventStartTime;
+            int lengthInSeconds = 1800;
+            event[6] = (byte) (0xc0 | (lengthInSeconds >> 16));
+            event[7] = (byte) (lengthInSeconds >> 8);
+            event[8] = (byte) lengthInSeconds;
+            event[9] = (byte) title.length;
+            System.arraycopy(title, 0, event, 10, title.length);
+            writeShort(event, 10 + title.length, 0xf000);
+            body.write(event, 0, event.length);
+        }
+        return buildSection(TABLE_ID_EIT, SOURCE_ID, version, 0, 0, body.toByteArray());
+    }
+
+    public static byte[] buildEtt(int version, int eventId) {
+        byte[] text = buildMultipleString("Description of the program " + eventId
+                + ", which is long enough to span more than a single TS packet once it is"
+                + " combined with the other fields of the extended text table section.");
+        byte[] body = new byte[5 + text.length];
+        body[0] = 0; // protocol_version
+        writeShort(body, 1, SOURCE_ID);
+        writeShort(body, 3, (eventId << 2) | 0x02);
+        System.arraycopy(text, 0, body, 5, text.length);
+        return buildSection(TABLE_ID_ETT, eventId, version, 0, 0, body);
+    }
+
+    /**
+     * Builds a long-form PSI/PSIP section, including the trailing CRC_32.
+     */
+    public static byte[] buildSection(int tableId, int tableIdExtension, int version,
+            int sectionNumber, int lastSectionNumber, byte[] body) {
+        int sectionLength = 5 + body.length + 4;
+        byte[] section = new byte[3 + sectionLength];
+        section[0] = (byte) tableId;
+        writeShort(section, 1, 0xb000 | sectionLength);
+        writeShort(section, 3, tableIdExtension);
+        section[5] = (byte) (0xc1 | ((version & 0x1f) << 1));
+        section[6] = (byte) sectionNumber;
+        section[7] = (byte) lastSectionNumber;
+        System.arraycopy(body, 0, section, 8, body.length);
+        int crc = computeCrc(section, 0, section.length - 4);
+        section[section.length - 4] = (byte) (crc >> 24);
+        section[section.length - 3] = (byte) (crc >> 16);
+        section[section.length - 2] = (byte) (crc >> 8);
+        section[section.length - 1] = (byte) crc;
+        return section;
+    }
+
+    /**
+     * Computes CRC-32/MPEG-2 with the reference {@link TableCrcEngine}.
+     */
+    public static int computeCrc(byte[] data, int offset, int length) {
+        return new TableCrcEngine().compute(data, offset, length);
+    }
+
+    private static byte[] buildMultipleString(String text) {
+        byte[] bytes = text.getBytes(Charset.forName("ISO-8859-1"));
+        byte[] result = new byte[1 + 4 + 3 + bytes.length];
+        result[0] = 1; // number_strings
+        result[1] = 'e';
+        result[2] = 'n';
+        result[3] = 'g';
+        result[4] = 1; // number_segments
+        result[5] = 0; // compression_type
+        result[6] = 0; // mode
+        result[7] = (byte) bytes.length;
+        System.arraycopy(bytes, 0, result, 8, bytes.length);
+        return result;
+    }
+
+    private static void writeMgtTable(byte[] data, int pos, int tableType, int pid) {
+        writeShort(data, pos, tableType);
+        writeShort(data, pos + 2, 0xe000 | pid);
+        data[pos + 4] = (byte) 0xe0;
+        writeShort(data, pos + 9, 0xf000);
+    }
+
+    private static void writeShort(byte[] data, int pos, int value) {
+        data[pos] = (byte) (value >> 8);
+        data[pos + 1] = (byte) value;
+    }
+
+    private void addSection(int pid, byte[] section, int fillerPackets) {
+        int pos = 0;
+        boolean first = true;
+        while (pos < section.length) {
+            byte[] packet = new byte[TS_PACKET_SIZE];
+            Arrays.fill(packet, (byte) 0xff);
+            int payloadPos = writePacketHeader(packet, pid, first);
+            if (first) {
+                packet[payloadPos++] = 0; // pointer_field
+            }
+            int length = Math.min(TS_PACKET_SIZE - payloadPos, section.length - pos);
+            System.arraycopy(section, pos, packet, payloadPos, length);
+            pos += length;
+            first = false;
+            addPacket(packet);
+        }
+        for (int i = 0; i < fillerPackets; ++i) {
+            byte[] packet = new byte[TS_PACKET_SIZE];
+            writePacketHeader(packet, VIDEO_PID, false);
+            addPacket(packet);
+        }
+    }
+
+    private int writePacketHeader(byte[] packet, int pid, boolean payloadStart) {
+        int continuityCounter = mContinuityCounters.get(pid, 0);
+        mContinuityCounters.put(pid, (continuityCounter + 1) & 0x0f);
+        packet[0] = 0x47;
+        packet[1] = (byte) ((payloadStart ? 0x40 : 0x00) | ((pid >> 8) & 0x1f));
+        packet[2] = (byte) pid;
+        packet[3] = (byte) (0x10 | continuityCounter);
+        return 4;
+    }
+
+    private void addPacket(byte[] packet) {
+        mOutput.write(packet, 0, packet.length);
+    }
+
+    private byte[] toByteArray() {
+        return mOutput.toByteArray();
+    }
+}
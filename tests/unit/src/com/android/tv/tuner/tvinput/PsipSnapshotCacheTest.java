@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.tvinput;
+
+import android.support.test.filters.SmallTest;
+
+import com.android.tv.tuner.data.PsiData.PatItem;
+import com.android.tv.tuner.data.PsiData.PmtItem;
+import com.android.tv.tuner.data.PsipData.EitItem;
+import com.android.tv.tuner.data.PsipData.VctItem;
+import com.android.tv.tuner.ts.SectionParser;
+import com.android.tv.tuner.ts.TsParser;
+import com.android.tv.tuner.ts.TsStreamGenerator;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests for {@link PsipSnapshotCache}.
+ */
+@SmallTest
+public class PsipSnapshotCacheTest extends TestCase {
+    private static final int FREQUENCY = 557000000;
+    private static final int PROGRAM_NUMBER = TsStreamGenerator.PROGRAM_NUMBER;
+
+    // Writes the snapshots on the calling thread, so that they can be read right after.
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final List<VctItem> mVctItems = new ArrayList<>();
+    private final List<byte[]> mAcceptedSections = new ArrayList<>();
+    private File mDirectory;
+
+    private final TsParser.TsOutputListener mListener = new TsParser.TsOutputListener() {
+        @Override
+        public void onPatDetected(List<PatItem> items) { }
+
+        @Override
+        public void onEitPidDetected(int pid) { }
+
+        @Override
+        public void onVctItemParsed(VctItem channel, List<PmtItem> pmtItems) {
+            mVctItems.add(channel);
+        }
+
+        @Override
+        public void onEitItemParsed(VctItem channel, List<EitItem> items) { }
+
+        @Override
+        public void onEttPidDetected(int pid) { }
+
+        @Override
+        public void onAllVctItemsParsed() { }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = File.createTempFile("PsipSnapshotCacheTest", "");
+        mDirectory.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    public void testParseStoredSections_detectsChannelWithoutPackets() {
+        PsipSnapshotCache.Recorder recorder = createCache().startRecording(FREQUENCY,
+                PROGRAM_NUMBER);
+        record(recorder, TsStreamGenerator.buildTvct(0));
+        recorder.finish();
+
+        // Reads the snapshot from the disk with a new cache.
+        TsParser parser = new TsParser(mListener);
+        assertTrue(createCache().startRecording(FREQUENCY, PROGRAM_NUMBER)
+                .parseStoredSections(parser));
+        assertEquals(1, mVctItems.size());
+        assertEquals(PROGRAM_NUMBER, mVctItems.get(0).getProgramNumber());
+        assertEquals(TsStreamGenerator.SOURCE_ID, mVctItems.get(0).getSourceId());
+    }
+
+    public void testParseStoredSections_noSnapshot() {
+        TsParser parser = new TsParser(mListener);
+        assertFalse(createCache().startRecording(FREQUENCY, PROGRAM_NUMBER)
+                .parseStoredSections(parser));
+        assertFalse(createCache().startRecording(FREQUENCY + 6000000, PROGRAM_NUMBER)
+                .parseStoredSections(parser));
+        assertTrue(mVctItems.isEmpty());
+    }
+
+    public void testFinish_storesNewerVersion() {
+        PsipSnapshotCache.Recorder recorder = createCache().startRecording(FREQUENCY,
+                PROGRAM_NUMBER);
+        record(recorder, TsStreamGenerator.buildTvct(0));
+        recorder.finish();
+        byte[] newTvct = TsStreamGenerator.buildTvct(1);
+        recorder = createCache().startRecording(FREQUENCY, PROGRAM_NUMBER);
+        recorder.onSectionAccepted(TsParser.ATSC_SI_BASE_PID, newTvct, 0, newTvct.length);
+        recorder.finish();
+
+        assertTrue(createCache().startRecording(FREQUENCY, PROGRAM_NUMBER)
+                .parseStoredSections(createObservedParser()));
+        assertEquals(4, mAcceptedSections.size());
+        assertTrue(Arrays.equals(newTvct, mAcceptedSections.get(3)));
+    }
+
+    public void testOnSectionAccepted_keepsOnlyTablesOfProgram() {
+        PsipSnapshotCache.Recorder recorder = createCache().startRecording(FREQUENCY,
+                PROGRAM_NUMBER);
+        record(recorder, TsStreamGenerator.buildTvct(0));
+        byte[] eit = TsStreamGenerator.buildEit(0, 4);
+        recorder.onSectionAccepted(TsStreamGenerator.EIT_PID, eit, 0, eit.length);
+        recorder.finish();
+
+        assertTrue(createCache().startRecording(FREQUENCY, PROGRAM_NUMBER)
+                .parseStoredSections(createObservedParser()));
+        // PAT, PMT, MGT and TVCT, but not EIT.
+        assertEquals(4, mAcceptedSections.size());
+        assertEquals(0x00, mAcceptedSections.get(0)[0] & 0xff);
+        assertEquals(0x02, mAcceptedSections.get(1)[0] & 0xff);
+        assertEquals(0xc7, mAcceptedSections.get(2)[0] & 0xff);
+        assertEquals(0xc8, mAcceptedSections.get(3)[0] & 0xff);
+    }
+
+    public void testReadSnapshot_corruptedFileIsDiscarded() throws IOException {
+        PsipSnapshotCache.Recorder recorder = createCache().startRecording(FREQUENCY,
+                PROGRAM_NUMBER);
+        record(recorder, TsStreamGenerator.buildTvct(0));
+        recorder.finish();
+        File[] files = mDirectory.listFiles();
+        assertEquals(1, files.length);
+        FileOutputStream out = new FileOutputStream(files[0]);
+        try {
+            out.write(new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0xff });
+        } finally {
+            out.close();
+        }
+
+        assertFalse(createCache().startRecording(FREQUENCY, PROGRAM_NUMBER)
+                .parseStoredSections(new TsParser(mListener)));
+        assertFalse(files[0].exists());
+    }
+
+    private PsipSnapshotCache createCache() {
+        return new PsipSnapshotCache(mDirectory, DIRECT_EXECUTOR);
+    }
+
+    private TsParser createObservedParser() {
+        TsParser parser = new TsParser(mListener);
+        parser.setSectionObserver(new SectionParser.SectionObserver() {
+            @Override
+            public void onSectionAccepted(int pid, byte[] data, int offset, int length) {
+                mAcceptedSections.add(Arrays.copyOfRange(data, offset, offset + length));
+            }
+        });
+        return parser;
+    }
+
+    private static void record(PsipSnapshotCache.Recorder recorder, byte[] tvct) {
+        byte[][] sections = new byte[][] {
+                TsStreamGenerator.buildPat(0), TsStreamGenerator.buildPmt(0),
+                TsStreamGenerator.buildMgt(0), tvct };
+        int[] pids = new int[] {
+                TsParser.PAT_PID, TsStreamGenerator.PMT_PID, TsParser.ATSC_SI_BASE_PID,
+                TsParser.ATSC_SI_BASE_PID };
+        for (int i = 0; i < sections.length; ++i) {
+            recorder.onSectionAccepted(pids[i], sections[i], 0, sections[i].length);
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.util;
+
+import android.os.SystemClock;
+import android.support.test.filters.LargeTest;
+import android.support.test.filters.MediumTest;
+import android.support.test.filters.SmallTest;
+import android.util.Log;
+
+import com.android.tv.testing.BenchmarkUtils;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link ByteRingBuffer}.
+ */
+public class ByteRingBufferTest extends TestCase {
+    private static final String TAG = "ByteRingBufferTest";
+
+    // The sizes which TunerTsStreamer writes and ExoPlayer reads at once.
+    private static final int WRITE_SIZE = 15000;
+    private static final int READ_SIZE = 1880;
+    private static final int BENCHMARK_CAPACITY = WRITE_SIZE * 64;
+    private static final int BENCHMARK_WRITE_COUNT = 2000;
+
+    @SmallTest
+    public void testRead_wrapsAround() {
+        ByteRingBuffer buffer = new ByteRingBuffer(10);
+        byte[] read = new byte[4];
+        assertTrue(buffer.write(bytes(0, 8), 0, 8));
+        assertEquals(4, buffer.read(4, read, 0, 4, 0));
+        assertTrue(Arrays.equals(bytes(4, 4), read));
+        assertTrue(buffer.write(bytes(8, 6), 0, 6));
+        assertEquals(14, buffer.getWritePosition());
+        assertEquals(4, buffer.read(7, read, 0, 4, 0));
+        assertTrue(Arrays.equals(bytes(7, 4), read));
+    }
+
+    @SmallTest
+    public void testRead_overwritten() {
+        ByteRingBuffer buffer = new ByteRingBuffer(10);
+        buffer.write(bytes(0, 8), 0, 8);
+        buffer.write(bytes(8, 8), 0, 8);
+        assertEquals(ByteRingBuffer.RESULT_OVERWRITTEN, buffer.read(2, new byte[4], 0, 4, 0));
+    }
+
+    @SmallTest
+    public void testRead_timedOut() {
+        ByteRingBuffer buffer = new ByteRingBuffer(10);
+        buffer.write(bytes(0, 2), 0, 2);
+        assertEquals(ByteRingBuffer.RESULT_TIMED_OUT, buffer.read(0, new byte[4], 0, 4, 10));
+    }
+
+    @SmallTest
+    public void testRead_independentReaders() {
+        ByteRingBuffer buffer = new ByteRingBuffer(100, 0);
+        buffer.write(bytes(0, 50), 0, 50);
+        byte[] first = new byte[10];
+        byte[] second = new byte[10];
+        assertEquals(10, buffer.read(40, first, 0, 10, 0));
+        assertEquals(10, buffer.read(0, second, 0, 10, 0));
+        assertTrue(Arrays.equals(bytes(40, 10), first));
+        assertTrue(Arrays.equals(bytes(0, 10), second));
+    }
+
+    @SmallTest
+    public void testPeek_directBufferWrapsAround() {
+        ByteRingBuffer buffer = new ByteRingBuffer(10);
+        ByteBuffer source = ByteBuffer.allocateDirect(6);
+        buffer.write(bytes(0, 6), 0, 6);
+        source.put(bytes(6, 6)).flip();
+        assertTrue(buffer.write(source));
+        assertFalse(source.hasRemaining());
+        final ByteArrayOutputStream peeked = new ByteArrayOutputStream();
+        final int[] chunkCount = new int[1];
+        assertTrue(buffer.peek(6, 6, new ByteRingBuffer.ChunkConsumer() {
+            @Override
+            public void onChunk(byte[] data, int offset, int length) {
+                peeked.write(data, offset, length);
+                ++chunkCount[0];
+            }
+        }));
+        assertEquals(2, chunkCount[0]);
+        assertTrue(Arrays.equals(bytes(6, 6), peeked.toByteArray()));
+        assertFalse(buffer.peek(0, 4, null));
+        assertFalse(buffer.peek(10, 4, null));
+    }
+
+    @MediumTest
+    public void testRead_neverTornWhileOverwritten() throws InterruptedException {
+        final ByteRingBuffer buffer = new ByteRingBuffer(64);
+        final int writeCount = 200000;
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < writeCount; ++i) {
+                    buffer.write(bytes(i * 16, 16), 0, 16);
+                }
+            }
+        };
+        writer.start();
+        byte[] read = new byte[32];
+        int successCount = 0;
+        while (writer.isAlive()) {
+            // Reads the oldest bytes, which the writer is about to overwrite.
+            long position = Math.max(0, buffer.getWritePosition() - 64);
+            if (buffer.read(position, read, 0, read.length, 0) == read.length) {
+                assertTrue(Arrays.equals(bytes((int) position, read.length), read));
+                ++successCount;
+            }
+        }
+        writer.join();
+        Log.i(TAG, "Reads which were not overwritten: " + successCount);
+    }
+
+    @SmallTest
+    public void testClose_wakesUpReader() throws InterruptedException {
+        final ByteRingBuffer buffer = new ByteRingBuffer(10);
+        final int[] result = new int[1];
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                result[0] = buffer.read(0, new byte[4], 0, 4, 10000);
+            }
+        };
+        reader.start();
+        SystemClock.sleep(50);
+        buffer.close();
+        reader.join(1000);
+        assertFalse(reader.isAlive());
+        assertEquals(ByteRingBuffer.RESULT_CLOSED, result[0]);
+        assertFalse(buffer.write(bytes(0, 4), 0, 4));
+    }
+
+    @SmallTest
+    public void testWrite_waitsForReader() throws InterruptedException {
+        final ByteRingBuffer buffer = new ByteRingBuffer(10, 2);
+        assertTrue(buffer.write(bytes(0, 8), 0, 8));
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                buffer.write(bytes(8, 4), 0, 4);
+            }
+        };
+        writer.start();
+        SystemClock.sleep(50);
+        assertEquals(8, buffer.getWritePosition());
+        assertEquals(4, buffer.read(0, new byte[4], 0, 4, 0));
+        writer.join(1000);
+        assertFalse(writer.isAlive());
+        assertEquals(12, buffer.getWritePosition());
+    }
+
+    /**
+     * Streams data from a writer thread to a reader thread, and compares the throughput and the
+     * read latency with a ring buffer which takes a monitor on every read and write, as the TS
+     * streamers used to do.
+     */
+    @LargeTest
+    public void testStreaming_benchmark() {
+        final ByteRingBuffer ringBuffer = new ByteRingBuffer(BENCHMARK_CAPACITY, 0);
+        BenchmarkUtils.Result result = BenchmarkUtils.measure("ByteRingBuffer", 2, 5,
+                new BenchmarkUtils.Workload() {
+                    @Override
+                    public long run() {
+                        ringBuffer.reset();
+                        return stream("ByteRingBuffer", new StreamBuffer() {
+                            @Override
+                            public void write(byte[] data, int length) {
+                                ringBuffer.write(data, 0, length);
+                            }
+
+                            @Override
+                            public int read(long position, byte[] buffer, int length) {
+                                return ringBuffer.read(position, buffer, 0, length, 1000);
+                            }
+                        });
+                    }
+                });
+        final MonitorRingBuffer monitorBuffer = new MonitorRingBuffer(BENCHMARK_CAPACITY);
+        BenchmarkUtils.Result monitorResult = BenchmarkUtils.measure("MonitorRingBuffer", 2, 5,
+                new BenchmarkUtils.Workload() {
+                    @Override
+                    public long run() {
+                        monitorBuffer.reset();
+                        return stream("MonitorRingBuffer", monitorBuffer);
+                    }
+                });
+        assertTrue(result.getItemsPerSecond() > 0);
+        assertTrue(monitorResult.getItemsPerSecond() > 0);
+    }
+
+    private interface StreamBuffer {
+        void write(byte[] data, int length);
+
+        int read(long position, byte[] buffer, int length);
+    }
+
+    /**
+     * Writes and reads {@link #BENCHMARK_WRITE_COUNT} chunks through the buffer, and returns the
+     * number of bytes read.
+     */
+    private static long stream(String name, final StreamBuffer buffer) {
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                byte[] data = new byte[WRITE_SIZE];
+                for (int i = 0; i < BENCHMARK_WRITE_COUNT; ++i) {
+                    buffer.write(data, data.length);
+                }
+            }
+        };
+        writer.start();
+        long totalBytes = (long) WRITE_SIZE * BENCHMARK_WRITE_COUNT;
+        byte[] readBuffer = new byte[READ_SIZE];
+        long position = 0;
+        long maxLatencyNs = 0;
+        long totalLatencyNs = 0;
+        int readCount = 0;
+        while (position + READ_SIZE <= totalBytes) {
+            long startNs = SystemClock.elapsedRealtimeNanos();
+            int read = buffer.read(position, readBuffer, READ_SIZE);
+            long latencyNs = SystemClock.elapsedRealtimeNanos() - startNs;
+            assertEquals(READ_SIZE, read);
+            maxLatencyNs = Math.max(maxLatencyNs, latencyNs);
+            totalLatencyNs += latencyNs;
+            ++readCount;
+            position += read;
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.i(TAG, name + " read latency: average "
+                + totalLatencyNs / readCount + "ns, max " + maxLatencyNs + "ns");
+        return position;
+    }
+
+    /**
+     * The ring buffer which the TS streamers used before, which takes a monitor and notifies on
+     * every read and write.
+     */
+    private static class MonitorRingBuffer implements StreamBuffer {
+        private final Object mMonitor = new Object();
+        private final byte[] mBuffer;
+        private long mBytesFetched;
+        private long mLastReadPosition;
+
+        MonitorRingBuffer(int capacity) {
+            mBuffer = new byte[capacity];
+        }
+
+        void reset() {
+            synchronized (mMonitor) {
+                mBytesFetched = 0;
+                mLastReadPosition = 0;
+            }
+        }
+
+        @Override
+        public void write(byte[] data, int length) {
+            synchronized (mMonitor) {
+                while (mBytesFetched + length - mLastReadPosition > mBuffer.length) {
+                    try {
+                        mMonitor.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                int posInBuffer = (int) (mBytesFetched % mBuffer.length);
+                int firstLength = Math.min(length, mBuffer.length - posInBuffer);
+                System.arraycopy(data, 0, mBuffer, posInBuffer, firstLength);
+                if (firstLength < length) {
+                    System.arraycopy(data, firstLength, mBuffer, 0, length - firstLength);
+                }
+                mBytesFetched += length;
+                mMonitor.notifyAll();
+            }
+        }
+
+        @Override
+        public int read(long position, byte[] buffer, int length) {
+            synchronized (mMonitor) {
+                while (mBytesFetched < position + length) {
+                    try {
+                        mMonitor.wait(1000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return -1;
+                    }
+                }
+                int posInBuffer = (int) (position % mBuffer.length);
+                int firstLength = Math.min(length, mBuffer.length - posInBuffer);
+                System.arraycopy(mBuffer, posInBuffer, buffer, 0, firstLength);
+                if (firstLength < length) {
+                    System.arraycopy(mBuffer, 0, buffer, firstLength, length - firstLength);
+                }
+                mLastReadPosition = position + length;
+                mMonitor.notifyAll();
+                return length;
+            }
+        }
+    }
+
+    private static byte[] bytes(int start, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            data[i] = (byte) (start + i);
+        }
+        return data;
+    }
+}
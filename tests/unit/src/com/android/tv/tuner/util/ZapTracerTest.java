@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.util;
+
+import android.os.SystemClock;
+import android.support.test.filters.SmallTest;
+
+import com.android.tv.analytics.StubTracker;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link ZapTracer}.
+ */
+@SmallTest
+public class ZapTracerTest extends TestCase {
+    private static final long STAGE_DURATION_MS = 20;
+
+    private ZapTracer mTracer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTracer = new ZapTracer();
+    }
+
+    public void testMarkStage_ignoredAfterZapFinished() {
+        ZapTracer.Zap zap = mTracer.startZap();
+        zap.markStage(ZapTracer.STAGE_FIRST_FRAME);
+        zap.markStage(ZapTracer.STAGE_TUNER_LOCKED);
+        zap.markStage(ZapTracer.STAGE_FIRST_FRAME);
+        assertEquals(1, mTracer.getFinishedZapCount());
+        assertEquals(-1, mTracer.getLastZapLatencyMs(ZapTracer.STAGE_TUNER_LOCKED));
+    }
+
+    public void testMarkStage_measuresFromPreviousStage() {
+        ZapTracer.Zap zap = mTracer.startZap();
+        SystemClock.sleep(STAGE_DURATION_MS);
+        zap.markStage(ZapTracer.STAGE_TUNER_LOCKED);
+        SystemClock.sleep(STAGE_DURATION_MS);
+        zap.markStage(ZapTracer.STAGE_PAT_PARSED);
+        SystemClock.sleep(STAGE_DURATION_MS);
+        // Only the first PAT is traced.
+        zap.markStage(ZapTracer.STAGE_PAT_PARSED);
+        zap.markStage(ZapTracer.STAGE_FIRST_FRAME);
+
+        assertEquals(1, mTracer.getFinishedZapCount());
+        assertEquals(-1, mTracer.getLastZapLatencyMs(ZapTracer.STAGE_TUNER_ACQUIRED));
+        long lockedMs = mTracer.getLastZapLatencyMs(ZapTracer.STAGE_TUNER_LOCKED);
+        long patMs = mTracer.getLastZapLatencyMs(ZapTracer.STAGE_PAT_PARSED);
+        long firstFrameMs = mTracer.getLastZapLatencyMs(ZapTracer.STAGE_FIRST_FRAME);
+        assertTrue(lockedMs >= STAGE_DURATION_MS);
+        assertTrue(patMs >= STAGE_DURATION_MS);
+        assertTrue(firstFrameMs >= STAGE_DURATION_MS);
+        assertTrue(mTracer.getLastZapLatencyMs(ZapTracer.STAGE_TUNE_REQUESTED)
+                >= lockedMs + patMs + firstFrameMs);
+    }
+
+    public void testStartZap_abandonsUnfinishedZap() {
+        ZapTracer.Zap abandonedZap = mTracer.startZap();
+        abandonedZap.markStage(ZapTracer.STAGE_TUNER_LOCKED);
+        ZapTracer.Zap zap = mTracer.startZap();
+        // The stages of the abandoned zap don't show up in the new one.
+        abandonedZap.markStage(ZapTracer.STAGE_FIRST_FRAME);
+        assertEquals(0, mTracer.getFinishedZapCount());
+        zap.markStage(ZapTracer.STAGE_FIRST_FRAME);
+        assertEquals(1, mTracer.getFinishedZapCount());
+        assertEquals(-1, mTracer.getLastZapLatencyMs(ZapTracer.STAGE_TUNER_LOCKED));
+        assertTrue(dump().contains("abandoned=1"));
+    }
+
+    public void testSendLastZap_sendsOnce() {
+        final List<String> sentStages = new ArrayList<>();
+        StubTracker tracker = new StubTracker() {
+            @Override
+            public void sendTunerZapStageTime(String stageName, long durationMs) {
+                sentStages.add(stageName);
+            }
+        };
+        mTracer.sendLastZap(tracker);
+        assertTrue(sentStages.isEmpty());
+
+        ZapTracer.Zap zap = mTracer.startZap();
+        zap.markStage(ZapTracer.STAGE_PMT_PARSED);
+        zap.markStage(ZapTracer.STAGE_FIRST_FRAME);
+        mTracer.sendLastZap(tracker);
+        mTracer.sendLastZap(tracker);
+        assertEquals(3, sentStages.size());
+        assertTrue(sentStages.contains("total"));
+        assertTrue(sentStages.contains("pmt_parsed"));
+        assertTrue(sentStages.contains("first_frame"));
+    }
+
+    public void testDump_printsHistograms() {
+        for (int i = 0; i < 3; ++i) {
+            ZapTracer.Zap zap = mTracer.startZap();
+            zap.markStage(ZapTracer.STAGE_TUNER_LOCKED);
+            zap.markStage(ZapTracer.STAGE_FIRST_FRAME);
+        }
+        String dump = dump();
+        assertTrue(dump.contains("finished=3"));
+        assertTrue(dump.contains("stage=total count=3"));
+        assertTrue(dump.contains("stage=tuner_locked count=3"));
+        assertTrue(dump.contains("stage=pat_parsed count=0"));
+    }
+
+    public void testBudgets_areBucketBounds() {
+        List<Long> bounds = new ArrayList<>();
+        for (long bound : ZapTracer.BUCKET_BOUNDS_MS) {
+            bounds.add(bound);
+        }
+        for (long budget : ZapTracer.STAGE_BUDGETS_MS) {
+            assertTrue(budget + "ms is not a bucket bound", bounds.contains(budget));
+        }
+    }
+
+    private String dump() {
+        StringWriter writer = new StringWriter();
+        mTracer.dump(new PrintWriter(writer));
+        return writer.toString();
+    }
+}